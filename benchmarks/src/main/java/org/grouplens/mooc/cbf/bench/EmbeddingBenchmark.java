@@ -0,0 +1,95 @@
+package org.grouplens.mooc.cbf.bench;
+
+import org.grouplens.lenskit.data.dao.PrefetchingUserEventDAO;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.mooc.cbf.ItemEmbedding;
+import org.grouplens.mooc.cbf.ItemEmbeddingBuilder;
+import org.grouplens.mooc.cbf.ProjectionMethod;
+import org.grouplens.mooc.cbf.TFIDFItemScorer;
+import org.grouplens.mooc.cbf.TFIDFModel;
+import org.grouplens.mooc.cbf.TFIDFModelBuilder;
+import org.grouplens.mooc.cbf.dao.CSVItemTagDAO;
+import org.grouplens.mooc.cbf.dao.MOOCRatingDAO;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks building {@linkplain ItemEmbedding item embeddings} with each
+ * {@linkplain ProjectionMethod projection method}, and scoring the whole catalog in them.  Each
+ * scoring invocation projects the next of {@value #USERS} users' profiles, which are built
+ * beforehand, and takes its dot product with every item; {@code ScoringBenchmark} times the same
+ * with the sparse vectors.  How well the embeddings preserve rankings is checked by
+ * {@code ItemEmbeddingTest}.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class EmbeddingBenchmark {
+    static final int USERS = 100;
+
+    @Param({"10000", "100000"})
+    public int items;
+
+    @Param({"20"})
+    public int tagsPerItem;
+
+    @Param({"svd", "random"})
+    public String method;
+
+    @Param({"16", "32", "64", "128"})
+    public int dimension;
+
+    private SyntheticData data;
+    private TFIDFModel model;
+    private ItemEmbedding embedding;
+    private SparseVector[] profiles;
+    private float[] query;
+    private int nextUser;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        data = SyntheticData.generate(SyntheticData.findTagSource(), items, tagsPerItem,
+                                      USERS, 20, 42);
+        CSVItemTagDAO dao = new CSVItemTagDAO(data.getTitleFile(), data.getTagFile());
+        UserEventDAO uedao = new PrefetchingUserEventDAO(new MOOCRatingDAO(data.getRatingFile()));
+        model = new TFIDFModelBuilder(dao, 1, null, "double", 0, 0).get();
+        embedding = new ItemEmbeddingBuilder(model, dimension, method, 1).get();
+        TFIDFItemScorer scorer = new TFIDFItemScorer(uedao, model, 0, 0, 0);
+        profiles = new SparseVector[USERS];
+        for (int u = 0; u < USERS; u++) {
+            profiles[u] = scorer.makeUserVector(u + 1);
+        }
+        query = new float[dimension];
+        nextUser = 0;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        data.delete();
+    }
+
+    @Benchmark
+    public ItemEmbedding buildEmbedding() {
+        return new ItemEmbeddingBuilder(model, dimension, method, 1).get();
+    }
+
+    @Benchmark
+    public double scoreAllItems() {
+        embedding.project(profiles[nextUser], query);
+        nextUser = (nextUser + 1) % USERS;
+        int nitems = embedding.getItemCount();
+        double sum = 0;
+        for (int i = 0; i < nitems; i++) {
+            sum += embedding.dot(i, query);
+        }
+        return sum;
+    }
+}
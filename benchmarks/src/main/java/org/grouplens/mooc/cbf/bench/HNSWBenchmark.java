@@ -0,0 +1,91 @@
+package org.grouplens.mooc.cbf.bench;
+
+import org.grouplens.lenskit.ItemRecommender;
+import org.grouplens.lenskit.basic.TopNItemRecommender;
+import org.grouplens.lenskit.data.dao.PrefetchingUserEventDAO;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.scored.ScoredId;
+import org.grouplens.mooc.cbf.HNSWIndex;
+import org.grouplens.mooc.cbf.HNSWIndexBuilder;
+import org.grouplens.mooc.cbf.HNSWItemRecommender;
+import org.grouplens.mooc.cbf.TFIDFItemScorer;
+import org.grouplens.mooc.cbf.TFIDFModel;
+import org.grouplens.mooc.cbf.TFIDFModelBuilder;
+import org.grouplens.mooc.cbf.dao.CSVItemTagDAO;
+import org.grouplens.mooc.cbf.dao.MOOCRatingDAO;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks recommending with the {@linkplain HNSWItemRecommender HNSW recommender} for a range
+ * of search list sizes, against exhaustive scoring.  The graph is built once per trial with the
+ * default parameters.  Its recall is checked by {@code HNSWItemRecommenderTest}.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class HNSWBenchmark {
+    static final int USERS = 100;
+
+    @Param({"1000", "10000"})
+    public int items;
+
+    @Param({"20"})
+    public int tagsPerItem;
+
+    @Param({"10", "50", "200"})
+    public int efSearch;
+
+    /**
+     * The number of recommendations to request.
+     */
+    @Param({"10"})
+    public int n;
+
+    private SyntheticData data;
+    private ItemRecommender exhaustive;
+    private ItemRecommender hnsw;
+    private long nextUser;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        data = SyntheticData.generate(SyntheticData.findTagSource(), items, tagsPerItem,
+                                      USERS, 20, 42);
+        CSVItemTagDAO dao = new CSVItemTagDAO(data.getTitleFile(), data.getTagFile());
+        UserEventDAO uedao = new PrefetchingUserEventDAO(new MOOCRatingDAO(data.getRatingFile()));
+        TFIDFModel model = new TFIDFModelBuilder(dao, 1, null, "double", 0, 0).get();
+        TFIDFItemScorer scorer = new TFIDFItemScorer(uedao, model, USERS, 0, 0);
+        HNSWIndex index = new HNSWIndexBuilder(model, 16, 100, null).get();
+        exhaustive = new TopNItemRecommender(uedao, dao, scorer);
+        hnsw = new HNSWItemRecommender(uedao, dao, scorer, model, index, efSearch);
+        nextUser = 0;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        data.delete();
+    }
+
+    private long nextUser() {
+        nextUser = nextUser % USERS + 1;
+        return nextUser;
+    }
+
+    @Benchmark
+    public List<ScoredId> recommendExhaustive() {
+        return exhaustive.recommend(nextUser(), n);
+    }
+
+    @Benchmark
+    public List<ScoredId> recommendHNSW() {
+        return hnsw.recommend(nextUser(), n);
+    }
+}
@@ -0,0 +1,50 @@
+package org.grouplens.mooc.cbf.bench;
+
+import org.grouplens.mooc.cbf.TFIDFModel;
+import org.grouplens.mooc.cbf.TFIDFModelBuilder;
+import org.grouplens.mooc.cbf.dao.CSVItemTagDAO;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks building the TF-IDF model.  The DAO reads its files during setup, so this measures
+ * the model computation rather than CSV parsing.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ModelBuildBenchmark {
+    @Param({"1000", "10000", "100000"})
+    public int items;
+
+    @Param({"5", "20"})
+    public int tagsPerItem;
+
+    private SyntheticData data;
+    private CSVItemTagDAO dao;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        data = SyntheticData.generate(SyntheticData.findTagSource(), items, tagsPerItem, 0, 0, 42);
+        dao = new CSVItemTagDAO(data.getTitleFile(), data.getTagFile());
+        // load the files now
+        dao.getTagVocabulary();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        data.delete();
+    }
+
+    @Benchmark
+    public TFIDFModel buildModel() {
+        return new TFIDFModelBuilder(dao, 1, null, "double", 0, 0).get();
+    }
+}
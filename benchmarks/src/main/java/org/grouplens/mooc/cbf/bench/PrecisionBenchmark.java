@@ -0,0 +1,94 @@
+package org.grouplens.mooc.cbf.bench;
+
+import org.grouplens.lenskit.data.dao.PrefetchingUserEventDAO;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.lenskit.vectors.VectorEntry;
+import org.grouplens.mooc.cbf.TFIDFItemScorer;
+import org.grouplens.mooc.cbf.TFIDFModel;
+import org.grouplens.mooc.cbf.TFIDFModelBuilder;
+import org.grouplens.mooc.cbf.TFIDFModelFile;
+import org.grouplens.mooc.cbf.WeightPrecision;
+import org.grouplens.mooc.cbf.dao.CSVItemTagDAO;
+import org.grouplens.mooc.cbf.dao.MOOCRatingDAO;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks scoring the whole catalog against a user's profile at each
+ * {@linkplain WeightPrecision weight precision}.  The model is written to a
+ * {@linkplain TFIDFModelFile model file} and memory-mapped, as a deployed model would be, and each
+ * invocation takes the dot product of every item with the next of {@value #USERS} users' profiles.
+ * The accuracy of the lower precisions is checked by {@code WeightPrecisionTest}.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PrecisionBenchmark {
+    static final int USERS = 100;
+
+    @Param({"10000", "100000"})
+    public int items;
+
+    @Param({"20"})
+    public int tagsPerItem;
+
+    @Param({"double", "float", "int8"})
+    public String precision;
+
+    private SyntheticData data;
+    private File modelFile;
+    private TFIDFModel model;
+    private double[][] profiles;
+    private int nextUser;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        data = SyntheticData.generate(SyntheticData.findTagSource(), items, tagsPerItem,
+                                      USERS, 20, 42);
+        CSVItemTagDAO dao = new CSVItemTagDAO(data.getTitleFile(), data.getTagFile());
+        UserEventDAO uedao = new PrefetchingUserEventDAO(new MOOCRatingDAO(data.getRatingFile()));
+        TFIDFModel base = new TFIDFModelBuilder(dao, 1, null, "double", 0, 0).get();
+        modelFile = File.createTempFile("model-" + precision, ".tfidf");
+        TFIDFModelFile.write(base.withPrecision(WeightPrecision.fromName(precision)), modelFile);
+        model = TFIDFModelFile.open(modelFile);
+
+        // every precision scores the same profiles, built from the double model
+        TFIDFItemScorer scorer = new TFIDFItemScorer(uedao, base, 0, 0, 0);
+        profiles = new double[USERS][];
+        for (int u = 0; u < USERS; u++) {
+            SparseVector vector = scorer.makeUserVector(u + 1);
+            profiles[u] = new double[base.getTagCount()];
+            for (VectorEntry e: vector.fast()) {
+                profiles[u][(int) e.getKey() - 1] = e.getValue();
+            }
+        }
+        nextUser = 0;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        modelFile.delete();
+        data.delete();
+    }
+
+    @Benchmark
+    public double scoreAllItems() {
+        double[] profile = profiles[nextUser];
+        nextUser = (nextUser + 1) % USERS;
+        int nitems = model.getItemCount();
+        double sum = 0;
+        for (int i = 0; i < nitems; i++) {
+            sum += model.dot(i, profile);
+        }
+        return sum;
+    }
+}
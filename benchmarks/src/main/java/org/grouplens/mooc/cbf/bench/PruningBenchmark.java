@@ -0,0 +1,85 @@
+package org.grouplens.mooc.cbf.bench;
+
+import org.grouplens.lenskit.data.dao.PrefetchingUserEventDAO;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.lenskit.vectors.VectorEntry;
+import org.grouplens.mooc.cbf.ProfileTagLimit;
+import org.grouplens.mooc.cbf.TFIDFItemScorer;
+import org.grouplens.mooc.cbf.TFIDFModel;
+import org.grouplens.mooc.cbf.TFIDFModelBuilder;
+import org.grouplens.mooc.cbf.dao.CSVItemTagDAO;
+import org.grouplens.mooc.cbf.dao.MOOCRatingDAO;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks building a user's profile and scoring the whole catalog against it with
+ * {@linkplain TFIDFModel#pruned(int, double) pruned item vectors} and
+ * {@linkplain ProfileTagLimit capped profiles}.  Each invocation serves the next of
+ * {@value #USERS} users; a limit of 0 means no pruning.  How far pruning moves the rankings is
+ * checked by {@code TFIDFModelPruningTest}.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class PruningBenchmark {
+    static final int USERS = 100;
+
+    @Param({"10000"})
+    public int items;
+
+    @Param({"50"})
+    public int tagsPerItem;
+
+    @Param({"0", "50", "20", "10", "5"})
+    public int itemTagLimit;
+
+    @Param({"0", "200", "50", "20"})
+    public int profileTagLimit;
+
+    private SyntheticData data;
+    private TFIDFModel model;
+    private TFIDFItemScorer scorer;
+    private int nextUser;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        data = SyntheticData.generate(SyntheticData.findTagSource(), items, tagsPerItem,
+                                      USERS, 20, 42);
+        CSVItemTagDAO dao = new CSVItemTagDAO(data.getTitleFile(), data.getTagFile());
+        UserEventDAO uedao = new PrefetchingUserEventDAO(new MOOCRatingDAO(data.getRatingFile()));
+        model = new TFIDFModelBuilder(dao, 1, null, "double", 0, 0).get()
+                .pruned(itemTagLimit, 0);
+        scorer = new TFIDFItemScorer(uedao, model, 0, 0, profileTagLimit);
+        nextUser = 0;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        data.delete();
+    }
+
+    @Benchmark
+    public double scoreUser() {
+        SparseVector vector = scorer.makeUserVector(nextUser + 1);
+        nextUser = (nextUser + 1) % USERS;
+        double[] profile = new double[model.getTagCount()];
+        for (VectorEntry e: vector.fast()) {
+            profile[(int) e.getKey() - 1] = e.getValue();
+        }
+        int nitems = model.getItemCount();
+        double sum = 0;
+        for (int i = 0; i < nitems; i++) {
+            sum += model.dot(i, profile);
+        }
+        return sum;
+    }
+}
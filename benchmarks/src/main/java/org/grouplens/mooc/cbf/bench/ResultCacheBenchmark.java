@@ -0,0 +1,85 @@
+package org.grouplens.mooc.cbf.bench;
+
+import org.grouplens.lenskit.ItemRecommender;
+import org.grouplens.lenskit.data.dao.PrefetchingUserEventDAO;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.scored.ScoredId;
+import org.grouplens.mooc.cbf.*;
+import org.grouplens.mooc.cbf.dao.CSVItemTagDAO;
+import org.grouplens.mooc.cbf.dao.MOOCRatingDAO;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks recommending with and without a {@linkplain CachedItemRecommender result cache}
+ * around the {@link MaxScoreItemRecommender}, as {@link CBFMain} serves lists.  Each invocation
+ * recommends for the next of {@value #USERS} users in turn; the cache holds every user's list, so
+ * after the first round every cached request is a hit.  That the cached lists match and are
+ * invalidated is checked by {@code CachedItemRecommenderTest}.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ResultCacheBenchmark {
+    static final int USERS = 100;
+
+    @Param({"10000", "100000"})
+    public int items;
+
+    @Param({"20"})
+    public int tagsPerItem;
+
+    /**
+     * The number of recommendations to request.
+     */
+    @Param({"10"})
+    public int n;
+
+    private SyntheticData data;
+    private ItemRecommender uncached;
+    private CachedItemRecommender cached;
+    private long nextUser;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        data = SyntheticData.generate(SyntheticData.findTagSource(), items, tagsPerItem,
+                                      USERS, 20, 42);
+        CSVItemTagDAO dao = new CSVItemTagDAO(data.getTitleFile(), data.getTagFile());
+        UserEventDAO uedao = new PrefetchingUserEventDAO(new MOOCRatingDAO(data.getRatingFile()));
+        TFIDFModel model = new TFIDFModelBuilder(dao, 1, null, "double", 0, 0).get();
+        TFIDFItemScorer scorer = new TFIDFItemScorer(uedao, model, USERS, 0, 0);
+        uncached = new MaxScoreItemRecommender(uedao, dao, scorer, model,
+                                               new TagItemIndexBuilder(model).get());
+        // Guava splits the bound between segments, so leave room for every user's list
+        cached = new CachedItemRecommender(uncached, model, uedao, 2 * USERS);
+        nextUser = 0;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        data.delete();
+    }
+
+    private long nextUser() {
+        nextUser = nextUser % USERS + 1;
+        return nextUser;
+    }
+
+    @Benchmark
+    public List<ScoredId> recommendUncached() {
+        return uncached.recommend(nextUser(), n);
+    }
+
+    @Benchmark
+    public List<ScoredId> recommendCached() {
+        return cached.recommend(nextUser(), n);
+    }
+}
@@ -0,0 +1,105 @@
+package org.grouplens.mooc.cbf.bench;
+
+import it.unimi.dsi.fastutil.longs.LongSortedSet;
+import org.grouplens.lenskit.ItemRecommender;
+import org.grouplens.lenskit.basic.TopNItemRecommender;
+import org.grouplens.lenskit.collections.LongUtils;
+import org.grouplens.lenskit.data.dao.PrefetchingUserEventDAO;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.scored.ScoredId;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.mooc.cbf.*;
+import org.grouplens.mooc.cbf.dao.CSVItemTagDAO;
+import org.grouplens.mooc.cbf.dao.MOOCRatingDAO;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks building user profiles, scoring the whole catalog for a user, and recommending.
+ * Each invocation works for the next of {@value #USERS} users in turn.  Profile building is
+ * measured with the profile cache disabled; scoring and recommendation use a warm cache, as they
+ * do in a running recommender.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ScoringBenchmark {
+    static final int USERS = 100;
+
+    @Param({"1000", "10000", "100000"})
+    public int items;
+
+    @Param({"5", "20"})
+    public int tagsPerItem;
+
+    @Param({"10", "50"})
+    public int ratingsPerUser;
+
+    /**
+     * The number of recommendations to request.
+     */
+    @Param({"10"})
+    public int n;
+
+    private SyntheticData data;
+    private TFIDFItemScorer uncachedScorer;
+    private TFIDFItemScorer scorer;
+    private LongSortedSet allItems;
+    private ItemRecommender exhaustive;
+    private ItemRecommender maxScore;
+    private long nextUser;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        data = SyntheticData.generate(SyntheticData.findTagSource(), items, tagsPerItem,
+                                      USERS, ratingsPerUser, 42);
+        CSVItemTagDAO dao = new CSVItemTagDAO(data.getTitleFile(), data.getTagFile());
+        UserEventDAO uedao = new PrefetchingUserEventDAO(new MOOCRatingDAO(data.getRatingFile()));
+        TFIDFModel model = new TFIDFModelBuilder(dao, 1, null, "double", 0, 0).get();
+        uncachedScorer = new TFIDFItemScorer(uedao, model, 0, 0, 0);
+        scorer = new TFIDFItemScorer(uedao, model, USERS, 0, 0);
+        allItems = LongUtils.packedSet(dao.getItemIds());
+        exhaustive = new TopNItemRecommender(uedao, dao, scorer);
+        maxScore = new MaxScoreItemRecommender(uedao, dao, scorer, model,
+                                               new TagItemIndexBuilder(model).get());
+        nextUser = 0;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        data.delete();
+    }
+
+    private long nextUser() {
+        nextUser = nextUser % USERS + 1;
+        return nextUser;
+    }
+
+    @Benchmark
+    public SparseVector makeUserVector() {
+        return uncachedScorer.makeUserVector(nextUser());
+    }
+
+    @Benchmark
+    public SparseVector scoreAllItems() {
+        return scorer.score(nextUser(), allItems);
+    }
+
+    @Benchmark
+    public List<ScoredId> recommendExhaustive() {
+        return exhaustive.recommend(nextUser(), n);
+    }
+
+    @Benchmark
+    public List<ScoredId> recommendMaxScore() {
+        return maxScore.recommend(nextUser(), n);
+    }
+}
@@ -0,0 +1,108 @@
+package org.grouplens.mooc.cbf.bench;
+
+import org.grouplens.lenskit.data.dao.PrefetchingUserEventDAO;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.scored.ScoredId;
+import org.grouplens.mooc.cbf.LocalModelShard;
+import org.grouplens.mooc.cbf.ModelShard;
+import org.grouplens.mooc.cbf.RemoteModelShard;
+import org.grouplens.mooc.cbf.ShardServer;
+import org.grouplens.mooc.cbf.ShardedItemRecommender;
+import org.grouplens.mooc.cbf.TFIDFItemScorer;
+import org.grouplens.mooc.cbf.TFIDFModel;
+import org.grouplens.mooc.cbf.TFIDFModelBuilder;
+import org.grouplens.mooc.cbf.dao.CSVItemTagDAO;
+import org.grouplens.mooc.cbf.dao.MOOCRatingDAO;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks {@linkplain ShardedItemRecommender scatter-gather recommendation} as shards are
+ * added, with the shards in this process or behind {@linkplain ShardServer shard servers} in this
+ * process reached over loopback TCP, which adds the cost of the protocol.  That the sharded
+ * results equal the unsharded ones is checked by {@code ShardedItemRecommenderTest}.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+@BenchmarkMode({Mode.Throughput, Mode.AverageTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ShardingBenchmark {
+    static final int USERS = 100;
+
+    @Param({"10000", "100000"})
+    public int items;
+
+    @Param({"20"})
+    public int tagsPerItem;
+
+    @Param({"1", "2", "4", "8"})
+    public int shards;
+
+    @Param({"local", "tcp"})
+    public String transport;
+
+    /**
+     * The number of recommendations to request.
+     */
+    @Param({"10"})
+    public int n;
+
+    private SyntheticData data;
+    private List<ShardServer> servers;
+    private ShardedItemRecommender recommender;
+    private long nextUser;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        data = SyntheticData.generate(SyntheticData.findTagSource(), items, tagsPerItem,
+                                      USERS, 20, 42);
+        CSVItemTagDAO dao = new CSVItemTagDAO(data.getTitleFile(), data.getTagFile());
+        UserEventDAO uedao = new PrefetchingUserEventDAO(new MOOCRatingDAO(data.getRatingFile()));
+        TFIDFModel model = new TFIDFModelBuilder(dao, 1, null, "double", 0, 0).get();
+        TFIDFItemScorer scorer = new TFIDFItemScorer(uedao, model, USERS, 0, 0);
+
+        servers = new ArrayList<ShardServer>(shards);
+        List<ModelShard> parts = new ArrayList<ModelShard>(shards);
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        for (TFIDFModel part: TFIDFModelBuilder.shard(model, shards)) {
+            ModelShard shard = new LocalModelShard(part);
+            if (transport.equals("tcp")) {
+                ShardServer server = ShardServer.start(shard, loopback, 0);
+                servers.add(server);
+                shard = new RemoteModelShard(new InetSocketAddress(loopback, server.getPort()));
+            }
+            parts.add(shard);
+        }
+        recommender = new ShardedItemRecommender(uedao, dao, scorer, parts);
+        nextUser = 0;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        recommender.close();
+        for (ShardServer server: servers) {
+            server.close();
+        }
+        data.delete();
+    }
+
+    private long nextUser() {
+        nextUser = nextUser % USERS + 1;
+        return nextUser;
+    }
+
+    @Benchmark
+    public List<ScoredId> recommend() {
+        return recommender.recommend(nextUser(), n);
+    }
+}
@@ -0,0 +1,193 @@
+package org.grouplens.mooc.cbf.bench;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.*;
+
+/**
+ * Generates synthetic item, tag and rating files in the formats of the files in {@code data/}, at
+ * any scale.  Tags are drawn with the frequencies they have in a real tag file (by default
+ * {@code data/movie-tags.csv}), so the generated catalog has the same long-tailed tag
+ * distribution.  As the catalog grows, the vocabulary grows with the square root of the catalog
+ * size: each real tag is split into variants that share its frequency, mimicking how larger
+ * catalogs accumulate rarer tags.
+ * <p>
+ * Items are numbered from 1, as are users.  Each user rates a random sample of items, with ratings
+ * from 0.5 to 5 in steps of 0.5.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class SyntheticData {
+    /**
+     * System property naming the tag file to take tag frequencies from.
+     */
+    public static final String TAG_SOURCE_PROPERTY = "cbf.bench.tagSource";
+    private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+    private final File directory;
+    private final File titleFile;
+    private final File tagFile;
+    private final File ratingFile;
+
+    private SyntheticData(File dir) {
+        directory = dir;
+        titleFile = new File(dir, "movie-titles.csv");
+        tagFile = new File(dir, "movie-tags.csv");
+        ratingFile = new File(dir, "ratings.csv");
+    }
+
+    /**
+     * Find the tag file to take tag frequencies from.  This is the file named by the
+     * {@value #TAG_SOURCE_PROPERTY} system property, or {@code data/movie-tags.csv} in the current
+     * directory or its parent (so the benchmarks can run from the project or the benchmark
+     * directory).
+     *
+     * @return The tag file.
+     * @throws FileNotFoundException if no tag file can be found.
+     */
+    public static File findTagSource() throws FileNotFoundException {
+        String prop = System.getProperty(TAG_SOURCE_PROPERTY);
+        if (prop != null) {
+            return new File(prop);
+        }
+        for (String path: new String[]{"data/movie-tags.csv", "../data/movie-tags.csv"}) {
+            File file = new File(path);
+            if (file.isFile()) {
+                return file;
+            }
+        }
+        throw new FileNotFoundException("cannot find data/movie-tags.csv; set " + TAG_SOURCE_PROPERTY);
+    }
+
+    /**
+     * Generate a data set in a new temporary directory.
+     *
+     * @param tagSource      The tag file to take tag frequencies from.
+     * @param items          The number of items.
+     * @param tagsPerItem    The number of tag applications per item.  Tags are drawn with
+     *                       replacement, so an item may have the same tag more than once.
+     * @param users          The number of users.
+     * @param ratingsPerUser The number of items each user rates.
+     * @param seed           The random seed.
+     * @return The data set.
+     * @throws IOException if there is an error reading the tag source or writing the files.
+     */
+    public static SyntheticData generate(File tagSource, int items, int tagsPerItem,
+                                         int users, int ratingsPerUser,
+                                         long seed) throws IOException {
+        // count the tags in the source
+        Map<String,Integer> counts = new LinkedHashMap<String, Integer>();
+        Set<String> sourceItems = new HashSet<String>();
+        BufferedReader reader = Files.newBufferedReader(tagSource.toPath(), CHARSET);
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(",");
+                if (fields.length < 2) {
+                    continue;
+                }
+                sourceItems.add(fields[0]);
+                Integer n = counts.get(fields[1]);
+                counts.put(fields[1], n == null ? 1 : n + 1);
+            }
+        } finally {
+            reader.close();
+        }
+        if (counts.isEmpty()) {
+            throw new IOException(tagSource + ": no tags");
+        }
+        String[] tags = counts.keySet().toArray(new String[counts.size()]);
+        long[] cumulative = new long[tags.length];
+        long total = 0;
+        for (int i = 0; i < tags.length; i++) {
+            total += counts.get(tags[i]);
+            cumulative[i] = total;
+        }
+        int variants = (int) Math.ceil(Math.sqrt((double) items / sourceItems.size()));
+
+        SyntheticData data = new SyntheticData(Files.createTempDirectory("cbf-bench").toFile());
+        Random rng = new Random(seed);
+        PrintWriter titles = data.open(data.titleFile);
+        PrintWriter tagOut = data.open(data.tagFile);
+        try {
+            for (int item = 1; item <= items; item++) {
+                titles.printf("%d,Synthetic Item %d\n", item, item);
+                for (int j = 0; j < tagsPerItem; j++) {
+                    long draw = (long) (rng.nextDouble() * total);
+                    int t = Arrays.binarySearch(cumulative, draw + 1);
+                    if (t < 0) {
+                        t = -t - 1;
+                    }
+                    int variant = rng.nextInt(variants);
+                    tagOut.printf("%d,%s\n", item, variant == 0 ? tags[t] : tags[t] + " " + variant);
+                }
+            }
+        } finally {
+            titles.close();
+            tagOut.close();
+        }
+
+        PrintWriter ratings = data.open(data.ratingFile);
+        try {
+            int n = Math.min(ratingsPerUser, items);
+            for (int user = 1; user <= users; user++) {
+                // Floyd's algorithm for a sample of distinct items
+                Set<Integer> rated = new LinkedHashSet<Integer>();
+                for (int j = items - n + 1; j <= items; j++) {
+                    int item = rng.nextInt(j) + 1;
+                    if (!rated.add(item)) {
+                        rated.add(j);
+                    }
+                }
+                for (int item: rated) {
+                    ratings.printf(Locale.ROOT, "%d,%d,%.1f\n", user, item, (rng.nextInt(10) + 1) * 0.5);
+                }
+            }
+        } finally {
+            ratings.close();
+        }
+        return data;
+    }
+
+    private PrintWriter open(File file) throws IOException {
+        return new PrintWriter(Files.newBufferedWriter(file.toPath(), CHARSET));
+    }
+
+    /**
+     * Get the item title file.
+     *
+     * @return The title file, as read by {@code MOOCItemDAO}.
+     */
+    public File getTitleFile() {
+        return titleFile;
+    }
+
+    /**
+     * Get the item tag file.
+     *
+     * @return The tag file, as read by {@code CSVItemTagDAO}.
+     */
+    public File getTagFile() {
+        return tagFile;
+    }
+
+    /**
+     * Get the rating file.
+     *
+     * @return The rating file, as read by {@code MOOCRatingDAO}.
+     */
+    public File getRatingFile() {
+        return ratingFile;
+    }
+
+    /**
+     * Delete the generated files.
+     */
+    public void delete() {
+        titleFile.delete();
+        tagFile.delete();
+        ratingFile.delete();
+        directory.delete();
+    }
+}
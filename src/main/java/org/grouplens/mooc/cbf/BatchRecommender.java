@@ -0,0 +1,412 @@
+package org.grouplens.mooc.cbf;
+
+import it.unimi.dsi.fastutil.longs.LongList;
+import org.grouplens.lenskit.ItemRecommender;
+import org.grouplens.lenskit.scored.ScoredId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Generates recommendations for many users at once, on a pool of worker threads sharing one
+ * recommender (and so one model), and streams them to a file.  Users are handed to the workers in
+ * small chunks; a single writer drains finished chunks into a buffered output, so the file is
+ * written in the order chunks finish rather than the order users were given.  Progress is logged
+ * periodically, and the run ends with a {@linkplain Report report} of throughput and per-user
+ * latency.
+ * <p>
+ * With a {@link BlockItemScorer}, each task scores its chunk of users in blocks instead of one at
+ * a time; the latency reported for each user is then their share of the chunk's time.
+ * <p>
+ * The output is written to a temporary file that replaces the output file once it is complete.
+ * In {@linkplain Format#CSV CSV} format, it has a header line and then a
+ * {@code user,rank,item,score} line per recommendation.  In {@linkplain Format#BINARY binary}
+ * format, it has, for each user, the user ID (a {@code long}), the number of recommendations (an
+ * {@code int}), and each recommendation's item ID ({@code long}) and score ({@code double}).
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class BatchRecommender {
+    private static final Logger logger = LoggerFactory.getLogger(BatchRecommender.class);
+    /**
+     * The number of users each task recommends for.
+     */
+    private static final int CHUNK_SIZE = 32;
+    /**
+     * The number of users each task scores in blocks.
+     */
+    private static final int BLOCK_CHUNK_SIZE = 128;
+    private static final long PROGRESS_INTERVAL = 5000;
+
+    /**
+     * Output file formats.
+     */
+    public static enum Format {
+        CSV, BINARY
+    }
+
+    @Nullable
+    private final ItemRecommender recommender;
+    @Nullable
+    private final BlockItemScorer blockScorer;
+    private final int threadCount;
+    private final int count;
+
+    /**
+     * Create a batch recommender.
+     *
+     * @param rec     The recommender.  It must be safe to use from several threads at once.
+     * @param threads The number of worker threads.
+     * @param n       The number of recommendations to generate per user.
+     */
+    public BatchRecommender(ItemRecommender rec, int threads, int n) {
+        this(rec, null, threads, n);
+    }
+
+    /**
+     * Create a batch recommender that scores users in blocks.
+     *
+     * @param scorer  The block scorer.
+     * @param threads The number of worker threads.
+     * @param n       The number of recommendations to generate per user.
+     */
+    public BatchRecommender(BlockItemScorer scorer, int threads, int n) {
+        this(null, scorer, threads, n);
+    }
+
+    private BatchRecommender(ItemRecommender rec, BlockItemScorer scorer, int threads, int n) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("thread count must be positive");
+        }
+        recommender = rec;
+        blockScorer = scorer;
+        threadCount = threads;
+        count = n;
+    }
+
+    /**
+     * Recommend for users and write the recommendations to a file.
+     *
+     * @param users  The users to recommend for.
+     * @param output The output file.
+     * @param format The output format.
+     * @return The report of the run.
+     * @throws IOException if there is an error writing the output, or if the thread is interrupted.
+     */
+    public Report run(LongList users, File output, Format format) throws IOException {
+        long startTime = System.nanoTime();
+        long[] latencies = new long[users.size()];
+        AtomicInteger failures = new AtomicInteger();
+
+        ExecutorService pool = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "batch-recommender-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        CompletionService<Chunk> completion = new ExecutorCompletionService<Chunk>(pool);
+        int chunkSize = blockScorer != null ? BLOCK_CHUNK_SIZE : CHUNK_SIZE;
+        int chunkCount = 0;
+        for (int lo = 0; lo < users.size(); lo += chunkSize) {
+            int hi = Math.min(lo + chunkSize, users.size());
+            completion.submit(new ChunkTask(users, lo, hi, latencies, failures));
+            chunkCount++;
+        }
+
+        File tmpFile = new File(output.getPath() + ".tmp");
+        ResultWriter writer = format == Format.CSV ? new CSVWriter(tmpFile) : new BinaryWriter(tmpFile);
+        boolean complete = false;
+        int done = 0;
+        int empty = 0;
+        try {
+            long lastReport = System.nanoTime();
+            for (int i = 0; i < chunkCount; ) {
+                Future<Chunk> future = completion.poll(PROGRESS_INTERVAL, TimeUnit.MILLISECONDS);
+                if (future != null) {
+                    Chunk chunk = future.get();
+                    for (int j = 0; j < chunk.users.length; j++) {
+                        List<ScoredId> recs = chunk.results[j];
+                        if (recs != null) {
+                            writer.write(chunk.users[j], recs);
+                            if (recs.isEmpty()) {
+                                empty++;
+                            }
+                        }
+                    }
+                    done += chunk.users.length;
+                    i++;
+                }
+                long now = System.nanoTime();
+                if (now - lastReport >= PROGRESS_INTERVAL * 1000000) {
+                    logger.info("recommended for {} of {} users ({} users/s)",
+                                new Object[]{done, users.size(),
+                                             String.format("%.1f", done / ((now - startTime) / 1.0e9))});
+                    lastReport = now;
+                }
+            }
+            complete = true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("batch recommendation interrupted");
+        } catch (ExecutionException e) {
+            throw new RuntimeException("batch recommendation failed", e.getCause());
+        } finally {
+            pool.shutdownNow();
+            writer.close();
+            if (!complete) {
+                tmpFile.delete();
+            }
+        }
+        if (!tmpFile.renameTo(output)) {
+            // renaming over an existing file fails on some platforms
+            if (!output.delete() || !tmpFile.renameTo(output)) {
+                throw new IOException("cannot rename " + tmpFile + " to " + output);
+            }
+        }
+
+        return new Report(users.size(), failures.get(), empty, System.nanoTime() - startTime, latencies);
+    }
+
+    /**
+     * The recommendations for a chunk of users.  A user's results are null if recommending
+     * failed.
+     */
+    private static class Chunk {
+        final long[] users;
+        final List<ScoredId>[] results;
+
+        @SuppressWarnings("unchecked")
+        Chunk(long[] users) {
+            this.users = users;
+            results = new List[users.length];
+        }
+    }
+
+    private class ChunkTask implements Callable<Chunk> {
+        private final LongList users;
+        private final int lo, hi;
+        private final long[] latencies;
+        private final AtomicInteger failures;
+
+        ChunkTask(LongList users, int lo, int hi, long[] latencies, AtomicInteger failures) {
+            this.users = users;
+            this.lo = lo;
+            this.hi = hi;
+            this.latencies = latencies;
+            this.failures = failures;
+        }
+
+        @Override
+        public Chunk call() {
+            Chunk chunk = new Chunk(new long[hi - lo]);
+            if (blockScorer != null) {
+                return callBlocked(chunk);
+            }
+            for (int i = lo; i < hi; i++) {
+                long user = users.getLong(i);
+                chunk.users[i - lo] = user;
+                long start = System.nanoTime();
+                try {
+                    chunk.results[i - lo] = recommender.recommend(user, count);
+                } catch (RuntimeException e) {
+                    logger.error("cannot recommend for user " + user, e);
+                    failures.incrementAndGet();
+                }
+                // each task writes its own slots; the completion service publishes them
+                latencies[i] = System.nanoTime() - start;
+            }
+            return chunk;
+        }
+
+        private Chunk callBlocked(Chunk chunk) {
+            LongList chunkUsers = users.subList(lo, hi);
+            chunkUsers.toLongArray(chunk.users);
+            long start = System.nanoTime();
+            try {
+                List<List<ScoredId>> recs = blockScorer.recommend(chunkUsers, count);
+                for (int j = 0; j < recs.size(); j++) {
+                    chunk.results[j] = recs.get(j);
+                }
+            } catch (RuntimeException e) {
+                logger.error("cannot recommend for users " + chunkUsers, e);
+                failures.addAndGet(hi - lo);
+            }
+            long share = (System.nanoTime() - start) / (hi - lo);
+            for (int i = lo; i < hi; i++) {
+                latencies[i] = share;
+            }
+            return chunk;
+        }
+    }
+
+    /**
+     * Writer for an output format.
+     */
+    private static abstract class ResultWriter implements Closeable {
+        abstract void write(long user, List<ScoredId> recs) throws IOException;
+    }
+
+    private static class CSVWriter extends ResultWriter {
+        private final Writer out;
+        private final StringBuilder line = new StringBuilder();
+
+        CSVWriter(File file) throws IOException {
+            out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8"), 1 << 16);
+            out.write("user,rank,item,score\n");
+        }
+
+        @Override
+        void write(long user, List<ScoredId> recs) throws IOException {
+            int rank = 1;
+            for (ScoredId id: recs) {
+                line.setLength(0);
+                line.append(user).append(',').append(rank++).append(',')
+                    .append(id.getId()).append(',').append(id.getScore()).append('\n');
+                out.append(line);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    private static class BinaryWriter extends ResultWriter {
+        private final DataOutputStream out;
+
+        BinaryWriter(File file) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        }
+
+        @Override
+        void write(long user, List<ScoredId> recs) throws IOException {
+            out.writeLong(user);
+            out.writeInt(recs.size());
+            for (ScoredId id: recs) {
+                out.writeLong(id.getId());
+                out.writeDouble(id.getScore());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * The results of a batch run.
+     */
+    public static class Report {
+        private final int userCount;
+        private final int failureCount;
+        private final int emptyCount;
+        private final long elapsed;
+        private final long[] latencies;
+
+        Report(int users, int failures, int empty, long elapsed, long[] latencies) {
+            userCount = users;
+            failureCount = failures;
+            emptyCount = empty;
+            this.elapsed = elapsed;
+            this.latencies = Arrays.copyOf(latencies, latencies.length);
+            Arrays.sort(this.latencies);
+        }
+
+        /**
+         * Get the number of users processed.
+         *
+         * @return The number of users.
+         */
+        public int getUserCount() {
+            return userCount;
+        }
+
+        /**
+         * Get the number of users for whom recommending failed.
+         *
+         * @return The number of failed users.
+         */
+        public int getFailureCount() {
+            return failureCount;
+        }
+
+        /**
+         * Get the number of users who got no recommendations.
+         *
+         * @return The number of users with empty recommendation lists.
+         */
+        public int getEmptyCount() {
+            return emptyCount;
+        }
+
+        /**
+         * Get the wall-clock time of the run.
+         *
+         * @return The elapsed time, in seconds.
+         */
+        public double getElapsedSeconds() {
+            return elapsed / 1.0e9;
+        }
+
+        /**
+         * Get the throughput of the run.
+         *
+         * @return The number of users processed per second.
+         */
+        public double getThroughput() {
+            return userCount / getElapsedSeconds();
+        }
+
+        /**
+         * Get a percentile of the per-user latency.
+         *
+         * @param p The percentile, as a fraction (e.g. 0.99).
+         * @return The latency below which fraction {@code p} of users fall, in milliseconds.
+         */
+        public double getLatencyPercentile(double p) {
+            if (latencies.length == 0) {
+                return 0;
+            }
+            int idx = (int) Math.ceil(p * latencies.length) - 1;
+            return latencies[Math.max(idx, 0)] / 1.0e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d users (%d failed, %d without recommendations) in %.2f s, "
+                                 + "%.1f users/s; latency ms: p50 %.3f, p90 %.3f, p99 %.3f, max %.3f",
+                                 userCount, failureCount, emptyCount, getElapsedSeconds(),
+                                 getThroughput(), getLatencyPercentile(0.5), getLatencyPercentile(0.9),
+                                 getLatencyPercentile(0.99), getLatencyPercentile(1));
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package org.grouplens.mooc.cbf;
+
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongList;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.data.event.Event;
+import org.grouplens.lenskit.data.history.UserHistory;
+import org.grouplens.lenskit.scored.ScoredId;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.lenskit.vectors.VectorEntry;
+
+import javax.inject.Inject;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Finds the top items for many users at once, in one pass over the model per block of users.
+ * Scoring users one at a time reads every item row once per user; this scorer instead multiplies
+ * the item-tag matrix by a dense block of user profiles, so each row is read once per block and
+ * its weights are applied to all the block's users while they are in cache.
+ * <p>
+ * A block's profiles are stored tag-major over only the tags they use, so the values a row entry
+ * needs for all the users are adjacent.  Users are added to a block until it holds
+ * {@value #MAX_BLOCK_USERS} users or its profiles would outgrow {@value #BLOCK_BYTES} bytes,
+ * about the size of a core's L2 cache.
+ * <p>
+ * The results are each user's top items among all items with tags, excluding the items they have
+ * rated, with ties broken by item ID.  With {@link WeightPrecision#DOUBLE double} weights they are
+ * exactly those of {@link MaxScoreItemRecommender}, with the scores of {@link TFIDFItemScorer}:
+ * each row's products are added up in order, as {@link TFIDFModel#dot(int, double[])} does.  The
+ * lower precisions' dot kernels add the products in another order (and scale byte weights after
+ * the sum), so their scores agree only to rounding error, and items whose scores differ by no
+ * more than that may change places.  User profiles come from the {@link TFIDFItemScorer}, and
+ * share its cache.  Blocks do not share state, so several threads can score blocks at once.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class BlockItemScorer {
+    /**
+     * The most users in a block.
+     */
+    static final int MAX_BLOCK_USERS = 64;
+    /**
+     * The largest size of a block's profile values.
+     */
+    static final int BLOCK_BYTES = 256 * 1024;
+
+    private final TFIDFItemScorer profiles;
+    private final TFIDFModel model;
+    private final UserEventDAO dao;
+
+    /**
+     * Construct a new block scorer.
+     *
+     * @param profiles The TF-IDF scorer, used to build user profiles.
+     * @param m        The TF-IDF model.
+     * @param dao      The user-event DAO, to find the items users have rated.
+     */
+    @Inject
+    public BlockItemScorer(TFIDFItemScorer profiles, TFIDFModel m, UserEventDAO dao) {
+        this.profiles = profiles;
+        model = m;
+        this.dao = dao;
+    }
+
+    /**
+     * Find the top items for several users.
+     *
+     * @param users The users.
+     * @param n     The number of items to find for each user (negative for all items).
+     * @return The top items for each user, in decreasing order of score; empty for users with no
+     *         profile.
+     */
+    public List<List<ScoredId>> recommend(LongList users, int n) {
+        int nusers = users.size();
+        List<List<ScoredId>> results = new ArrayList<List<ScoredId>>(nusers);
+        SparseVector[] vectors = new SparseVector[nusers];
+        for (int u = 0; u < nusers; u++) {
+            vectors[u] = profiles.makeUserVector(users.getLong(u));
+            results.add(Collections.<ScoredId>emptyList());
+        }
+        if (n == 0) {
+            return results;
+        }
+
+        // block the users with non-empty profiles
+        int[] tagSlots = new int[model.getTagCount()];
+        Arrays.fill(tagSlots, -1);
+        int[] slotTags = new int[model.getTagCount()];
+        int[] block = new int[MAX_BLOCK_USERS];
+        int blockSize = 0;
+        int slotCount = 0;
+        for (int u = 0; u < nusers; u++) {
+            if (vectors[u].norm() == 0) {
+                continue;
+            }
+            int newSlots = 0;
+            for (VectorEntry e: vectors[u].fast()) {
+                if (tagSlots[(int) e.getKey() - 1] < 0) {
+                    newSlots++;
+                }
+            }
+            if (blockSize > 0 && (long) (slotCount + newSlots) * (blockSize + 1) * 8 > BLOCK_BYTES) {
+                scoreBlock(users, vectors, block, blockSize, tagSlots, slotTags, slotCount, n, results);
+                blockSize = 0;
+                slotCount = 0;
+            }
+            for (VectorEntry e: vectors[u].fast()) {
+                int tag = (int) e.getKey() - 1;
+                if (tagSlots[tag] < 0) {
+                    tagSlots[tag] = slotCount;
+                    slotTags[slotCount++] = tag;
+                }
+            }
+            block[blockSize++] = u;
+            if (blockSize == MAX_BLOCK_USERS) {
+                scoreBlock(users, vectors, block, blockSize, tagSlots, slotTags, slotCount, n, results);
+                blockSize = 0;
+                slotCount = 0;
+            }
+        }
+        if (blockSize > 0) {
+            scoreBlock(users, vectors, block, blockSize, tagSlots, slotTags, slotCount, n, results);
+        }
+        return results;
+    }
+
+    /**
+     * Score a block of users against every item, and clear the block's tag slots.
+     */
+    private void scoreBlock(LongList users, SparseVector[] vectors, int[] block, int size,
+                            int[] tagSlots, int[] slotTags, int slotCount, int n,
+                            List<List<ScoredId>> results) {
+        // the profile values, tag-major: slot s's values for the block's users start at s * size
+        double[] values = new double[slotCount * size];
+        int nitems = model.getItemCount();
+        TopItemAccumulator[] tops = new TopItemAccumulator[size];
+        // each user's rated items, as sorted item indexes, and a cursor into them
+        int[][] excluded = new int[size][];
+        int[] nextExcluded = new int[size];
+        for (int b = 0; b < size; b++) {
+            SparseVector vector = vectors[block[b]];
+            for (VectorEntry e: vector.fast()) {
+                values[tagSlots[(int) e.getKey() - 1] * size + b] = e.getValue();
+            }
+            tops[b] = new TopItemAccumulator(n < 0 ? nitems : Math.min(n, nitems));
+            excluded[b] = ratedItems(users.getLong(block[b]));
+        }
+
+        double[] dots = new double[size];
+        for (int item = 0; item < nitems; item++) {
+            int start = model.getRowStart(item);
+            int end = model.getRowEnd(item);
+            if (start == end) {
+                continue;
+            }
+            Arrays.fill(dots, 0);
+            for (int i = start; i < end; i++) {
+                int slot = tagSlots[model.getTagIndex(i)];
+                if (slot < 0) {
+                    continue;
+                }
+                double w = model.getWeight(item, i);
+                int base = slot * size;
+                for (int b = 0; b < size; b++) {
+                    dots[b] += values[base + b] * w;
+                }
+            }
+            for (int b = 0; b < size; b++) {
+                int[] ex = excluded[b];
+                int k = nextExcluded[b];
+                while (k < ex.length && ex[k] < item) {
+                    k++;
+                }
+                nextExcluded[b] = k;
+                if (k < ex.length && ex[k] == item) {
+                    continue;
+                }
+                tops[b].put(item, dots[b]);
+            }
+        }
+
+        for (int b = 0; b < size; b++) {
+            int u = block[b];
+            results.set(u, tops[b].finish(model, vectors[u].norm()));
+        }
+        for (int s = 0; s < slotCount; s++) {
+            tagSlots[slotTags[s]] = -1;
+        }
+    }
+
+    /**
+     * Get the model indexes of the items a user has rated, in increasing order.
+     */
+    private int[] ratedItems(long user) {
+        UserHistory<Event> history = dao.getEventsForUser(user);
+        if (history == null) {
+            return new int[0];
+        }
+        int[] items = new int[history.size()];
+        int count = 0;
+        LongIterator iter = history.itemSet().iterator();
+        while (iter.hasNext()) {
+            int idx = model.getItemIndex(iter.nextLong());
+            if (idx >= 0) {
+                items[count++] = idx;
+            }
+        }
+        Arrays.sort(items, 0, count);
+        return Arrays.copyOf(items, count);
+    }
+}
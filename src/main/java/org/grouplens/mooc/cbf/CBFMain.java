@@ -1,21 +1,33 @@
 package org.grouplens.mooc.cbf;
 
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
 import org.grouplens.lenskit.ItemRecommender;
 import org.grouplens.lenskit.ItemScorer;
-import org.grouplens.lenskit.Recommender;
 import org.grouplens.lenskit.RecommenderBuildException;
+import org.grouplens.lenskit.basic.TopNItemRecommender;
 import org.grouplens.lenskit.core.LenskitConfiguration;
 import org.grouplens.lenskit.core.LenskitRecommender;
-import org.grouplens.lenskit.data.dao.EventDAO;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
 import org.grouplens.lenskit.data.dao.ItemDAO;
 import org.grouplens.lenskit.data.dao.UserDAO;
 import org.grouplens.lenskit.scored.ScoredId;
+import org.grouplens.lenskit.util.io.UpToDateChecker;
 import org.grouplens.mooc.cbf.dao.*;
+import org.grouplens.mooc.cbf.metrics.Metrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Simple hello-world program.
@@ -23,20 +35,46 @@ import java.util.List;
  */
 public class CBFMain {
     private static final Logger logger = LoggerFactory.getLogger(CBFMain.class);
+    private static final File RATING_FILE = new File("data/ratings.csv");
+    private static final File MODEL_FILE = new File("data/movie-tags.tfidf");
+    private static final File[] MODEL_INPUTS = {
+            new File("data/movie-tags.csv"), new File("data/movie-titles.csv")
+    };
+    /**
+     * The most top-<var>N</var> lists to cache.
+     */
+    private static final int RESULT_CACHE_SIZE = 100000;
+    /**
+     * How often, in seconds, a batch run checks whether the model data has changed.
+     */
+    private static final int REFRESH_INTERVAL = 10;
+    /**
+     * How often, in milliseconds, a batch run following the rating file checks it for new ratings.
+     */
+    private static final long RATING_POLL_INTERVAL = 1000;
 
     public static void main(String[] args) throws RecommenderBuildException {
+        Metrics.registerMBeans();
+        if (args.length > 0 && args[0].startsWith("--")) {
+            runBatch(args);
+            return;
+        }
+
         LenskitConfiguration config = configureRecommender();
 
         logger.info("building recommender");
-        Recommender rec = LenskitRecommender.build(config);
+        deleteStaleModels(MODEL_FILE, MODEL_INPUTS);
+        long dataTime = modelDataModified(MODEL_INPUTS);
+        LenskitRecommender rec = LenskitRecommender.build(config);
 
         if (args.length == 0) {
             logger.error("No users specified; provide user IDs as command line arguments");
         }
 
-        // we automatically get a useful recommender since we have a scorer
-        ItemRecommender irec = rec.getItemRecommender();
-        assert irec != null;
+        // cache the recommender's lists, and swap in a new recommender if the model data changes
+        CachedItemRecommender cached = cacheResults(rec);
+        ModelRefresher refresher = new ModelRefresher(config, cached, MODEL_FILE, MODEL_INPUTS,
+                                                      dataTime);
         try {
             // Generate 5 recommendations for each user
             for (String user: args) {
@@ -47,8 +85,9 @@ public class CBFMain {
                     logger.error("cannot parse user {}", user);
                     continue;
                 }
+                refresher.refresh();
                 logger.info("searching for recommendations for user {}", user);
-                List<ScoredId> recs = irec.recommend(uid, 5);
+                List<ScoredId> recs = cached.recommend(uid, 5);
                 if (recs.isEmpty()) {
                     logger.warn("no recommendations for user {}, do they exist?", uid);
                 }
@@ -62,21 +101,302 @@ public class CBFMain {
                 System.out.println("Congratulations, the stub builds and runs!");
             }
         }
+
+        ItemScorer scorer = rec.getItemScorer();
+        if (scorer instanceof TagIndexItemScorer) {
+            scorer = ((TagIndexItemScorer) scorer).getProfileScorer();
+        }
+        if (scorer instanceof TFIDFItemScorer) {
+            logger.info("user profile cache: {}", ((TFIDFItemScorer) scorer).getProfileCacheStats());
+        }
+        logger.info("metrics: {}", Metrics.toJSON());
+    }
+
+    /**
+     * Run in batch mode: recommend for many users on several threads, and write the
+     * recommendations to a file.  The arguments are
+     * {@code --batch FILE [--threads N] [--count N] [--format csv|binary] [--blocked]
+     * [--shards HOST:PORT,... | --local-shards N] [--precision double|float|int8]
+     * [--item-tag-limit N] [--profile-tag-limit N] [--embedding K [--projection svd|random]]
+     * [--follow-ratings] [USER...]};
+     * with no users, it recommends for every user in the user file.  With {@code --blocked}, users
+     * are scored in blocks by a {@link BlockItemScorer}.  With {@code --shards}, the recommendations are gathered from
+     * {@linkplain ShardServer shard servers} by a {@link ShardedItemRecommender}; with
+     * {@code --local-shards}, the model is split into shards in this process.  The
+     * {@linkplain ModelPrecision precision} sets how the model stores its weights, and the
+     * {@linkplain ItemTagLimit item} and {@linkplain ProfileTagLimit profile} tag limits prune the
+     * vectors that are scored.  With {@code --embedding}, items are scored by an
+     * {@link EmbeddingItemScorer} in a <var>K</var>-dimensional {@linkplain ItemEmbedding
+     * embedding}.  Otherwise the lists come through a {@link CachedItemRecommender}, and if the
+     * tag or title data changes during the run, the recommender is rebuilt and swapped in.  With
+     * {@code --follow-ratings}, the ratings are held in a {@link LiveRatingDAO}, and a
+     * {@link RatingFileTailer} on a daemon thread adds the ratings appended to the rating file
+     * during the run; if the file is truncated or replaced, the tailer stops and the run goes on
+     * with the ratings already read.
+     *
+     * @param args The command line arguments.
+     */
+    // LensKit configuration API generates some unchecked warnings, turn them off
+    @SuppressWarnings("unchecked")
+    static void runBatch(String[] args) throws RecommenderBuildException {
+        File output = null;
+        int threads = Runtime.getRuntime().availableProcessors();
+        int count = 5;
+        BatchRecommender.Format format = BatchRecommender.Format.CSV;
+        boolean blocked = false;
+        String shardAddresses = null;
+        int localShards = 0;
+        String precision = null;
+        Integer itemTagLimit = null;
+        Integer profileTagLimit = null;
+        int embedding = 0;
+        String projection = null;
+        boolean followRatings = false;
+        LongList users = new LongArrayList();
+        try {
+            for (int i = 0; i < args.length; i++) {
+                if (args[i].equals("--batch")) {
+                    output = new File(args[++i]);
+                } else if (args[i].equals("--threads")) {
+                    threads = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--count")) {
+                    count = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--format")) {
+                    format = BatchRecommender.Format.valueOf(args[++i].toUpperCase());
+                } else if (args[i].equals("--blocked")) {
+                    blocked = true;
+                } else if (args[i].equals("--shards")) {
+                    shardAddresses = args[++i];
+                } else if (args[i].equals("--local-shards")) {
+                    localShards = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--precision")) {
+                    precision = WeightPrecision.fromName(args[++i]).name().toLowerCase();
+                } else if (args[i].equals("--item-tag-limit")) {
+                    itemTagLimit = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--profile-tag-limit")) {
+                    profileTagLimit = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--embedding")) {
+                    embedding = Integer.parseInt(args[++i]);
+                } else if (args[i].equals("--projection")) {
+                    projection = ProjectionMethod.fromName(args[++i]).name().toLowerCase();
+                } else if (args[i].equals("--follow-ratings")) {
+                    followRatings = true;
+                } else if (args[i].startsWith("--")) {
+                    throw new IllegalArgumentException("unknown option " + args[i]);
+                } else {
+                    users.add(Long.parseLong(args[i]));
+                }
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            logger.error("missing value for option {}", args[args.length - 1]);
+            return;
+        } catch (IllegalArgumentException e) {
+            logger.error("invalid arguments: {}", e.getMessage());
+            return;
+        }
+        if (output == null) {
+            logger.error("no output file specified; use --batch FILE");
+            return;
+        }
+
+        LiveRatingDAO liveDao = null;
+        LenskitConfiguration config;
+        if (followRatings) {
+            liveDao = new LiveRatingDAO(RATING_FILE);
+            config = configureRecommender(liveDao);
+        } else {
+            config = configureRecommender();
+        }
+        if (blocked) {
+            config.addRoot(BlockItemScorer.class);
+        }
+        if (precision != null) {
+            config.set(ModelPrecision.class)
+                  .to(precision);
+        }
+        if (itemTagLimit != null) {
+            config.set(ItemTagLimit.class)
+                  .to(itemTagLimit);
+        }
+        if (profileTagLimit != null) {
+            config.set(ProfileTagLimit.class)
+                  .to(profileTagLimit);
+        }
+        if (embedding > 0) {
+            config.addRoot(EmbeddingItemScorer.class);
+            config.set(EmbeddingDimension.class)
+                  .to(embedding);
+            if (projection != null) {
+                config.set(EmbeddingProjection.class)
+                      .to(projection);
+            }
+        }
+        logger.info("building recommender");
+        deleteStaleModels(MODEL_FILE, MODEL_INPUTS);
+        long dataTime = modelDataModified(MODEL_INPUTS);
+        LenskitRecommender rec = LenskitRecommender.build(config);
+        if (users.isEmpty()) {
+            // the recommender does not use the user DAO, so it is not in the recommender's graph
+            UserDAO udao = new MOOCUserDAO(new File("data/users.csv"));
+            long[] ids = udao.getUserIds().toLongArray();
+            Arrays.sort(ids);
+            users = LongArrayList.wrap(ids);
+        }
+
+        List<ModelShard> shards = new ArrayList<ModelShard>();
+        if (shardAddresses != null) {
+            for (String addr: shardAddresses.split(",")) {
+                shards.add(RemoteModelShard.parse(addr));
+            }
+        } else if (localShards > 0) {
+            for (TFIDFModel shard: TFIDFModelBuilder.shard(rec.get(TFIDFModel.class), localShards)) {
+                shards.add(new LocalModelShard(shard));
+            }
+        }
+        ShardedItemRecommender sharded = null;
+        if (!shards.isEmpty()) {
+            sharded = new ShardedItemRecommender(rec.get(UserEventDAO.class), rec.get(ItemDAO.class),
+                                                 rec.get(TFIDFItemScorer.class), shards);
+            logger.info("gathering recommendations from {} shards", shards.size());
+        }
+
+        RatingFileTailer tailer = null;
+        Thread tailerThread = null;
+        if (liveDao != null) {
+            tailer = new RatingFileTailer(liveDao, RATING_POLL_INTERVAL);
+            tailerThread = new Thread(tailer, "rating-tailer");
+            tailerThread.setDaemon(true);
+            tailerThread.start();
+            logger.info("following {} for new ratings", RATING_FILE);
+        }
+
+        logger.info("recommending for {} users on {} threads", users.size(), threads);
+        ScheduledExecutorService refreshThread = null;
+        BatchRecommender batch;
+        if (blocked) {
+            batch = new BatchRecommender(rec.get(BlockItemScorer.class), threads, count);
+        } else if (sharded != null) {
+            batch = new BatchRecommender(sharded, threads, count);
+        } else if (embedding > 0) {
+            ItemRecommender embedded = new TopNItemRecommender(rec.get(UserEventDAO.class), rec.get(ItemDAO.class),
+                                                               rec.get(EmbeddingItemScorer.class));
+            batch = new BatchRecommender(embedded, threads, count);
+        } else {
+            // cache the lists, and swap in a new recommender if the model data changes mid-run
+            CachedItemRecommender cached = cacheResults(rec);
+            refreshThread = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "model-refresher");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            refreshThread.scheduleWithFixedDelay(new ModelRefresher(config, cached, MODEL_FILE,
+                                                                    MODEL_INPUTS, dataTime),
+                                                 REFRESH_INTERVAL, REFRESH_INTERVAL,
+                                                 TimeUnit.SECONDS);
+            batch = new BatchRecommender(cached, threads, count);
+        }
+        try {
+            BatchRecommender.Report report = batch.run(users, output, format);
+            logger.info("wrote {}: {}", output, report);
+        } catch (IOException e) {
+            logger.error("cannot write " + output, e);
+        } finally {
+            if (tailerThread != null) {
+                tailerThread.interrupt();
+            }
+            if (refreshThread != null) {
+                refreshThread.shutdownNow();
+            }
+            if (sharded != null) {
+                try {
+                    sharded.close();
+                } catch (IOException e) {
+                    logger.warn("error closing shards: {}", e.getMessage());
+                }
+            }
+        }
+        if (tailer != null && tailer.isStopped()) {
+            logger.warn("stopped following {} during the run; later ratings were not used",
+                        RATING_FILE);
+        }
+        logger.info("metrics: {}", Metrics.toJSON());
+    }
+
+    /**
+     * Get when the model data last changed.
+     *
+     * @param inputs The data files the model is built from.
+     * @return The latest modification time of the files.
+     */
+    private static long modelDataModified(File... inputs) {
+        long time = 0;
+        for (File input: inputs) {
+            time = Math.max(time, input.lastModified());
+        }
+        return time;
+    }
+
+    /**
+     * Wrap a recommender's item recommender in a {@linkplain CachedItemRecommender result cache}.
+     *
+     * @param rec The recommender.
+     * @return The caching item recommender.
+     */
+    private static CachedItemRecommender cacheResults(LenskitRecommender rec) {
+        return new CachedItemRecommender(rec.getItemRecommender(), rec.get(TFIDFModel.class),
+                                         rec.get(UserEventDAO.class), RESULT_CACHE_SIZE);
     }
 
     /**
      * Create the LensKit recommender configuration.
      * @return The LensKit recommender configuration.
      */
+    static LenskitConfiguration configureRecommender() {
+        return configureRecommender(MOOCRatingDAO.class);
+    }
+
+    /**
+     * Create the LensKit recommender configuration with a different rating DAO, such as a
+     * {@link org.grouplens.mooc.cbf.dao.LiveRatingDAO}.
+     * @param ratingDao The rating DAO implementation; it is also the user-event DAO.
+     * @return The LensKit recommender configuration.
+     */
+    static LenskitConfiguration configureRecommender(Class<? extends UserEventDAO> ratingDao) {
+        LenskitConfiguration config = configureComponents();
+        // configure the rating data source; it also serves users' ratings from its per-user
+        // index, instead of LensKit prefetching them
+        config.bind(UserEventDAO.class)
+              .to(ratingDao);
+        return config;
+    }
+
+    /**
+     * Create the LensKit recommender configuration with a rating DAO instance.  Every recommender
+     * built from the configuration shares the DAO, so a {@link RatingFileTailer} adding ratings
+     * to it reaches them all, including those a {@link ModelRefresher} builds.
+     * @param ratingDao The rating DAO; it is also the user-event DAO.
+     * @return The LensKit recommender configuration.
+     */
+    static LenskitConfiguration configureRecommender(UserEventDAO ratingDao) {
+        LenskitConfiguration config = configureComponents();
+        config.bind(UserEventDAO.class)
+              .to(ratingDao);
+        return config;
+    }
+
+    /**
+     * Create a LensKit recommender configuration with everything but the rating DAO.
+     * @return The LensKit recommender configuration.
+     */
     // LensKit configuration API generates some unchecked warnings, turn them off
     @SuppressWarnings("unchecked")
-    private static LenskitConfiguration configureRecommender() {
+    private static LenskitConfiguration configureComponents() {
         LenskitConfiguration config = new LenskitConfiguration();
-        // configure the rating data source
-        config.bind(EventDAO.class)
-              .to(MOOCRatingDAO.class);
         config.set(RatingFile.class)
-              .to(new File("data/ratings.csv"));
+              .to(RATING_FILE);
 
         // use custom item and user DAOs
         // specify item DAO implementation with tags
@@ -84,10 +404,10 @@ public class CBFMain {
               .to(CSVItemTagDAO.class);
         // specify tag file
         config.set(TagFile.class)
-              .to(new File("data/movie-tags.csv"));
+              .to(MODEL_INPUTS[0]);
         // and title file
         config.set(TitleFile.class)
-              .to(new File("data/movie-titles.csv"));
+              .to(MODEL_INPUTS[1]);
 
         // our user DAO can look up by user name
         config.bind(UserDAO.class)
@@ -95,9 +415,121 @@ public class CBFMain {
         config.set(UserFile.class)
               .to(new File("data/users.csv"));
 
-        // use the TF-IDF scorer you will implement to score items
+        // score items with the TF-IDF model, only visiting items that share a tag with the user
         config.bind(ItemScorer.class)
-              .to(TFIDFItemScorer.class);
+              .to(TagIndexItemScorer.class);
+        // and find the top items without scoring all of them
+        config.bind(ItemRecommender.class)
+              .to(MaxScoreItemRecommender.class);
+        // build the model on all available cores
+        config.set(ModelBuildThreads.class)
+              .to(Runtime.getRuntime().availableProcessors());
+        // keep the built model in a file, so later runs can map it instead of rebuilding it; each
+        // precision and pruning gets its own variant of the file.  Building does not check that
+        // the file is newer than the data, so delete stale files before each build.
+        config.set(ModelFile.class)
+              .to(MODEL_FILE);
         return config;
     }
-}
\ No newline at end of file
+
+    /**
+     * Delete the model file and its {@linkplain TFIDFModelBuilder#variantFile variants} if they
+     * are older than the data they were built from.  This is done before building a recommender,
+     * at startup and on each {@linkplain ModelRefresher refresh}, so the model is rebuilt from
+     * changed data rather than loaded from the old file.
+     *
+     * @param modelFile The model file.
+     * @param inputs    The data files the models are built from.
+     */
+    private static void deleteStaleModels(File modelFile, File... inputs) {
+        final String base = modelFile.getName();
+        int dot = base.lastIndexOf('.');
+        final String prefix = (dot > 0 ? base.substring(0, dot) : base) + "-";
+        final String extension = dot > 0 ? base.substring(dot) : "";
+        File dir = modelFile.getParentFile();
+        if (dir == null) {
+            dir = new File(".");
+        }
+        File[] models = dir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.equals(base) || (name.startsWith(prefix) && name.endsWith(extension));
+            }
+        });
+        if (models == null) {
+            return;
+        }
+        for (File file: models) {
+            UpToDateChecker check = new UpToDateChecker();
+            for (File input: inputs) {
+                check.addInput(input);
+            }
+            check.addOutput(file);
+            if (!check.isUpToDate() && file.delete()) {
+                logger.info("deleted out-of-date model file {}", file);
+            }
+        }
+    }
+
+    /**
+     * Rebuilds the recommender when the tag or title data changes, and swaps the new one into a
+     * {@linkplain CachedItemRecommender result cache}, so no list from the old model is served
+     * again.  Out-of-date model files are deleted first, so the model is rebuilt from the data.
+     */
+    static class ModelRefresher implements Runnable {
+        private final LenskitConfiguration config;
+        private final CachedItemRecommender cached;
+        private final File modelFile;
+        private final File[] inputs;
+        private long dataTime;
+
+        /**
+         * Create a refresher.
+         *
+         * @param config    The configuration to rebuild the recommender with.
+         * @param cached    The result cache to swap the new recommender into.
+         * @param modelFile The {@linkplain ModelFile model file} the configuration uses.
+         * @param inputs    The data files the model is built from.
+         * @param dataTime  The {@linkplain CBFMain#modelDataModified(File...) modification time} of the
+         *                  data the current recommender was built from.
+         */
+        ModelRefresher(LenskitConfiguration config, CachedItemRecommender cached,
+                       File modelFile, File[] inputs, long dataTime) {
+            this.config = config;
+            this.cached = cached;
+            this.modelFile = modelFile;
+            this.inputs = inputs;
+            this.dataTime = dataTime;
+        }
+
+        /**
+         * Rebuild the recommender if the model data has changed since it was built.  If the build
+         * fails, the old recommender stays in place until the data changes again.
+         */
+        synchronized void refresh() {
+            long modified = modelDataModified(inputs);
+            if (modified == dataTime) {
+                return;
+            }
+            logger.info("model data changed, rebuilding recommender");
+            dataTime = modified;
+            deleteStaleModels(modelFile, inputs);
+            try {
+                LenskitRecommender rec = LenskitRecommender.build(config);
+                cached.swap(rec.getItemRecommender(), rec.get(TFIDFModel.class));
+                logger.info("swapped in model version {}", cached.getModelVersion());
+            } catch (RecommenderBuildException e) {
+                logger.error("cannot rebuild recommender, keeping the old model", e);
+            } catch (RuntimeException e) {
+                // such as a data file that cannot be read; an exception escaping a scheduled
+                // refresh would cancel the later ones
+                logger.error("cannot rebuild recommender, keeping the old model", e);
+            }
+        }
+
+        @Override
+        public void run() {
+            refresh();
+        }
+    }
+}
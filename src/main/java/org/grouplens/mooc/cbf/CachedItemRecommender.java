@@ -0,0 +1,310 @@
+package org.grouplens.mooc.cbf;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.grouplens.lenskit.ItemRecommender;
+import org.grouplens.lenskit.basic.AbstractItemRecommender;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.scored.ScoredId;
+import org.grouplens.mooc.cbf.dao.LiveUserEventDAO;
+import org.grouplens.mooc.cbf.metrics.Counter;
+import org.grouplens.mooc.cbf.metrics.Histogram;
+import org.grouplens.mooc.cbf.metrics.Metrics;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Item recommender that caches another recommender's top-<var>N</var> lists.  Results are keyed
+ * by the user, <var>N</var>, the candidate and exclusion sets, and the version of the model, and
+ * the cache holds a bounded number of them, evicting the least recently used.
+ * <p>
+ * Concurrent misses for the same key compute the list once: the first request computes it, and
+ * the others wait for its result.  When a new model is {@linkplain #swap(ItemRecommender, TFIDFModel)
+ * swapped in}, the model version changes, so no list computed from the old model is returned
+ * again.  A list that was still being computed during the swap goes to the requests waiting for
+ * it, and is then dropped from the cache, so it does not take the place of a current list.
+ * <p>
+ * A user's lists depend on their ratings, if only through the items they have rated being
+ * excluded.  If the user-event DAO is a {@link LiveUserEventDAO}, each list remembers the user's
+ * rating count when it was computed, and a list is recomputed once the user has rated more items.
+ * Otherwise, whoever changes a user's ratings must call {@link #invalidateUser(long)}, as well as
+ * {@link TFIDFItemScorer#invalidateUserProfile(long)}.
+ * <p>
+ * The recommender records the {@linkplain Metrics metrics} {@code resultCache.hits} (requests
+ * answered with a list another request computed), {@code resultCache.misses} (requests that
+ * computed their list), {@code resultCache.stale} (lists dropped because the user's ratings
+ * changed), and {@code resultCache.load} (the time to compute a list).  Like
+ * {@link ShardedItemRecommender}, it is not built by LensKit; construct it around the item
+ * recommender of a built recommender, as {@link CBFMain} does, and swap in the item recommender
+ * of each rebuilt one.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class CachedItemRecommender extends AbstractItemRecommender {
+    private static final Counter hits = Metrics.counter("resultCache.hits");
+    private static final Counter misses = Metrics.counter("resultCache.misses");
+    private static final Counter stale = Metrics.counter("resultCache.stale");
+    private static final Histogram loadTimer = Metrics.timer("resultCache.load");
+
+    @Nullable
+    private final LiveUserEventDAO liveDao;
+    private final Cache<Key,Entry> cache;
+    private volatile Generation current;
+
+    /**
+     * Construct a new caching recommender.
+     *
+     * @param rec     The recommender to cache the results of.
+     * @param model   The model the recommender uses.
+     * @param dao     The user-event DAO the recommender uses.
+     * @param maxSize The most lists to cache.
+     */
+    public CachedItemRecommender(ItemRecommender rec, TFIDFModel model, UserEventDAO dao, int maxSize) {
+        if (maxSize < 1) {
+            throw new IllegalArgumentException("result cache size must be positive");
+        }
+        liveDao = dao instanceof LiveUserEventDAO ? (LiveUserEventDAO) dao : null;
+        cache = CacheBuilder.newBuilder()
+                            .maximumSize(maxSize)
+                            .recordStats()
+                            .build();
+        current = new Generation(rec, model, 1);
+    }
+
+    /**
+     * Start recommending from a new recommender over a new model.  The cached lists are discarded,
+     * and requests already in progress with the old recommender do not cache their results for
+     * the new one.
+     *
+     * @param rec   The new recommender.
+     * @param model The model it uses.
+     */
+    public synchronized void swap(ItemRecommender rec, TFIDFModel model) {
+        current = new Generation(rec, model, current.version + 1);
+        cache.invalidateAll();
+    }
+
+    /**
+     * Get the model the recommendations come from.
+     *
+     * @return The current model.
+     */
+    public TFIDFModel getModel() {
+        return current.model;
+    }
+
+    /**
+     * Get the version of the model.  It starts at 1, and each {@linkplain #swap(ItemRecommender,
+     * TFIDFModel) swap} adds 1.
+     *
+     * @return The model version.
+     */
+    public long getModelVersion() {
+        return current.version;
+    }
+
+    /**
+     * Discard a user's cached lists.  This must be called when the user's ratings change, unless
+     * the DAO is a {@link LiveUserEventDAO}.  It scans the whole cache.
+     *
+     * @param user The user ID.
+     */
+    public void invalidateUser(long user) {
+        Iterator<Key> keys = cache.asMap().keySet().iterator();
+        while (keys.hasNext()) {
+            if (keys.next().user == user) {
+                keys.remove();
+            }
+        }
+    }
+
+    /**
+     * Discard all cached lists.
+     */
+    public void invalidateAll() {
+        cache.invalidateAll();
+    }
+
+    /**
+     * Get the number of lists cached.
+     *
+     * @return The number of cached lists.
+     */
+    long size() {
+        return cache.size();
+    }
+
+    /**
+     * Get the hit, miss and eviction counts of the cache.
+     *
+     * @return The cache statistics.
+     */
+    public CacheStats getStats() {
+        return cache.stats();
+    }
+
+    @Override
+    protected List<ScoredId> recommend(final long user, final int n,
+                                       @Nullable final LongSet candidates, @Nullable final LongSet exclude) {
+        final Generation gen = current;
+        // look up with the caller's sets; only a key that goes into the cache copies them
+        Key key = new Key(user, n, candidates, exclude, gen.version);
+        boolean[] computed = new boolean[1];
+        while (true) {
+            Entry entry = cache.getIfPresent(key);
+            if (entry == null) {
+                entry = load(key.copy(), gen, computed);
+            }
+            if (computed[0]) {
+                misses.increment();
+                return entry.items;
+            }
+            hits.increment();
+            if (liveDao == null || liveDao.getRatingCount(user) <= entry.ratingCount) {
+                return entry.items;
+            }
+            // the user has rated more items since; the next request for the key recomputes it
+            stale.increment();
+            cache.asMap().remove(key, entry);
+        }
+    }
+
+    /**
+     * Get a list from the cache, computing it if no other request is.  A list computed with a
+     * generation that was swapped out meanwhile is removed again: the swap sets the new generation
+     * before clearing the cache, so either the clearing removes the list or this check sees the
+     * new generation.
+     *
+     * @param computed Set to {@code true} if this request computed the list.
+     */
+    private Entry load(final Key key, final Generation gen, final boolean[] computed) {
+        Entry entry;
+        try {
+            entry = cache.get(key, new Callable<Entry>() {
+                @Override
+                public Entry call() {
+                    long start = System.nanoTime();
+                    // count the ratings first, so ratings added while computing make it stale
+                    int count = liveDao == null ? 0 : liveDao.getRatingCount(key.user);
+                    List<ScoredId> items = gen.recommender.recommend(key.user, key.n, key.candidates, key.exclude);
+                    loadTimer.recordSince(start);
+                    computed[0] = true;
+                    return new Entry(Collections.unmodifiableList(items), count);
+                }
+            });
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("cannot compute recommendations", e.getCause());
+        } catch (UncheckedExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw e;
+        }
+        if (computed[0] && gen != current) {
+            cache.asMap().remove(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * A recommender and the model it uses, with the model's version.
+     */
+    private static class Generation {
+        final ItemRecommender recommender;
+        final TFIDFModel model;
+        final long version;
+
+        Generation(ItemRecommender rec, TFIDFModel m, long v) {
+            recommender = rec;
+            model = m;
+            version = v;
+        }
+    }
+
+    /**
+     * The key of a cached list.  Most requests pass no candidate or exclusion sets, so their keys
+     * are just the user, <var>N</var> and the model version.  A key built for a lookup refers to
+     * the caller's sets; the key stored with a list is a {@linkplain #copy() copy}, with its own
+     * sets, so callers can reuse theirs.
+     */
+    private static class Key {
+        final long user;
+        final int n;
+        @Nullable
+        final LongSet candidates;
+        @Nullable
+        final LongSet exclude;
+        final long version;
+        private final int hash;
+
+        Key(long user, int n, @Nullable LongSet candidates, @Nullable LongSet exclude, long version) {
+            this.user = user;
+            this.n = n;
+            this.candidates = candidates;
+            this.exclude = exclude;
+            this.version = version;
+            int h = (int) (user ^ (user >>> 32));
+            h = 31 * h + n;
+            h = 31 * h + (candidates == null ? -1 : candidates.hashCode());
+            h = 31 * h + (exclude == null ? -1 : exclude.hashCode());
+            h = 31 * h + (int) (version ^ (version >>> 32));
+            hash = h;
+        }
+
+        /**
+         * Copy the key, with its own copies of the sets, to store in the cache.
+         *
+         * @return A key equal to this one that does not share its sets.
+         */
+        Key copy() {
+            if (candidates == null && exclude == null) {
+                return this;
+            }
+            return new Key(user, n,
+                           candidates == null ? null : new LongOpenHashSet(candidates),
+                           exclude == null ? null : new LongOpenHashSet(exclude),
+                           version);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return user == k.user && n == k.n && version == k.version && hash == k.hash
+                    && (candidates == null ? k.candidates == null : candidates.equals(k.candidates))
+                    && (exclude == null ? k.exclude == null : exclude.equals(k.exclude));
+        }
+    }
+
+    /**
+     * A cached list, with the user's rating count when it was computed.
+     */
+    private static class Entry {
+        final List<ScoredId> items;
+        final int ratingCount;
+
+        Entry(List<ScoredId> items, int count) {
+            this.items = items;
+            ratingCount = count;
+        }
+    }
+}
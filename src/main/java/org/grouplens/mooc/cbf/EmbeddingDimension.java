@@ -0,0 +1,24 @@
+package org.grouplens.mooc.cbf;
+
+import org.grouplens.grapht.annotation.DefaultInteger;
+import org.grouplens.lenskit.core.Parameter;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+/**
+ * Parameter annotation for the number of dimensions of the {@linkplain ItemEmbedding item
+ * embedding} (<var>k</var>).  More dimensions give more accurate cosines, at the cost of memory
+ * and scoring time.
+ *
+ * @see ItemEmbeddingBuilder
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+@Documented
+@DefaultInteger(64)
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+@Qualifier
+@Parameter(Integer.class)
+public @interface EmbeddingDimension {
+}
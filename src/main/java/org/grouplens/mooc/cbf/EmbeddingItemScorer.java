@@ -0,0 +1,85 @@
+package org.grouplens.mooc.cbf;
+
+import org.grouplens.lenskit.basic.AbstractItemScorer;
+import org.grouplens.lenskit.vectors.MutableSparseVector;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.lenskit.vectors.VectorEntry;
+import org.grouplens.mooc.cbf.metrics.Counter;
+import org.grouplens.mooc.cbf.metrics.Histogram;
+import org.grouplens.mooc.cbf.metrics.Metrics;
+
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+
+/**
+ * Item scorer comparing users to items in a dense {@linkplain ItemEmbedding item embedding}.  The
+ * user's TF-IDF profile is projected into the embedding once per request, and each item's score is
+ * the cosine of the two <var>k</var>-dimensional vectors, which approximates the cosine
+ * {@link TFIDFItemScorer} computes.  Scoring an item costs <var>k</var> multiply-adds over
+ * contiguous {@code float}s, whatever the size of the tag vocabulary or of the item's tag vector.
+ * <p>
+ * Items with no tags are left unscored, as by {@link TFIDFItemScorer}.  User profiles come from
+ * the {@link TFIDFItemScorer}, and share its cache.  Request times are recorded in the
+ * {@linkplain Metrics metric} {@code embedding.score}, and the number of items scored in
+ * {@code embedding.itemsScored}.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class EmbeddingItemScorer extends AbstractItemScorer {
+    private static final Histogram scoreTimer = Metrics.timer("embedding.score");
+    private static final Counter itemsScored = Metrics.counter("embedding.itemsScored");
+
+    private final TFIDFItemScorer profiles;
+    private final TFIDFModel model;
+    private final ItemEmbedding embedding;
+
+    /**
+     * Construct a new item scorer.
+     *
+     * @param profiles  The TF-IDF scorer, used to build user profiles.
+     * @param m         The TF-IDF model.
+     * @param embedding The embedding of the model's items.
+     */
+    @Inject
+    public EmbeddingItemScorer(TFIDFItemScorer profiles, TFIDFModel m, ItemEmbedding embedding) {
+        if (!embedding.matches(m)) {
+            throw new IllegalArgumentException("item embedding was not built on the model");
+        }
+        this.profiles = profiles;
+        model = m;
+        this.embedding = embedding;
+    }
+
+    /**
+     * Get the embedding this scorer uses.
+     *
+     * @return The item embedding.
+     */
+    public ItemEmbedding getEmbedding() {
+        return embedding;
+    }
+
+    @Override
+    public void score(long user, @Nonnull MutableSparseVector output) {
+        long start = System.nanoTime();
+        SparseVector userVector = profiles.makeUserVector(user);
+        float[] query = new float[embedding.getDimension()];
+        double norm = embedding.project(userVector, query);
+        if (norm == 0) {
+            scoreTimer.recordSince(start);
+            return;
+        }
+
+        int scored = 0;
+        for (VectorEntry e: output.fast(VectorEntry.State.EITHER)) {
+            int idx = model.getItemIndex(e.getKey());
+            if (idx < 0 || model.getRowStart(idx) == model.getRowEnd(idx)) {
+                continue;
+            }
+            output.set(e, embedding.dot(idx, query) / norm);
+            scored++;
+        }
+        itemsScored.add(scored);
+        scoreTimer.recordSince(start);
+    }
+}
@@ -0,0 +1,23 @@
+package org.grouplens.mooc.cbf;
+
+import org.grouplens.grapht.annotation.DefaultString;
+import org.grouplens.lenskit.core.Parameter;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+/**
+ * Parameter annotation for the {@linkplain ProjectionMethod method} used to build
+ * {@linkplain ItemEmbedding item embeddings}: {@code svd} (the default) or {@code random}.
+ *
+ * @see ItemEmbeddingBuilder
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+@Documented
+@DefaultString("svd")
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+@Qualifier
+@Parameter(String.class)
+public @interface EmbeddingProjection {
+}
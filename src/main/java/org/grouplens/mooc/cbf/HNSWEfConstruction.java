@@ -0,0 +1,24 @@
+package org.grouplens.mooc.cbf;
+
+import org.grouplens.grapht.annotation.DefaultInteger;
+import org.grouplens.lenskit.core.Parameter;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+/**
+ * Parameter annotation for the size of the candidate list used to find an item's neighbors while
+ * building the HNSW graph (<var>efConstruction</var>).  Larger lists build a better graph, more
+ * slowly.
+ *
+ * @see HNSWIndexBuilder
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+@Documented
+@DefaultInteger(100)
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+@Qualifier
+@Parameter(Integer.class)
+public @interface HNSWEfConstruction {
+}
@@ -0,0 +1,23 @@
+package org.grouplens.mooc.cbf;
+
+import org.grouplens.grapht.annotation.DefaultInteger;
+import org.grouplens.lenskit.core.Parameter;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+/**
+ * Parameter annotation for the size of the candidate list used to search the HNSW graph
+ * (<var>efSearch</var>).  Larger lists give better recall, more slowly.
+ *
+ * @see HNSWItemRecommender
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+@Documented
+@DefaultInteger(50)
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+@Qualifier
+@Parameter(Integer.class)
+public @interface HNSWEfSearch {
+}
@@ -0,0 +1,312 @@
+package org.grouplens.mooc.cbf;
+
+import it.unimi.dsi.fastutil.ints.IntOpenHashSet;
+import it.unimi.dsi.fastutil.ints.IntSet;
+import org.grouplens.grapht.annotation.DefaultProvider;
+import org.grouplens.lenskit.core.Shareable;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Hierarchical navigable small world (HNSW) graph over the item vectors of a
+ * {@linkplain TFIDFModel TF-IDF model}, for approximate nearest-neighbor search.  Nodes are model
+ * item indexes; items without tags are left out of the graph.  Similarity is the dot product,
+ * which ranks items the same as the cosine because item vectors are unit vectors.
+ * <p>
+ * Each node is on layers 0 through its level, with a list of neighbors on each.  A search descends
+ * greedily from the entry point through the upper layers, then runs a best-first search of the
+ * bottom layer that keeps the <var>ef</var> best nodes found.
+ *
+ * @see HNSWIndexBuilder
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+@Shareable
+@DefaultProvider(HNSWIndexBuilder.class)
+public class HNSWIndex implements Serializable {
+    private static final long serialVersionUID = 1L;
+    private static final int MAGIC = 0x484E5357;
+    private static final int VERSION = 2;
+
+    private final int maxConnections;
+    private final int entryCount;
+    private final long modelFingerprint;
+    private final int entryPoint;
+    private final int[][][] links;
+
+    /**
+     * Construct an index.  This is package-private; indexes are built by the
+     * {@linkplain HNSWIndexBuilder index builder}.
+     *
+     * @param m          The number of links per node on the upper layers.
+     * @param entries    The number of entries in the model the graph was built on.
+     * @param fp         The {@linkplain TFIDFModel#getFingerprint() fingerprint} of the model.
+     * @param entry      The entry point (the node on the top layer), or -1 if the graph is empty.
+     * @param links      Each node's neighbors on each of its layers, or {@code null} for items not
+     *                   in the graph.
+     */
+    HNSWIndex(int m, int entries, long fp, int entry, int[][][] links) {
+        maxConnections = m;
+        entryCount = entries;
+        modelFingerprint = fp;
+        entryPoint = entry;
+        this.links = links;
+    }
+
+    /**
+     * Get the number of links per node on the upper layers (<var>M</var>).
+     *
+     * @return The graph's <var>M</var>.
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Query whether this graph was built on a model.  This compares the sizes and the
+     * {@linkplain TFIDFModel#getFingerprint() fingerprints} of the models, so a graph read from a
+     * file is not used with a model whose vectors have changed.
+     *
+     * @param model The model.
+     * @return {@code true} if the graph matches the model.
+     */
+    public boolean matches(TFIDFModel model) {
+        return links.length == model.getItemCount() && entryCount == model.getEntryCount()
+                && modelFingerprint == model.getFingerprint();
+    }
+
+    /**
+     * Search for the items most similar to a query vector.
+     *
+     * @param model The model the graph was built on.
+     * @param query The query vector, indexed by tag index (tag ID - 1).
+     * @param ef    The number of candidates to keep while searching the bottom layer.
+     * @return The indexes of (up to) {@code ef} items, in decreasing order of similarity.
+     */
+    public int[] search(TFIDFModel model, double[] query, int ef) {
+        return search(model, query, ef, new int[0]);
+    }
+
+    /**
+     * Search for the items most similar to a query vector, also starting the bottom-layer search
+     * from some items.  When the query is a combination of item vectors, as user profiles are,
+     * starting from those items finds the query's neighborhood much more reliably than descending
+     * from the entry point alone.
+     *
+     * @param model The model the graph was built on.
+     * @param query The query vector, indexed by tag index (tag ID - 1).
+     * @param ef    The number of candidates to keep while searching the bottom layer.
+     * @param seeds Indexes of items to start the bottom-layer search from, in addition to the
+     *              node found by descending the upper layers.  Items not in the graph are
+     *              ignored.
+     * @return The indexes of (up to) {@code ef} items, in decreasing order of similarity.
+     */
+    public int[] search(TFIDFModel model, double[] query, int ef, int[] seeds) {
+        if (entryPoint < 0) {
+            return new int[0];
+        }
+        PriorityQueue<Neighbor> found = new PriorityQueue<Neighbor>();
+        found.add(new Neighbor(entryPoint, model.dot(entryPoint, query)));
+        for (int level = links[entryPoint].length - 1; level > 0; level--) {
+            found = searchLayer(model, query, links, level, found, 1);
+        }
+        int ep = found.peek().node;
+        for (int seed: seeds) {
+            if (seed >= 0 && seed < links.length && links[seed] != null && seed != ep) {
+                found.add(new Neighbor(seed, model.dot(seed, query)));
+            }
+        }
+        found = searchLayer(model, query, links, 0, found, ef);
+
+        int[] result = new int[found.size()];
+        for (int i = result.length - 1; i >= 0; i--) {
+            result[i] = found.poll().node;
+        }
+        return result;
+    }
+
+    /**
+     * Best-first search of one layer of a graph.
+     *
+     * @param model   The model.
+     * @param query   The query vector.
+     * @param links   The graph's links.
+     * @param level   The layer to search.
+     * @param entries The nodes to start from.
+     * @param ef      The number of nodes to find.
+     * @return The {@code ef} best nodes found, worst first.
+     */
+    static PriorityQueue<Neighbor> searchLayer(TFIDFModel model, double[] query, int[][][] links,
+                                               int level, Collection<Neighbor> entries, int ef) {
+        IntSet visited = new IntOpenHashSet();
+        PriorityQueue<Neighbor> candidates = new PriorityQueue<Neighbor>(ef + 1, Neighbor.BEST_FIRST);
+        PriorityQueue<Neighbor> found = new PriorityQueue<Neighbor>(ef + 1);
+        for (Neighbor e: entries) {
+            visited.add(e.node);
+            candidates.add(e);
+            found.add(e);
+            if (found.size() > ef) {
+                found.poll();
+            }
+        }
+        while (!candidates.isEmpty()) {
+            Neighbor c = candidates.poll();
+            if (found.size() >= ef && c.similarity < found.peek().similarity) {
+                break;
+            }
+            for (int n: links[c.node][level]) {
+                if (!visited.add(n)) {
+                    continue;
+                }
+                double sim = model.dot(n, query);
+                if (found.size() < ef || sim > found.peek().similarity) {
+                    Neighbor nbr = new Neighbor(n, sim);
+                    candidates.add(nbr);
+                    found.add(nbr);
+                    if (found.size() > ef) {
+                        found.poll();
+                    }
+                }
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Write the graph to a file.  The graph is written to a new temporary file in the same
+     * directory that is then renamed, so readers never see a partial graph.
+     *
+     * @param file The file.
+     * @throws IOException if there is an error writing the file.
+     */
+    public void write(File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile(file.getName() + ".", ".tmp", dir);
+        boolean written = false;
+        try {
+            writeGraph(tmp);
+            written = tmp.renameTo(file);
+        } finally {
+            if (!written) {
+                tmp.delete();
+            }
+        }
+        if (!written) {
+            throw new IOException("cannot move HNSW graph into place at " + file);
+        }
+    }
+
+    private void writeGraph(File tmp) throws IOException {
+        FileOutputStream stream = new FileOutputStream(tmp);
+        DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(stream));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(maxConnections);
+            out.writeInt(links.length);
+            out.writeInt(entryCount);
+            out.writeLong(modelFingerprint);
+            out.writeInt(entryPoint);
+            for (int[][] nodeLinks: links) {
+                if (nodeLinks == null) {
+                    out.writeInt(-1);
+                    continue;
+                }
+                out.writeInt(nodeLinks.length - 1);
+                for (int[] layer: nodeLinks) {
+                    out.writeInt(layer.length);
+                    for (int n: layer) {
+                        out.writeInt(n);
+                    }
+                }
+            }
+            out.flush();
+            stream.getFD().sync();
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read a graph from a file.
+     *
+     * @param file The file.
+     * @return The graph.
+     * @throws IOException if there is an error reading the file, or it is not a graph file.
+     */
+    public static HNSWIndex read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + ": not an HNSW graph file");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException(file + ": unsupported HNSW graph file version " + version);
+            }
+            int m = in.readInt();
+            int nitems = in.readInt();
+            int entries = in.readInt();
+            long fp = in.readLong();
+            int entry = in.readInt();
+            int[][][] links = new int[nitems][][];
+            for (int i = 0; i < nitems; i++) {
+                int level = in.readInt();
+                if (level < 0) {
+                    continue;
+                }
+                links[i] = new int[level + 1][];
+                for (int l = 0; l <= level; l++) {
+                    int[] layer = new int[in.readInt()];
+                    for (int j = 0; j < layer.length; j++) {
+                        layer[j] = in.readInt();
+                    }
+                    links[i][l] = layer;
+                }
+            }
+            return new HNSWIndex(m, entries, fp, entry, links);
+        } catch (EOFException e) {
+            throw new IOException(file + ": file truncated", e);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * A node and its similarity to the query.  The natural order is worst first.
+     */
+    static class Neighbor implements Comparable<Neighbor> {
+        static final Comparator<Neighbor> BEST_FIRST = new Comparator<Neighbor>() {
+            @Override
+            public int compare(Neighbor n1, Neighbor n2) {
+                return n2.compareTo(n1);
+            }
+        };
+
+        final int node;
+        final double similarity;
+
+        Neighbor(int n, double sim) {
+            node = n;
+            similarity = sim;
+        }
+
+        @Override
+        public int compareTo(Neighbor o) {
+            return Double.compare(similarity, o.similarity);
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package org.grouplens.mooc.cbf;
+
+import org.grouplens.lenskit.core.Transient;
+import org.grouplens.mooc.cbf.HNSWIndex.Neighbor;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * Builder for {@linkplain HNSWIndex HNSW graphs} over the item vectors of a TF-IDF model.  Items
+ * are inserted one at a time, in index order, on a randomly drawn number of layers.  On each of
+ * its layers, a new item is linked to neighbors found by searching the graph built so far, chosen
+ * with the HNSW paper's diversity heuristic: a candidate closer to an already chosen neighbor than
+ * to the new item is skipped.  When a neighbor ends up with too many links, it keeps the most
+ * similar ones.
+ * <p>
+ * The level draws use a fixed seed, so the same model always produces the same graph.  Building a
+ * graph is much slower than building the model, so the builder can keep it in a
+ * {@linkplain HNSWIndexFile file}.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class HNSWIndexBuilder implements Provider<HNSWIndex> {
+    private static final Logger logger = LoggerFactory.getLogger(HNSWIndexBuilder.class);
+    private static final long SEED = 0x484E5357L;
+
+    private final TFIDFModel model;
+    private final int maxConnections;
+    private final int efConstruction;
+    @Nullable
+    private final File graphFile;
+
+    /**
+     * Construct an index builder.
+     *
+     * @param model The TF-IDF model.
+     * @param m     The number of links per item on the upper layers.
+     * @param ef    The size of the candidate list for finding an item's neighbors.
+     * @param file  The graph file to read or write, if any.
+     */
+    @Inject
+    public HNSWIndexBuilder(@Transient TFIDFModel model,
+                            @HNSWMaxConnections int m,
+                            @HNSWEfConstruction int ef,
+                            @HNSWIndexFile @Nullable File file) {
+        if (m < 2) {
+            throw new IllegalArgumentException("HNSW graphs need at least 2 connections per item");
+        }
+        if (ef < 1) {
+            throw new IllegalArgumentException("HNSW construction list size must be positive");
+        }
+        this.model = model;
+        maxConnections = m;
+        efConstruction = ef;
+        graphFile = file;
+    }
+
+    /**
+     * Get the graph.  If a {@linkplain HNSWIndexFile graph file} is configured, exists, and was
+     * built on this model with the same <var>M</var>, it is read instead of building the graph.
+     * Otherwise, the graph is built, and written to the graph file if one is configured.
+     *
+     * @return The HNSW graph.
+     */
+    @Override
+    public HNSWIndex get() {
+        if (graphFile != null && graphFile.isFile()) {
+            try {
+                HNSWIndex index = HNSWIndex.read(graphFile);
+                if (index.matches(model) && index.getMaxConnections() == maxConnections) {
+                    logger.info("read HNSW graph from {}", graphFile);
+                    return index;
+                }
+                logger.info("HNSW graph file {} does not match the model, rebuilding", graphFile);
+            } catch (IOException e) {
+                logger.warn("cannot read HNSW graph file {}, rebuilding: {}", graphFile, e.getMessage());
+            }
+        }
+
+        HNSWIndex index = buildIndex();
+        if (graphFile != null) {
+            try {
+                index.write(graphFile);
+                logger.info("wrote HNSW graph to {}", graphFile);
+            } catch (IOException e) {
+                logger.warn("cannot write HNSW graph file {}: {}", graphFile, e.getMessage());
+            }
+        }
+        return index;
+    }
+
+    HNSWIndex buildIndex() {
+        long startTime = System.nanoTime();
+        int nitems = model.getItemCount();
+        int[][][] links = new int[nitems][][];
+        Random rng = new Random(SEED);
+        double levelScale = 1 / Math.log(maxConnections);
+        double[] query = new double[model.getTagCount()];
+
+        int entry = -1;
+        int top = -1;
+        for (int q = 0; q < nitems; q++) {
+            int start = model.getRowStart(q);
+            int end = model.getRowEnd(q);
+            if (start == end) {
+                // items without tags cannot be scored, so leave them out
+                continue;
+            }
+            int level = (int) (-Math.log(1 - rng.nextDouble()) * levelScale);
+            links[q] = new int[level + 1][];
+            for (int l = 0; l <= level; l++) {
+                links[q][l] = new int[0];
+            }
+            if (entry < 0) {
+                entry = q;
+                top = level;
+                continue;
+            }
+
+            for (int i = start; i < end; i++) {
+                query[model.getTagIndex(i)] = model.getWeight(q, i);
+            }
+            PriorityQueue<Neighbor> found = new PriorityQueue<Neighbor>();
+            found.add(new Neighbor(entry, model.dot(entry, query)));
+            for (int l = top; l > level; l--) {
+                found = HNSWIndex.searchLayer(model, query, links, l, found, 1);
+            }
+            for (int l = Math.min(level, top); l >= 0; l--) {
+                found = HNSWIndex.searchLayer(model, query, links, l, found, efConstruction);
+                Neighbor[] candidates = found.toArray(new Neighbor[found.size()]);
+                Arrays.sort(candidates, Neighbor.BEST_FIRST);
+                int[] neighbors = selectNeighbors(candidates, maxConnections);
+                links[q][l] = neighbors;
+                int limit = l == 0 ? 2 * maxConnections : maxConnections;
+                for (int n: neighbors) {
+                    links[n][l] = addLink(n, links[n][l], q, limit);
+                }
+            }
+            for (int i = start; i < end; i++) {
+                query[model.getTagIndex(i)] = 0;
+            }
+
+            if (level > top) {
+                entry = q;
+                top = level;
+            }
+        }
+
+        logger.info("built HNSW graph over {} items (M={}, efConstruction={}) in {} ms",
+                    nitems, maxConnections, efConstruction,
+                    (System.nanoTime() - startTime) / 1000000);
+        return new HNSWIndex(maxConnections, model.getEntryCount(), model.getFingerprint(),
+                             entry, links);
+    }
+
+    /**
+     * Choose an item's neighbors with the diversity heuristic, topping up with the closest skipped
+     * candidates if too few pass it.
+     *
+     * @param candidates The candidates, most similar first.
+     * @param count      The number of neighbors to choose.
+     * @return The chosen neighbors.
+     */
+    private int[] selectNeighbors(Neighbor[] candidates, int count) {
+        int[] chosen = new int[Math.min(count, candidates.length)];
+        boolean[] used = new boolean[candidates.length];
+        int n = 0;
+        for (int i = 0; i < candidates.length && n < chosen.length; i++) {
+            Neighbor c = candidates[i];
+            boolean diverse = true;
+            for (int j = 0; j < n && diverse; j++) {
+                diverse = itemDot(c.node, chosen[j]) <= c.similarity;
+            }
+            if (diverse) {
+                chosen[n++] = c.node;
+                used[i] = true;
+            }
+        }
+        for (int i = 0; i < candidates.length && n < chosen.length; i++) {
+            if (!used[i]) {
+                chosen[n++] = candidates[i].node;
+            }
+        }
+        return chosen;
+    }
+
+    /**
+     * Add a link to an item's neighbor list, dropping its least similar neighbor if the list is
+     * over its limit.
+     *
+     * @return The new neighbor list.
+     */
+    private int[] addLink(int item, int[] neighbors, int added, int limit) {
+        if (neighbors.length < limit) {
+            int[] grown = Arrays.copyOf(neighbors, neighbors.length + 1);
+            grown[neighbors.length] = added;
+            return grown;
+        }
+        int worst = -1;
+        double worstSim = itemDot(item, added);
+        for (int i = 0; i < neighbors.length; i++) {
+            double sim = itemDot(item, neighbors[i]);
+            if (sim < worstSim) {
+                worst = i;
+                worstSim = sim;
+            }
+        }
+        if (worst >= 0) {
+            neighbors[worst] = added;
+        }
+        return neighbors;
+    }
+
+    /**
+     * Compute the dot product of two items' vectors by merging their rows.
+     */
+    private double itemDot(int a, int b) {
+        int i = model.getRowStart(a);
+        int iend = model.getRowEnd(a);
+        int j = model.getRowStart(b);
+        int jend = model.getRowEnd(b);
+        double dot = 0;
+        while (i < iend && j < jend) {
+            int ti = model.getTagIndex(i);
+            int tj = model.getTagIndex(j);
+            if (ti < tj) {
+                i++;
+            } else if (ti > tj) {
+                j++;
+            } else {
+                dot += model.getWeight(a, i) * model.getWeight(b, j);
+                i++;
+                j++;
+            }
+        }
+        return dot;
+    }
+}
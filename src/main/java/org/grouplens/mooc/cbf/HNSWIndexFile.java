@@ -0,0 +1,24 @@
+package org.grouplens.mooc.cbf;
+
+import org.grouplens.grapht.annotation.DefaultNull;
+import org.grouplens.lenskit.core.Parameter;
+
+import javax.inject.Qualifier;
+import java.io.File;
+import java.lang.annotation.*;
+
+/**
+ * Parameter annotation for the HNSW graph file.  If set, the index builder reads the graph from
+ * this file if it exists and matches the model, and writes the graph it builds to it otherwise.
+ *
+ * @see HNSWIndexBuilder
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+@Documented
+@DefaultNull
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+@Qualifier
+@Parameter(File.class)
+public @interface HNSWIndexFile {
+}
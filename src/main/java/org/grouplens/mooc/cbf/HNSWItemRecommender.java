@@ -0,0 +1,103 @@
+package org.grouplens.mooc.cbf;
+
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.grouplens.lenskit.basic.TopNItemRecommender;
+import org.grouplens.lenskit.data.dao.ItemDAO;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.scored.ScoredId;
+import org.grouplens.lenskit.vectors.SparseVector;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Item recommender that finds approximately the most similar items to a user's profile by
+ * searching an {@linkplain HNSWIndex HNSW graph}.  The items found are scored exactly, so their
+ * scores are those of {@link TFIDFItemScorer}, but the recommender may miss some of the true top
+ * items; {@code HNSWItemRecommenderTest} checks how many it finds.
+ * <p>
+ * The search starts from the items the user has rated as well as the graph's entry point, since
+ * the profile is built from their vectors.  It keeps {@link HNSWEfSearch} candidates, or enough
+ * to fill the request after dropping the user's rated items if that is more.  Requests for all
+ * items are answered exhaustively.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class HNSWItemRecommender extends TopNItemRecommender {
+    private final TFIDFItemScorer profiles;
+    private final TFIDFModel model;
+    private final HNSWIndex index;
+    private final int efSearch;
+
+    /**
+     * Construct a new recommender.
+     *
+     * @param uedao    The user-event DAO, to find the items users have rated.
+     * @param idao     The item DAO.
+     * @param profiles The TF-IDF scorer, used to build user profiles.
+     * @param m        The TF-IDF model.
+     * @param idx      The HNSW graph over the model.
+     * @param ef       The number of candidates to keep while searching.
+     */
+    @Inject
+    public HNSWItemRecommender(UserEventDAO uedao, ItemDAO idao, TFIDFItemScorer profiles,
+                               TFIDFModel m, HNSWIndex idx, @HNSWEfSearch int ef) {
+        super(uedao, idao, profiles);
+        if (ef < 1) {
+            throw new IllegalArgumentException("HNSW search list size must be positive");
+        }
+        this.profiles = profiles;
+        model = m;
+        index = idx;
+        efSearch = ef;
+    }
+
+    @Override
+    protected List<ScoredId> recommend(long user, int n,
+                                       @Nullable LongSet candidates, @Nullable LongSet exclude) {
+        if (n < 0) {
+            return super.recommend(user, n, candidates, exclude);
+        }
+        LongSet rated = getDefaultExcludes(user);
+        if (exclude == null) {
+            exclude = rated;
+        }
+        SparseVector userVector = profiles.makeUserVector(user);
+        double userNorm = userVector.norm();
+        if (userNorm == 0 || n == 0) {
+            return Collections.emptyList();
+        }
+        TagScratch scratch = TagScratch.acquire(model.getTagCount());
+        try {
+            scratch.spread(userVector);
+            double[] profile = scratch.values();
+
+            // the profile is made of the rated items' vectors, so start searching from them
+            int[] seeds = new int[rated.size()];
+            int nseeds = 0;
+            LongIterator iter = rated.iterator();
+            while (iter.hasNext()) {
+                int item = model.getItemIndex(iter.nextLong());
+                if (item >= 0) {
+                    seeds[nseeds++] = item;
+                }
+            }
+            int[] found = index.search(model, profile, Math.max(efSearch, n + exclude.size()),
+                                       Arrays.copyOf(seeds, nseeds));
+            TopItemAccumulator top = new TopItemAccumulator(Math.min(n, found.length));
+            for (int item: found) {
+                long id = model.getItemId(item);
+                if ((candidates == null || candidates.contains(id)) && !exclude.contains(id)) {
+                    top.put(item, model.dot(item, profile));
+                }
+            }
+            return top.finish(model, userNorm);
+        } finally {
+            scratch.release();
+        }
+    }
+}
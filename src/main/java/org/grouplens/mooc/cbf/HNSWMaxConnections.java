@@ -0,0 +1,24 @@
+package org.grouplens.mooc.cbf;
+
+import org.grouplens.grapht.annotation.DefaultInteger;
+import org.grouplens.lenskit.core.Parameter;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+/**
+ * Parameter annotation for the number of links each item gets on the upper layers of the HNSW
+ * graph (<var>M</var>).  Items get twice as many on the bottom layer.  More links give better
+ * recall, at the cost of memory and build time.
+ *
+ * @see HNSWIndexBuilder
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+@Documented
+@DefaultInteger(16)
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+@Qualifier
+@Parameter(Integer.class)
+public @interface HNSWMaxConnections {
+}
@@ -0,0 +1,445 @@
+package org.grouplens.mooc.cbf;
+
+import com.google.common.collect.Maps;
+import it.unimi.dsi.fastutil.ints.Int2IntMap;
+import it.unimi.dsi.fastutil.ints.Int2IntOpenHashMap;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.longs.Long2IntMap;
+import it.unimi.dsi.fastutil.longs.Long2IntOpenHashMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
+import org.grouplens.mooc.cbf.dao.EncodedItemTagDAO;
+import org.grouplens.mooc.cbf.dao.ItemTagDAO;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A TF-IDF model that can be updated with new and removed tag applications, without rebuilding
+ * it from the whole catalog.  It keeps the raw term and document frequencies that
+ * {@link TFIDFModelBuilder} discards, and takes {@linkplain #getModel() snapshots} as ordinary
+ * immutable {@link TFIDFModel}s.
+ * <p>
+ * A change to one item changes the document frequencies of its tags, and a new item changes the
+ * catalog size, so strictly every item containing those tags (or, for a new item, every item)
+ * should be re-weighted.  Instead, each tag's vectors are weighted with an <em>applied</em> IDF
+ * that is only brought up to date when it drifts from the tag's current IDF by more than a
+ * tolerance.  An {@linkplain #update(Batch) update} re-weights the items it changes, using the
+ * applied IDFs, and then re-weights every item containing a tag that drifted too far.  So each
+ * item vector is always a normalized TF-IDF vector, with every IDF within the tolerance of its
+ * exact value; with a tolerance of 0, the model is exactly what a full rebuild would produce.
+ * IDFs are base-10 logarithms, so a tolerance of 0.01 allows each tag's weight to be about 2%
+ * off (before normalization).
+ * <p>
+ * Components built from a model, such as the {@link TagItemIndex} and the scorer's profile cache,
+ * do not follow updates; build a new recommender over the new snapshot to use it.  The methods of
+ * this class are synchronized, so snapshots can be taken while another thread applies updates.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class IncrementalTFIDFModel {
+    private static final Logger logger = LoggerFactory.getLogger(IncrementalTFIDFModel.class);
+
+    private final double tolerance;
+
+    // tags, by tag index (tag ID - 1)
+    private final List<String> tagNames = new ArrayList<String>();
+    private final Object2IntMap<String> tagLookup = new Object2IntOpenHashMap<String>();
+    private int[] docFreq = new int[0];
+    // the IDF each tag's weights were computed with, or NaN if no item has the tag
+    private double[] appliedIdf = new double[0];
+
+    // items, by slot; slots are assigned as items arrive, not in ID order
+    private final Long2IntMap itemSlots = new Long2IntOpenHashMap();
+    private long[] itemIds = new long[0];
+    private int[][] rowTags = new int[0][];
+    private int[][] rowCounts = new int[0][];
+    private double[][] rowWeights = new double[0][];
+    private int itemCount;
+    // item IDs in ascending order, and their slots, or null if items have been added since
+    private long[] sortedItems;
+    private int[] sortedSlots;
+
+    // the latest snapshot, or null if the model has changed since
+    private TFIDFModel model;
+    // the tag ID map of the latest snapshot, or null if tags have been added since
+    private Map<String,Long> tagIdMap;
+
+    /**
+     * Create a model of the tags in a DAO.  The initial model is the same as the one
+     * {@link TFIDFModelBuilder} builds from the DAO.
+     *
+     * @param dao       The item-tag DAO.  It is only used by the constructor.
+     * @param tolerance The largest difference allowed between a tag's applied and exact IDF.
+     */
+    public IncrementalTFIDFModel(ItemTagDAO dao, double tolerance) {
+        if (tolerance < 0 || Double.isNaN(tolerance)) {
+            throw new IllegalArgumentException("IDF tolerance must be non-negative");
+        }
+        this.tolerance = tolerance;
+        tagLookup.defaultReturnValue(-1);
+        itemSlots.defaultReturnValue(-1);
+
+        // number the tags as the model builder does
+        EncodedItemTagDAO encoded = dao instanceof EncodedItemTagDAO ? (EncodedItemTagDAO) dao : null;
+        if (encoded != null) {
+            for (int i = 0; i < encoded.getTagCount(); i++) {
+                internTag(encoded.getTag(i));
+            }
+        } else {
+            for (String tag: dao.getTagVocabulary()) {
+                internTag(tag);
+            }
+        }
+
+        long[] items = dao.getItemIds().toLongArray();
+        Arrays.sort(items);
+        for (long item: items) {
+            Int2IntMap counts = new Int2IntOpenHashMap();
+            if (encoded != null) {
+                IntList ids = encoded.getItemTagIds(item);
+                for (int j = 0, n = ids.size(); j < n; j++) {
+                    counts.put(ids.getInt(j), counts.get(ids.getInt(j)) + 1);
+                }
+            } else {
+                for (String tag: dao.getItemTags(item)) {
+                    int t = internTag(tag);
+                    counts.put(t, counts.get(t) + 1);
+                }
+            }
+            setCounts(addItem(item), counts);
+        }
+
+        for (int t = 0; t < tagNames.size(); t++) {
+            appliedIdf[t] = docFreq[t] > 0 ? currentIdf(t) : Double.NaN;
+        }
+        for (int s = 0; s < itemCount; s++) {
+            weighItem(s);
+        }
+    }
+
+    /**
+     * Get the IDF tolerance.
+     *
+     * @return The largest difference allowed between a tag's applied and exact IDF.
+     */
+    public double getTolerance() {
+        return tolerance;
+    }
+
+    /**
+     * Apply a batch of tag changes.  Adding a tag to an unknown item adds the item to the model;
+     * removing a tag application that does not exist has no effect.  Items stay in the model
+     * when their last tag is removed, as items without tags do in a freshly built model.
+     *
+     * @param batch The changes.
+     * @return The number of items that were re-weighted.
+     */
+    public synchronized int update(Batch batch) {
+        long startTime = System.nanoTime();
+
+        // net change in each tag count of each item
+        Long2ObjectMap<Int2IntMap> changes = new Long2ObjectOpenHashMap<Int2IntMap>();
+        for (int i = 0; i < batch.size(); i++) {
+            int delta = batch.deltas.getInt(i);
+            String tag = batch.tags.get(i);
+            int t = delta > 0 ? internTag(tag) : tagLookup.getInt(tag);
+            if (t < 0) {
+                continue;
+            }
+            long item = batch.items.getLong(i);
+            Int2IntMap itemChanges = changes.get(item);
+            if (itemChanges == null) {
+                itemChanges = new Int2IntOpenHashMap();
+                changes.put(item, itemChanges);
+            }
+            itemChanges.put(t, itemChanges.get(t) + delta);
+        }
+
+        boolean[] affected = new boolean[itemCount + changes.size()];
+        IntArrayList toWeigh = new IntArrayList();
+        for (Long2ObjectMap.Entry<Int2IntMap> e: changes.long2ObjectEntrySet()) {
+            int slot = itemSlots.get(e.getLongKey());
+            Int2IntMap counts = new Int2IntOpenHashMap();
+            if (slot >= 0) {
+                int[] tags = rowTags[slot];
+                for (int j = 0; j < tags.length; j++) {
+                    counts.put(tags[j], rowCounts[slot][j]);
+                }
+            }
+            boolean changed = false;
+            for (Int2IntMap.Entry c: e.getValue().int2IntEntrySet()) {
+                int t = c.getIntKey();
+                int count = Math.max(counts.get(t) + c.getIntValue(), 0);
+                if (count != counts.get(t)) {
+                    counts.put(t, count);
+                    changed = true;
+                }
+            }
+            if (!changed) {
+                continue;
+            }
+            if (slot < 0) {
+                slot = addItem(e.getLongKey());
+            }
+            setCounts(slot, counts);
+            affected[slot] = true;
+            toWeigh.add(slot);
+        }
+        int changedCount = toWeigh.size();
+
+        // bring drifted IDFs up to date, and re-weight the items that have them
+        boolean[] drifted = new boolean[tagNames.size()];
+        int driftCount = 0;
+        for (int t = 0; t < tagNames.size(); t++) {
+            if (docFreq[t] == 0) {
+                appliedIdf[t] = Double.NaN;
+            } else if (Double.isNaN(appliedIdf[t])) {
+                // the tag is new, or new again; only changed items have it
+                appliedIdf[t] = currentIdf(t);
+            } else {
+                double idf = currentIdf(t);
+                if (Math.abs(idf - appliedIdf[t]) > tolerance) {
+                    appliedIdf[t] = idf;
+                    drifted[t] = true;
+                    driftCount++;
+                }
+            }
+        }
+        if (driftCount > 0) {
+            for (int s = 0; s < itemCount; s++) {
+                if (!affected[s]) {
+                    for (int t: rowTags[s]) {
+                        if (drifted[t]) {
+                            toWeigh.add(s);
+                            break;
+                        }
+                    }
+                }
+            }
+        }
+        for (int i = 0; i < toWeigh.size(); i++) {
+            weighItem(toWeigh.getInt(i));
+        }
+        if (!toWeigh.isEmpty()) {
+            model = null;
+        }
+
+        logger.debug("applied {} tag changes to {} items, re-weighted {} items for {} drifted tags in {} us",
+                     new Object[]{batch.size(), changedCount, toWeigh.size(), driftCount,
+                                  (System.nanoTime() - startTime) / 1000});
+        return toWeigh.size();
+    }
+
+    /**
+     * Bring every tag's applied IDF up to date and re-weight all items, so the model is exact.
+     */
+    public synchronized void renormalize() {
+        for (int t = 0; t < tagNames.size(); t++) {
+            appliedIdf[t] = docFreq[t] > 0 ? currentIdf(t) : Double.NaN;
+        }
+        for (int s = 0; s < itemCount; s++) {
+            weighItem(s);
+        }
+        model = null;
+    }
+
+    /**
+     * Get the largest difference between any tag's applied and exact IDF.
+     *
+     * @return The largest IDF drift; at most the {@linkplain #getTolerance() tolerance}.
+     */
+    public synchronized double getMaxDrift() {
+        double max = 0;
+        for (int t = 0; t < tagNames.size(); t++) {
+            if (docFreq[t] > 0) {
+                max = Math.max(max, Math.abs(currentIdf(t) - appliedIdf[t]));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Get a snapshot of the model.  The snapshot does not change with later updates.
+     *
+     * @return The current model.
+     */
+    public synchronized TFIDFModel getModel() {
+        if (model != null) {
+            return model;
+        }
+        if (tagIdMap == null) {
+            tagIdMap = Maps.newHashMapWithExpectedSize(tagNames.size());
+            for (int t = 0; t < tagNames.size(); t++) {
+                tagIdMap.put(tagNames.get(t), t + 1L);
+            }
+        }
+
+        if (sortedItems == null) {
+            sortedItems = Arrays.copyOf(itemIds, itemCount);
+            Arrays.sort(sortedItems);
+            sortedSlots = new int[itemCount];
+            for (int i = 0; i < itemCount; i++) {
+                sortedSlots[i] = itemSlots.get(sortedItems[i]);
+            }
+        }
+
+        int[] rowOffsets = new int[itemCount + 1];
+        for (int i = 0; i < itemCount; i++) {
+            rowOffsets[i + 1] = rowOffsets[i] + rowTags[sortedSlots[i]].length;
+        }
+        int[] tagIndexes = new int[rowOffsets[itemCount]];
+        double[] weights = new double[rowOffsets[itemCount]];
+        for (int i = 0; i < itemCount; i++) {
+            int slot = sortedSlots[i];
+            System.arraycopy(rowTags[slot], 0, tagIndexes, rowOffsets[i], rowTags[slot].length);
+            System.arraycopy(rowWeights[slot], 0, weights, rowOffsets[i], rowWeights[slot].length);
+        }
+        // the model wraps the item array, so it gets its own copy
+        model = new TFIDFModel(tagIdMap, sortedItems.clone(), rowOffsets, tagIndexes, weights);
+        return model;
+    }
+
+    private double currentIdf(int t) {
+        double n = itemCount;
+        return Math.log10(n / docFreq[t]);
+    }
+
+    private int internTag(String tag) {
+        int t = tagLookup.getInt(tag);
+        if (t < 0) {
+            t = tagNames.size();
+            tagNames.add(tag);
+            tagLookup.put(tag, t);
+            if (t == docFreq.length) {
+                int cap = Math.max(16, t * 2);
+                docFreq = Arrays.copyOf(docFreq, cap);
+                appliedIdf = Arrays.copyOf(appliedIdf, cap);
+            }
+            appliedIdf[t] = Double.NaN;
+            tagIdMap = null;
+        }
+        return t;
+    }
+
+    private int addItem(long item) {
+        int slot = itemCount++;
+        if (slot == itemIds.length) {
+            int cap = Math.max(16, slot * 2);
+            itemIds = Arrays.copyOf(itemIds, cap);
+            rowTags = Arrays.copyOf(rowTags, cap);
+            rowCounts = Arrays.copyOf(rowCounts, cap);
+            rowWeights = Arrays.copyOf(rowWeights, cap);
+        }
+        itemIds[slot] = item;
+        rowTags[slot] = new int[0];
+        rowCounts[slot] = new int[0];
+        rowWeights[slot] = new double[0];
+        itemSlots.put(item, slot);
+        sortedItems = null;
+        return slot;
+    }
+
+    /**
+     * Replace an item's term counts, keeping the document frequencies up to date.
+     */
+    private void setCounts(int slot, Int2IntMap counts) {
+        for (int t: rowTags[slot]) {
+            docFreq[t] -= 1;
+        }
+        int[] tags = new int[counts.size()];
+        int n = 0;
+        for (Int2IntMap.Entry e: counts.int2IntEntrySet()) {
+            if (e.getIntValue() > 0) {
+                tags[n++] = e.getIntKey();
+            }
+        }
+        tags = Arrays.copyOf(tags, n);
+        Arrays.sort(tags);
+        int[] tf = new int[n];
+        for (int j = 0; j < n; j++) {
+            tf[j] = counts.get(tags[j]);
+            docFreq[tags[j]] += 1;
+        }
+        rowTags[slot] = tags;
+        rowCounts[slot] = tf;
+    }
+
+    /**
+     * Weight an item's term counts by the applied IDFs and normalize them, as
+     * {@link TFIDFModelBuilder} does.
+     */
+    private void weighItem(int slot) {
+        int[] tags = rowTags[slot];
+        int[] tf = rowCounts[slot];
+        double[] w = new double[tags.length];
+        double ssq = 0;
+        for (int j = 0; j < tags.length; j++) {
+            w[j] = tf[j] * appliedIdf[tags[j]];
+            ssq += w[j] * w[j];
+        }
+        double len = Math.sqrt(ssq);
+        for (int j = 0; j < tags.length; j++) {
+            w[j] = w[j] / len;
+        }
+        rowWeights[slot] = w;
+    }
+
+    /**
+     * A batch of tag applications to add and remove.
+     */
+    public static class Batch {
+        private final LongArrayList items = new LongArrayList();
+        private final List<String> tags = new ArrayList<String>();
+        private final IntArrayList deltas = new IntArrayList();
+
+        /**
+         * Add a tag application.
+         *
+         * @param item The item.
+         * @param tag  The tag applied to it.
+         * @return The batch (for chaining).
+         */
+        public Batch add(long item, String tag) {
+            return change(item, tag, 1);
+        }
+
+        /**
+         * Remove a tag application.
+         *
+         * @param item The item.
+         * @param tag  The tag to remove one application of.
+         * @return The batch (for chaining).
+         */
+        public Batch remove(long item, String tag) {
+            return change(item, tag, -1);
+        }
+
+        private Batch change(long item, String tag, int delta) {
+            if (tag == null) {
+                throw new NullPointerException("tag");
+            }
+            items.add(item);
+            tags.add(tag);
+            deltas.add(delta);
+            return this;
+        }
+
+        /**
+         * Get the number of changes in the batch.
+         *
+         * @return The number of additions and removals.
+         */
+        public int size() {
+            return items.size();
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package org.grouplens.mooc.cbf;
+
+import org.grouplens.grapht.annotation.DefaultProvider;
+import org.grouplens.lenskit.core.Shareable;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.lenskit.vectors.VectorEntry;
+
+import java.io.Serializable;
+
+/**
+ * Dense, low-dimensional embeddings of the item vectors of a {@linkplain TFIDFModel TF-IDF model}.
+ * A projection matrix maps each tag to a vector of <var>k</var> dimensions; an item's embedding
+ * is the sum of its tags' vectors, weighted by its TF-IDF weights, and scaled to unit length.  A
+ * user profile is projected the same way, so the cosine of two embeddings approximates the cosine
+ * of the TF-IDF vectors.
+ * <p>
+ * The embeddings are indexed by model item index, and packed into one {@code float} array, so
+ * each item takes 4<var>k</var> bytes however many tags it has and however large the vocabulary
+ * grows.  Items with no tags have an embedding of zeros.
+ *
+ * @see ItemEmbeddingBuilder
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+@Shareable
+@DefaultProvider(ItemEmbeddingBuilder.class)
+public class ItemEmbedding implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final ProjectionMethod method;
+    private final int dimension;
+    private final int entryCount;
+    // row-major, tags by dimensions
+    private final float[] projection;
+    // row-major, items by dimensions
+    private final float[] vectors;
+
+    /**
+     * Construct an embedding.  This is package-private; embeddings are built with the
+     * {@linkplain ItemEmbeddingBuilder embedding builder}.
+     *
+     * @param method     The method the projection was found with.
+     * @param k          The number of dimensions.
+     * @param entries    The number of entries in the model the embedding was built on.
+     * @param projection The projection of each tag index, <var>k</var> values per tag.
+     * @param vectors    The unit embedding of each item index, <var>k</var> values per item.
+     */
+    ItemEmbedding(ProjectionMethod method, int k, int entries, float[] projection, float[] vectors) {
+        assert projection.length % k == 0 && vectors.length % k == 0;
+        this.method = method;
+        dimension = k;
+        entryCount = entries;
+        this.projection = projection;
+        this.vectors = vectors;
+    }
+
+    /**
+     * Get the method the projection was found with.
+     *
+     * @return The projection method.
+     */
+    public ProjectionMethod getMethod() {
+        return method;
+    }
+
+    /**
+     * Get the number of dimensions.
+     *
+     * @return The embedding's <var>k</var>.
+     */
+    public int getDimension() {
+        return dimension;
+    }
+
+    /**
+     * Get the number of items.
+     *
+     * @return The number of items embedded.
+     */
+    public int getItemCount() {
+        return vectors.length / dimension;
+    }
+
+    /**
+     * Get the memory the embedding takes.
+     *
+     * @return The size of the projection and the item embeddings, in bytes.
+     */
+    public long getBytes() {
+        return 4L * (projection.length + vectors.length);
+    }
+
+    /**
+     * Project a user profile into the embedding space.
+     *
+     * @param profile The profile, over tag IDs.
+     * @param out     The array to write the <var>k</var> coordinates of the projection to.
+     * @return The norm of the projection.
+     */
+    public double project(SparseVector profile, float[] out) {
+        int k = dimension;
+        double[] acc = new double[k];
+        int ntags = projection.length / k;
+        for (VectorEntry e: profile.fast()) {
+            int tag = (int) e.getKey() - 1;
+            if (tag < 0 || tag >= ntags) {
+                continue;
+            }
+            double w = e.getValue();
+            int base = tag * k;
+            for (int j = 0; j < k; j++) {
+                acc[j] += w * projection[base + j];
+            }
+        }
+        double norm = 0;
+        for (int j = 0; j < k; j++) {
+            out[j] = (float) acc[j];
+            norm += acc[j] * acc[j];
+        }
+        return Math.sqrt(norm);
+    }
+
+    /**
+     * Compute the dot product of an item's embedding with a vector.  The item's embedding is a
+     * unit vector, so this is the cosine times the norm of the vector.
+     *
+     * @param idx    The item index.
+     * @param vector A vector of <var>k</var> coordinates.
+     * @return The dot product.
+     */
+    public double dot(int idx, float[] vector) {
+        int k = dimension;
+        int base = idx * k;
+        // a plain loop; the JIT unrolls it, and split sums measured no faster
+        float sum = 0;
+        for (int j = 0; j < k; j++) {
+            sum += vectors[base + j] * vector[j];
+        }
+        return sum;
+    }
+
+    /**
+     * Get one coordinate of an item's embedding.
+     *
+     * @param idx The item index.
+     * @param dim The dimension, from 0 to <var>k</var> - 1.
+     * @return The coordinate.
+     */
+    public float getCoordinate(int idx, int dim) {
+        return vectors[idx * dimension + dim];
+    }
+
+    /**
+     * Query whether this embedding was built on a model.  This compares the sizes of the models.
+     *
+     * @param model The model.
+     * @return {@code true} if the embedding matches the model.
+     */
+    public boolean matches(TFIDFModel model) {
+        return getItemCount() == model.getItemCount()
+                && projection.length / dimension == model.getTagCount()
+                && entryCount == model.getEntryCount();
+    }
+}
@@ -0,0 +1,364 @@
+package org.grouplens.mooc.cbf;
+
+import org.grouplens.lenskit.core.Transient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * Builder for {@linkplain ItemEmbedding item embeddings}.  With the {@linkplain ProjectionMethod#SVD
+ * SVD} method, the projection is the top <var>k</var> right singular vectors of the item-tag matrix
+ * <var>A</var>, found by randomized subspace iteration: a random basis of <var>k</var> + 10 tag
+ * vectors is multiplied by <var>A</var><sup>T</sup><var>A</var> and orthonormalized three times,
+ * and the projection of <var>A</var><sup>T</sup><var>A</var> onto that basis, a small square
+ * matrix, is diagonalized to pick the <var>k</var> directions.  With the
+ * {@linkplain ProjectionMethod#RANDOM random} method, the projection is a Gaussian random matrix.
+ * Either way, the items are then projected and normalized.
+ * <p>
+ * Every multiplication by <var>A</var> is a streaming pass over the model's item vectors, with
+ * memory proportional to the tags and the basis, not to the items.  Passes are split into fixed
+ * blocks of items that are processed in parallel with the number of
+ * {@linkplain ModelBuildThreads model build threads}, and the blocks' sums are added in a fixed
+ * order, so the embedding is the same whatever the number of threads.  The random draws use a
+ * fixed seed, so the same model always produces the same embedding.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class ItemEmbeddingBuilder implements Provider<ItemEmbedding> {
+    private static final Logger logger = LoggerFactory.getLogger(ItemEmbeddingBuilder.class);
+    private static final long SEED = 0x454D4244L;
+    private static final int OVERSAMPLING = 10;
+    private static final int POWER_ITERATIONS = 3;
+    private static final int BLOCK_SIZE = 4096;
+    private static final int MAX_SWEEPS = 100;
+
+    private static final int RANGE = 0;
+    private static final int GRAM = 1;
+    private static final int PROJECT = 2;
+
+    private final TFIDFModel model;
+    private final int dimension;
+    private final ProjectionMethod method;
+    private final int threadCount;
+
+    /**
+     * Construct an embedding builder.
+     *
+     * @param model   The TF-IDF model.
+     * @param k       The number of dimensions.
+     * @param method  The projection method.
+     * @param threads The number of threads to use.
+     */
+    @Inject
+    public ItemEmbeddingBuilder(@Transient TFIDFModel model,
+                                @EmbeddingDimension int k,
+                                @EmbeddingProjection String method,
+                                @ModelBuildThreads int threads) {
+        if (k < 1) {
+            throw new IllegalArgumentException("embedding dimension must be positive");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("model build thread count must be positive");
+        }
+        this.model = model;
+        dimension = k;
+        this.method = ProjectionMethod.fromName(method);
+        threadCount = threads;
+    }
+
+    @Override
+    public ItemEmbedding get() {
+        long startTime = System.nanoTime();
+        int ntags = model.getTagCount();
+        int nitems = model.getItemCount();
+        int k = dimension;
+        Random random = new Random(SEED);
+        ForkJoinPool pool = new ForkJoinPool(threadCount);
+        float[] projection = new float[ntags * k];
+        float[] vectors = new float[nitems * k];
+        try {
+            double[] basis;
+            if (method == ProjectionMethod.SVD) {
+                basis = singularVectors(pool, random);
+            } else {
+                basis = gaussian(random, ntags, k, 1 / Math.sqrt(k));
+            }
+            for (int i = 0; i < basis.length; i++) {
+                projection[i] = (float) basis[i];
+            }
+            pool.invoke(new PassTask(PROJECT, basis, k, 0, nitems, vectors));
+        } finally {
+            pool.shutdown();
+        }
+        logger.info("built {}-dimensional {} embedding of {} items with {} thread(s) in {} ms",
+                    new Object[]{k, method.name().toLowerCase(), nitems, threadCount,
+                                 (System.nanoTime() - startTime) / 1000000});
+        return new ItemEmbedding(method, k, model.getEntryCount(), projection, vectors);
+    }
+
+    /**
+     * Find the top right singular vectors of the item-tag matrix.
+     *
+     * @return The singular vectors, as the columns of a tags by <var>k</var> matrix.
+     */
+    private double[] singularVectors(ForkJoinPool pool, Random random) {
+        int ntags = model.getTagCount();
+        int k = dimension;
+        int width = Math.min(k + OVERSAMPLING, ntags);
+        double[] q = gaussian(random, ntags, width, 1);
+        orthonormalize(q, ntags, width);
+        for (int i = 0; i < POWER_ITERATIONS; i++) {
+            q = pool.invoke(new PassTask(RANGE, q, width, 0, model.getItemCount(), null));
+            orthonormalize(q, ntags, width);
+        }
+
+        double[] gram = pool.invoke(new PassTask(GRAM, q, width, 0, model.getItemCount(), null));
+        double[] eigenvectors = new double[width * width];
+        double[] eigenvalues = diagonalize(gram, width, eigenvectors);
+        Integer[] order = new Integer[width];
+        for (int j = 0; j < width; j++) {
+            order[j] = j;
+        }
+        // selection sort, largest eigenvalue first; the basis is small
+        for (int a = 0; a < width; a++) {
+            int best = a;
+            for (int b = a + 1; b < width; b++) {
+                if (eigenvalues[order[b]] > eigenvalues[order[best]]) {
+                    best = b;
+                }
+            }
+            Integer tmp = order[a];
+            order[a] = order[best];
+            order[best] = tmp;
+        }
+
+        // rotate the basis onto the eigenvectors; with fewer tags than dimensions, the rest are 0
+        double[] basis = new double[ntags * k];
+        for (int t = 0; t < ntags; t++) {
+            for (int j = 0; j < Math.min(k, width); j++) {
+                int c = order[j];
+                double sum = 0;
+                for (int m = 0; m < width; m++) {
+                    sum += q[t * width + m] * eigenvectors[m * width + c];
+                }
+                basis[t * k + j] = sum;
+            }
+        }
+        return basis;
+    }
+
+    private static double[] gaussian(Random random, int rows, int cols, double scale) {
+        double[] matrix = new double[rows * cols];
+        for (int i = 0; i < matrix.length; i++) {
+            matrix[i] = random.nextGaussian() * scale;
+        }
+        return matrix;
+    }
+
+    /**
+     * Orthonormalize the columns of a row-major matrix in place, with modified Gram-Schmidt run
+     * twice for stability.  Columns that are (numerically) dependent on earlier ones are zeroed.
+     */
+    static void orthonormalize(double[] matrix, int rows, int cols) {
+        for (int pass = 0; pass < 2; pass++) {
+            for (int j = 0; j < cols; j++) {
+                for (int p = 0; p < j; p++) {
+                    double dot = 0;
+                    for (int r = 0; r < rows; r++) {
+                        dot += matrix[r * cols + p] * matrix[r * cols + j];
+                    }
+                    for (int r = 0; r < rows; r++) {
+                        matrix[r * cols + j] -= dot * matrix[r * cols + p];
+                    }
+                }
+                double norm = 0;
+                for (int r = 0; r < rows; r++) {
+                    norm += matrix[r * cols + j] * matrix[r * cols + j];
+                }
+                norm = Math.sqrt(norm);
+                double scale = norm > 1.0e-10 ? 1 / norm : 0;
+                for (int r = 0; r < rows; r++) {
+                    matrix[r * cols + j] *= scale;
+                }
+            }
+        }
+    }
+
+    /**
+     * Diagonalize a symmetric matrix with cyclic Jacobi rotations.
+     *
+     * @param a       The row-major matrix, which is overwritten.
+     * @param n       The size of the matrix.
+     * @param vectors The array to store the eigenvectors in, as the columns of a row-major matrix.
+     * @return The eigenvalues, in the order of the eigenvectors.
+     */
+    static double[] diagonalize(double[] a, int n, double[] vectors) {
+        for (int i = 0; i < n; i++) {
+            for (int j = 0; j < n; j++) {
+                vectors[i * n + j] = i == j ? 1 : 0;
+            }
+        }
+        double total = 0;
+        for (double x: a) {
+            total += x * x;
+        }
+        for (int sweep = 0; sweep < MAX_SWEEPS; sweep++) {
+            double off = 0;
+            for (int p = 0; p < n; p++) {
+                for (int q = p + 1; q < n; q++) {
+                    off += a[p * n + q] * a[p * n + q];
+                }
+            }
+            if (off <= 1.0e-24 * total) {
+                break;
+            }
+            for (int p = 0; p < n; p++) {
+                for (int q = p + 1; q < n; q++) {
+                    double apq = a[p * n + q];
+                    if (apq == 0) {
+                        continue;
+                    }
+                    // the rotation that zeroes a[p][q]
+                    double theta = (a[q * n + q] - a[p * n + p]) / (2 * apq);
+                    double t = Math.signum(theta) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+                    if (theta == 0) {
+                        t = 1;
+                    }
+                    double c = 1 / Math.sqrt(t * t + 1);
+                    double s = t * c;
+                    rotateColumns(a, n, p, q, c, s);
+                    rotateRows(a, n, p, q, c, s);
+                    rotateColumns(vectors, n, p, q, c, s);
+                }
+            }
+        }
+        double[] values = new double[n];
+        for (int i = 0; i < n; i++) {
+            values[i] = a[i * n + i];
+        }
+        return values;
+    }
+
+    private static void rotateColumns(double[] m, int n, int p, int q, double c, double s) {
+        for (int r = 0; r < n; r++) {
+            double mp = m[r * n + p];
+            double mq = m[r * n + q];
+            m[r * n + p] = c * mp - s * mq;
+            m[r * n + q] = s * mp + c * mq;
+        }
+    }
+
+    private static void rotateRows(double[] m, int n, int p, int q, double c, double s) {
+        for (int r = 0; r < n; r++) {
+            double mp = m[p * n + r];
+            double mq = m[q * n + r];
+            m[p * n + r] = c * mp - s * mq;
+            m[q * n + r] = s * mp + c * mq;
+        }
+    }
+
+    /**
+     * A streaming pass over a range of items, which multiplies each item vector by a basis of tag
+     * vectors.  Ranges of more than one block are split in half at a block boundary, so the
+     * blocks, and the order their sums are added in, do not depend on the number of threads.
+     * <p>
+     * A {@link #RANGE} pass returns <var>A</var><sup>T</sup><var>A</var> times the basis, a
+     * {@link #GRAM} pass returns (<var>AB</var>)<sup>T</sup><var>AB</var> for the basis
+     * <var>B</var>, and a {@link #PROJECT} pass writes each item's normalized product with the
+     * basis to the output, and returns {@code null}.
+     */
+    private class PassTask extends RecursiveTask<double[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final int mode;
+        private final double[] basis;
+        private final int width;
+        private final int lo;
+        private final int hi;
+        private final float[] output;
+
+        PassTask(int mode, double[] basis, int width, int lo, int hi, float[] output) {
+            this.mode = mode;
+            this.basis = basis;
+            this.width = width;
+            this.lo = lo;
+            this.hi = hi;
+            this.output = output;
+        }
+
+        @Override
+        protected double[] compute() {
+            int blocks = (hi - lo + BLOCK_SIZE - 1) / BLOCK_SIZE;
+            if (blocks > 1) {
+                int mid = lo + blocks / 2 * BLOCK_SIZE;
+                PassTask left = new PassTask(mode, basis, width, lo, mid, output);
+                PassTask right = new PassTask(mode, basis, width, mid, hi, output);
+                left.fork();
+                double[] rightSum = right.compute();
+                double[] sum = left.join();
+                if (sum != null) {
+                    for (int i = 0; i < sum.length; i++) {
+                        sum[i] += rightSum[i];
+                    }
+                }
+                return sum;
+            }
+
+            double[] sum = null;
+            if (mode == RANGE) {
+                sum = new double[model.getTagCount() * width];
+            } else if (mode == GRAM) {
+                sum = new double[width * width];
+            }
+            double[] product = new double[width];
+            for (int idx = lo; idx < hi; idx++) {
+                int start = model.getRowStart(idx);
+                int end = model.getRowEnd(idx);
+                for (int j = 0; j < width; j++) {
+                    product[j] = 0;
+                }
+                for (int i = start; i < end; i++) {
+                    double w = model.getWeight(idx, i);
+                    int base = model.getTagIndex(i) * width;
+                    for (int j = 0; j < width; j++) {
+                        product[j] += w * basis[base + j];
+                    }
+                }
+
+                switch (mode) {
+                case RANGE:
+                    for (int i = start; i < end; i++) {
+                        double w = model.getWeight(idx, i);
+                        int base = model.getTagIndex(i) * width;
+                        for (int j = 0; j < width; j++) {
+                            sum[base + j] += w * product[j];
+                        }
+                    }
+                    break;
+                case GRAM:
+                    for (int j = 0; j < width; j++) {
+                        for (int m = 0; m < width; m++) {
+                            sum[j * width + m] += product[j] * product[m];
+                        }
+                    }
+                    break;
+                default:
+                    double norm = 0;
+                    for (int j = 0; j < width; j++) {
+                        norm += product[j] * product[j];
+                    }
+                    double scale = norm > 0 ? 1 / Math.sqrt(norm) : 0;
+                    for (int j = 0; j < width; j++) {
+                        output[idx * width + j] = (float) (product[j] * scale);
+                    }
+                }
+            }
+            return sum;
+        }
+    }
+}
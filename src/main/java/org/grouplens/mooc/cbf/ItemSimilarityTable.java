@@ -0,0 +1,153 @@
+package org.grouplens.mooc.cbf;
+
+import org.grouplens.grapht.annotation.DefaultProvider;
+import org.grouplens.lenskit.core.Shareable;
+import org.grouplens.lenskit.scored.ScoredId;
+import org.grouplens.lenskit.scored.ScoredIdListBuilder;
+import org.grouplens.lenskit.scored.ScoredIds;
+
+import java.io.Serializable;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Table of each item's most similar items, by the cosine of their TF-IDF vectors.  Item
+ * <var>i</var>'s neighbors occupy positions {@link #getNeighborStart(int) getNeighborStart(i)}
+ * (inclusive) through {@link #getNeighborEnd(int) getNeighborEnd(i)} (exclusive), most similar
+ * first, with ties broken by item index.  Items and neighbors are
+ * {@linkplain TFIDFModel#getItemIndex(long) model indexes}.
+ * <p>
+ * Each item has at most {@linkplain #getNeighborCount() <var>K</var>} neighbors, and only items
+ * sharing a tag with it (so with a positive similarity) are neighbors.  Similarities are stored as
+ * {@code float}s to keep the table compact.
+ *
+ * @see ItemSimilarityTableBuilder
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+@Shareable
+@DefaultProvider(ItemSimilarityTableBuilder.class)
+public class ItemSimilarityTable implements Serializable {
+    private static final long serialVersionUID = 2L;
+
+    private final int neighborCount;
+    private final int[] offsets;
+    private final int[] neighbors;
+    private final float[] similarities;
+    private final long fingerprint;
+
+    /**
+     * Construct a table.  This is package-private; tables are built with the
+     * {@linkplain ItemSimilarityTableBuilder table builder}.
+     *
+     * @param k            The largest number of neighbors per item.
+     * @param offsets      The start of each item's neighbors, followed by the total number of
+     *                     neighbors.
+     * @param neighbors    The item index of each neighbor.
+     * @param similarities The similarity of each neighbor.
+     * @param fingerprint  The {@linkplain TFIDFModel#getFingerprint() fingerprint} of the model
+     *                     the table was built on.
+     */
+    ItemSimilarityTable(int k, int[] offsets, int[] neighbors, float[] similarities,
+                        long fingerprint) {
+        assert neighbors.length == similarities.length;
+        neighborCount = k;
+        this.offsets = offsets;
+        this.neighbors = neighbors;
+        this.similarities = similarities;
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Get the largest number of neighbors an item has.
+     *
+     * @return The table's <var>K</var>.
+     */
+    public int getNeighborCount() {
+        return neighborCount;
+    }
+
+    /**
+     * Get the number of items in the table.
+     *
+     * @return The number of items.
+     */
+    public int getItemCount() {
+        return offsets.length - 1;
+    }
+
+    /**
+     * Get the position of an item's first neighbor.
+     *
+     * @param idx The item index.
+     * @return The position of the item's most similar neighbor.
+     */
+    public int getNeighborStart(int idx) {
+        return offsets[idx];
+    }
+
+    /**
+     * Get the end of an item's neighbors.
+     *
+     * @param idx The item index.
+     * @return The position after the item's last neighbor.
+     */
+    public int getNeighborEnd(int idx) {
+        return offsets[idx + 1];
+    }
+
+    /**
+     * Get the item of a neighbor.
+     *
+     * @param pos The neighbor position.
+     * @return The neighbor's item index.
+     */
+    public int getNeighborItem(int pos) {
+        return neighbors[pos];
+    }
+
+    /**
+     * Get the similarity of a neighbor.
+     *
+     * @param pos The neighbor position.
+     * @return The cosine between the item and the neighbor.
+     */
+    public double getSimilarity(int pos) {
+        return similarities[pos];
+    }
+
+    /**
+     * Get the items most similar to an item.
+     *
+     * @param model The model the table was built on.
+     * @param item  The item ID.
+     * @param n     The number of items to return (at most <var>K</var>; negative for all of the
+     *              item's neighbors).
+     * @return The most similar items and their similarities, most similar first, or an empty list
+     *         if the item is not in the model.
+     */
+    public List<ScoredId> getSimilarItems(TFIDFModel model, long item, int n) {
+        int idx = model.getItemIndex(item);
+        if (idx < 0) {
+            return Collections.emptyList();
+        }
+        int start = offsets[idx];
+        int end = n < 0 ? offsets[idx + 1] : Math.min(offsets[idx + 1], start + n);
+        ScoredIdListBuilder list = ScoredIds.newListBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            list.add(model.getItemId(neighbors[i]), similarities[i]);
+        }
+        return list.finish();
+    }
+
+    /**
+     * Query whether this table was built on a model.  This compares the model's
+     * {@linkplain TFIDFModel#getFingerprint() fingerprint} with that of the model the table was
+     * built on.
+     *
+     * @param model The model.
+     * @return {@code true} if the table matches the model.
+     */
+    public boolean matches(TFIDFModel model) {
+        return fingerprint == model.getFingerprint();
+    }
+}
@@ -0,0 +1,190 @@
+package org.grouplens.mooc.cbf;
+
+import org.grouplens.lenskit.core.Transient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Builder for the {@linkplain ItemSimilarityTable item similarity table}.  Rather than comparing
+ * every pair of items, it finds each item's neighbors by walking the
+ * {@linkplain TagItemIndex posting lists} of the item's tags, accumulating dot products for the
+ * items that share a tag with it; since item vectors are unit vectors, these are the cosines.  The
+ * work is proportional to the postings walked, which is the sum over tags of the square of the
+ * tag's document frequency.
+ * <p>
+ * Items are split into ranges that are searched in parallel with the number of
+ * {@linkplain ModelBuildThreads model build threads}.  Dot products are accumulated in the
+ * thread's {@linkplain TagScratch scratch array} over items, so each thread reuses one array of
+ * the catalogue's size rather than each range allocating its own.  The table is the same whatever
+ * the number of threads.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class ItemSimilarityTableBuilder implements Provider<ItemSimilarityTable> {
+    private static final Logger logger = LoggerFactory.getLogger(ItemSimilarityTableBuilder.class);
+    private static final int MIN_GRAIN = 256;
+    /**
+     * The most neighbor slots the table can have; the slots are held in single arrays.
+     */
+    private static final long MAX_SLOTS = Integer.MAX_VALUE - 8;
+
+    private final TFIDFModel model;
+    private final TagItemIndex index;
+    private final int neighborCount;
+    private final int threadCount;
+
+    /**
+     * Construct a table builder.
+     *
+     * @param model   The TF-IDF model.
+     * @param index   The inverted index over the model.
+     * @param k       The number of neighbors to keep for each item.  The number of items times
+     *                <var>k</var> must fit in an array.
+     * @param threads The number of threads to use.
+     */
+    @Inject
+    public ItemSimilarityTableBuilder(@Transient TFIDFModel model,
+                                      @Transient TagItemIndex index,
+                                      @SimilarItemCount int k,
+                                      @ModelBuildThreads int threads) {
+        if (k < 1) {
+            throw new IllegalArgumentException("similar item count must be positive");
+        }
+        if (threads < 1) {
+            throw new IllegalArgumentException("model build thread count must be positive");
+        }
+        long slots = (long) model.getItemCount() * k;
+        if (slots > MAX_SLOTS) {
+            throw new IllegalArgumentException(String.format(
+                    "%d items with %d neighbors each need %d slots, more than the %d allowed",
+                    model.getItemCount(), k, slots, MAX_SLOTS));
+        }
+        this.model = model;
+        this.index = index;
+        neighborCount = k;
+        threadCount = threads;
+    }
+
+    @Override
+    public ItemSimilarityTable get() {
+        long startTime = System.nanoTime();
+        int nitems = model.getItemCount();
+        // each item's neighbors, in a fixed-size slot per item
+        int[] slotItems = new int[nitems * neighborCount];
+        float[] slotSims = new float[nitems * neighborCount];
+        int[] counts = new int[nitems];
+
+        if (threadCount > 1) {
+            ForkJoinPool pool = new ForkJoinPool(threadCount);
+            try {
+                int grain = Math.max(MIN_GRAIN, nitems / (threadCount * 4));
+                pool.invoke(new NeighborTask(slotItems, slotSims, counts, 0, nitems, grain));
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            findNeighbors(slotItems, slotSims, counts, 0, nitems);
+        }
+
+        // pack the slots
+        int[] offsets = new int[nitems + 1];
+        for (int i = 0; i < nitems; i++) {
+            offsets[i + 1] = offsets[i] + counts[i];
+        }
+        int[] neighbors = new int[offsets[nitems]];
+        float[] sims = new float[offsets[nitems]];
+        for (int i = 0; i < nitems; i++) {
+            System.arraycopy(slotItems, i * neighborCount, neighbors, offsets[i], counts[i]);
+            System.arraycopy(slotSims, i * neighborCount, sims, offsets[i], counts[i]);
+        }
+
+        logger.info("built item similarity table of {} neighbors for {} items (K={}) "
+                    + "with {} thread(s) in {} ms",
+                    new Object[]{neighbors.length, nitems, neighborCount, threadCount,
+                                 (System.nanoTime() - startTime) / 1000000});
+        return new ItemSimilarityTable(neighborCount, offsets, neighbors, sims,
+                                       model.getFingerprint());
+    }
+
+    /**
+     * Find the neighbors of a range of items.
+     */
+    private void findNeighbors(int[] slotItems, float[] slotSims, int[] counts, int lo, int hi) {
+        int nitems = model.getItemCount();
+        TopItemAccumulator top = new TopItemAccumulator(neighborCount);
+        int[] topItems = new int[neighborCount];
+        double[] topSims = new double[neighborCount];
+
+        for (int q = lo; q < hi; q++) {
+            TagScratch scratch = TagScratch.acquireItems(nitems);
+            try {
+                double[] dots = scratch.values();
+                int end = model.getRowEnd(q);
+                for (int i = model.getRowStart(q); i < end; i++) {
+                    int tag = model.getTagIndex(i);
+                    double wq = model.getWeight(q, i);
+                    int pend = index.getPostingEnd(tag);
+                    for (int p = index.getPostingStart(tag); p < pend; p++) {
+                        int item = index.getItemIndex(p);
+                        scratch.touch(item);
+                        dots[item] += wq * model.getWeight(item, index.getEntry(p));
+                    }
+                }
+
+                int ntouched = scratch.touchedCount();
+                for (int j = 0; j < ntouched; j++) {
+                    int item = scratch.touchedIndex(j);
+                    if (item != q && dots[item] > 0) {
+                        top.put(item, dots[item]);
+                    }
+                }
+            } finally {
+                scratch.release();
+            }
+            int n = top.finish(topItems, topSims);
+            int base = q * neighborCount;
+            for (int j = 0; j < n; j++) {
+                slotItems[base + j] = topItems[j];
+                slotSims[base + j] = (float) topSims[j];
+            }
+            counts[q] = n;
+        }
+    }
+
+    /**
+     * Fork-join task finding the neighbors of a range of items.
+     */
+    private class NeighborTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] slotItems;
+        private final float[] slotSims;
+        private final int[] counts;
+        private final int lo, hi, grain;
+
+        NeighborTask(int[] slotItems, float[] slotSims, int[] counts, int lo, int hi, int grain) {
+            this.slotItems = slotItems;
+            this.slotSims = slotSims;
+            this.counts = counts;
+            this.lo = lo;
+            this.hi = hi;
+            this.grain = grain;
+        }
+
+        @Override
+        protected void compute() {
+            if (hi - lo <= grain) {
+                findNeighbors(slotItems, slotSims, counts, lo, hi);
+            } else {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new NeighborTask(slotItems, slotSims, counts, lo, mid, grain),
+                          new NeighborTask(slotItems, slotSims, counts, mid, hi, grain));
+            }
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package org.grouplens.mooc.cbf;
+
+import org.grouplens.grapht.annotation.DefaultInteger;
+import org.grouplens.lenskit.core.Parameter;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+/**
+ * Parameter annotation for the number of tags kept in each item's vector of the TF-IDF model.
+ * Only the most heavily weighted tags are kept, and the vector is normalized again.  With 0 (the
+ * default), every tag is kept.
+ *
+ * @see TFIDFModel#pruned(int, double)
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+@Documented
+@DefaultInteger(0)
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+@Qualifier
+@Parameter(Integer.class)
+public @interface ItemTagLimit {
+}
@@ -0,0 +1,88 @@
+package org.grouplens.mooc.cbf;
+
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.grouplens.lenskit.scored.ScoredId;
+
+import java.util.List;
+
+/**
+ * A model shard in this process.  It scores every item in its range with a vector, the way
+ * {@link MaxScoreItemRecommender} does when it falls back to scoring the whole catalog, so the
+ * merged results of a set of shards are exactly those of the full model.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class LocalModelShard implements ModelShard {
+    private final TFIDFModel model;
+
+    /**
+     * Create a shard.
+     *
+     * @param m The shard's model, from {@link TFIDFModelBuilder#shard(TFIDFModel, int)}.
+     */
+    public LocalModelShard(TFIDFModel m) {
+        model = m;
+    }
+
+    /**
+     * Get the shard's model.
+     *
+     * @return The model of the shard's items.
+     */
+    public TFIDFModel getModel() {
+        return model;
+    }
+
+    @Override
+    public List<ScoredId> topItems(ShardQuery query) {
+        int nitems = model.getItemCount();
+        int n = query.getCount();
+        LongSet exclude = query.getExclude();
+        LongSet candidates = query.getCandidates();
+        TopItemAccumulator top = new TopItemAccumulator(n < 0 ? nitems : Math.min(n, nitems));
+        TagScratch scratch = TagScratch.acquire(model.getTagCount());
+        try {
+            query.spread(scratch, model.getTagCount());
+            double[] profile = scratch.values();
+            if (candidates == null) {
+                for (int item = 0; item < nitems; item++) {
+                    offer(item, profile, exclude, top);
+                }
+            } else {
+                LongIterator iter = candidates.iterator();
+                while (iter.hasNext()) {
+                    int item = model.getItemIndex(iter.nextLong());
+                    if (item >= 0) {
+                        offer(item, profile, exclude, top);
+                    }
+                }
+            }
+            return top.finish(model, query.getNorm());
+        } finally {
+            scratch.release();
+        }
+    }
+
+    private void offer(int item, double[] profile, LongSet exclude, TopItemAccumulator top) {
+        if (model.getRowStart(item) == model.getRowEnd(item)
+                || exclude.contains(model.getItemId(item))) {
+            return;
+        }
+        top.put(item, model.dot(item, profile));
+    }
+
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String toString() {
+        int nitems = model.getItemCount();
+        if (nitems == 0) {
+            return "local shard (empty)";
+        }
+        return String.format("local shard (items %d-%d)",
+                             model.getItemId(0), model.getItemId(nitems - 1));
+    }
+}
@@ -0,0 +1,287 @@
+package org.grouplens.mooc.cbf;
+
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.grouplens.lenskit.basic.TopNItemRecommender;
+import org.grouplens.lenskit.data.dao.ItemDAO;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.scored.ScoredId;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.lenskit.vectors.VectorEntry;
+import org.grouplens.mooc.cbf.metrics.Counter;
+import org.grouplens.mooc.cbf.metrics.Histogram;
+import org.grouplens.mooc.cbf.metrics.Metrics;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Item recommender that finds a user's top items with MaxScore early termination over the
+ * {@linkplain TagItemIndex tag posting lists}, instead of scoring every item.
+ * <p>
+ * Each tag the user's profile likes bounds its contribution to any item's score by its profile
+ * weight times the {@linkplain TagItemIndex#getMaxWeight(int) largest weight} in its list.  The
+ * lists are walked together in item order, and once the <var>n</var> best items so far set a
+ * threshold, the lists whose bounds cannot add up to it are no longer walked: an item found only
+ * in them cannot make the top <var>n</var>.  Items that can are scored exactly from their model
+ * rows, so the scores are those of {@link TFIDFItemScorer}.
+ * <p>
+ * The recommendations are the same as those of a {@link TopNItemRecommender} over a
+ * {@link TFIDFItemScorer}, except that ties are broken by item ID.  Items sharing no liked tag with
+ * the profile score 0 or less; if fewer than <var>n</var> items score above 0, the recommender
+ * falls back to scoring every item.
+ * <p>
+ * Request times are recorded in the {@linkplain Metrics metric} {@code maxScore.recommend}, and
+ * the number of items scored exactly in {@code maxScore.itemsScored}.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class MaxScoreItemRecommender extends TopNItemRecommender {
+    /**
+     * Slack on score bounds, so rounding error cannot prune an item that belongs in the results.
+     */
+    private static final double BOUND_SLACK = 1.0e-9;
+    private static final Histogram recommendTimer = Metrics.timer("maxScore.recommend");
+    private static final Counter itemsScored = Metrics.counter("maxScore.itemsScored");
+
+    private final TFIDFItemScorer profiles;
+    private final TFIDFModel model;
+    private final TagItemIndex index;
+
+    /**
+     * Construct a new recommender.
+     *
+     * @param uedao    The user-event DAO, to find the items users have rated.
+     * @param idao     The item DAO.
+     * @param profiles The TF-IDF scorer, used to build user profiles.
+     * @param m        The TF-IDF model.
+     * @param idx      The inverted index over the model.
+     */
+    @Inject
+    public MaxScoreItemRecommender(UserEventDAO uedao, ItemDAO idao, TFIDFItemScorer profiles,
+                                   TFIDFModel m, TagItemIndex idx) {
+        super(uedao, idao, profiles);
+        this.profiles = profiles;
+        model = m;
+        index = idx;
+    }
+
+    @Override
+    protected List<ScoredId> recommend(long user, int n,
+                                       @Nullable LongSet candidates, @Nullable LongSet exclude) {
+        long start = System.nanoTime();
+        try {
+            return findTopItems(user, n, candidates, exclude);
+        } finally {
+            recommendTimer.recordSince(start);
+        }
+    }
+
+    private List<ScoredId> findTopItems(long user, int n,
+                                        @Nullable LongSet candidates, @Nullable LongSet exclude) {
+        if (exclude == null) {
+            exclude = getDefaultExcludes(user);
+        }
+        SparseVector userVector = profiles.makeUserVector(user);
+        double userNorm = userVector.norm();
+        if (userNorm == 0 || n == 0) {
+            return Collections.emptyList();
+        }
+        TagScratch scratch = TagScratch.acquire(model.getTagCount());
+        try {
+            scratch.spread(userVector);
+            double[] profile = scratch.values();
+
+            int nitems = model.getItemCount();
+            if (n > 0 && n < nitems) {
+                TopItemAccumulator top = new TopItemAccumulator(n);
+                itemsScored.add(maxScore(userVector, profile, candidates, exclude, top));
+                // every item with a positive score is reached, so the results are complete unless
+                // items scoring 0 or less (which may not have been reached) have to fill them out
+                if (top.isFull() && top.threshold() > 0) {
+                    return top.finish(model, userNorm);
+                }
+            }
+
+            TopItemAccumulator top = new TopItemAccumulator(n < 0 ? nitems : Math.min(n, nitems));
+            int scored = 0;
+            if (candidates == null) {
+                for (int item = 0; item < nitems; item++) {
+                    if (offer(item, profile, candidates, exclude, top)) {
+                        scored++;
+                    }
+                }
+            } else {
+                LongIterator iter = candidates.iterator();
+                while (iter.hasNext()) {
+                    int item = model.getItemIndex(iter.nextLong());
+                    if (item >= 0 && offer(item, profile, null, exclude, top)) {
+                        scored++;
+                    }
+                }
+            }
+            itemsScored.add(scored);
+            return top.finish(model, userNorm);
+        } finally {
+            scratch.release();
+        }
+    }
+
+    /**
+     * Find the top items among those sharing a liked tag with the profile.
+     *
+     * @return The number of items scored.
+     */
+    private int maxScore(SparseVector userVector, double[] profile,
+                          @Nullable LongSet candidates, LongSet exclude,
+                          TopItemAccumulator top) {
+        // collect the posting lists of the liked tags, with their score bounds
+        int nlists = 0;
+        int[] tags = new int[userVector.size()];
+        double[] bounds = new double[userVector.size()];
+        for (VectorEntry e: userVector.fast()) {
+            int tag = (int) e.getKey() - 1;
+            if (e.getValue() > 0 && index.getPostingStart(tag) < index.getPostingEnd(tag)) {
+                tags[nlists] = tag;
+                bounds[nlists] = e.getValue() * index.getMaxWeight(tag);
+                nlists++;
+            }
+        }
+        sortByBound(tags, bounds, nlists);
+
+        // the first 'essential' lists are walked; the lists before it can only add up to
+        // prefixBounds[essential], which is below the threshold
+        double[] prefixBounds = new double[nlists + 1];
+        for (int l = 0; l < nlists; l++) {
+            prefixBounds[l + 1] = prefixBounds[l] + bounds[l];
+        }
+        int essential = 0;
+        int scored = 0;
+
+        // cursors into the lists, and a heap of the lists ordered by current item
+        int[] pos = new int[nlists];
+        int[] ends = new int[nlists];
+        int[] heap = new int[nlists];
+        int heapSize = 0;
+        for (int l = 0; l < nlists; l++) {
+            pos[l] = index.getPostingStart(tags[l]);
+            ends[l] = index.getPostingEnd(tags[l]);
+            heap[heapSize++] = l;
+        }
+        heapify(heap, heapSize, pos);
+
+        while (heapSize > 0) {
+            int item = index.getItemIndex(pos[heap[0]]);
+            double bound = prefixBounds[essential];
+            // consume every list positioned on this item
+            while (heapSize > 0 && index.getItemIndex(pos[heap[0]]) == item) {
+                int l = heap[0];
+                bound += profile[tags[l]] * model.getWeight(item, index.getEntry(pos[l]));
+                pos[l] += 1;
+                if (pos[l] < ends[l]) {
+                    siftDown(heap, heapSize, 0, pos);
+                } else if (--heapSize > 0) {
+                    heap[0] = heap[heapSize];
+                    siftDown(heap, heapSize, 0, pos);
+                }
+            }
+
+            double threshold = top.threshold();
+            if (bound < threshold - BOUND_SLACK * Math.abs(threshold)) {
+                continue;
+            }
+            if (offer(item, profile, candidates, exclude, top)) {
+                scored++;
+            }
+            threshold = top.threshold();
+            double cutoff = threshold - BOUND_SLACK * Math.abs(threshold);
+            if (essential < nlists && prefixBounds[essential + 1] < cutoff) {
+                while (essential < nlists && prefixBounds[essential + 1] < cutoff) {
+                    essential++;
+                }
+                // stop walking the lists that are no longer essential
+                int kept = 0;
+                for (int i = 0; i < heapSize; i++) {
+                    if (heap[i] >= essential) {
+                        heap[kept++] = heap[i];
+                    }
+                }
+                heapSize = kept;
+                heapify(heap, heapSize, pos);
+            }
+        }
+        return scored;
+    }
+
+    /**
+     * Score an item and offer it to the accumulator, if it is a candidate and has a vector.
+     *
+     * @return {@code true} if the item was scored.
+     */
+    private boolean offer(int item, double[] profile, @Nullable LongSet candidates, LongSet exclude,
+                          TopItemAccumulator top) {
+        if (model.getRowStart(item) == model.getRowEnd(item)) {
+            return false;
+        }
+        long id = model.getItemId(item);
+        if ((candidates != null && !candidates.contains(id)) || exclude.contains(id)) {
+            return false;
+        }
+        top.put(item, model.dot(item, profile));
+        return true;
+    }
+
+    /**
+     * Sort the lists by increasing bound (insertion sort; profiles have few liked tags).
+     */
+    private static void sortByBound(int[] tags, double[] bounds, int n) {
+        for (int i = 1; i < n; i++) {
+            int tag = tags[i];
+            double bound = bounds[i];
+            int j = i - 1;
+            while (j >= 0 && bounds[j] > bound) {
+                tags[j + 1] = tags[j];
+                bounds[j + 1] = bounds[j];
+                j--;
+            }
+            tags[j + 1] = tag;
+            bounds[j + 1] = bound;
+        }
+    }
+
+    private void heapify(int[] heap, int size, int[] pos) {
+        for (int i = size / 2 - 1; i >= 0; i--) {
+            siftDown(heap, size, i, pos);
+        }
+    }
+
+    /**
+     * Restore the list heap below position {@code i}, ordering lists by their current item.
+     */
+    private void siftDown(int[] heap, int size, int i, int[] pos) {
+        int l = heap[i];
+        int item = index.getItemIndex(pos[l]);
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            int childItem = index.getItemIndex(pos[heap[child]]);
+            if (child + 1 < size) {
+                int rightItem = index.getItemIndex(pos[heap[child + 1]]);
+                if (rightItem < childItem) {
+                    child += 1;
+                    childItem = rightItem;
+                }
+            }
+            if (childItem >= item) {
+                break;
+            }
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = l;
+    }
+}
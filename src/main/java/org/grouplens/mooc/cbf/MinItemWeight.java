@@ -0,0 +1,23 @@
+package org.grouplens.mooc.cbf;
+
+import org.grouplens.grapht.annotation.DefaultDouble;
+import org.grouplens.lenskit.core.Parameter;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+/**
+ * Parameter annotation for the smallest normalized weight a tag can have and stay in an item's
+ * vector of the TF-IDF model.  With 0 (the default), no tags are dropped for their weight.
+ *
+ * @see TFIDFModel#pruned(int, double)
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+@Documented
+@DefaultDouble(0.0)
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+@Qualifier
+@Parameter(Double.class)
+public @interface MinItemWeight {
+}
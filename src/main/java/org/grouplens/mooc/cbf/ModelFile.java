@@ -0,0 +1,26 @@
+package org.grouplens.mooc.cbf;
+
+import org.grouplens.grapht.annotation.DefaultNull;
+import org.grouplens.lenskit.core.Parameter;
+
+import javax.inject.Qualifier;
+import java.io.File;
+import java.lang.annotation.*;
+
+/**
+ * Parameter annotation for the TF-IDF model file.  If set, the model builder opens this file
+ * instead of building the model if it exists, and writes the model it builds to it otherwise.
+ * Models with other {@linkplain ModelPrecision precisions} or pruning settings use a
+ * {@linkplain TFIDFModelBuilder#variantFile variant} of the file, named after their settings.
+ *
+ * @see TFIDFModelFile
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+@Documented
+@DefaultNull
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+@Qualifier
+@Parameter(File.class)
+public @interface ModelFile {
+}
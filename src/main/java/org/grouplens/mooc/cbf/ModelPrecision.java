@@ -0,0 +1,23 @@
+package org.grouplens.mooc.cbf;
+
+import org.grouplens.grapht.annotation.DefaultString;
+import org.grouplens.lenskit.core.Parameter;
+
+import javax.inject.Qualifier;
+import java.lang.annotation.*;
+
+/**
+ * Parameter annotation for the {@linkplain WeightPrecision precision} of the TF-IDF model's
+ * weights: {@code double} (the default), {@code float} or {@code int8}.
+ *
+ * @see TFIDFModelBuilder
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+@Documented
+@DefaultString("double")
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.PARAMETER)
+@Qualifier
+@Parameter(String.class)
+public @interface ModelPrecision {
+}
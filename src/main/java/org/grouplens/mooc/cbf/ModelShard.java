@@ -0,0 +1,29 @@
+package org.grouplens.mooc.cbf;
+
+import org.grouplens.lenskit.scored.ScoredId;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * One shard of a partitioned TF-IDF model, which scores a range of the catalog against broadcast
+ * user profiles.  A shard may be {@linkplain LocalModelShard in this process} or
+ * {@linkplain RemoteModelShard served} by a {@link ShardServer}; the
+ * {@linkplain ShardedItemRecommender coordinator} does not care which.
+ *
+ * @see TFIDFModelBuilder#shard(TFIDFModel, int)
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public interface ModelShard extends Closeable {
+    /**
+     * Find the shard's top items for a query.  Shards must be safe to query from several threads
+     * at once.
+     *
+     * @param query The query.
+     * @return The shard's top items by cosine with the query's profile, in decreasing order of
+     *         score, with ties broken in favor of the lower item ID.
+     * @throws IOException if the shard cannot be reached.
+     */
+    List<ScoredId> topItems(ShardQuery query) throws IOException;
+}
@@ -0,0 +1,38 @@
+package org.grouplens.mooc.cbf;
+
+/**
+ * The method used to project the tag space of a {@linkplain TFIDFModel TF-IDF model} onto the
+ * dimensions of an {@linkplain ItemEmbedding item embedding}.
+ *
+ * @see EmbeddingProjection
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public enum ProjectionMethod {
+    /**
+     * The top right singular vectors of the item-tag matrix, found by randomized subspace
+     * iteration.  This keeps the directions in which the items vary most, so it gives the most
+     * accurate cosines for a dimension.
+     */
+    SVD,
+    /**
+     * A random Gaussian projection.  It needs no passes over the items to find, and preserves
+     * cosines in expectation, but needs more dimensions than the SVD for the same accuracy.
+     */
+    RANDOM;
+
+    /**
+     * Parse a method name, ignoring case.
+     *
+     * @param name The name ({@code svd} or {@code random}).
+     * @return The method.
+     * @throws IllegalArgumentException if the name is not a projection method.
+     */
+    public static ProjectionMethod fromName(String name) {
+        for (ProjectionMethod m: values()) {
+            if (m.name().equalsIgnoreCase(name)) {
+                return m;
+            }
+        }
+        throw new IllegalArgumentException("unknown projection method " + name);
+    }
+}
@@ -0,0 +1,144 @@
+package org.grouplens.mooc.cbf;
+
+import org.grouplens.lenskit.scored.ScoredId;
+import org.grouplens.lenskit.scored.ScoredIdListBuilder;
+import org.grouplens.lenskit.scored.ScoredIds;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A model shard served by a {@link ShardServer}.  A connection carries one query at a time, so the
+ * client keeps a pool of idle connections and opens another whenever a query finds the pool
+ * empty; concurrent queries use separate connections.  A connection that fails is dropped, and
+ * the query's caller gets the error.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class RemoteModelShard implements ModelShard {
+    private static final int CONNECT_TIMEOUT = 5000;
+    private static final int READ_TIMEOUT = 30000;
+
+    private final InetSocketAddress address;
+    private final ConcurrentLinkedQueue<Connection> idle = new ConcurrentLinkedQueue<Connection>();
+    private volatile boolean closed;
+
+    /**
+     * Create a client for a shard server.  No connection is made until the first query.
+     *
+     * @param addr The server's address.
+     */
+    public RemoteModelShard(InetSocketAddress addr) {
+        address = addr;
+    }
+
+    /**
+     * Parse a shard address.
+     *
+     * @param spec The address, as {@code HOST:PORT}.
+     * @return A client for the shard server at the address.
+     * @throws IllegalArgumentException if the address is not valid.
+     */
+    public static RemoteModelShard parse(String spec) {
+        int colon = spec.lastIndexOf(':');
+        if (colon <= 0) {
+            throw new IllegalArgumentException("invalid shard address " + spec + ", expected HOST:PORT");
+        }
+        int port = Integer.parseInt(spec.substring(colon + 1));
+        return new RemoteModelShard(new InetSocketAddress(spec.substring(0, colon), port));
+    }
+
+    @Override
+    public List<ScoredId> topItems(ShardQuery query) throws IOException {
+        if (closed) {
+            throw new IOException("shard client for " + address + " is closed");
+        }
+        Connection conn = idle.poll();
+        if (conn == null) {
+            conn = new Connection(address);
+        }
+        List<ScoredId> result;
+        try {
+            result = conn.query(query);
+        } catch (IOException e) {
+            conn.close();
+            throw e;
+        }
+        idle.add(conn);
+        if (closed) {
+            // close() may have missed the connection
+            close();
+        }
+        return result;
+    }
+
+    /**
+     * Close the idle connections.  Queries in progress finish, and then close their connections.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        Connection conn;
+        while ((conn = idle.poll()) != null) {
+            conn.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "remote shard at " + address;
+    }
+
+    /**
+     * A connection to the shard server.
+     */
+    private static class Connection {
+        private final Socket socket;
+        private final DataInputStream input;
+        private final DataOutputStream output;
+
+        Connection(InetSocketAddress address) throws IOException {
+            socket = new Socket();
+            try {
+                socket.connect(address, CONNECT_TIMEOUT);
+                socket.setTcpNoDelay(true);
+                socket.setSoTimeout(READ_TIMEOUT);
+                input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            } catch (IOException e) {
+                socket.close();
+                throw e;
+            }
+        }
+
+        List<ScoredId> query(ShardQuery query) throws IOException {
+            query.write(output);
+            output.flush();
+            int n = input.readInt();
+            if (n < 0) {
+                throw new IOException("shard query failed: " + input.readUTF());
+            }
+            ScoredIdListBuilder list = ScoredIds.newListBuilder(n);
+            for (int i = 0; i < n; i++) {
+                long id = input.readLong();
+                list.add(id, input.readDouble());
+            }
+            return list.finish();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // nothing more to do with it
+            }
+        }
+    }
+}
@@ -0,0 +1,222 @@
+package org.grouplens.mooc.cbf;
+
+import it.unimi.dsi.fastutil.longs.LongIterator;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.longs.LongSets;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.lenskit.vectors.VectorEntry;
+
+import javax.annotation.Nullable;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * A request to a {@linkplain ModelShard model shard} for its top items: the user's profile, which
+ * is broadcast to every shard, and the items to leave out.
+ * <p>
+ * On the wire, a query is the result count ({@code int}), the profile norm ({@code double}), the
+ * number of profile entries followed by each entry's tag index ({@code int}) and value
+ * ({@code double}), the number of excluded items followed by their IDs ({@code long}), and the
+ * number of candidate items (-1 for all items) followed by their IDs.  A query read off the wire
+ * is checked against {@link #MAX_PROFILE_SIZE} and {@link #MAX_ITEMS}, and its tag indexes against
+ * the shard's vocabulary when it is {@linkplain #spread(TagScratch, int) spread}, so a bad query
+ * fails rather than exhausting memory or indexing out of bounds.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public final class ShardQuery {
+    /**
+     * The largest profile a query may carry.
+     */
+    public static final int MAX_PROFILE_SIZE = 1 << 20;
+    /**
+     * The most items a query may exclude or name as candidates.
+     */
+    public static final int MAX_ITEMS = 1 << 24;
+    /**
+     * The most items of a set to allocate room for before they are read.
+     */
+    private static final int INITIAL_ITEMS = 1024;
+
+    private final int count;
+    private final double norm;
+    private final int[] tags;
+    private final double[] values;
+    private final LongSet exclude;
+    @Nullable
+    private final LongSet candidates;
+
+    /**
+     * Create a query.
+     *
+     * @param profile    The user's profile, a vector over tag IDs.
+     * @param n          The number of items to return, or a negative value for all items.
+     * @param exclude    The items to leave out.
+     * @param candidates The items to consider, or {@code null} for all items.
+     */
+    public ShardQuery(SparseVector profile, int n, LongSet exclude, @Nullable LongSet candidates) {
+        count = n;
+        norm = profile.norm();
+        tags = new int[profile.size()];
+        values = new double[profile.size()];
+        int i = 0;
+        for (VectorEntry e: profile.fast()) {
+            tags[i] = (int) e.getKey() - 1;
+            values[i] = e.getValue();
+            i++;
+        }
+        this.exclude = exclude;
+        this.candidates = candidates;
+    }
+
+    private ShardQuery(int n, double norm, int[] tags, double[] values,
+                       LongSet exclude, @Nullable LongSet candidates) {
+        count = n;
+        this.norm = norm;
+        this.tags = tags;
+        this.values = values;
+        this.exclude = exclude;
+        this.candidates = candidates;
+    }
+
+    /**
+     * Get the number of items requested.
+     *
+     * @return The number of items, or a negative value for all items.
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * Get the norm of the profile, by which dot products are divided to get cosines.
+     *
+     * @return The profile norm.
+     */
+    public double getNorm() {
+        return norm;
+    }
+
+    /**
+     * Get the items to leave out.
+     *
+     * @return The excluded items.
+     */
+    public LongSet getExclude() {
+        return exclude;
+    }
+
+    /**
+     * Get the items to consider.
+     *
+     * @return The candidate items, or {@code null} for all items.
+     */
+    @Nullable
+    public LongSet getCandidates() {
+        return candidates;
+    }
+
+    /**
+     * Spread the profile into a scratch array.
+     *
+     * @param scratch  The scratch array.
+     * @param tagCount The number of tags in the shard's model.
+     * @throws IllegalArgumentException if the profile has a tag index outside the model.
+     */
+    void spread(TagScratch scratch, int tagCount) {
+        for (int tag: tags) {
+            if (tag < 0 || tag >= tagCount) {
+                throw new IllegalArgumentException(
+                        String.format("tag index %d out of range for %d tags", tag, tagCount));
+            }
+        }
+        double[] dense = scratch.values();
+        for (int i = 0; i < tags.length; i++) {
+            scratch.touch(tags[i]);
+            dense[tags[i]] = values[i];
+        }
+    }
+
+    /**
+     * Write the query.
+     *
+     * @param out The output to write to.
+     * @throws IOException if there is an error writing the query, or it is too large to read back.
+     */
+    void write(DataOutput out) throws IOException {
+        // fail before writing anything, rather than have the server drop the connection
+        checkSize(tags.length, MAX_PROFILE_SIZE, "profile entries");
+        checkSize(exclude.size(), MAX_ITEMS, "excluded items");
+        if (candidates != null) {
+            checkSize(candidates.size(), MAX_ITEMS, "candidate items");
+        }
+        out.writeInt(count);
+        out.writeDouble(norm);
+        out.writeInt(tags.length);
+        for (int i = 0; i < tags.length; i++) {
+            out.writeInt(tags[i]);
+            out.writeDouble(values[i]);
+        }
+        writeItems(out, exclude);
+        if (candidates == null) {
+            out.writeInt(-1);
+        } else {
+            writeItems(out, candidates);
+        }
+    }
+
+    /**
+     * Read a query.
+     *
+     * @param in The input to read from.
+     * @return The query.
+     * @throws IOException if there is an error reading the query, or it is malformed or too large.
+     */
+    static ShardQuery read(DataInput in) throws IOException {
+        int n = in.readInt();
+        double norm = in.readDouble();
+        int size = checkSize(in.readInt(), MAX_PROFILE_SIZE, "profile entries");
+        int[] tags = new int[size];
+        double[] values = new double[size];
+        for (int i = 0; i < size; i++) {
+            tags[i] = in.readInt();
+            values[i] = in.readDouble();
+        }
+        LongSet exclude = readItems(in, checkSize(in.readInt(), MAX_ITEMS, "excluded items"));
+        int ncandidates = in.readInt();
+        LongSet candidates = ncandidates == -1
+                ? null
+                : readItems(in, checkSize(ncandidates, MAX_ITEMS, "candidate items"));
+        return new ShardQuery(n, norm, tags, values, exclude, candidates);
+    }
+
+    private static int checkSize(int size, int max, String what) throws IOException {
+        if (size < 0 || size > max) {
+            throw new IOException(String.format("bad shard query: %d %s (at most %d allowed)",
+                                                size, what, max));
+        }
+        return size;
+    }
+
+    private static void writeItems(DataOutput out, LongSet items) throws IOException {
+        out.writeInt(items.size());
+        LongIterator iter = items.iterator();
+        while (iter.hasNext()) {
+            out.writeLong(iter.nextLong());
+        }
+    }
+
+    private static LongSet readItems(DataInput in, int size) throws IOException {
+        if (size == 0) {
+            return LongSets.EMPTY_SET;
+        }
+        // grow as the items arrive, rather than trusting the count with the allocation
+        LongSet items = new LongOpenHashSet(Math.min(size, INITIAL_ITEMS));
+        for (int i = 0; i < size; i++) {
+            items.add(in.readLong());
+        }
+        return items;
+    }
+}
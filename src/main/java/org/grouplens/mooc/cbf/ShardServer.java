@@ -0,0 +1,201 @@
+package org.grouplens.mooc.cbf;
+
+import org.grouplens.lenskit.scored.ScoredId;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Serves a {@linkplain ModelShard model shard} over TCP, for {@link RemoteModelShard} clients.
+ * Each connection gets its own thread, and carries any number of {@linkplain ShardQuery queries},
+ * each answered before the next is read.  A response is the number of items ({@code int})
+ * followed by each item's ID ({@code long}) and score ({@code double}); if the query fails, it is
+ * -1 followed by the error message (modified UTF-8).
+ * <p>
+ * Usage: {@code ShardServer MODEL_FILE PORT [SHARD COUNT]}.  The server opens a
+ * {@linkplain TFIDFModelFile model file} and serves it; with a shard number and count, it serves
+ * only that {@linkplain TFIDFModelBuilder#shard(TFIDFModel, int, int) shard} of the model, so
+ * several servers can split one model file between them.  It listens on the loopback interface.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class ShardServer implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ShardServer.class);
+    private static final AtomicInteger serverNumber = new AtomicInteger();
+
+    private final ModelShard shard;
+    private final ServerSocket serverSocket;
+    private final ExecutorService threads;
+    private final Set<Socket> connections =
+            Collections.newSetFromMap(new ConcurrentHashMap<Socket, Boolean>());
+    private volatile boolean closed;
+
+    private ShardServer(ModelShard shard, ServerSocket socket) {
+        this.shard = shard;
+        serverSocket = socket;
+        final int number = serverNumber.incrementAndGet();
+        threads = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "shard-server-" + number + "-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Start serving a shard.
+     *
+     * @param shard   The shard to serve.
+     * @param address The address to listen on.
+     * @param port    The port to listen on, or 0 for any free port.
+     * @return The running server.
+     * @throws IOException if the server cannot listen on the port.
+     */
+    public static ShardServer start(ModelShard shard, InetAddress address, int port) throws IOException {
+        final ShardServer server = listen(shard, address, port);
+        server.threads.execute(new Runnable() {
+            @Override
+            public void run() {
+                server.accept();
+            }
+        });
+        return server;
+    }
+
+    private static ShardServer listen(ModelShard shard, InetAddress address, int port) throws IOException {
+        ServerSocket socket = new ServerSocket();
+        socket.setReuseAddress(true);
+        socket.bind(new InetSocketAddress(address, port));
+        logger.info("serving {} on {}", shard, socket.getLocalSocketAddress());
+        return new ShardServer(shard, socket);
+    }
+
+    /**
+     * Get the port the server is listening on.
+     *
+     * @return The port number.
+     */
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    /**
+     * Stop the server, closing its open connections.  The shard is not closed.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        serverSocket.close();
+        for (Socket conn: connections) {
+            conn.close();
+        }
+        threads.shutdownNow();
+    }
+
+    private void accept() {
+        while (!closed) {
+            final Socket conn;
+            try {
+                conn = serverSocket.accept();
+            } catch (IOException e) {
+                if (!closed) {
+                    logger.error("cannot accept shard connection", e);
+                }
+                return;
+            }
+            connections.add(conn);
+            threads.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        serve(conn);
+                    } finally {
+                        connections.remove(conn);
+                    }
+                }
+            });
+        }
+    }
+
+    private void serve(Socket conn) {
+        try {
+            try {
+                conn.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(conn.getInputStream()));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(conn.getOutputStream()));
+                while (true) {
+                    ShardQuery query;
+                    try {
+                        query = ShardQuery.read(in);
+                    } catch (EOFException e) {
+                        // the client hung up
+                        return;
+                    }
+                    List<ScoredId> items;
+                    try {
+                        items = shard.topItems(query);
+                    } catch (Exception e) {
+                        logger.error("shard query failed", e);
+                        out.writeInt(-1);
+                        out.writeUTF(String.valueOf(e));
+                        out.flush();
+                        continue;
+                    }
+                    out.writeInt(items.size());
+                    for (ScoredId id: items) {
+                        out.writeLong(id.getId());
+                        out.writeDouble(id.getScore());
+                    }
+                    out.flush();
+                }
+            } finally {
+                conn.close();
+            }
+        } catch (SocketException e) {
+            if (!closed) {
+                logger.warn("shard connection from {} failed: {}", conn.getRemoteSocketAddress(), e.getMessage());
+            }
+        } catch (IOException e) {
+            logger.warn("shard connection from {} failed: {}", conn.getRemoteSocketAddress(), e.getMessage());
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length != 2 && args.length != 4) {
+            System.err.println("usage: ShardServer MODEL_FILE PORT [SHARD COUNT]");
+            System.exit(2);
+        }
+        TFIDFModel model = TFIDFModelFile.open(new File(args[0]));
+        int port = Integer.parseInt(args[1]);
+        if (args.length == 4) {
+            model = TFIDFModelBuilder.shard(model, Integer.parseInt(args[2]), Integer.parseInt(args[3]));
+        }
+        // accept connections on the main thread, since the connection threads are daemons
+        listen(new LocalModelShard(model), InetAddress.getLoopbackAddress(), port).accept();
+    }
+}
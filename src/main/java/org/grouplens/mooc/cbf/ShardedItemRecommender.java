@@ -0,0 +1,208 @@
+package org.grouplens.mooc.cbf;
+
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.grouplens.lenskit.basic.TopNItemRecommender;
+import org.grouplens.lenskit.data.dao.ItemDAO;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.scored.ScoredId;
+import org.grouplens.lenskit.scored.ScoredIdListBuilder;
+import org.grouplens.lenskit.scored.ScoredIds;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.mooc.cbf.metrics.Counter;
+import org.grouplens.mooc.cbf.metrics.Histogram;
+import org.grouplens.mooc.cbf.metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Item recommender that coordinates a set of {@linkplain ModelShard model shards}.  It builds the
+ * user's profile, broadcasts it to every shard at once, and merges the shards' top items into the
+ * final list.  Each shard returns its own top <var>n</var>, so the merged list is exact.  The
+ * shards score with the same arithmetic as {@link MaxScoreItemRecommender} and hold disjoint
+ * ranges of the sorted items, so the recommendations are the same as from the unsharded model.
+ * <p>
+ * Profiles are built by the {@link TFIDFItemScorer}, which needs the vectors of the items users
+ * have rated; the coordinator can get them from a memory-mapped {@linkplain ModelFile model file}
+ * rather than holding the catalog on its heap.  If a shard fails, the recommender logs it, counts
+ * it in the {@linkplain Metrics metric} {@code sharded.shardFailures}, and returns the merged
+ * results of the shards that answered.  Request times are recorded in {@code sharded.recommend}.
+ * <p>
+ * This recommender is not built by LensKit, since its shards are not recommender components;
+ * construct it from the components of a built recommender (see {@link CBFMain}), and close it to
+ * stop its threads and close the shards.
+ *
+ * @see TFIDFModelBuilder#shard(TFIDFModel, int)
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class ShardedItemRecommender extends TopNItemRecommender implements Closeable {
+    private static final Logger logger = LoggerFactory.getLogger(ShardedItemRecommender.class);
+    private static final Histogram recommendTimer = Metrics.timer("sharded.recommend");
+    private static final Counter shardFailures = Metrics.counter("sharded.shardFailures");
+
+    private final TFIDFItemScorer profiles;
+    private final List<ModelShard> shards;
+    private final ExecutorService scatter;
+
+    /**
+     * Construct a new recommender.
+     *
+     * @param uedao    The user-event DAO, to find the items users have rated.
+     * @param idao     The item DAO.
+     * @param profiles The TF-IDF scorer, used to build user profiles.
+     * @param shards   The model shards, which together hold the catalog.
+     */
+    public ShardedItemRecommender(UserEventDAO uedao, ItemDAO idao, TFIDFItemScorer profiles,
+                                  List<? extends ModelShard> shards) {
+        super(uedao, idao, profiles);
+        if (shards.isEmpty()) {
+            throw new IllegalArgumentException("no model shards");
+        }
+        this.profiles = profiles;
+        this.shards = new ArrayList<ModelShard>(shards);
+        scatter = Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger threadNumber = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "shard-scatter-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    /**
+     * Get the shards.
+     *
+     * @return The shards this recommender queries.
+     */
+    public List<ModelShard> getShards() {
+        return Collections.unmodifiableList(shards);
+    }
+
+    @Override
+    protected List<ScoredId> recommend(long user, int n,
+                                       @Nullable LongSet candidates, @Nullable LongSet exclude) {
+        long start = System.nanoTime();
+        try {
+            if (exclude == null) {
+                exclude = getDefaultExcludes(user);
+            }
+            SparseVector userVector = profiles.makeUserVector(user);
+            if (userVector.norm() == 0 || n == 0) {
+                return Collections.emptyList();
+            }
+            return merge(gather(new ShardQuery(userVector, n, exclude, candidates)), n);
+        } finally {
+            recommendTimer.recordSince(start);
+        }
+    }
+
+    /**
+     * Send a query to every shard, and collect their answers.  The first shard is queried on the
+     * calling thread while the others run on the scatter threads.
+     *
+     * @return The shards' top items; failed shards are left out.
+     */
+    private List<List<ScoredId>> gather(final ShardQuery query) {
+        List<Future<List<ScoredId>>> pending = new ArrayList<Future<List<ScoredId>>>(shards.size() - 1);
+        for (final ModelShard shard: shards.subList(1, shards.size())) {
+            pending.add(scatter.submit(new Callable<List<ScoredId>>() {
+                @Override
+                public List<ScoredId> call() throws IOException {
+                    return shard.topItems(query);
+                }
+            }));
+        }
+
+        List<List<ScoredId>> results = new ArrayList<List<ScoredId>>(shards.size());
+        try {
+            results.add(shards.get(0).topItems(query));
+        } catch (IOException e) {
+            failed(shards.get(0), e);
+        }
+        for (int i = 0; i < pending.size(); i++) {
+            try {
+                results.add(pending.get(i).get());
+            } catch (ExecutionException e) {
+                failed(shards.get(i + 1), e.getCause());
+            } catch (InterruptedException e) {
+                for (Future<?> f: pending) {
+                    f.cancel(true);
+                }
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted waiting for model shards", e);
+            }
+        }
+        return results;
+    }
+
+    private void failed(ModelShard shard, Throwable error) {
+        shardFailures.increment();
+        logger.warn("{} failed, results will be incomplete: {}", shard, error.toString());
+    }
+
+    /**
+     * Merge the shards' lists, each in decreasing order of score with ties by item ID.
+     *
+     * @param lists The shards' top items.
+     * @param n     The number of items to keep, or a negative value for all of them.
+     * @return The merged top items.
+     */
+    static List<ScoredId> merge(List<List<ScoredId>> lists, int n) {
+        int total = 0;
+        for (List<ScoredId> list: lists) {
+            total += list.size();
+        }
+        if (n >= 0 && n < total) {
+            total = n;
+        }
+        // there are only a few shards, so find each next item with a scan of the list heads
+        int[] positions = new int[lists.size()];
+        ScoredIdListBuilder merged = ScoredIds.newListBuilder(total);
+        for (int k = 0; k < total; k++) {
+            int best = -1;
+            ScoredId bestId = null;
+            for (int i = 0; i < positions.length; i++) {
+                List<ScoredId> list = lists.get(i);
+                if (positions[i] == list.size()) {
+                    continue;
+                }
+                ScoredId id = list.get(positions[i]);
+                if (bestId == null || id.getScore() > bestId.getScore()
+                        || (id.getScore() == bestId.getScore() && id.getId() < bestId.getId())) {
+                    best = i;
+                    bestId = id;
+                }
+            }
+            positions[best] += 1;
+            merged.add(bestId.getId(), bestId.getScore());
+        }
+        return merged.finish();
+    }
+
+    /**
+     * Stop the scatter threads and close the shards.
+     */
+    @Override
+    public void close() throws IOException {
+        scatter.shutdownNow();
+        for (ModelShard shard: shards) {
+            shard.close();
+        }
+    }
+}
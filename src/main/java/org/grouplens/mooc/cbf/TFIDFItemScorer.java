@@ -1,5 +1,11 @@
 package org.grouplens.mooc.cbf;
 
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.LoadingCache;
+import it.unimi.dsi.fastutil.ints.Int2DoubleMap;
+import it.unimi.dsi.fastutil.ints.Int2DoubleOpenHashMap;
 import org.grouplens.lenskit.basic.AbstractItemScorer;
 import org.grouplens.lenskit.data.dao.UserEventDAO;
 import org.grouplens.lenskit.data.event.Rating;
@@ -7,17 +13,71 @@ import org.grouplens.lenskit.data.pref.Preference;
 import org.grouplens.lenskit.vectors.MutableSparseVector;
 import org.grouplens.lenskit.vectors.SparseVector;
 import org.grouplens.lenskit.vectors.VectorEntry;
+import org.grouplens.mooc.cbf.dao.LiveUserEventDAO;
+import org.grouplens.mooc.cbf.dao.PackedUserEventDAO;
+import org.grouplens.mooc.cbf.dao.RatingColumns;
+import org.grouplens.mooc.cbf.metrics.Counter;
+import org.grouplens.mooc.cbf.metrics.Histogram;
+import org.grouplens.mooc.cbf.metrics.Metrics;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import javax.inject.Inject;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * Item scorer comparing a user's profile to item tag vectors.
+ * <p>
+ * User profiles are kept in a bounded cache (see {@link ProfileCacheSize} and
+ * {@link ProfileCacheExpiry}), since the same users are usually scored many times.  Whoever
+ * changes a user's ratings must call {@link #invalidateUserProfile(long)} so the next request
+ * rebuilds the profile.
+ * <p>
+ * If the user-event DAO is a {@link LiveUserEventDAO}, cached profiles follow the user's new
+ * ratings without being rebuilt.  The profile weights each rated item's vector by the rating minus
+ * the user's mean rating, so it is the sum of the rating-weighted item vectors minus the mean times
+ * the sum of the item vectors; the scorer keeps those two sums, the rating count and the rating
+ * sum, and folds in the ratings added since the profile was last used.  Each new rating costs time
+ * proportional to the rated item's tags.
+ * <p>
+ * If the user-event DAO is a {@link PackedUserEventDAO} (and not a live one), profiles are built
+ * straight from its {@linkplain RatingColumns rating columns}, fetched once per profile, without
+ * creating rating events.
+ * <p>
+ * The scorer is safe to use from many threads at once.  Profiles are accumulated in a dense
+ * {@linkplain TagScratch scratch array} over tags that each thread reuses from request to request,
+ * and hold only the tags the user's rated items have; nothing on the request path takes a lock
+ * shared by all requests (a cached profile's lock is only contended by requests for the same
+ * user).
+ * <p>
+ * A {@linkplain ProfileTagLimit profile tag limit} keeps only the tags with the largest weights
+ * (positive or negative) in each profile, bounding the cost of spreading a profile and of
+ * scoring against it for users who have rated many items.  The profile's norm is then that of the
+ * kept tags, so scores are still cosines.
+ * <p>
+ * The scorer records the {@linkplain Metrics metrics} {@code scorer.profile} (the time to get a
+ * user's profile), {@code scorer.profileSize} (the number of tags in it), {@code scorer.score}
+ * (the time to score a request) and {@code scorer.itemsScored}.
+ *
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  */
 public class TFIDFItemScorer extends AbstractItemScorer {
+    private static final Histogram profileTimer = Metrics.timer("scorer.profile");
+    private static final Histogram profileSizes = Metrics.histogram("scorer.profileSize", "tags");
+    private static final Histogram scoreTimer = Metrics.timer("scorer.score");
+    private static final Counter itemsScored = Metrics.counter("scorer.itemsScored");
+
     private final UserEventDAO dao;
+    @Nullable
+    private final LiveUserEventDAO liveDao;
+    @Nullable
+    private final PackedUserEventDAO packedDao;
     private final TFIDFModel model;
+    private final int profileTagLimit;
+    @Nullable
+    private final LoadingCache<Long,UserProfile> profileCache;
 
     /**
      * Construct a new item scorer.  LensKit's dependency injector will call this constructor and
@@ -25,16 +85,52 @@ public class TFIDFItemScorer extends AbstractItemScorer {
      *
      * @param dao The user-event DAO, so we can fetch a user's ratings when scoring items for them.
      * @param m   The precomputed model containing the item tag vectors.
+     * @param cacheSize The maximum number of user profiles to cache (0 to disable caching).
+     * @param cacheExpiry The number of seconds to keep a cached profile (0 to keep it until it is
+     *                    evicted).
+     * @param tagLimit The most tags to keep in a user's profile (0 to keep them all).
      */
     @Inject
-    public TFIDFItemScorer(UserEventDAO dao, TFIDFModel m) {
+    public TFIDFItemScorer(UserEventDAO dao, TFIDFModel m,
+                           @ProfileCacheSize int cacheSize,
+                           @ProfileCacheExpiry int cacheExpiry,
+                           @ProfileTagLimit int tagLimit) {
+        if (tagLimit < 0) {
+            throw new IllegalArgumentException("profile tag limit cannot be negative");
+        }
         this.dao = dao;
         model = m;
+        profileTagLimit = tagLimit;
+        // only cached profiles can be updated, so only they need to follow a live DAO
+        liveDao = cacheSize > 0 && dao instanceof LiveUserEventDAO ? (LiveUserEventDAO) dao : null;
+        packedDao = liveDao == null && dao instanceof PackedUserEventDAO ? (PackedUserEventDAO) dao : null;
+        if (cacheSize > 0) {
+            CacheBuilder<Object,Object> builder = CacheBuilder.newBuilder()
+                                                              .maximumSize(cacheSize)
+                                                              .recordStats();
+            if (cacheExpiry > 0) {
+                builder.expireAfterWrite(cacheExpiry, TimeUnit.SECONDS);
+            }
+            profileCache = builder.build(new CacheLoader<Long, UserProfile>() {
+                @Override
+                public UserProfile load(Long user) {
+                    return buildUserProfile(user);
+                }
+            });
+        } else {
+            profileCache = null;
+        }
     }
 
     /**
      * Generate item scores personalized for a particular user.  For the TFIDF scorer, this will
      * prepare a user profile and compare it to item tag vectors to produce the score.
+     * <p>
+     * The score is the cosine between the profile and the item's tag vector.  Item vectors are
+     * unit vectors, so this is the dot product divided by the profile's norm, which is computed
+     * once per request.  The profile is spread into the thread's dense {@linkplain TagScratch
+     * scratch array} indexed by tag, so each dot product only walks the item's own tags.  Items
+     * with no tags, and all items if the profile is empty, are left unscored.
      *
      * @param user   The user to score for.
      * @param output The output vector.  The contract of this method is that the caller creates a
@@ -43,40 +139,118 @@ public class TFIDFItemScorer extends AbstractItemScorer {
      */
     @Override
     public void score(long user, @Nonnull MutableSparseVector output) {
+        long start = System.nanoTime();
         // Get the user's profile, which is a vector with their 'like' for each tag
         SparseVector userVector = makeUserVector(user);
+        double userNorm = userVector.norm();
+        if (userNorm == 0) {
+            scoreTimer.recordSince(start);
+            return;
+        }
 
-        // Loop over each item requested and score it.
-        // The *domain* of the output vector is the items that we are to score.
-        for (VectorEntry e: output.fast(VectorEntry.State.EITHER)) {
-            // Score the item represented by 'e'.
-            // Get the item vector for this item
-            SparseVector iv = model.getItemVector(e.getKey());
-            // TODO Compute the cosine of this item and the user's profile, store it in the output vector
-            // Cosine b/n iv and userVector
-            double numerator = userVector.dot(iv);
-            double denominator = userVector.norm() * iv.norm();
-            double cosine = numerator / denominator;
-            output.set(e.getKey(), cosine);
+        TagScratch scratch = TagScratch.acquire(model.getTagCount());
+        try {
+            scratch.spread(userVector);
+            double[] profile = scratch.values();
+
+            // Loop over each item requested and score it.
+            // The *domain* of the output vector is the items that we are to score.
+            int scored = 0;
+            for (VectorEntry e: output.fast(VectorEntry.State.EITHER)) {
+                int idx = model.getItemIndex(e.getKey());
+                if (idx < 0) {
+                    continue;
+                }
+                if (model.getRowStart(idx) == model.getRowEnd(idx)) {
+                    continue;
+                }
+                output.set(e, model.dot(idx, profile) / userNorm);
+                scored++;
+            }
+            itemsScored.add(scored);
+        } finally {
+            scratch.release();
+        }
+        scoreTimer.recordSince(start);
+    }
+
+    /**
+     * Get a user's profile, from the cache if possible.  Other scorers over the same model use
+     * this to share the profiles and their cache.
+     *
+     * @param user The user ID.
+     * @return The user's profile vector over tag IDs.
+     */
+    public SparseVector makeUserVector(long user) {
+        long start = System.nanoTime();
+        SparseVector vector;
+        if (profileCache == null) {
+            vector = buildUserProfile(user).getVector();
+        } else {
+            UserProfile profile = profileCache.getUnchecked(user);
+            if (liveDao != null) {
+                profile.catchUp(liveDao, model, user);
+            }
+            vector = profile.getVector();
+        }
+        profileTimer.recordSince(start);
+        profileSizes.record(vector.size());
+        return vector;
+    }
+
+    /**
+     * Discard a user's cached profile.  This must be called when the user's ratings change.
+     *
+     * @param user The user ID.
+     */
+    public void invalidateUserProfile(long user) {
+        if (profileCache != null) {
+            profileCache.invalidate(user);
+        }
+    }
 
+    /**
+     * Discard all cached user profiles.
+     */
+    public void invalidateAllUserProfiles() {
+        if (profileCache != null) {
+            profileCache.invalidateAll();
+        }
+    }
 
-            // TODO And remove this exception to say you've implemented it
-            //throw new UnsupportedOperationException("stub implementation");
+    /**
+     * Get the hit, miss and eviction counts of the user profile cache.
+     *
+     * @return The cache statistics (all zero if caching is disabled).
+     */
+    public CacheStats getProfileCacheStats() {
+        if (profileCache == null) {
+            return new CacheStats(0, 0, 0, 0, 0, 0);
+        } else {
+            return profileCache.stats();
         }
     }
 
-    private SparseVector makeUserVector(long user) {
+    private UserProfile buildUserProfile(long user) {
+        if (packedDao != null) {
+            UserProfile result = new UserProfile(false, profileTagLimit);
+            result.vector = limitProfile(buildPackedUserVector(user), profileTagLimit);
+            return result;
+        }
+
         // Get the user's ratings
         List<Rating> userRatings = dao.getEventsForUser(user, Rating.class);
         if (userRatings == null) {
-            // the user doesn't exist
-            return SparseVector.empty();
+            // the user doesn't exist (yet)
+            UserProfile empty = new UserProfile(liveDao != null, profileTagLimit);
+            empty.vector = SparseVector.empty();
+            return empty;
         }
 
-        // Create a new vector over tags to accumulate the user profile
-        MutableSparseVector profile = model.newTagVector();
-        // Fill it with 0's initially - they don't like anything
-        profile.fill(0);
+        // Accumulate the user profile in the thread's scratch array over tags
+        // It is all 0's initially - they don't like anything
+        TagScratch scratch = TagScratch.acquire(model.getTagCount());
+        double[] profile = scratch.values();
 
         // Iterate over the user's ratings to build their profile
         double ratingSum = 0;
@@ -84,57 +258,209 @@ public class TFIDFItemScorer extends AbstractItemScorer {
         for (Rating r: userRatings) {
             // In LensKit, ratings are expressions of preference
             Preference p = r.getPreference();
-            // We'll never have a null preference. But in LensKit, ratings can have null
-            // preferences to express the user unrating an item
-            /*  Part 1
-            if (p != null && p.getValue() >= 3.5) {
-                // The user likes this item!
-                // TODO Get the item's vector and add it to the user's profile
-                // 1. Get the itemVectors for this item
-                long itemId = r.getItemId();
-                SparseVector itemVector = this.model.getItemVector(itemId);
-
-                for(VectorEntry v: itemVector.fast()){
-                    // get the vector's key
-                    long vKey = v.getKey();
-
-                    // get the vector's value
-                    double vValue = v.getValue();
-
-                    // add the value to Profile
-                    double sum = vValue + profile.get(vKey);
-                    profile.set(vKey, sum);
-                }
-            }
-            */
-            // Part2
-            // 1. calculate the user rating
+            // sum the ratings, to centre them on the user's mean
             counter++;
             ratingSum += p.getValue();
         }
         double avgRating = ratingSum/counter;
-        for(Rating r: userRatings){
-            Preference p = r.getPreference();
-            double ratingValue = p.getValue();
-            double multiplier = ratingValue - avgRating;
-
-            long itemId = r.getItemId();
-            SparseVector itemVector = this.model.getItemVector(itemId);
-            for(VectorEntry v: itemVector.fast()){
-                long vKey = v.getKey();
-                double vValue = v.getValue();
-                double sum = vValue * multiplier + profile.get(vKey);
-                profile.set(vKey, sum);
+        UserProfile result = new UserProfile(liveDao != null, profileTagLimit);
+        try {
+            for(Rating r: userRatings){
+                Preference p = r.getPreference();
+                double ratingValue = p.getValue();
+                double multiplier = ratingValue - avgRating;
+
+                // walk the item's row of the model, rather than creating its vector
+                int idx = model.getItemIndex(r.getItemId());
+                if (idx < 0) {
+                    continue;
+                }
+                for (int i = model.getRowStart(idx); i < model.getRowEnd(idx); i++) {
+                    int tag = model.getTagIndex(i);
+                    scratch.touch(tag);
+                    profile[tag] = model.getWeight(idx, i) * multiplier + profile[tag];
+                }
             }
 
+            // The profile is accumulated, copy out the tags it touched.
+            // It is good practice to return a frozen vector.
+            result.vector = limitProfile(scratch.toVector(), profileTagLimit);
+        } finally {
+            scratch.release();
         }
+        if (liveDao != null) {
+            // remember the sums, to add later ratings to
+            for (Rating r: userRatings) {
+                result.addRating(model, r);
+            }
+        }
+        return result;
+    }
 
+    /**
+     * Build a user's profile from a packed DAO.  This computes the same weighted profile as
+     * {@link #buildUserProfile(long)}, adding up the same terms in the same order.
+     */
+    private SparseVector buildPackedUserVector(long user) {
+        RatingColumns ratings = packedDao.getRatingColumns();
+        int u = ratings.getUserIndex(user);
+        if (u < 0) {
+            return SparseVector.empty();
+        }
+        int start = ratings.getRatingStart(u);
+        int end = ratings.getRatingEnd(u);
+        double ratingSum = 0;
+        for (int r = start; r < end; r++) {
+            ratingSum += ratings.getRatingValue(r);
+        }
+        double avgRating = ratingSum / (end - start);
 
-        System.out.println("");
+        TagScratch scratch = TagScratch.acquire(model.getTagCount());
+        try {
+            double[] profile = scratch.values();
+            for (int r = start; r < end; r++) {
+                double multiplier = ratings.getRatingValue(r) - avgRating;
+                int idx = model.getItemIndex(ratings.getRatingItem(r));
+                if (idx < 0) {
+                    continue;
+                }
+                for (int i = model.getRowStart(idx); i < model.getRowEnd(idx); i++) {
+                    int tag = model.getTagIndex(i);
+                    scratch.touch(tag);
+                    profile[tag] = model.getWeight(idx, i) * multiplier + profile[tag];
+                }
+            }
+            return scratch.toVector();
+        } finally {
+            scratch.release();
+        }
+    }
 
+    /**
+     * Keep only the largest tags of a profile.
+     *
+     * @param profile The profile.
+     * @param limit   The number of tags to keep, or 0 to keep them all.
+     * @return The profile's {@code limit} tags with the largest absolute weights (ties going to the
+     *         lower tag ID).
+     */
+    static SparseVector limitProfile(SparseVector profile, int limit) {
+        int size = profile.size();
+        if (limit == 0 || size <= limit) {
+            return profile;
+        }
+        long[] keys = new long[size];
+        double[] entries = new double[size];
+        double[] magnitudes = new double[size];
+        int i = 0;
+        for (VectorEntry e: profile.fast()) {
+            keys[i] = e.getKey();
+            entries[i] = e.getValue();
+            magnitudes[i] = Math.abs(entries[i]);
+            i++;
+        }
+        // the limit-th largest magnitude, and how many tags with it fit under the limit
+        double[] sorted = magnitudes.clone();
+        Arrays.sort(sorted);
+        double threshold = sorted[size - limit];
+        int above = 0;
+        for (double m: magnitudes) {
+            if (m > threshold) {
+                above++;
+            }
+        }
+        int ties = limit - above;
+        long[] kept = new long[limit];
+        double[] values = new double[limit];
+        int n = 0;
+        for (i = 0; i < size; i++) {
+            if (magnitudes[i] > threshold || (magnitudes[i] == threshold && ties-- > 0)) {
+                kept[n] = keys[i];
+                values[n] = entries[i];
+                n++;
+            }
+        }
+        return MutableSparseVector.wrap(kept, values).freeze();
+    }
+
+    /**
+     * A cached user profile.  If it follows a live DAO, it also keeps the running sums the
+     * profile is computed from.
+     */
+    private static class UserProfile {
+        // relative size below which a difference of the running sums is their rounding error
+        private static final double CANCELLATION = 1.0e-12;
+
+        private SparseVector vector;
+        // sums over rated items by tag index: rating * weight, and weight
+        @Nullable
+        private final Int2DoubleMap weightedSums;
+        @Nullable
+        private final Int2DoubleMap weightSums;
+        private int ratingCount;
+        private double ratingSum;
+        private final int tagLimit;
+
+        UserProfile(boolean live, int limit) {
+            tagLimit = limit;
+            if (live) {
+                weightedSums = new Int2DoubleOpenHashMap();
+                weightSums = new Int2DoubleOpenHashMap();
+            } else {
+                weightedSums = null;
+                weightSums = null;
+            }
+        }
+
+        /**
+         * Get the profile vector, recomputing it from the sums if ratings have been added.
+         */
+        synchronized SparseVector getVector() {
+            if (vector == null) {
+                double mean = ratingSum / ratingCount;
+                int[] tags = weightSums.keySet().toIntArray();
+                Arrays.sort(tags);
+                long[] keys = new long[tags.length];
+                double[] values = new double[tags.length];
+                for (int i = 0; i < tags.length; i++) {
+                    keys[i] = tags[i] + 1;
+                    double weighted = weightedSums.get(tags[i]);
+                    double v = weighted - mean * weightSums.get(tags[i]);
+                    // where every rating is the mean, the sums cancel, and building the profile
+                    // from the ratings gives exactly 0
+                    values[i] = Math.abs(v) <= CANCELLATION * Math.abs(weighted) ? 0 : v;
+                }
+                vector = limitProfile(MutableSparseVector.wrap(keys, values).freeze(), tagLimit);
+            }
+            return vector;
+        }
+
+        /**
+         * Add the ratings the user has made since this profile was built or last caught up.
+         */
+        synchronized void catchUp(LiveUserEventDAO dao, TFIDFModel model, long user) {
+            if (dao.getRatingCount(user) > ratingCount) {
+                for (Rating r: dao.getRatingsForUser(user, ratingCount)) {
+                    addRating(model, r);
+                }
+                vector = null;
+            }
+        }
 
-        // The profile is accumulated, return it.
-        // It is good practice to return a frozen vector.
-        return profile.freeze();
+        private void addRating(TFIDFModel model, Rating r) {
+            double value = r.getPreference().getValue();
+            ratingCount += 1;
+            ratingSum += value;
+            int idx = model.getItemIndex(r.getItemId());
+            if (idx < 0) {
+                return;
+            }
+            for (int i = model.getRowStart(idx); i < model.getRowEnd(idx); i++) {
+                int tag = model.getTagIndex(i);
+                double w = model.getWeight(idx, i);
+                weightedSums.put(tag, weightedSums.get(tag) + value * w);
+                weightSums.put(tag, weightSums.get(tag) + w);
+            }
+        }
     }
 }
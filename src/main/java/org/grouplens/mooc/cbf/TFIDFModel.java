@@ -1,16 +1,44 @@
 package org.grouplens.mooc.cbf;
 
+import it.unimi.dsi.fastutil.ints.AbstractIntComparator;
+import it.unimi.dsi.fastutil.ints.IntArrays;
 import org.grouplens.grapht.annotation.DefaultProvider;
 import org.grouplens.lenskit.core.Shareable;
 import org.grouplens.lenskit.vectors.MutableSparseVector;
 import org.grouplens.lenskit.vectors.SparseVector;
 
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
 import java.util.Map;
 
 /**
  * The model for a TF-IDF recommender.  The model just remembers the normalized tag vector for each
  * item.
+ * <p>
+ * The vectors are stored in compressed sparse row (CSR) form: a sorted array of item IDs, an array
+ * of row offsets, and one tag index array and one weight array shared by all items.  Item
+ * <var>i</var>'s vector occupies positions {@link #getRowStart(int) getRowStart(i)} (inclusive)
+ * through {@link #getRowEnd(int) getRowEnd(i)} (exclusive) of the tag index and weight arrays,
+ * sorted by tag index.  A tag's index is its ID - 1.  Hot loops should use these accessors
+ * directly rather than materializing {@linkplain #getItemVector(long) item vectors}.
+ * <p>
+ * The arrays are held as NIO buffers, so a model can live either on the heap or in a
+ * memory-mapped {@linkplain TFIDFModelFile model file}.
+ * <p>
+ * The weights are stored at a {@linkplain WeightPrecision precision} chosen when the model is
+ * built: as {@code double}s, {@code float}s, or bytes with a scale for each item.  The accessors
+ * return weights as {@code double}s whatever the precision.  Row walks should use
+ * {@link #getWeight(int, int)}, which does not have to find the item of an entry to scale it.
+ * <p>
+ * Long item vectors can be {@linkplain #pruned(int, double) pruned} to their heaviest tags, to
+ * bound the cost of scoring an item; the model remembers the pruning it was built with.
  *
  * @see TFIDFModelBuilder
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
@@ -20,24 +48,327 @@ import java.util.Map;
 // This model class will be built by the model builder
 @DefaultProvider(TFIDFModelBuilder.class)
 public class TFIDFModel implements Serializable {
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 4L;
 
     private final Map<String, Long> tagIds;
-    private final Map<Long, SparseVector> itemVectors;
+    private final LongBuffer itemIds;
+    private final IntBuffer rowOffsets;
+    private final IntBuffer tagIndexes;
+    private final WeightPrecision precision;
+    // exactly one of these holds the weights, depending on the precision
+    private final DoubleBuffer weights;
+    private final FloatBuffer floatWeights;
+    private final ByteBuffer byteWeights;
+    // the scale of each item's byte weights
+    private final FloatBuffer scales;
+    // the pruning applied to the item vectors (0 for none)
+    private final int itemTagLimit;
+    private final double minItemWeight;
+    // read from the model file, or computed on first use; 0 if not yet known
+    private transient volatile long fingerprint;
 
     /**
      * Constructor for the model.  This is package-private; the only way to build a model is with
      * the {@linkplain TFIDFModelBuilder model builder}.
-     * <p>
-     * In a LensKit model designed for a large data set, these would be optimized fastutil maps for
-     * efficiency.
      *
-     * @param tagIds A map of tags to their IDs.
-     * @param itemVectors A map of item IDs to tag vectors.
+     * @param tagIds     A map of tags to their IDs.
+     * @param itemIds    The item IDs, in ascending order.
+     * @param rowOffsets The start of each item's row in the tag index and weight arrays, followed
+     *                   by the total number of entries.
+     * @param tagIndexes The tag index (ID - 1) of each entry.
+     * @param weights    The TF-IDF weight of each entry.
+     */
+    TFIDFModel(Map<String,Long> tagIds, long[] itemIds, int[] rowOffsets,
+               int[] tagIndexes, double[] weights) {
+        this(tagIds, LongBuffer.wrap(itemIds), IntBuffer.wrap(rowOffsets),
+             IntBuffer.wrap(tagIndexes), DoubleBuffer.wrap(weights));
+    }
+
+    /**
+     * Construct a model over buffers.  This is used to open {@linkplain TFIDFModelFile model
+     * files}; the buffers are not copied.
+     *
+     * @param tagIds     A map of tags to their IDs.
+     * @param itemIds    The item IDs, in ascending order.
+     * @param rowOffsets The row offsets.
+     * @param tagIndexes The tag indexes.
+     * @param weights    The weights.
+     */
+    TFIDFModel(Map<String,Long> tagIds, LongBuffer itemIds, IntBuffer rowOffsets,
+               IntBuffer tagIndexes, DoubleBuffer weights) {
+        this(tagIds, itemIds, rowOffsets, tagIndexes, WeightPrecision.DOUBLE,
+             weights, null, null, null, 0, 0);
+    }
+
+    /**
+     * Construct a model with {@code float} weights over buffers.
+     *
+     * @param tagIds     A map of tags to their IDs.
+     * @param itemIds    The item IDs, in ascending order.
+     * @param rowOffsets The row offsets.
+     * @param tagIndexes The tag indexes.
+     * @param weights    The weights.
+     */
+    TFIDFModel(Map<String,Long> tagIds, LongBuffer itemIds, IntBuffer rowOffsets,
+               IntBuffer tagIndexes, FloatBuffer weights) {
+        this(tagIds, itemIds, rowOffsets, tagIndexes, WeightPrecision.FLOAT,
+             null, weights, null, null, 0, 0);
+    }
+
+    /**
+     * Construct a model with byte weights over buffers.  Each entry's weight is its byte times its
+     * item's scale.
+     *
+     * @param tagIds     A map of tags to their IDs.
+     * @param itemIds    The item IDs, in ascending order.
+     * @param rowOffsets The row offsets.
+     * @param tagIndexes The tag indexes.
+     * @param weights    The quantized weights.
+     * @param scales     The scale of each item's weights.
      */
-    TFIDFModel(Map<String,Long> tagIds, Map<Long,SparseVector> itemVectors) {
+    TFIDFModel(Map<String,Long> tagIds, LongBuffer itemIds, IntBuffer rowOffsets,
+               IntBuffer tagIndexes, ByteBuffer weights, FloatBuffer scales) {
+        this(tagIds, itemIds, rowOffsets, tagIndexes, WeightPrecision.INT8,
+             null, null, weights, scales, 0, 0);
+    }
+
+    private TFIDFModel(Map<String,Long> tagIds, LongBuffer itemIds, IntBuffer rowOffsets,
+                       IntBuffer tagIndexes, WeightPrecision precision, DoubleBuffer weights,
+                       FloatBuffer floatWeights, ByteBuffer byteWeights, FloatBuffer scales,
+                       int itemTagLimit, double minItemWeight) {
+        assert rowOffsets.limit() == itemIds.limit() + 1;
         this.tagIds = tagIds;
-        this.itemVectors = itemVectors;
+        this.itemIds = itemIds;
+        this.rowOffsets = rowOffsets;
+        this.tagIndexes = tagIndexes;
+        this.precision = precision;
+        this.weights = weights;
+        this.floatWeights = floatWeights;
+        this.byteWeights = byteWeights;
+        this.scales = scales;
+        this.itemTagLimit = itemTagLimit;
+        this.minItemWeight = minItemWeight;
+    }
+
+    /**
+     * Record the pruning a model's item vectors have had.  The new model shares this model's
+     * storage.
+     *
+     * @param limit     The item tag limit.
+     * @param minWeight The minimum item weight.
+     * @return A model with the same vectors, recording the pruning settings.
+     */
+    TFIDFModel withPruningSettings(int limit, double minWeight) {
+        TFIDFModel model = new TFIDFModel(tagIds, itemIds, rowOffsets, tagIndexes, precision,
+                                          weights, floatWeights, byteWeights, scales,
+                                          limit, minWeight);
+        model.fingerprint = fingerprint;
+        return model;
+    }
+
+    /**
+     * Prune the item vectors.  Each item keeps the tags whose weight is at least
+     * {@code minWeight}, and of those, only the {@code limit} with the largest weights (ties going
+     * to the lower tag ID); an item left with no tags keeps its largest weight.  The kept weights
+     * are then scaled so the vector has unit length again.
+     * <p>
+     * Scoring an item costs time proportional to its tags, so this bounds the cost of the longest
+     * vectors, whose smallest weights barely move their cosines.  {@code TFIDFModelPruningTest}
+     * checks the effect on rankings, and {@code PruningBenchmark} the time saved.
+     *
+     * @param limit     The most tags to keep for each item, or 0 for no limit.
+     * @param minWeight The smallest weight to keep, or 0 to keep all.
+     * @return The pruned model, with {@code double} weights; this model if nothing is pruned.
+     */
+    public TFIDFModel pruned(int limit, double minWeight) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("item tag limit cannot be negative");
+        }
+        if (limit == 0 && minWeight <= 0) {
+            return this;
+        }
+        int nitems = getItemCount();
+        int[] offsets = new int[nitems + 1];
+        int[] tags = new int[getEntryCount()];
+        double[] values = new double[getEntryCount()];
+        // the row's entries to keep, as offsets into the row, and the row's decoded weights
+        int[] order = new int[0];
+        double[] rowWeights = new double[0];
+        int n = 0;
+        for (int idx = 0; idx < nitems; idx++) {
+            offsets[idx] = n;
+            int start = getRowStart(idx);
+            int len = getRowEnd(idx) - start;
+            if (order.length < len) {
+                order = new int[len];
+                rowWeights = new double[len];
+            }
+            int kept = 0;
+            int heaviest = -1;
+            for (int j = 0; j < len; j++) {
+                double w = getWeight(idx, start + j);
+                rowWeights[j] = w;
+                if (heaviest < 0 || w > rowWeights[heaviest]) {
+                    heaviest = j;
+                }
+                if (w >= minWeight) {
+                    order[kept++] = j;
+                }
+            }
+            if (kept == 0 && heaviest >= 0) {
+                order[kept++] = heaviest;
+            }
+            if (limit > 0 && kept > limit) {
+                sortByWeight(order, kept, rowWeights);
+                kept = limit;
+                Arrays.sort(order, 0, kept);
+            }
+            double norm = 0;
+            for (int k = 0; k < kept; k++) {
+                double w = rowWeights[order[k]];
+                norm += w * w;
+            }
+            // a vector of zeros (tags on every item) stays as it is
+            norm = norm > 0 ? Math.sqrt(norm) : 1;
+            for (int k = 0; k < kept; k++) {
+                tags[n] = getTagIndex(start + order[k]);
+                values[n] = rowWeights[order[k]] / norm;
+                n++;
+            }
+        }
+        offsets[nitems] = n;
+        long[] ids = new long[nitems];
+        getItemIdBuffer().get(ids);
+        TFIDFModel model = new TFIDFModel(tagIds, ids, offsets,
+                                          Arrays.copyOf(tags, n), Arrays.copyOf(values, n));
+        return model.withPruningSettings(limit, Math.max(0, minWeight));
+    }
+
+    /**
+     * Sort the first entries of a row by decreasing weight, ties by increasing position (and so
+     * tag).
+     *
+     * @param positions The entries' offsets in the row.
+     * @param n         The number of entries to sort.
+     * @param weights   The row's weights, by offset.
+     */
+    private static void sortByWeight(int[] positions, int n, final double[] weights) {
+        IntArrays.quickSort(positions, 0, n, new AbstractIntComparator() {
+            @Override
+            public int compare(int a, int b) {
+                int cmp = Double.compare(weights[b], weights[a]);
+                return cmp != 0 ? cmp : a - b;
+            }
+        });
+    }
+
+    /**
+     * Get the most tags the model's item vectors were pruned to.
+     *
+     * @return The item tag limit, or 0 if the vectors were not pruned to a number of tags.
+     * @see #pruned(int, double)
+     */
+    public int getItemTagLimit() {
+        return itemTagLimit;
+    }
+
+    /**
+     * Get the smallest weight the model's item vectors were pruned to.
+     *
+     * @return The minimum item weight, or 0 if the vectors were not pruned by weight.
+     * @see #pruned(int, double)
+     */
+    public double getMinItemWeight() {
+        return minItemWeight;
+    }
+
+    /**
+     * Convert the model to another weight precision.  The item IDs, rows and tag dictionary are
+     * shared with this model.
+     *
+     * @param p The precision.
+     * @return A model with weights stored at precision {@code p}; this model if it already is.
+     */
+    public TFIDFModel withPrecision(WeightPrecision p) {
+        if (p == precision) {
+            return this;
+        }
+        return convert(p).withPruningSettings(itemTagLimit, minItemWeight);
+    }
+
+    private TFIDFModel convert(WeightPrecision p) {
+        int nitems = getItemCount();
+        int nentries = getEntryCount();
+        switch (p) {
+        case DOUBLE: {
+            double[] values = new double[nentries];
+            for (int idx = 0; idx < nitems; idx++) {
+                for (int i = getRowStart(idx); i < getRowEnd(idx); i++) {
+                    values[i] = getWeight(idx, i);
+                }
+            }
+            return new TFIDFModel(tagIds, itemIds.duplicate(), rowOffsets.duplicate(),
+                                  tagIndexes.duplicate(), DoubleBuffer.wrap(values));
+        }
+        case FLOAT: {
+            float[] values = new float[nentries];
+            for (int idx = 0; idx < nitems; idx++) {
+                for (int i = getRowStart(idx); i < getRowEnd(idx); i++) {
+                    values[i] = (float) getWeight(idx, i);
+                }
+            }
+            return new TFIDFModel(tagIds, itemIds.duplicate(), rowOffsets.duplicate(),
+                                  tagIndexes.duplicate(), FloatBuffer.wrap(values));
+        }
+        case INT8: {
+            byte[] values = new byte[nentries];
+            float[] itemScales = new float[nitems];
+            for (int idx = 0; idx < nitems; idx++) {
+                int start = getRowStart(idx);
+                int end = getRowEnd(idx);
+                double max = 0;
+                for (int i = start; i < end; i++) {
+                    max = Math.max(max, Math.abs(getWeight(idx, i)));
+                }
+                if (max == 0) {
+                    continue;
+                }
+                float scale = (float) (max / 127);
+                itemScales[idx] = scale;
+                for (int i = start; i < end; i++) {
+                    long q = Math.round(getWeight(idx, i) / scale);
+                    values[i] = (byte) Math.max(-127, Math.min(127, q));
+                }
+            }
+            return new TFIDFModel(tagIds, itemIds.duplicate(), rowOffsets.duplicate(),
+                                  tagIndexes.duplicate(), ByteBuffer.wrap(values),
+                                  FloatBuffer.wrap(itemScales));
+        }
+        default:
+            throw new IllegalArgumentException("unknown precision " + p);
+        }
+    }
+
+    /**
+     * Get the precision of the model's weights.
+     *
+     * @return The weight precision.
+     */
+    public WeightPrecision getPrecision() {
+        return precision;
+    }
+
+    /**
+     * Get the number of bytes the model's weights (and their scales, if any) take.
+     *
+     * @return The size of the weight storage, in bytes.
+     */
+    public long getWeightBytes() {
+        long bytes = (long) getEntryCount() * precision.getEntryBytes();
+        if (scales != null) {
+            bytes += 4L * scales.limit();
+        }
+        return bytes;
     }
 
     /**
@@ -51,7 +382,7 @@ public class TFIDFModel implements Serializable {
     }
 
     /**
-     * Get the tag vector for a particular item.
+     * Get the tag vector for a particular item.  The vector is copied out of the model's arrays.
      *
      * @param item The item.
      * @return The item's tag vector.  If the item is not known to the model, then this vector is
@@ -59,12 +390,447 @@ public class TFIDFModel implements Serializable {
      */
     public SparseVector getItemVector(long item) {
         // Look up the item
-        SparseVector vec = itemVectors.get(item);
-        if (vec == null) {
+        int idx = getItemIndex(item);
+        if (idx < 0) {
             // We don't know the item! Return an empty vector
             return SparseVector.empty();
-        } else {
-            return vec;
+        }
+        int start = rowOffsets.get(idx);
+        int end = rowOffsets.get(idx + 1);
+        long[] keys = new long[end - start];
+        double[] values = new double[end - start];
+        for (int i = start; i < end; i++) {
+            keys[i - start] = tagIndexes.get(i) + 1;
+            values[i - start] = getWeight(idx, i);
+        }
+        return MutableSparseVector.wrap(keys, values).freeze();
+    }
+
+    /**
+     * Get the number of tags in the model's vocabulary.  Tag indexes range from 0 to this count.
+     *
+     * @return The number of tags.
+     */
+    public int getTagCount() {
+        return tagIds.size();
+    }
+
+    /**
+     * Get the number of items in the model.
+     *
+     * @return The number of items.
+     */
+    public int getItemCount() {
+        return itemIds.limit();
+    }
+
+    /**
+     * Get the index of an item in the model.
+     *
+     * @param item The item ID.
+     * @return The item's index, or a negative value if the item is not in the model.
+     */
+    public int getItemIndex(long item) {
+        int lo = 0;
+        int hi = itemIds.limit() - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long id = itemIds.get(mid);
+            if (id < item) {
+                lo = mid + 1;
+            } else if (id > item) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Get the ID of the item at an index.
+     *
+     * @param idx The item index.
+     * @return The item ID.
+     */
+    public long getItemId(int idx) {
+        return itemIds.get(idx);
+    }
+
+    /**
+     * Get the first entry position of an item's row.
+     *
+     * @param idx The item index.
+     * @return The position of the item's first entry.
+     */
+    public int getRowStart(int idx) {
+        return rowOffsets.get(idx);
+    }
+
+    /**
+     * Get the end of an item's row.
+     *
+     * @param idx The item index.
+     * @return The position after the item's last entry.
+     */
+    public int getRowEnd(int idx) {
+        return rowOffsets.get(idx + 1);
+    }
+
+    /**
+     * Get the tag index of an entry.
+     *
+     * @param pos The entry position.
+     * @return The entry's tag index (tag ID - 1).
+     */
+    public int getTagIndex(int pos) {
+        return tagIndexes.get(pos);
+    }
+
+    /**
+     * Get the weight of an entry.  With {@linkplain WeightPrecision#INT8 byte weights}, this has
+     * to search for the entry's item; use {@link #getWeight(int, int)} when the item is known.
+     *
+     * @param pos The entry position.
+     * @return The entry's TF-IDF weight.
+     */
+    public double getWeight(int pos) {
+        if (precision != WeightPrecision.INT8) {
+            return getWeight(-1, pos);
+        }
+        // find the last row starting at or before the entry
+        int lo = 0;
+        int hi = itemIds.limit() - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (rowOffsets.get(mid) <= pos) {
+                lo = mid;
+            } else {
+                hi = mid - 1;
+            }
+        }
+        return getWeight(lo, pos);
+    }
+
+    /**
+     * Get the weight of an entry in an item's row.
+     *
+     * @param idx The item index.
+     * @param pos The entry position, between {@link #getRowStart(int) getRowStart(idx)} and
+     *            {@link #getRowEnd(int) getRowEnd(idx)}.
+     * @return The entry's TF-IDF weight.
+     */
+    public double getWeight(int idx, int pos) {
+        switch (precision) {
+        case FLOAT:
+            return floatWeights.get(pos);
+        case INT8:
+            return byteWeights.get(pos) * (double) scales.get(idx);
+        default:
+            return weights.get(pos);
+        }
+    }
+
+    /**
+     * Compute the dot product of an item's vector with a dense vector over tags.
+     * <p>
+     * With {@code double} weights, the products are added up in order.  The lower precisions are
+     * approximate anyway, so their kernels add the products into four independent sums, which the
+     * processor can run in parallel instead of waiting on each addition in turn; byte weights are
+     * summed unscaled, and the sum multiplied by the item's scale.  None of the kernels are
+     * vectorized: the vector is gathered by tag index, which HotSpot does not vectorize, and bulk
+     * copying each row out of its buffer into arrays first measured no faster.
+     *
+     * @param idx    The item index.
+     * @param vector A vector indexed by tag index (tag ID - 1).
+     * @return The dot product of the item's vector and {@code vector}.
+     */
+    public double dot(int idx, double[] vector) {
+        int start = rowOffsets.get(idx);
+        int end = rowOffsets.get(idx + 1);
+        switch (precision) {
+        case FLOAT:
+            return dotFloat(start, end, vector);
+        case INT8:
+            return dotByte(start, end, vector) * scales.get(idx);
+        default:
+            double dot = 0;
+            for (int i = start; i < end; i++) {
+                dot += vector[tagIndexes.get(i)] * weights.get(i);
+            }
+            return dot;
+        }
+    }
+
+    private double dotFloat(int start, int end, double[] vector) {
+        FloatBuffer w = floatWeights;
+        IntBuffer tags = tagIndexes;
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = start;
+        for (; i + 3 < end; i += 4) {
+            s0 += vector[tags.get(i)] * w.get(i);
+            s1 += vector[tags.get(i + 1)] * w.get(i + 1);
+            s2 += vector[tags.get(i + 2)] * w.get(i + 2);
+            s3 += vector[tags.get(i + 3)] * w.get(i + 3);
+        }
+        for (; i < end; i++) {
+            s0 += vector[tags.get(i)] * w.get(i);
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    private double dotByte(int start, int end, double[] vector) {
+        ByteBuffer w = byteWeights;
+        IntBuffer tags = tagIndexes;
+        double s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+        int i = start;
+        for (; i + 3 < end; i += 4) {
+            s0 += vector[tags.get(i)] * w.get(i);
+            s1 += vector[tags.get(i + 1)] * w.get(i + 1);
+            s2 += vector[tags.get(i + 2)] * w.get(i + 2);
+            s3 += vector[tags.get(i + 3)] * w.get(i + 3);
+        }
+        for (; i < end; i++) {
+            s0 += vector[tags.get(i)] * w.get(i);
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    /**
+     * Get the number of entries (non-zero weights) in the model.
+     *
+     * @return The total number of entries in all item vectors.
+     */
+    public int getEntryCount() {
+        return tagIndexes.limit();
+    }
+
+    /**
+     * Get a fingerprint of the model's item vectors: a 64-bit hash of the item IDs, their rows'
+     * tag indexes, and the weights as stored.  Data derived from a model and kept in a file, such
+     * as an {@linkplain HNSWIndex HNSW graph}, records it so it is only reused with the same
+     * vectors.  A model opened from a {@linkplain TFIDFModelFile model file} has the fingerprint
+     * stored in the file, so checking it does not read the mapped vectors; a model built in
+     * memory computes it on first use.
+     *
+     * @return The fingerprint.
+     */
+    public long getFingerprint() {
+        long fp = fingerprint;
+        if (fp == 0) {
+            fp = computeFingerprint();
+            fingerprint = fp;
+        }
+        return fp;
+    }
+
+    /**
+     * Set the fingerprint stored with the model's vectors.
+     *
+     * @param fp The fingerprint, as {@link #getFingerprint()} computed it when the model was
+     *           written.
+     */
+    void setStoredFingerprint(long fp) {
+        fingerprint = fp;
+    }
+
+    private long computeFingerprint() {
+        long h = mix(0x9E3779B97F4A7C15L, precision.ordinal());
+        int nitems = itemIds.limit();
+        for (int idx = 0; idx < nitems; idx++) {
+            h = mix(h, itemIds.get(idx));
+            int end = rowOffsets.get(idx + 1);
+            for (int pos = rowOffsets.get(idx); pos < end; pos++) {
+                h = mix(h, tagIndexes.get(pos));
+                h = mix(h, Double.doubleToLongBits(getWeight(idx, pos)));
+            }
+            h = mix(h, -1);
+        }
+        // 0 marks a fingerprint not yet computed
+        return h == 0 ? 1 : h;
+    }
+
+    private static long mix(long h, long v) {
+        h = (h ^ v) * 0xBF58476D1CE4E5B9L;
+        return h ^ (h >>> 31);
+    }
+
+    /**
+     * Copy a range of items into a model of their own.  The new model shares this model's tag
+     * dictionary, so tag indexes and weights mean the same thing in both.
+     *
+     * @param from The index of the first item to copy.
+     * @param to   The index after the last item to copy.
+     * @return A model of the items in the range.
+     */
+    TFIDFModel slice(int from, int to) {
+        return copyRange(from, to).withPruningSettings(itemTagLimit, minItemWeight);
+    }
+
+    private TFIDFModel copyRange(int from, int to) {
+        long[] ids = new long[to - from];
+        int[] offsets = new int[to - from + 1];
+        int base = rowOffsets.get(from);
+        for (int i = from; i < to; i++) {
+            ids[i - from] = itemIds.get(i);
+            offsets[i - from] = rowOffsets.get(i) - base;
+        }
+        int nentries = rowOffsets.get(to) - base;
+        offsets[to - from] = nentries;
+        int[] tags = new int[nentries];
+        for (int i = 0; i < nentries; i++) {
+            tags[i] = tagIndexes.get(base + i);
+        }
+        switch (precision) {
+        case FLOAT: {
+            float[] values = new float[nentries];
+            for (int i = 0; i < nentries; i++) {
+                values[i] = floatWeights.get(base + i);
+            }
+            return new TFIDFModel(tagIds, LongBuffer.wrap(ids), IntBuffer.wrap(offsets),
+                                  IntBuffer.wrap(tags), FloatBuffer.wrap(values));
+        }
+        case INT8: {
+            byte[] values = new byte[nentries];
+            for (int i = 0; i < nentries; i++) {
+                values[i] = byteWeights.get(base + i);
+            }
+            float[] itemScales = new float[to - from];
+            for (int i = from; i < to; i++) {
+                itemScales[i - from] = scales.get(i);
+            }
+            return new TFIDFModel(tagIds, LongBuffer.wrap(ids), IntBuffer.wrap(offsets),
+                                  IntBuffer.wrap(tags), ByteBuffer.wrap(values),
+                                  FloatBuffer.wrap(itemScales));
+        }
+        default: {
+            double[] values = new double[nentries];
+            for (int i = 0; i < nentries; i++) {
+                values[i] = weights.get(base + i);
+            }
+            return new TFIDFModel(tagIds, ids, offsets, tags, values);
+        }
+        }
+    }
+
+    /**
+     * Get the tag ID map.
+     *
+     * @return The map of tags to IDs.
+     */
+    Map<String,Long> getTagIds() {
+        return tagIds;
+    }
+
+    /*
+     * The buffer accessors return independent views of the model's storage, for writing model
+     * files and serialized forms.
+     */
+
+    LongBuffer getItemIdBuffer() {
+        return itemIds.duplicate();
+    }
+
+    IntBuffer getRowOffsetBuffer() {
+        return rowOffsets.duplicate();
+    }
+
+    IntBuffer getTagIndexBuffer() {
+        return tagIndexes.duplicate();
+    }
+
+    DoubleBuffer getWeightBuffer() {
+        return weights.duplicate();
+    }
+
+    FloatBuffer getFloatWeightBuffer() {
+        return floatWeights.duplicate();
+    }
+
+    ByteBuffer getByteWeightBuffer() {
+        return byteWeights.duplicate();
+    }
+
+    FloatBuffer getScaleBuffer() {
+        return scales.duplicate();
+    }
+
+    /**
+     * Buffers are not serializable, so the model is serialized as plain arrays.
+     *
+     * @return The serialized form of this model.
+     */
+    private Object writeReplace() {
+        return new SerializedForm(this);
+    }
+
+    private void readObject(ObjectInputStream in) throws InvalidObjectException {
+        throw new InvalidObjectException("TF-IDF models must be read through their serialized form");
+    }
+
+    /**
+     * Serialized form of a TF-IDF model.
+     */
+    private static class SerializedForm implements Serializable {
+        private static final long serialVersionUID = 3L;
+
+        private final Map<String, Long> tagIds;
+        private final long[] itemIds;
+        private final int[] rowOffsets;
+        private final int[] tagIndexes;
+        private final WeightPrecision precision;
+        private final int itemTagLimit;
+        private final double minItemWeight;
+        private double[] weights;
+        private float[] floatWeights;
+        private byte[] byteWeights;
+        private float[] scales;
+
+        SerializedForm(TFIDFModel model) {
+            tagIds = model.tagIds;
+            itemIds = new long[model.itemIds.limit()];
+            model.getItemIdBuffer().get(itemIds);
+            rowOffsets = new int[model.rowOffsets.limit()];
+            model.getRowOffsetBuffer().get(rowOffsets);
+            tagIndexes = new int[model.tagIndexes.limit()];
+            model.getTagIndexBuffer().get(tagIndexes);
+            precision = model.precision;
+            itemTagLimit = model.itemTagLimit;
+            minItemWeight = model.minItemWeight;
+            switch (precision) {
+            case FLOAT:
+                floatWeights = new float[tagIndexes.length];
+                model.getFloatWeightBuffer().get(floatWeights);
+                break;
+            case INT8:
+                byteWeights = new byte[tagIndexes.length];
+                model.getByteWeightBuffer().get(byteWeights);
+                scales = new float[itemIds.length];
+                model.getScaleBuffer().get(scales);
+                break;
+            default:
+                weights = new double[tagIndexes.length];
+                model.getWeightBuffer().get(weights);
+            }
+        }
+
+        private Object readResolve() {
+            LongBuffer items = LongBuffer.wrap(itemIds);
+            IntBuffer offsets = IntBuffer.wrap(rowOffsets);
+            IntBuffer tags = IntBuffer.wrap(tagIndexes);
+            TFIDFModel model;
+            switch (precision) {
+            case FLOAT:
+                model = new TFIDFModel(tagIds, items, offsets, tags, FloatBuffer.wrap(floatWeights));
+                break;
+            case INT8:
+                model = new TFIDFModel(tagIds, items, offsets, tags, ByteBuffer.wrap(byteWeights),
+                                       FloatBuffer.wrap(scales));
+                break;
+            default:
+                model = new TFIDFModel(tagIds, items, offsets, tags, DoubleBuffer.wrap(weights));
+            }
+            return model.withPruningSettings(itemTagLimit, minItemWeight);
         }
     }
 }
@@ -1,27 +1,85 @@
 package org.grouplens.mooc.cbf;
 
 import com.google.common.collect.Maps;
-import it.unimi.dsi.fastutil.longs.LongSet;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
 import org.grouplens.lenskit.core.Transient;
-import org.grouplens.lenskit.vectors.MutableSparseVector;
-import org.grouplens.lenskit.vectors.SparseVector;
-import org.grouplens.lenskit.vectors.VectorEntry;
+import org.grouplens.mooc.cbf.dao.EncodedItemTagDAO;
 import org.grouplens.mooc.cbf.dao.ItemTagDAO;
+import org.grouplens.mooc.cbf.metrics.Histogram;
+import org.grouplens.mooc.cbf.metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
+import javax.annotation.Nullable;
 import javax.inject.Inject;
 import javax.inject.Provider;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * Builder for computing {@linkplain TFIDFModel TF-IDF models} from item tag data.  Each item is
  * represented by a normalized TF-IDF vector.
+ * <p>
+ * The builder can run sequentially or split the items across a fork-join pool (see
+ * {@link ModelBuildThreads}).  Both modes produce exactly the same model: document frequencies are
+ * integer counts, so merging per-worker partials is order-independent, and each item vector is
+ * weighted and normalized by the same code no matter which thread handles it.
+ * <p>
+ * If the DAO is an {@link EncodedItemTagDAO}, the builder uses its tag dictionary directly: tag
+ * <var>i</var> in the dictionary gets tag ID <var>i</var> + 1, and items' tags are counted from their
+ * IDs without looking up any strings.
+ * <p>
+ * The time of each build phase is recorded in the {@linkplain Metrics metrics}
+ * {@code model.build.tagMap}, {@code model.build.termCounts} (the TF and DF pass),
+ * {@code model.build.idf} and {@code model.build.weights} (applying the IDF and normalizing, in one
+ * pass), and the whole build in {@code model.build.total}.
+ * <p>
+ * The weights are computed in {@code double} precision, {@linkplain TFIDFModel#pruned(int, double)
+ * pruned} to the configured {@linkplain ItemTagLimit item tag limit} and
+ * {@linkplain MinItemWeight minimum weight}, if any, and then converted to the configured
+ * {@linkplain ModelPrecision precision}.  Each configuration keeps its own
+ * {@linkplain ModelFile model file}: the configured file holds the unpruned {@code double} model,
+ * and the others are {@linkplain #variantFile(File, WeightPrecision, int, double) named} after
+ * their precision and pruning, so models built with different settings do not overwrite each
+ * other.
  *
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  */
 public class TFIDFModelBuilder implements Provider<TFIDFModel> {
+    private static final Logger logger = LoggerFactory.getLogger(TFIDFModelBuilder.class);
+    /**
+     * The smallest number of items a parallel task will process without splitting further.
+     */
+    private static final int MIN_GRAIN = 256;
+    private static final Histogram tagMapTimer = Metrics.timer("model.build.tagMap");
+    private static final Histogram termCountTimer = Metrics.timer("model.build.termCounts");
+    private static final Histogram idfTimer = Metrics.timer("model.build.idf");
+    private static final Histogram weightTimer = Metrics.timer("model.build.weights");
+    private static final Histogram buildTimer = Metrics.timer("model.build.total");
+
     private final ItemTagDAO dao;
+    @Nullable
+    private final EncodedItemTagDAO encodedDao;
+    private final int threadCount;
+    @Nullable
+    private final File modelFile;
+    private final WeightPrecision precision;
+    private final int itemTagLimit;
+    private final double minItemWeight;
 
     /**
      * Construct a model builder.  The {@link Inject} annotation on this constructor tells LensKit
@@ -33,153 +91,513 @@ public class TFIDFModelBuilder implements Provider<TFIDFModel> {
      *            needed once the object is built (that is, the model will not contain a reference
      *            to the DAO).  This allows LensKit to configure your recommender components
      *            properly.  It's up to you to keep this promise.</p>
+     * @param threads The number of threads to use for building the model.
+     * @param file The model file to open or write, if any; models with other settings use a
+     *             {@linkplain #variantFile(File, WeightPrecision, int, double) variant} of it.
+     * @param precision The precision of the model's weights.
+     * @param tagLimit The most tags to keep in each item vector, or 0 to keep them all.
+     * @param minWeight The smallest weight to keep in item vectors, or 0 to keep them all.
      */
     @Inject
-    public TFIDFModelBuilder(@Transient ItemTagDAO dao) {
+    public TFIDFModelBuilder(@Transient ItemTagDAO dao,
+                             @ModelBuildThreads int threads,
+                             @ModelFile @Nullable File file,
+                             @ModelPrecision String precision,
+                             @ItemTagLimit int tagLimit,
+                             @MinItemWeight double minWeight) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("model build thread count must be positive");
+        }
+        if (tagLimit < 0) {
+            throw new IllegalArgumentException("item tag limit cannot be negative");
+        }
         this.dao = dao;
+        encodedDao = dao instanceof EncodedItemTagDAO ? (EncodedItemTagDAO) dao : null;
+        threadCount = threads;
+        this.precision = WeightPrecision.fromName(precision);
+        itemTagLimit = tagLimit;
+        minItemWeight = Math.max(0, minWeight);
+        modelFile = file == null
+                ? null
+                : variantFile(file, this.precision, itemTagLimit, minItemWeight);
     }
 
     /**
-     * This method is where the model should actually be computed.
+     * Get the model file for a configuration.  The unpruned {@code double} model uses the base
+     * file itself; other configurations insert their settings before its extension, so
+     * {@code movie-tags.tfidf} becomes, for example, {@code movie-tags-int8-t20.tfidf} for
+     * {@code int8} weights and at most 20 tags per item, or {@code movie-tags-w0.01.tfidf} for a
+     * minimum weight of 0.01.
+     *
+     * @param base      The configured model file.
+     * @param precision The precision of the model's weights.
+     * @param tagLimit  The most tags kept in each item vector, or 0 for all of them.
+     * @param minWeight The smallest weight kept in item vectors, or 0 for all of them.
+     * @return The model file for the configuration.
+     */
+    public static File variantFile(File base, WeightPrecision precision,
+                                   int tagLimit, double minWeight) {
+        StringBuilder suffix = new StringBuilder();
+        if (precision != WeightPrecision.DOUBLE) {
+            suffix.append('-').append(precision.name().toLowerCase());
+        }
+        if (tagLimit > 0) {
+            suffix.append("-t").append(tagLimit);
+        }
+        if (minWeight > 0) {
+            suffix.append("-w").append(minWeight);
+        }
+        if (suffix.length() == 0) {
+            return base;
+        }
+        String name = base.getName();
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) {
+            name = name.substring(0, dot) + suffix + name.substring(dot);
+        } else {
+            name = name + suffix;
+        }
+        return new File(base.getParentFile(), name);
+    }
+
+    /**
+     * Get the model.  If a {@linkplain ModelFile model file} is configured and this
+     * configuration's {@linkplain #variantFile(File, WeightPrecision, int, double) variant} of it
+     * exists, it is opened (memory-mapped) instead of building the model.  Otherwise, or if the
+     * file's weights have a different precision or pruning, the model is built, and written to
+     * the variant file if a model file is configured.
+     *
      * @return The TF-IDF model (a model of item tag vectors).
      */
     @Override
     public TFIDFModel get() {
+        if (modelFile != null && modelFile.isFile()) {
+            long startTime = System.nanoTime();
+            try {
+                TFIDFModel model = TFIDFModelFile.open(modelFile);
+                if (model.getItemTagLimit() != itemTagLimit || model.getMinItemWeight() != minItemWeight) {
+                    logger.info("model file {} has different pruning, rebuilding model", modelFile);
+                } else if (model.getPrecision() != precision) {
+                    logger.info("model file {} has {} weights, rebuilding model with {} weights",
+                                new Object[]{modelFile, model.getPrecision(), precision});
+                } else {
+                    logger.info("opened TF-IDF model file {} in {} ms",
+                                modelFile, (System.nanoTime() - startTime) / 1000000);
+                    return model;
+                }
+            } catch (IOException e) {
+                logger.warn("cannot open model file {}, rebuilding model: {}", modelFile, e.getMessage());
+            }
+        }
+
+        TFIDFModel model = buildModel().pruned(itemTagLimit, minItemWeight).withPrecision(precision);
+        if (modelFile != null) {
+            try {
+                TFIDFModelFile.write(model, modelFile);
+                logger.info("wrote TF-IDF model to {}", modelFile);
+            } catch (IOException e) {
+                logger.warn("cannot write model file {}: {}", modelFile, e.getMessage());
+            }
+        }
+        return model;
+    }
+
+    /**
+     * This method is where the model is actually computed.
+     * <p>
+     * The build makes a single pass over the items to count term frequencies and document
+     * frequencies, using primitive arrays indexed by tag (tag ID - 1) so that no per-tag objects
+     * are allocated and no exceptions are thrown on the hot path.  It then applies the log-IDF
+     * weights and normalizes each item vector.
+     *
+     * @return The TF-IDF model (a model of item tag vectors).
+     */
+    TFIDFModel buildModel() {
+        long startTime = System.nanoTime();
+        long startAlloc = threadAllocatedBytes();
+
         // Build a map of tags to numeric IDs.  This lets you convert tags (which are strings)
         // into long IDs that you can use as keys in a tag vector.
+        long phaseStart = System.nanoTime();
         Map<String, Long> tagIds = buildTagIdMap();
+        tagMapTimer.recordSince(phaseStart);
+
+        // Sort the items so that the work is split the same way on every build.
+        long[] items = dao.getItemIds().toLongArray();
+        Arrays.sort(items);
+
+        Build build = new Build(tagIds, items);
+        long workerAlloc = 0;
+        if (threadCount > 1) {
+            WorkerTracker workers = new WorkerTracker();
+            ForkJoinPool pool = new ForkJoinPool(threadCount, workers, null, false);
+            try {
+                int grain = Math.max(MIN_GRAIN, items.length / (threadCount * 4));
+                phaseStart = System.nanoTime();
+                int[] docFreq = pool.invoke(new CountTask(build, 0, items.length, grain));
+                termCountTimer.recordSince(phaseStart);
+                workers.sample();
+                phaseStart = System.nanoTime();
+                build.setDocFreq(docFreq);
+                idfTimer.recordSince(phaseStart);
+                phaseStart = System.nanoTime();
+                pool.invoke(new WeightTask(build, 0, items.length, grain));
+                weightTimer.recordSince(phaseStart);
+                workers.sample();
+                workerAlloc = workers.allocatedBytes();
+            } finally {
+                pool.shutdown();
+            }
+        } else {
+            phaseStart = System.nanoTime();
+            int[] docFreq = build.countTerms(0, items.length);
+            termCountTimer.recordSince(phaseStart);
+            phaseStart = System.nanoTime();
+            build.setDocFreq(docFreq);
+            idfTimer.recordSince(phaseStart);
+            phaseStart = System.nanoTime();
+            build.weightItems(0, items.length);
+            weightTimer.recordSince(phaseStart);
+        }
+        buildTimer.recordSince(startTime);
+
+        long allocated = threadAllocatedBytes() - startAlloc;
+        logger.info("built TF-IDF model for {} items and {} tags with {} thread(s) in {} ms "
+                    + "({} bytes allocated by the calling and worker threads)",
+                    new Object[]{items.length, tagIds.size(), threadCount,
+                                 (System.nanoTime() - startTime) / 1000000,
+                                 startAlloc < 0 ? "unknown" : allocated + workerAlloc});
 
-        // Create a vector to accumulate document frequencies for the IDF computation
-        MutableSparseVector docFreq = MutableSparseVector.create(tagIds.values());
-        docFreq.fill(0);
-
-        // We now proceed in 2 stages. First, we build a TF vector for each item.
-        // While we do this, we also build the DF vector.
-        // We will then apply the IDF to each TF vector and normalize it to a unit vector.
-
-        // Create a map to store the item TF vectors.
-        Map<Long,MutableSparseVector> itemVectors = Maps.newHashMap();
-
-        // Create a work vector to accumulate each item's tag vector.
-        // This vector will be re-used for each item.
-        MutableSparseVector work = MutableSparseVector.create(tagIds.values());
-
-        // Iterate over the items to compute each item's vector.
-        LongSet items = dao.getItemIds();
-        long counter = 0;
-        for (long item: items) {
-            counter++;
-            // Reset the work vector for this item's tags.
-            work.clear();
-            // Now the vector is empty (all keys are 'unset').
-
-            // TODO Populate the work vector with the number of times each tag is applied to this item.
-            List<String> tags =  dao.getItemTags(item);
-            for(String tag: tags){
-                // from tagIds we find out what is the long value for this tag
-                long tagId = tagIds.get(tag);
-
-                // check work to see if this tagId already exist.  If so, increment by 1.  Else init to 1.
-                try{
-                    work.set(tagId, work.get(tagId)+1);
-                }catch(IllegalArgumentException e){
-                    // init value to 1
-                    work.set(tagId, 1);
+        // we technically don't need the IDF vector anymore, so long as we have no new tags
+        return new TFIDFModel(tagIds, items, build.rowOffsets, build.tagIndexes, build.weights);
+    }
+
+    /**
+     * Split a model into item-range shards, for {@linkplain ShardedItemRecommender scatter-gather
+     * scoring}.  The shards hold consecutive ranges of the (sorted) items, balanced by their number
+     * of entries, since that is what scoring a shard costs.  The IDF weights are computed over the
+     * whole catalog before splitting, and every shard shares the model's tag dictionary, so a
+     * profile built against the full model can be scored against any shard.
+     *
+     * @param model The model to split.
+     * @param count The number of shards.
+     * @return The shards, in item order.
+     */
+    public static List<TFIDFModel> shard(TFIDFModel model, int count) {
+        List<TFIDFModel> shards = new ArrayList<TFIDFModel>(count);
+        for (int i = 0; i < count; i++) {
+            shards.add(shard(model, i, count));
+        }
+        return shards;
+    }
+
+    /**
+     * Get one shard of a model.  This is the same as the corresponding element of
+     * {@link #shard(TFIDFModel, int)}, but only copies that shard's items.
+     *
+     * @param model The model to split.
+     * @param shard The shard number, from 0 to {@code count - 1}.
+     * @param count The number of shards.
+     * @return The shard.
+     */
+    public static TFIDFModel shard(TFIDFModel model, int shard, int count) {
+        if (count < 1) {
+            throw new IllegalArgumentException("shard count must be positive");
+        }
+        if (shard < 0 || shard >= count) {
+            throw new IllegalArgumentException("shard " + shard + " out of range for " + count + " shards");
+        }
+        return model.slice(shardStart(model, shard, count), shardStart(model, shard + 1, count));
+    }
+
+    /**
+     * Find the first item of a shard: the first item whose row starts at or after the shard's
+     * share of the entries.
+     */
+    private static int shardStart(TFIDFModel model, int shard, int count) {
+        int nitems = model.getItemCount();
+        if (shard == 0) {
+            return 0;
+        } else if (shard == count) {
+            return nitems;
+        }
+        long target = (long) model.getEntryCount() * shard / count;
+        int lo = 0;
+        int hi = nitems;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (model.getRowStart(mid) < target) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * The state of a single model build.  Item data is stored in arrays parallel to the sorted
+     * item ID array, so workers can fill in disjoint ranges without coordinating.  Once the
+     * document frequencies are known, the item vectors are laid out in the model's CSR arrays.
+     */
+    private class Build {
+        private final long[] items;
+        private final int tagCount;
+        private final Object2IntMap<String> tagLookup;
+        private final int[][] itemTags;
+        private final int[][] itemCounts;
+        private double[] idf;
+        private int[] rowOffsets;
+        private int[] tagIndexes;
+        private double[] weights;
+
+        Build(Map<String,Long> tagIds, long[] items) {
+            this.items = items;
+            tagCount = tagIds.size();
+            if (encodedDao != null) {
+                // dictionary IDs are already the dense tag indexes
+                tagLookup = null;
+            } else {
+                // Map each tag to a dense index (its ID - 1) so we can count with plain int arrays.
+                tagLookup = new Object2IntOpenHashMap<String>(tagCount);
+                for (Map.Entry<String, Long> e: tagIds.entrySet()) {
+                    tagLookup.put(e.getKey(), (int) (e.getValue() - 1));
                 }
             }
+            itemTags = new int[items.length][];
+            itemCounts = new int[items.length][];
+        }
 
-            // TODO Increment the document frequency vector once for each unique tag on the item.
-            // create another sparse vector to see if a tag already been applied to this item
-            MutableSparseVector temp = MutableSparseVector.create(tagIds.values());
-
-            for(String tag: tags){
-                long tagId = tagIds.get(tag);
-                try{
-                    // we already saw this tag in this item.
-                    temp.get(tagId);
-                    continue;
-                }catch(IllegalArgumentException e){
-                    // first time we see this tag in this item.
-                    temp.set(tagId, 1);
-                    docFreq.set(tagId, docFreq.get(tagId)+1);
+        /**
+         * Compute the TF vectors for a range of items.
+         *
+         * @param lo The first item position (inclusive).
+         * @param hi The last item position (exclusive).
+         * @return The document frequencies of the tags within this range of items.
+         */
+        int[] countTerms(int lo, int hi) {
+            // Document frequencies, indexed by tag index.
+            int[] docFreq = new int[tagCount];
+            // Per-item term counts, indexed by tag index.  Only the slots listed in 'touched' are
+            // non-zero, so the array is reset in time proportional to the item's distinct tags.
+            int[] counts = new int[tagCount];
+            int[] touched = new int[tagCount];
+
+            for (int i = lo; i < hi; i++) {
+                int ntouched = 0;
+                if (encodedDao != null) {
+                    IntList ids = encodedDao.getItemTagIds(items[i]);
+                    for (int j = 0, n = ids.size(); j < n; j++) {
+                        int idx = ids.getInt(j);
+                        if (counts[idx]++ == 0) {
+                            // first time we see this tag on this item
+                            touched[ntouched++] = idx;
+                            docFreq[idx] += 1;
+                        }
+                    }
+                } else {
+                    for (String tag: dao.getItemTags(items[i])) {
+                        int idx = tagLookup.getInt(tag);
+                        if (counts[idx]++ == 0) {
+                            touched[ntouched++] = idx;
+                            docFreq[idx] += 1;
+                        }
+                    }
                 }
 
+                // Collect the item's tags in sorted order, clearing the counts as we go.
+                Arrays.sort(touched, 0, ntouched);
+                int[] tags = Arrays.copyOf(touched, ntouched);
+                int[] tf = new int[ntouched];
+                for (int j = 0; j < ntouched; j++) {
+                    tf[j] = counts[tags[j]];
+                    counts[tags[j]] = 0;
+                }
+                itemTags[i] = tags;
+                itemCounts[i] = tf;
             }
+            return docFreq;
+        }
 
+        /**
+         * Set the global document frequencies, and invert and log them into IDF weights.  This
+         * also lays out the model's row offsets, now that every item's tag count is known.
+         *
+         * @param docFreq The document frequency of each tag index.
+         */
+        void setDocFreq(int[] docFreq) {
+            double itemCount = items.length;
+            idf = new double[tagCount];
+            for (int i = 0; i < tagCount; i++) {
+                idf[i] = Math.log10(itemCount / docFreq[i]);
+            }
 
-            // Save a shrunk copy of the vector (only storing tags that apply to this item) in
-            // our map, we'll add IDF and normalize later.
-            itemVectors.put(item, work.shrinkDomain());
-            // work is ready to be reset and re-used for the next item
+            rowOffsets = new int[items.length + 1];
+            for (int i = 0; i < items.length; i++) {
+                rowOffsets[i + 1] = rowOffsets[i] + itemTags[i].length;
+            }
+            tagIndexes = new int[rowOffsets[items.length]];
+            weights = new double[rowOffsets[items.length]];
         }
 
-        // Now we've seen all the items, so we have each item's TF vector and a global vector
-        // of document frequencies.
-        // Invert and log the document frequency.  We can do this in-place.
-        for (VectorEntry e: docFreq.fast()) {
-            // TODO Update this document frequency entry to be a log-IDF value
-            // debug before
-            //System.out.print("Before...");
-            //System.out.print(e.getKey());
-            //System.out.print(": ");
-            //System.out.print(docFreq.get(e.getKey()));
+        /**
+         * Apply the IDF to a range of TF vectors, normalize them to unit vectors, and store them
+         * in the model arrays.
+         *
+         * @param lo The first item position (inclusive).
+         * @param hi The last item position (exclusive).
+         */
+        void weightItems(int lo, int hi) {
+            for (int i = lo; i < hi; i++) {
+                int[] tags = itemTags[i];
+                int[] tf = itemCounts[i];
+                int base = rowOffsets[i];
+                double ssq = 0;
+                for (int j = 0; j < tags.length; j++) {
+                    double w = tf[j] * idf[tags[j]];
+                    tagIndexes[base + j] = tags[j];
+                    weights[base + j] = w;
+                    ssq += w * w;
+                }
+                double len = Math.sqrt(ssq);
+                for (int j = base; j < base + tags.length; j++) {
+                    weights[j] = weights[j] / len;
+                }
+                itemTags[i] = null;
+                itemCounts[i] = null;
+            }
+        }
+    }
+
+    /**
+     * Fork-join task counting term and document frequencies over a range of items.
+     */
+    private static class CountTask extends RecursiveTask<int[]> {
+        private static final long serialVersionUID = 1L;
+
+        private final Build build;
+        private final int lo, hi, grain;
 
-            long tagId = e.getKey();
-            if(tagId ==1){
-                System.out.println("");
+        CountTask(Build b, int lo, int hi, int grain) {
+            build = b;
+            this.lo = lo;
+            this.hi = hi;
+            this.grain = grain;
+        }
+
+        @Override
+        protected int[] compute() {
+            if (hi - lo <= grain) {
+                return build.countTerms(lo, hi);
+            }
+            int mid = (lo + hi) >>> 1;
+            CountTask left = new CountTask(build, lo, mid, grain);
+            left.fork();
+            int[] right = new CountTask(build, mid, hi, grain).compute();
+            int[] merged = left.join();
+            for (int i = 0; i < merged.length; i++) {
+                merged[i] += right[i];
             }
-            double idf = e.getValue();
-            double log_idf = Math.log10(counter/idf);
-            docFreq.set(tagId, log_idf);
-            //System.out.print("   After...");
-            //System.out.print(e.getKey());
-            //System.out.print(": ");
-            //System.out.println(docFreq.get(e.getKey()));
+            return merged;
         }
+    }
 
-        // Now docFreq is a log-IDF vector.
-        // So we can use it to apply IDF to each item vector to put it in the final model.
-        // Create a map to store the final model data.
-        Map<Long,SparseVector> modelData = Maps.newHashMap();
-        for (Map.Entry<Long,MutableSparseVector> entry: itemVectors.entrySet()) {
-            MutableSparseVector tv = entry.getValue(); // tv is the TF of each tag for this item
-            // TODO Convert this vector to a TF-IDF vector
-            for(VectorEntry v: tv.fast()){
-                //System.out.print("Movie: ");
-                //System.out.print(entry.getKey());
-                //System.out.print(" Tag: ");
-                //System.out.print(v.getKey());
+    /**
+     * Fork-join task weighting and normalizing a range of item vectors.
+     */
+    private static class WeightTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
 
-                double tf = v.getValue();
-                //System.out.print(" tf: ");
-                //System.out.print(tf);
+        private final Build build;
+        private final int lo, hi, grain;
 
+        WeightTask(Build b, int lo, int hi, int grain) {
+            build = b;
+            this.lo = lo;
+            this.hi = hi;
+            this.grain = grain;
+        }
 
-                double idf = docFreq.get(v.getKey());
-                //System.out.print(" idf: ");
-                //System.out.print(idf);
+        @Override
+        protected void compute() {
+            if (hi - lo <= grain) {
+                build.weightItems(lo, hi);
+            } else {
+                int mid = (lo + hi) >>> 1;
+                invokeAll(new WeightTask(build, lo, mid, grain),
+                          new WeightTask(build, mid, hi, grain));
+            }
+        }
+    }
+
+    /**
+     * Worker thread factory that remembers the threads of a build's pool, so their allocation can
+     * be added to the calling thread's.  The pool is private to one build, so everything its
+     * workers allocate is build work.  Idle workers may exit between phases, so the allocation is
+     * {@linkplain #sample() sampled} after each phase and the last sample of each worker is kept.
+     */
+    private static class WorkerTracker implements ForkJoinPool.ForkJoinWorkerThreadFactory {
+        private final Map<Thread,Long> allocated = new HashMap<Thread,Long>();
 
-                tv.set(v.getKey(), tf*idf);
-                //System.out.print(" tf*idf ");
-                //System.out.println(tv.get(v.getKey()));
+        @Override
+        public synchronized ForkJoinWorkerThread newThread(ForkJoinPool pool) {
+            ForkJoinWorkerThread thread =
+                    ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            allocated.put(thread, 0L);
+            return thread;
+        }
+
+        /**
+         * Record the bytes allocated so far by each live worker.
+         */
+        synchronized void sample() {
+            for (Map.Entry<Thread,Long> e: allocated.entrySet()) {
+                long bytes = threadAllocatedBytes(e.getKey());
+                if (bytes >= 0) {
+                    e.setValue(bytes);
+                }
             }
-            // tv is now the tf*idf vector
+        }
 
-            // TODO Normalize the TF-IDF vector to be a unit vector
-            // HINT The method tv.norm() will give you the Euclidian length of the vector
-            double len = tv.norm();
-            //System.out.print("Length: ");
-            //System.out.println(len);
-            for(VectorEntry v: tv.fast()){
-                tv.set(v.getKey(), v.getValue()/len);
+        /**
+         * Get the bytes the pool's workers had allocated when last {@linkplain #sample() sampled}.
+         *
+         * @return The allocated byte count.
+         */
+        synchronized long allocatedBytes() {
+            long total = 0;
+            for (long bytes: allocated.values()) {
+                total += bytes;
             }
-            
-            // Store a frozen (immutable) version of the vector in the model data.
-            modelData.put(entry.getKey(), tv.freeze());
+            return total;
         }
+    }
 
-        // we technically don't need the IDF vector anymore, so long as we have no new tags
-        return new TFIDFModel(tagIds, modelData);
+    /**
+     * Get the number of bytes allocated so far by the current thread, if the JVM can tell us.
+     *
+     * @return The allocated byte count, or -1 if it is not available.
+     */
+    private static long threadAllocatedBytes() {
+        return threadAllocatedBytes(Thread.currentThread());
+    }
+
+    /**
+     * Get the number of bytes allocated so far by a thread, if the JVM can tell us.
+     *
+     * @param thread The thread.
+     * @return The allocated byte count, or -1 if it is not available (including if the thread
+     *         has terminated).
+     */
+    private static long threadAllocatedBytes(Thread thread) {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            com.sun.management.ThreadMXBean sunBean = (com.sun.management.ThreadMXBean) bean;
+            if (sunBean.isThreadAllocatedMemorySupported() && sunBean.isThreadAllocatedMemoryEnabled()) {
+                return sunBean.getThreadAllocatedBytes(thread.getId());
+            }
+        }
+        return -1;
     }
 
     /**
@@ -188,6 +606,16 @@ public class TFIDFModelBuilder implements Provider<TFIDFModel> {
      * @return A mapping from tags to IDs.
      */
     private Map<String,Long> buildTagIdMap() {
+        if (encodedDao != null) {
+            // Number the tags by their dictionary IDs, so the IDs can be used as tag indexes.
+            int count = encodedDao.getTagCount();
+            Map<String,Long> tagIds = Maps.newHashMapWithExpectedSize(count);
+            for (int i = 0; i < count; i++) {
+                tagIds.put(encodedDao.getTag(i), i + 1L);
+            }
+            return tagIds;
+        }
+
         // Get the universe of all tags
         Set<String> tags = dao.getTagVocabulary();
         // Allocate our new tag map
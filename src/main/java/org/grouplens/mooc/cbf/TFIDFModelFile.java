@@ -0,0 +1,345 @@
+package org.grouplens.mooc.cbf;
+
+import com.google.common.collect.Maps;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.Map;
+
+/**
+ * Reads and writes {@linkplain TFIDFModel TF-IDF models} in a binary file that can be
+ * memory-mapped.  Opening a model file maps the item vectors read-only, so they are read straight
+ * from the page cache, and every process on a host that opens the same file shares the same
+ * physical pages.  Only the tag dictionary is copied onto the heap.
+ * <p>
+ * The file is little-endian, and laid out as follows (each section is padded to a multiple of 8
+ * bytes):
+ * <ol>
+ * <li>Header: magic number, format version, item count, tag count, entry count,
+ * {@linkplain WeightPrecision weight precision} (its ordinal), and
+ * {@linkplain TFIDFModel#pruned(int, double) item tag limit} (all {@code int}s), then the minimum
+ * item weight ({@code double}) and the model's {@linkplain TFIDFModel#getFingerprint()
+ * fingerprint} ({@code long}), so opening the file does not hash the vectors.</li>
+ * <li>Item IDs ({@code long[item count]}).</li>
+ * <li>Row offsets ({@code int[item count + 1]}).</li>
+ * <li>Tag indexes ({@code int[entry count]}).</li>
+ * <li>Weights ({@code double[entry count]}, {@code float[entry count]} or
+ * {@code byte[entry count]}, depending on the precision).</li>
+ * <li>For byte weights, the item scales ({@code float[item count]}).</li>
+ * <li>Tags, in tag index order: byte length ({@code int}) followed by the UTF-8 bytes.</li>
+ * </ol>
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public final class TFIDFModelFile {
+    static final int MAGIC = 0x54464446;
+    static final int VERSION = 4;
+    private static final int HEADER_SIZE = 48;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private TFIDFModelFile() {}
+
+    /**
+     * Write a model to a file.  The model is written to a new temporary file in the same directory
+     * that is then renamed, so processes opening the file never see a partial model, and processes
+     * writing the same model file at once do not write into each other's temporary files.
+     *
+     * @param model The model to write.
+     * @param file  The file to write to.
+     * @throws IOException if there is an error writing the file.
+     */
+    public static void write(TFIDFModel model, File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile(file.getName() + ".", ".tmp", dir);
+        boolean written = false;
+        try {
+            writeModel(model, tmp);
+            written = tmp.renameTo(file);
+        } finally {
+            if (!written) {
+                tmp.delete();
+            }
+        }
+        if (!written) {
+            throw new IOException("cannot move model file into place at " + file);
+        }
+    }
+
+    private static void writeModel(TFIDFModel model, File tmp) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            SectionWriter out = new SectionWriter(raf.getChannel());
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putInt(model.getItemCount());
+            out.putInt(model.getTagCount());
+            out.putInt(model.getEntryCount());
+            out.putInt(model.getPrecision().ordinal());
+            out.putInt(model.getItemTagLimit());
+            out.pad();
+            out.putDouble(model.getMinItemWeight());
+            out.putLong(model.getFingerprint());
+
+            LongBuffer items = model.getItemIdBuffer();
+            while (items.hasRemaining()) {
+                out.putLong(items.get());
+            }
+            out.pad();
+            IntBuffer offsets = model.getRowOffsetBuffer();
+            while (offsets.hasRemaining()) {
+                out.putInt(offsets.get());
+            }
+            out.pad();
+            IntBuffer tags = model.getTagIndexBuffer();
+            while (tags.hasRemaining()) {
+                out.putInt(tags.get());
+            }
+            out.pad();
+            switch (model.getPrecision()) {
+            case FLOAT:
+                FloatBuffer floats = model.getFloatWeightBuffer();
+                while (floats.hasRemaining()) {
+                    out.putFloat(floats.get());
+                }
+                break;
+            case INT8:
+                ByteBuffer bytes = model.getByteWeightBuffer();
+                while (bytes.hasRemaining()) {
+                    out.putByte(bytes.get());
+                }
+                out.pad();
+                FloatBuffer scales = model.getScaleBuffer();
+                while (scales.hasRemaining()) {
+                    out.putFloat(scales.get());
+                }
+                break;
+            default:
+                DoubleBuffer weights = model.getWeightBuffer();
+                while (weights.hasRemaining()) {
+                    out.putDouble(weights.get());
+                }
+            }
+            out.pad();
+
+            // write the tags in index order
+            String[] tagNames = new String[model.getTagCount()];
+            for (Map.Entry<String,Long> e: model.getTagIds().entrySet()) {
+                tagNames[(int) (e.getValue() - 1)] = e.getKey();
+            }
+            for (String tag: tagNames) {
+                byte[] bytes = tag.getBytes(UTF8);
+                out.putInt(bytes.length);
+                out.putBytes(bytes);
+            }
+            out.flush();
+            raf.getChannel().force(true);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Open a model file.  The item vectors are memory-mapped, not read.
+     *
+     * @param file The file to open.
+     * @return The model.
+     * @throws IOException if there is an error reading the file, or it is not a valid model file.
+     *                     The header's counts, the bounds of the row offsets and the tag
+     *                     dictionary are checked; the vectors themselves are not read.
+     */
+    public static TFIDFModel open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel chan = raf.getChannel();
+            long size = chan.size();
+            if (size < HEADER_SIZE) {
+                throw new IOException(file + ": file too short for a model header");
+            }
+            ByteBuffer header = map(chan, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC) {
+                throw new IOException(file + ": not a TF-IDF model file");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException(file + ": unsupported model file version " + version);
+            }
+            int nitems = header.getInt();
+            int ntags = header.getInt();
+            int nentries = header.getInt();
+            int p = header.getInt();
+            if (p < 0 || p >= WeightPrecision.values().length) {
+                throw new IOException(file + ": unknown weight precision " + p);
+            }
+            if (nitems < 0 || ntags < 0 || nentries < 0) {
+                throw new IOException(String.format("%s: invalid counts (%d items, %d tags, %d entries)",
+                                                    file, nitems, ntags, nentries));
+            }
+            WeightPrecision precision = WeightPrecision.values()[p];
+            int tagLimit = header.getInt();
+            header.getInt();
+            double minWeight = header.getDouble();
+            long fingerprint = header.getLong();
+
+            long pos = HEADER_SIZE;
+            long itemBytes = padded(8L * nitems);
+            long offsetBytes = padded(4L * (nitems + 1));
+            long tagBytes = padded(4L * nentries);
+            long weightBytes = padded((long) precision.getEntryBytes() * nentries);
+            long scaleBytes = precision == WeightPrecision.INT8 ? padded(4L * nitems) : 0;
+            if (size < pos + itemBytes + offsetBytes + tagBytes + weightBytes + scaleBytes) {
+                throw new IOException(file + ": file truncated");
+            }
+            LongBuffer items = map(chan, pos, 8L * nitems).asLongBuffer();
+            pos += itemBytes;
+            IntBuffer offsets = map(chan, pos, 4L * (nitems + 1)).asIntBuffer();
+            if (offsets.get(0) != 0 || offsets.get(nitems) != nentries) {
+                throw new IOException(String.format("%s: row offsets run from %d to %d, not 0 to %d",
+                                                    file, offsets.get(0), offsets.get(nitems),
+                                                    nentries));
+            }
+            pos += offsetBytes;
+            IntBuffer tags = map(chan, pos, 4L * nentries).asIntBuffer();
+            pos += tagBytes;
+            ByteBuffer weights = map(chan, pos, (long) precision.getEntryBytes() * nentries);
+            pos += weightBytes;
+            FloatBuffer scales = null;
+            if (precision == WeightPrecision.INT8) {
+                scales = map(chan, pos, 4L * nitems).asFloatBuffer();
+                pos += scaleBytes;
+            }
+
+            // the tag dictionary is small next to the vectors, so read it onto the heap
+            ByteBuffer tagData = map(chan, pos, size - pos);
+            Map<String,Long> tagIds = Maps.newHashMapWithExpectedSize(ntags);
+            for (int i = 0; i < ntags; i++) {
+                if (tagData.remaining() < 4) {
+                    throw new IOException(file + ": tag dictionary truncated at tag " + i);
+                }
+                int length = tagData.getInt();
+                if (length < 0 || length > tagData.remaining()) {
+                    throw new IOException(String.format("%s: invalid length %d for tag %d",
+                                                        file, length, i));
+                }
+                byte[] bytes = new byte[length];
+                tagData.get(bytes);
+                tagIds.put(new String(bytes, UTF8), i + 1L);
+            }
+
+            TFIDFModel model;
+            switch (precision) {
+            case FLOAT:
+                model = new TFIDFModel(tagIds, items, offsets, tags, weights.asFloatBuffer());
+                break;
+            case INT8:
+                model = new TFIDFModel(tagIds, items, offsets, tags, weights, scales);
+                break;
+            default:
+                model = new TFIDFModel(tagIds, items, offsets, tags, weights.asDoubleBuffer());
+            }
+            model = model.withPruningSettings(tagLimit, minWeight);
+            model.setStoredFingerprint(fingerprint);
+            return model;
+        } finally {
+            // closing the channel does not invalidate the mappings
+            raf.close();
+        }
+    }
+
+    private static ByteBuffer map(FileChannel chan, long pos, long size) throws IOException {
+        MappedByteBuffer buf = chan.map(FileChannel.MapMode.READ_ONLY, pos, size);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        return buf;
+    }
+
+    private static long padded(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    /**
+     * Buffered little-endian writer that tracks its position for padding.  Other mapped files,
+     * such as {@linkplain TagItemIndex tag index} files, are written with it too.
+     */
+    static class SectionWriter {
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private long position;
+
+        SectionWriter(FileChannel chan) {
+            channel = chan;
+            buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        private void ensure(int n) throws IOException {
+            if (buffer.remaining() < n) {
+                flush();
+            }
+        }
+
+        void putInt(int v) throws IOException {
+            ensure(4);
+            buffer.putInt(v);
+            position += 4;
+        }
+
+        void putLong(long v) throws IOException {
+            ensure(8);
+            buffer.putLong(v);
+            position += 8;
+        }
+
+        void putFloat(float v) throws IOException {
+            ensure(4);
+            buffer.putFloat(v);
+            position += 4;
+        }
+
+        void putByte(byte v) throws IOException {
+            ensure(1);
+            buffer.put(v);
+            position += 1;
+        }
+
+        void putDouble(double v) throws IOException {
+            ensure(8);
+            buffer.putDouble(v);
+            position += 8;
+        }
+
+        void putBytes(byte[] bytes) throws IOException {
+            int off = 0;
+            while (off < bytes.length) {
+                ensure(1);
+                int n = Math.min(buffer.remaining(), bytes.length - off);
+                buffer.put(bytes, off, n);
+                off += n;
+            }
+            position += bytes.length;
+        }
+
+        void pad() throws IOException {
+            while (position % 8 != 0) {
+                ensure(1);
+                buffer.put((byte) 0);
+                position += 1;
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+    }
+}
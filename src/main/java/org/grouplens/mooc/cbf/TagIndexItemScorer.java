@@ -0,0 +1,129 @@
+package org.grouplens.mooc.cbf;
+
+import it.unimi.dsi.fastutil.longs.LongSortedSet;
+import org.grouplens.lenskit.basic.AbstractItemScorer;
+import org.grouplens.lenskit.vectors.MutableSparseVector;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.lenskit.vectors.VectorEntry;
+import org.grouplens.mooc.cbf.metrics.Counter;
+import org.grouplens.mooc.cbf.metrics.Histogram;
+import org.grouplens.mooc.cbf.metrics.Metrics;
+
+import javax.annotation.Nonnull;
+import javax.inject.Inject;
+
+/**
+ * Item scorer that only scores the items sharing a tag with the user's profile.  Rather than
+ * computing a cosine for every item, it walks the {@linkplain TagItemIndex posting lists} of the
+ * profile's non-zero tags to find the items they reach, so the work is proportional to the
+ * postings and candidate rows touched rather than the size of the catalog.  The candidates are
+ * marked in a per-thread {@linkplain TagScratch scratch array} over items, which is cleared by
+ * visiting only the items reached.
+ * <p>
+ * Each candidate is scored with {@link TFIDFModel#dot(int, double[])}, the kernel
+ * {@link TFIDFItemScorer} uses, so candidates get exactly the same scores as from it at every
+ * {@linkplain WeightPrecision weight precision}.  Items that share no tag with the profile have a
+ * cosine of 0; this scorer leaves them unscored, so a recommender only ranks the candidates.  User
+ * profiles come from the {@link TFIDFItemScorer}, and share its cache.
+ * Request times are recorded in the {@linkplain Metrics metric} {@code tagIndex.score}, and the
+ * number of items reached in {@code tagIndex.itemsScored}.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class TagIndexItemScorer extends AbstractItemScorer {
+    private static final Histogram scoreTimer = Metrics.timer("tagIndex.score");
+    private static final Counter itemsScored = Metrics.counter("tagIndex.itemsScored");
+
+    private final TFIDFItemScorer profiles;
+    private final TFIDFModel model;
+    private final TagItemIndex index;
+
+    /**
+     * Construct a new item scorer.
+     *
+     * @param profiles The TF-IDF scorer, used to build user profiles.
+     * @param m        The TF-IDF model.
+     * @param idx      The inverted index over the model.
+     */
+    @Inject
+    public TagIndexItemScorer(TFIDFItemScorer profiles, TFIDFModel m, TagItemIndex idx) {
+        this.profiles = profiles;
+        model = m;
+        index = idx;
+    }
+
+    /**
+     * Get the TF-IDF scorer this scorer takes its user profiles from.
+     *
+     * @return The profile scorer.
+     */
+    public TFIDFItemScorer getProfileScorer() {
+        return profiles;
+    }
+
+    @Override
+    public void score(long user, @Nonnull MutableSparseVector output) {
+        long start = System.nanoTime();
+        SparseVector userVector = profiles.makeUserVector(user);
+        double userNorm = userVector.norm();
+        if (userNorm == 0) {
+            scoreTimer.recordSince(start);
+            return;
+        }
+
+        // mark the items the posting lists reach in the thread's item scratch, which remembers
+        // them, so neither marking nor clearing it visits the whole catalog
+        int nitems = model.getItemCount();
+        TagScratch profileScratch = TagScratch.acquire(model.getTagCount());
+        TagScratch scratch = TagScratch.acquireItems(nitems);
+        int ntouched;
+        try {
+            for (VectorEntry e: userVector.fast()) {
+                if (e.getValue() == 0) {
+                    continue;
+                }
+                int tag = (int) e.getKey() - 1;
+                int end = index.getPostingEnd(tag);
+                for (int i = index.getPostingStart(tag); i < end; i++) {
+                    scratch.touch(index.getItemIndex(i));
+                }
+            }
+            ntouched = scratch.touchedCount();
+
+            // score the candidates against the spread profile, as TFIDFItemScorer does
+            profileScratch.spread(userVector);
+            double[] profile = profileScratch.values();
+            LongSortedSet domain = output.keyDomain();
+            if (ntouched < domain.size() / 8) {
+                // few candidates: look each one up in the output
+                for (int j = 0; j < ntouched; j++) {
+                    int item = scratch.touchedIndex(j);
+                    long id = model.getItemId(item);
+                    if (domain.contains(id)) {
+                        output.set(id, model.dot(item, profile) / userNorm);
+                    }
+                }
+            } else {
+                // most of the catalog was reached: merge the output with the (sorted) model items
+                int item = 0;
+                for (VectorEntry e: output.fast(VectorEntry.State.EITHER)) {
+                    long id = e.getKey();
+                    while (item < nitems && model.getItemId(item) < id) {
+                        item++;
+                    }
+                    if (item == nitems) {
+                        break;
+                    }
+                    if (scratch.isTouched(item) && model.getItemId(item) == id) {
+                        output.set(e, model.dot(item, profile) / userNorm);
+                    }
+                }
+            }
+        } finally {
+            scratch.release();
+            profileScratch.release();
+        }
+        itemsScored.add(ntouched);
+        scoreTimer.recordSince(start);
+    }
+}
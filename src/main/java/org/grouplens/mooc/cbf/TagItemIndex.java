@@ -0,0 +1,318 @@
+package org.grouplens.mooc.cbf;
+
+import org.grouplens.grapht.annotation.DefaultProvider;
+import org.grouplens.lenskit.core.Shareable;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
+import java.io.RandomAccessFile;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Inverted index from tags to the items that carry them.  This is the transpose of the
+ * {@linkplain TFIDFModel model}: tag <var>t</var>'s posting list occupies positions
+ * {@link #getPostingStart(int) getPostingStart(t)} (inclusive) through
+ * {@link #getPostingEnd(int) getPostingEnd(t)} (exclusive), and each posting holds the
+ * {@linkplain TFIDFModel#getItemIndex(long) model index} of an item and the position of the
+ * item's entry for the tag in the model.  Postings are sorted by item index.
+ * <p>
+ * The index does not copy the weights: a posting's weight is read from the model with
+ * {@link TFIDFModel#getWeight(int, int) model.getWeight(getItemIndex(p), getEntry(p))}, so it is
+ * the weight as stored, whatever the model's precision.  Like the model, the index is held in NIO
+ * buffers, so it can be memory-mapped from a file (see {@link #write(File)} and
+ * {@link #open(File)}) instead of being rebuilt on every start.  The file records the
+ * {@linkplain TFIDFModel#getFingerprint() fingerprint} of the model it was built from.
+ * <p>
+ * The file is little-endian: a header of magic number, format version, tag count and posting count
+ * ({@code int}s) and the model fingerprint ({@code long}), then the posting offsets
+ * ({@code int[tag count + 1]}), item indexes and entry positions ({@code int[posting count]} each)
+ * and the largest weight of each tag ({@code double[tag count]}), each padded to 8 bytes.
+ *
+ * @see TagItemIndexBuilder
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+@Shareable
+@DefaultProvider(TagItemIndexBuilder.class)
+public class TagItemIndex implements Serializable {
+    private static final long serialVersionUID = 2L;
+    static final int MAGIC = 0x54494458;
+    static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+
+    private final IntBuffer postingOffsets;
+    private final IntBuffer itemIndexes;
+    private final IntBuffer entries;
+    private final DoubleBuffer maxWeights;
+    private final long modelFingerprint;
+
+    /**
+     * Construct an index.  This is package-private; indexes are built with the
+     * {@linkplain TagItemIndexBuilder index builder}.
+     *
+     * @param postingOffsets The start of each tag's posting list, followed by the total number of
+     *                       postings.
+     * @param itemIndexes    The item index of each posting.
+     * @param entries        The model entry position of each posting.
+     * @param maxWeights     The largest weight in each tag's posting list.
+     * @param fingerprint    The fingerprint of the model the index was built from.
+     */
+    TagItemIndex(int[] postingOffsets, int[] itemIndexes, int[] entries, double[] maxWeights,
+                 long fingerprint) {
+        this(IntBuffer.wrap(postingOffsets), IntBuffer.wrap(itemIndexes), IntBuffer.wrap(entries),
+             DoubleBuffer.wrap(maxWeights), fingerprint);
+    }
+
+    private TagItemIndex(IntBuffer postingOffsets, IntBuffer itemIndexes, IntBuffer entries,
+                         DoubleBuffer maxWeights, long fingerprint) {
+        assert itemIndexes.limit() == entries.limit();
+        assert maxWeights.limit() == postingOffsets.limit() - 1;
+        this.postingOffsets = postingOffsets;
+        this.itemIndexes = itemIndexes;
+        this.entries = entries;
+        this.maxWeights = maxWeights;
+        modelFingerprint = fingerprint;
+    }
+
+    /**
+     * Query whether this index was built from a model.
+     *
+     * @param model The model.
+     * @return {@code true} if the index was built from a model with the same item vectors.
+     */
+    public boolean matches(TFIDFModel model) {
+        return getTagCount() == model.getTagCount()
+               && getPostingCount() == model.getEntryCount()
+               && modelFingerprint == model.getFingerprint();
+    }
+
+    /**
+     * Get the number of tags in the index.
+     *
+     * @return The number of tags.
+     */
+    public int getTagCount() {
+        return postingOffsets.limit() - 1;
+    }
+
+    /**
+     * Get the number of postings in the index.
+     *
+     * @return The number of postings (the model's entry count).
+     */
+    public int getPostingCount() {
+        return itemIndexes.limit();
+    }
+
+    /**
+     * Get the first position of a tag's posting list.
+     *
+     * @param tag The tag index (tag ID - 1).
+     * @return The position of the tag's first posting.
+     */
+    public int getPostingStart(int tag) {
+        return postingOffsets.get(tag);
+    }
+
+    /**
+     * Get the end of a tag's posting list.
+     *
+     * @param tag The tag index (tag ID - 1).
+     * @return The position after the tag's last posting.
+     */
+    public int getPostingEnd(int tag) {
+        return postingOffsets.get(tag + 1);
+    }
+
+    /**
+     * Get the largest weight in a tag's posting list.  This bounds the tag's contribution to any
+     * item's score.
+     *
+     * @param tag The tag index (tag ID - 1).
+     * @return The tag's largest weight, or 0 if no item has the tag.
+     */
+    public double getMaxWeight(int tag) {
+        return maxWeights.get(tag);
+    }
+
+    /**
+     * Get the item of a posting.
+     *
+     * @param pos The posting position.
+     * @return The model index of the posting's item.
+     */
+    public int getItemIndex(int pos) {
+        return itemIndexes.get(pos);
+    }
+
+    /**
+     * Get the model entry of a posting.
+     *
+     * @param pos The posting position.
+     * @return The position of the item's entry for the tag in the model's rows.
+     */
+    public int getEntry(int pos) {
+        return entries.get(pos);
+    }
+
+    /**
+     * Write the index to a file.  The index is written to a new temporary file in the same
+     * directory that is then renamed, so readers never see a partial index.
+     *
+     * @param file The file.
+     * @throws IOException if there is an error writing the file.
+     */
+    public void write(File file) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        File tmp = File.createTempFile(file.getName() + ".", ".tmp", dir);
+        boolean written = false;
+        try {
+            writeIndex(tmp);
+            written = tmp.renameTo(file);
+        } finally {
+            if (!written) {
+                tmp.delete();
+            }
+        }
+        if (!written) {
+            throw new IOException("cannot move tag index into place at " + file);
+        }
+    }
+
+    private void writeIndex(File tmp) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+        try {
+            TFIDFModelFile.SectionWriter out = new TFIDFModelFile.SectionWriter(raf.getChannel());
+            out.putInt(MAGIC);
+            out.putInt(VERSION);
+            out.putInt(getTagCount());
+            out.putInt(getPostingCount());
+            out.putLong(modelFingerprint);
+            for (IntBuffer section: new IntBuffer[]{postingOffsets, itemIndexes, entries}) {
+                IntBuffer values = section.duplicate();
+                while (values.hasRemaining()) {
+                    out.putInt(values.get());
+                }
+                out.pad();
+            }
+            DoubleBuffer weights = maxWeights.duplicate();
+            while (weights.hasRemaining()) {
+                out.putDouble(weights.get());
+            }
+            out.flush();
+            raf.getChannel().force(true);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Open an index file.  The index is memory-mapped, not read.
+     *
+     * @param file The file.
+     * @return The index.
+     * @throws IOException if there is an error reading the file, or it is not a tag index file.
+     */
+    public static TagItemIndex open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel chan = raf.getChannel();
+            long size = chan.size();
+            if (size < HEADER_SIZE) {
+                throw new IOException(file + ": file too short for a tag index header");
+            }
+            ByteBuffer header = map(chan, 0, HEADER_SIZE);
+            if (header.getInt() != MAGIC) {
+                throw new IOException(file + ": not a tag index file");
+            }
+            int version = header.getInt();
+            if (version != VERSION) {
+                throw new IOException(file + ": unsupported tag index file version " + version);
+            }
+            int ntags = header.getInt();
+            int npostings = header.getInt();
+            long fingerprint = header.getLong();
+            if (ntags < 0 || npostings < 0) {
+                throw new IOException(file + ": invalid tag index header");
+            }
+
+            long pos = HEADER_SIZE;
+            long offsetBytes = padded(4L * (ntags + 1));
+            long postingBytes = padded(4L * npostings);
+            if (size < pos + offsetBytes + 2 * postingBytes + 8L * ntags) {
+                throw new IOException(file + ": file truncated");
+            }
+            IntBuffer offsets = map(chan, pos, 4L * (ntags + 1)).asIntBuffer();
+            pos += offsetBytes;
+            IntBuffer items = map(chan, pos, 4L * npostings).asIntBuffer();
+            pos += postingBytes;
+            IntBuffer entries = map(chan, pos, 4L * npostings).asIntBuffer();
+            pos += postingBytes;
+            DoubleBuffer maxWeights = map(chan, pos, 8L * ntags).asDoubleBuffer();
+            return new TagItemIndex(offsets, items, entries, maxWeights, fingerprint);
+        } finally {
+            // closing the channel does not invalidate the mappings
+            raf.close();
+        }
+    }
+
+    private static ByteBuffer map(FileChannel chan, long pos, long size) throws IOException {
+        MappedByteBuffer buf = chan.map(FileChannel.MapMode.READ_ONLY, pos, size);
+        buf.order(ByteOrder.LITTLE_ENDIAN);
+        return buf;
+    }
+
+    private static long padded(long size) {
+        return (size + 7) & ~7L;
+    }
+
+    /**
+     * Buffers are not serializable, so the index is serialized as plain arrays.
+     *
+     * @return The serialized form of this index.
+     */
+    private Object writeReplace() {
+        return new SerializedForm(this);
+    }
+
+    private void readObject(ObjectInputStream in) throws InvalidObjectException {
+        throw new InvalidObjectException("tag indexes must be read through their serialized form");
+    }
+
+    /**
+     * Serialized form of a tag index.
+     */
+    private static class SerializedForm implements Serializable {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] postingOffsets;
+        private final int[] itemIndexes;
+        private final int[] entries;
+        private final double[] maxWeights;
+        private final long modelFingerprint;
+
+        SerializedForm(TagItemIndex index) {
+            postingOffsets = new int[index.postingOffsets.limit()];
+            index.postingOffsets.duplicate().get(postingOffsets);
+            itemIndexes = new int[index.itemIndexes.limit()];
+            index.itemIndexes.duplicate().get(itemIndexes);
+            entries = new int[index.entries.limit()];
+            index.entries.duplicate().get(entries);
+            maxWeights = new double[index.maxWeights.limit()];
+            index.maxWeights.duplicate().get(maxWeights);
+            modelFingerprint = index.modelFingerprint;
+        }
+
+        private Object readResolve() {
+            return new TagItemIndex(postingOffsets, itemIndexes, entries, maxWeights,
+                                    modelFingerprint);
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package org.grouplens.mooc.cbf;
+
+import org.grouplens.lenskit.core.Transient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nullable;
+import javax.inject.Inject;
+import javax.inject.Provider;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Builder for the tag-item inverted index.  It transposes the model's item rows into tag posting
+ * lists with a counting sort, so it takes time linear in the size of the model.
+ * <p>
+ * If a {@linkplain ModelFile model file} is configured, the index is kept next to the model's
+ * file (see {@link #indexFile(File)}) and memory-mapped from it on later starts, as long as it was
+ * built from the same model.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class TagItemIndexBuilder implements Provider<TagItemIndex> {
+    private static final Logger logger = LoggerFactory.getLogger(TagItemIndexBuilder.class);
+
+    private final TFIDFModel model;
+    @Nullable
+    private final File indexFile;
+
+    /**
+     * Construct an index builder that does not keep the index in a file.
+     *
+     * @param model The TF-IDF model.
+     */
+    public TagItemIndexBuilder(TFIDFModel model) {
+        this(model, null);
+    }
+
+    /**
+     * Construct an index builder.
+     *
+     * @param model The TF-IDF model.
+     * @param file  The configured model file, if any.  The index is kept next to the file of the
+     *              model's {@linkplain TFIDFModelBuilder#variantFile variant}.
+     */
+    @Inject
+    public TagItemIndexBuilder(@Transient TFIDFModel model, @ModelFile @Nullable File file) {
+        this.model = model;
+        indexFile = file == null
+                ? null
+                : indexFile(TFIDFModelBuilder.variantFile(file, model.getPrecision(),
+                                                          model.getItemTagLimit(),
+                                                          model.getMinItemWeight()));
+    }
+
+    /**
+     * Get the index file for a model file.
+     *
+     * @param modelFile The model file.
+     * @return The file to keep the model's tag index in ({@code .index} appended to its name).
+     */
+    public static File indexFile(File modelFile) {
+        return new File(modelFile.getPath() + ".index");
+    }
+
+    /**
+     * Get the index.  If an index file exists and was built from this model, it is opened instead
+     * of building the index; otherwise the index is built, and written to the index file if there
+     * is one.
+     *
+     * @return The tag-item index.
+     */
+    @Override
+    public TagItemIndex get() {
+        if (indexFile != null && indexFile.isFile()) {
+            try {
+                TagItemIndex index = TagItemIndex.open(indexFile);
+                if (index.matches(model)) {
+                    logger.info("opened tag index {}", indexFile);
+                    return index;
+                }
+                logger.info("tag index {} does not match the model, rebuilding", indexFile);
+            } catch (IOException e) {
+                logger.warn("cannot open tag index {}, rebuilding: {}", indexFile, e.getMessage());
+            }
+        }
+
+        TagItemIndex index = buildIndex();
+        if (indexFile != null) {
+            try {
+                index.write(indexFile);
+                logger.info("wrote tag index to {}", indexFile);
+            } catch (IOException e) {
+                logger.warn("cannot write tag index {}: {}", indexFile, e.getMessage());
+            }
+        }
+        return index;
+    }
+
+    TagItemIndex buildIndex() {
+        long start = System.nanoTime();
+        int ntags = model.getTagCount();
+        int nitems = model.getItemCount();
+        int nentries = model.getEntryCount();
+
+        // count each tag's postings, then turn the counts into offsets
+        int[] offsets = new int[ntags + 1];
+        for (int i = 0; i < nentries; i++) {
+            offsets[model.getTagIndex(i) + 1] += 1;
+        }
+        for (int t = 0; t < ntags; t++) {
+            offsets[t + 1] += offsets[t];
+        }
+
+        // scatter the entries; items are visited in order, so each posting list comes out sorted
+        int[] next = new int[ntags];
+        System.arraycopy(offsets, 0, next, 0, ntags);
+        int[] items = new int[nentries];
+        int[] entries = new int[nentries];
+        double[] maxWeights = new double[ntags];
+        for (int idx = 0; idx < nitems; idx++) {
+            int end = model.getRowEnd(idx);
+            for (int i = model.getRowStart(idx); i < end; i++) {
+                int tag = model.getTagIndex(i);
+                int pos = next[tag]++;
+                items[pos] = idx;
+                entries[pos] = i;
+                maxWeights[tag] = Math.max(maxWeights[tag], model.getWeight(idx, i));
+            }
+        }
+
+        logger.info("built tag index of {} postings in {} ms",
+                    nentries, (System.nanoTime() - start) / 1000000);
+        return new TagItemIndex(offsets, items, entries, maxWeights, model.getFingerprint());
+    }
+}
@@ -0,0 +1,164 @@
+package org.grouplens.mooc.cbf;
+
+import org.grouplens.lenskit.vectors.MutableSparseVector;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.lenskit.vectors.VectorEntry;
+
+import java.util.Arrays;
+
+/**
+ * A dense array over tag indexes, reused by the requests on one thread.  It records which tags it
+ * has touched, so clearing it costs time proportional to those tags rather than to the vocabulary.
+ * Scorers {@linkplain #acquire(int) acquire} the current thread's scratch, fill it, and
+ * {@linkplain #release() release} it (leaving it cleared) when done.  If the thread's scratch is
+ * already in use, a fresh one is handed out, so nested uses are safe.
+ * <p>
+ * Each thread also has a second scratch, {@linkplain #acquireItems(int) acquired} separately, for
+ * accumulating values over item indexes; it can be held while the tag scratch is in use.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+final class TagScratch {
+    private static final ThreadLocal<TagScratch> current = new ThreadLocal<TagScratch>();
+    private static final ThreadLocal<TagScratch> currentItems = new ThreadLocal<TagScratch>();
+
+    private double[] values;
+    private boolean[] marked;
+    private int[] touched;
+    private int ntouched;
+    private boolean inUse;
+
+    private TagScratch(int size) {
+        values = new double[size];
+        marked = new boolean[size];
+        touched = new int[size];
+    }
+
+    /**
+     * Get the current thread's scratch array, with all values 0.
+     *
+     * @param size The number of tags.
+     * @return The scratch array, which must be released after use.
+     */
+    static TagScratch acquire(int size) {
+        return acquire(current, size);
+    }
+
+    /**
+     * Get the current thread's scratch array over items, with all values 0.
+     *
+     * @param size The number of items.
+     * @return The scratch array, which must be released after use.
+     */
+    static TagScratch acquireItems(int size) {
+        return acquire(currentItems, size);
+    }
+
+    private static TagScratch acquire(ThreadLocal<TagScratch> slot, int size) {
+        TagScratch scratch = slot.get();
+        if (scratch == null) {
+            scratch = new TagScratch(size);
+            slot.set(scratch);
+        } else if (scratch.inUse) {
+            return new TagScratch(size);
+        } else if (scratch.values.length < size) {
+            scratch.values = new double[size];
+            scratch.marked = new boolean[size];
+            scratch.touched = new int[size];
+        }
+        scratch.inUse = true;
+        return scratch;
+    }
+
+    /**
+     * Clear the array and return it to the thread.
+     */
+    void release() {
+        for (int i = 0; i < ntouched; i++) {
+            values[touched[i]] = 0;
+            marked[touched[i]] = false;
+        }
+        ntouched = 0;
+        inUse = false;
+    }
+
+    /**
+     * Get the values.  Entries for tags that have not been {@linkplain #touch(int) touched} are 0;
+     * callers must touch a tag before setting its value.
+     *
+     * @return The value array (which may be longer than the number of tags).
+     */
+    double[] values() {
+        return values;
+    }
+
+    /**
+     * Record that a tag's value is about to be set.
+     *
+     * @param tag The tag index.
+     */
+    void touch(int tag) {
+        if (!marked[tag]) {
+            marked[tag] = true;
+            touched[ntouched++] = tag;
+        }
+    }
+
+    /**
+     * Query whether an index has been touched since the scratch was acquired.
+     *
+     * @param i The index.
+     * @return {@code true} if it has been touched.
+     */
+    boolean isTouched(int i) {
+        return marked[i];
+    }
+
+    /**
+     * Get the number of indexes touched since the scratch was acquired.
+     *
+     * @return The number of touched indexes.
+     */
+    int touchedCount() {
+        return ntouched;
+    }
+
+    /**
+     * Get a touched index, in the order they were touched.
+     *
+     * @param j The position, from 0 to {@link #touchedCount()} - 1.
+     * @return The index.
+     */
+    int touchedIndex(int j) {
+        return touched[j];
+    }
+
+    /**
+     * Spread a profile vector over tag IDs into the array.
+     *
+     * @param vector The profile vector.
+     */
+    void spread(SparseVector vector) {
+        for (VectorEntry e: vector.fast()) {
+            int tag = (int) e.getKey() - 1;
+            touch(tag);
+            values[tag] = e.getValue();
+        }
+    }
+
+    /**
+     * Copy the touched tags into a vector over tag IDs.
+     *
+     * @return A new vector with the touched tags' values.
+     */
+    SparseVector toVector() {
+        Arrays.sort(touched, 0, ntouched);
+        long[] keys = new long[ntouched];
+        double[] vals = new double[ntouched];
+        for (int i = 0; i < ntouched; i++) {
+            keys[i] = touched[i] + 1;
+            vals[i] = values[touched[i]];
+        }
+        return MutableSparseVector.wrap(keys, vals).freeze();
+    }
+}
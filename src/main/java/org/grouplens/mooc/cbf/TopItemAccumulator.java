@@ -0,0 +1,153 @@
+package org.grouplens.mooc.cbf;
+
+import org.grouplens.lenskit.scored.ScoredId;
+import org.grouplens.lenskit.scored.ScoredIdListBuilder;
+import org.grouplens.lenskit.scored.ScoredIds;
+
+import java.util.List;
+
+/**
+ * Accumulates the top <var>k</var> items, by model index, in a bounded min-heap.  Ties are broken
+ * in favor of the lower item index (and so the lower item ID), so results do not depend on the
+ * order in which items are offered.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+class TopItemAccumulator {
+    private final int capacity;
+    private final int[] items;
+    private final double[] scores;
+    private int size;
+
+    /**
+     * Create an accumulator.
+     *
+     * @param k The number of items to keep.
+     */
+    TopItemAccumulator(int k) {
+        capacity = k;
+        items = new int[k];
+        scores = new double[k];
+    }
+
+    /**
+     * Query whether the accumulator holds {@code k} items.
+     *
+     * @return {@code true} if the accumulator is full.
+     */
+    boolean isFull() {
+        return size == capacity;
+    }
+
+    /**
+     * Get the number of items in the accumulator.
+     *
+     * @return The number of items held.
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Get the score an item must reach to enter the accumulator.
+     *
+     * @return The lowest score held if the accumulator is full, and negative infinity otherwise.
+     */
+    double threshold() {
+        return size < capacity ? Double.NEGATIVE_INFINITY : scores[0];
+    }
+
+    /**
+     * Offer an item to the accumulator.
+     *
+     * @param item  The item index.
+     * @param score The item's score.
+     */
+    void put(int item, double score) {
+        if (size < capacity) {
+            int i = size++;
+            // sift up
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (!worse(score, item, scores[parent], items[parent])) {
+                    break;
+                }
+                items[i] = items[parent];
+                scores[i] = scores[parent];
+                i = parent;
+            }
+            items[i] = item;
+            scores[i] = score;
+        } else if (capacity > 0 && worse(scores[0], items[0], score, item)) {
+            siftDown(item, score);
+        }
+    }
+
+    /**
+     * Finish accumulating, emptying the accumulator.
+     *
+     * @param model The model, to map item indexes to IDs.
+     * @param scale A factor by which to divide the scores.
+     * @return The items, in decreasing order of score.
+     */
+    List<ScoredId> finish(TFIDFModel model, double scale) {
+        int[] sortedItems = new int[size];
+        double[] sortedScores = new double[size];
+        int n = finish(sortedItems, sortedScores);
+        ScoredIdListBuilder list = ScoredIds.newListBuilder(n);
+        for (int i = 0; i < n; i++) {
+            list.add(model.getItemId(sortedItems[i]), sortedScores[i] / scale);
+        }
+        return list.finish();
+    }
+
+    /**
+     * Finish accumulating, emptying the accumulator into arrays.
+     *
+     * @param sortedItems  The array to receive the item indexes, in decreasing order of score.
+     * @param sortedScores The array to receive the scores.
+     * @return The number of items.
+     */
+    int finish(int[] sortedItems, double[] sortedScores) {
+        int n = size;
+        while (size > 0) {
+            int i = size - 1;
+            sortedItems[i] = items[0];
+            sortedScores[i] = scores[0];
+            size -= 1;
+            if (size > 0) {
+                siftDown(items[size], scores[size]);
+            }
+        }
+        return n;
+    }
+
+    /**
+     * Replace the root with an item and restore the heap.
+     */
+    private void siftDown(int item, double score) {
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && worse(scores[child + 1], items[child + 1],
+                                          scores[child], items[child])) {
+                child += 1;
+            }
+            if (!worse(scores[child], items[child], score, item)) {
+                break;
+            }
+            items[i] = items[child];
+            scores[i] = scores[child];
+            i = child;
+        }
+        items[i] = item;
+        scores[i] = score;
+    }
+
+    private static boolean worse(double s1, int i1, double s2, int i2) {
+        return s1 < s2 || (s1 == s2 && i1 > i2);
+    }
+}
@@ -0,0 +1,58 @@
+package org.grouplens.mooc.cbf;
+
+/**
+ * The precision with which a {@linkplain TFIDFModel TF-IDF model} stores its weights.  Ranking
+ * only needs the order of the scores, so the lower precisions trade a little accuracy for a
+ * smaller model that is faster to score.  {@code WeightPrecisionTest} bounds the accuracy each
+ * precision gives up, and {@code PrecisionBenchmark} in the benchmarks module measures its speed.
+ *
+ * @see ModelPrecision
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public enum WeightPrecision {
+    /**
+     * 64-bit floating point weights.
+     */
+    DOUBLE(8),
+    /**
+     * 32-bit floating point weights.
+     */
+    FLOAT(4),
+    /**
+     * 8-bit signed integer weights, with a scale for each item.  Each item's weights are divided
+     * by its largest weight and rounded to 127ths, so an item's weights keep their relative sizes
+     * to within half a 127th of its largest weight.
+     */
+    INT8(1);
+
+    private final int entryBytes;
+
+    WeightPrecision(int bytes) {
+        entryBytes = bytes;
+    }
+
+    /**
+     * Get the number of bytes each weight takes.
+     *
+     * @return The size of a weight, in bytes.
+     */
+    public int getEntryBytes() {
+        return entryBytes;
+    }
+
+    /**
+     * Parse a precision name, ignoring case.
+     *
+     * @param name The name ({@code double}, {@code float} or {@code int8}).
+     * @return The precision.
+     * @throws IllegalArgumentException if the name is not a precision.
+     */
+    public static WeightPrecision fromName(String name) {
+        for (WeightPrecision p: values()) {
+            if (p.name().equalsIgnoreCase(name)) {
+                return p;
+            }
+        }
+        throw new IllegalArgumentException("unknown weight precision " + name);
+    }
+}
@@ -1,26 +1,42 @@
 package org.grouplens.mooc.cbf.dao;
 
 import com.google.common.collect.ImmutableSet;
+import it.unimi.dsi.fastutil.ints.IntArrayList;
+import it.unimi.dsi.fastutil.ints.IntList;
+import it.unimi.dsi.fastutil.ints.IntLists;
 import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
-import org.grouplens.lenskit.cursors.Cursor;
+import it.unimi.dsi.fastutil.objects.Object2IntMap;
+import it.unimi.dsi.fastutil.objects.Object2IntOpenHashMap;
 import org.grouplens.lenskit.data.dao.DataAccessException;
-import org.grouplens.lenskit.util.DelimitedTextCursor;
+import org.grouplens.mooc.cbf.metrics.Histogram;
+import org.grouplens.mooc.cbf.metrics.Metrics;
 
 import javax.inject.Inject;
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.util.ArrayList;
+import java.util.AbstractList;
 import java.util.Collections;
 import java.util.List;
+import java.util.RandomAccess;
 import java.util.Set;
 
 /**
+ * Item-tag DAO reading a CSV file of item IDs and tags.  The file is read with a
+ * {@linkplain MappedCSVReader memory-mapped reader}, and each distinct tag is decoded and stored
+ * once: items hold the IDs of their tags in a {@link TagDictionary}.  Tag IDs are assigned in the
+ * order tags first appear in the file.  The time to load the file is recorded in the
+ * {@linkplain Metrics metric} {@code dao.tags.load}.
+ *
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  */
-public class CSVItemTagDAO extends MOOCItemDAO implements ItemTagDAO {
+public class CSVItemTagDAO extends MOOCItemDAO implements EncodedItemTagDAO {
+    private static final Histogram loadTimer = Metrics.timer("dao.tags.load");
+
     private final File tagFile;
-    private transient volatile Long2ObjectMap<List<String>> tagCache;
+    private transient volatile Long2ObjectMap<int[]> tagCache;
+    private transient volatile String[] tagNames;
+    private transient volatile Object2IntMap<String> tagIds;
     private transient volatile Set<String> vocabCache;
 
     @Inject
@@ -33,40 +49,60 @@ public class CSVItemTagDAO extends MOOCItemDAO implements ItemTagDAO {
         if (tagCache == null) {
             synchronized (this) {
                 if (tagCache == null) {
-                    tagCache = new Long2ObjectOpenHashMap<List<String>>();
-                    ImmutableSet.Builder<String> vocabBuilder = ImmutableSet.builder();
-                    Cursor<String[]> lines = null;
-                    try {
-                        lines = new DelimitedTextCursor(tagFile, ",");
-                    } catch (FileNotFoundException e) {
-                        throw new DataAccessException("cannot open file", e);
-                    }
-                    try {
-                        for (String[] line: lines) {
-                            long mid = Long.parseLong(line[0]);
-                            List<String> tags = tagCache.get(mid);
-                            if (tags == null) {
-                                tags = new ArrayList<String>();
-                                tagCache.put(mid, tags);
-                            }
-                            tags.add(line[1]);
-                            vocabBuilder.add(line[1]);
-                        }
-                    } finally {
-                        lines.close();
-                    }
-                    vocabCache = vocabBuilder.build();
+                    long start = System.nanoTime();
+                    loadTagCache();
+                    loadTimer.recordSince(start);
+                }
+            }
+        }
+    }
+
+    private void loadTagCache() {
+        Long2ObjectMap<IntArrayList> itemTags = new Long2ObjectOpenHashMap<IntArrayList>();
+        MappedCSVReader reader;
+        try {
+            reader = new MappedCSVReader(tagFile, ',');
+        } catch (FileNotFoundException e) {
+            throw new DataAccessException("cannot open file", e);
+        }
+        TagDictionary dict = new TagDictionary(reader.getCharset());
+        try {
+            while (reader.nextLine()) {
+                long mid = reader.parseLong(0);
+                IntArrayList tags = itemTags.get(mid);
+                if (tags == null) {
+                    tags = new IntArrayList(4);
+                    itemTags.put(mid, tags);
                 }
+                tags.add(reader.internField(1, dict));
             }
+        } finally {
+            reader.close();
+        }
+
+        Long2ObjectMap<int[]> cache = new Long2ObjectOpenHashMap<int[]>(itemTags.size());
+        for (Long2ObjectMap.Entry<IntArrayList> e: itemTags.long2ObjectEntrySet()) {
+            cache.put(e.getLongKey(), e.getValue().toIntArray());
+        }
+        String[] names = dict.toArray();
+        Object2IntMap<String> ids = new Object2IntOpenHashMap<String>(names.length);
+        ids.defaultReturnValue(-1);
+        for (int i = 0; i < names.length; i++) {
+            ids.put(names[i], i);
         }
+        tagNames = names;
+        tagIds = ids;
+        vocabCache = ImmutableSet.copyOf(names);
+        // publish the cache last, so other threads never see it before the tags
+        tagCache = cache;
     }
 
     @Override
     public List<String> getItemTags(long item) {
         ensureTagCache();
-        List<String> tags = tagCache.get(item);
+        int[] tags = tagCache.get(item);
         if (tags != null) {
-            return Collections.unmodifiableList(tags);
+            return new TagList(tags, tagNames);
         } else {
             return Collections.emptyList();
         }
@@ -77,4 +113,56 @@ public class CSVItemTagDAO extends MOOCItemDAO implements ItemTagDAO {
         ensureTagCache();
         return vocabCache;
     }
+
+    @Override
+    public IntList getItemTagIds(long item) {
+        ensureTagCache();
+        int[] tags = tagCache.get(item);
+        if (tags != null) {
+            return IntLists.unmodifiable(IntArrayList.wrap(tags));
+        } else {
+            return IntLists.EMPTY_LIST;
+        }
+    }
+
+    @Override
+    public int getTagCount() {
+        ensureTagCache();
+        return tagNames.length;
+    }
+
+    @Override
+    public String getTag(int id) {
+        ensureTagCache();
+        return tagNames[id];
+    }
+
+    @Override
+    public int getTagId(String tag) {
+        ensureTagCache();
+        return tagIds.getInt(tag);
+    }
+
+    /**
+     * Read-only view of an item's tags, from their IDs.
+     */
+    private static class TagList extends AbstractList<String> implements RandomAccess {
+        private final int[] tags;
+        private final String[] names;
+
+        TagList(int[] tags, String[] names) {
+            this.tags = tags;
+            this.names = names;
+        }
+
+        @Override
+        public String get(int index) {
+            return names[tags[index]];
+        }
+
+        @Override
+        public int size() {
+            return tags.length;
+        }
+    }
 }
@@ -0,0 +1,42 @@
+package org.grouplens.mooc.cbf.dao;
+
+import it.unimi.dsi.fastutil.ints.IntList;
+
+/**
+ * Item-tag DAO that stores tags in a dictionary, and can return each item's tags as dictionary
+ * IDs without touching the tag strings.  Tag IDs are dense (0 to {@link #getTagCount()} - 1) and
+ * stable for the life of the DAO, and the {@linkplain #getTagVocabulary() vocabulary} iterates in
+ * ID order.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public interface EncodedItemTagDAO extends ItemTagDAO {
+    /**
+     * Get the IDs of the tags for a particular item.  As with {@link #getItemTags(long)}, an ID
+     * appears once for each time its tag was applied to the item.
+     * @param item The item.
+     * @return The item's tag IDs (read-only).
+     */
+    IntList getItemTagIds(long item);
+
+    /**
+     * Get the number of tags in the dictionary.
+     * @return The number of distinct tags.
+     */
+    int getTagCount();
+
+    /**
+     * Get a tag by ID.
+     * @param id The tag ID.
+     * @return The tag.
+     * @throws IndexOutOfBoundsException if there is no tag with that ID.
+     */
+    String getTag(int id);
+
+    /**
+     * Get the ID of a tag.
+     * @param tag The tag.
+     * @return The tag's ID, or -1 if the tag is unknown.
+     */
+    int getTagId(String tag);
+}
@@ -0,0 +1,256 @@
+package org.grouplens.mooc.cbf.dao;
+
+import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
+import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
+import org.grouplens.lenskit.cursors.Cursor;
+import org.grouplens.lenskit.cursors.Cursors;
+import org.grouplens.lenskit.data.dao.DataAccessException;
+import org.grouplens.lenskit.data.dao.EventCollectionDAO;
+import org.grouplens.lenskit.data.dao.EventDAO;
+import org.grouplens.lenskit.data.dao.SortOrder;
+import org.grouplens.lenskit.data.event.Event;
+import org.grouplens.lenskit.data.event.Rating;
+import org.grouplens.lenskit.data.history.History;
+import org.grouplens.lenskit.data.history.UserHistory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.inject.Inject;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Rating DAO that accepts new ratings while the recommender is running.  It starts with the
+ * ratings in the rating file, indexed by user, and {@link #addRating(Rating)} appends to the
+ * index; a {@link RatingFileTailer} can feed it the lines appended to the rating file after it was
+ * loaded.  Like the tailer, it only reads lines that end with a newline, so a last line still being
+ * written when the file is loaded is left for the tailer.  Unlike
+ * {@link MOOCRatingDAO}, it is its own user-event DAO, so to see new ratings a recommender must
+ * bind {@link org.grouplens.lenskit.data.dao.UserEventDAO} to it (which also binds
+ * {@link EventDAO}); otherwise LensKit prefetches the users' events once.
+ * <p>
+ * Ratings with no preference (un-ratings) are not supported.  Streaming all events copies them,
+ * so it is meant for model building rather than for each request.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class LiveRatingDAO implements EventDAO, LiveUserEventDAO {
+    private static final Logger logger = LoggerFactory.getLogger(LiveRatingDAO.class);
+
+    private final File ratingFile;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private transient volatile Long2ObjectMap<List<Rating>> userRatings;
+    // where loading the file stopped, and the file's key then; set before userRatings
+    private long loadedLength;
+    private Object loadedFileKey;
+
+    @Inject
+    public LiveRatingDAO(@RatingFile File file) {
+        ratingFile = file;
+    }
+
+    /**
+     * Load the rating file if we haven't done so already.
+     */
+    private void ensureRatingIndex() {
+        if (userRatings == null) {
+            synchronized (this) {
+                if (userRatings == null) {
+                    List<Rating> ratings = loadRatings();
+                    Long2ObjectMap<List<Rating>> index = new Long2ObjectOpenHashMap<List<Rating>>();
+                    for (Rating r: ratings) {
+                        append(index, r);
+                    }
+                    userRatings = index;
+                }
+            }
+        }
+    }
+
+    /**
+     * Read the complete lines of the rating file, recording where reading stopped.
+     */
+    private List<Rating> loadRatings() {
+        List<Rating> ratings = new ArrayList<Rating>();
+        try {
+            loadedFileKey = Files.readAttributes(ratingFile.toPath(), BasicFileAttributes.class)
+                                 .fileKey();
+            RandomAccessFile input = new RandomAccessFile(ratingFile, "r");
+            try {
+                loadedLength = RatingFileTailer.readLines(ratingFile, input, 0, ratings);
+                if (loadedLength < input.length()) {
+                    logger.warn("{} does not end with a newline, its last line is unread",
+                                ratingFile);
+                }
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            throw new DataAccessException("cannot read " + ratingFile, e);
+        }
+        return ratings;
+    }
+
+    /**
+     * Get the rating file.
+     */
+    File getRatingFile() {
+        return ratingFile;
+    }
+
+    /**
+     * Get the offset in the rating file where loading it stopped, loading it if necessary.
+     *
+     * @return The offset after the last line loaded.
+     */
+    long getLoadedLength() {
+        ensureRatingIndex();
+        return loadedLength;
+    }
+
+    /**
+     * Get the {@linkplain BasicFileAttributes#fileKey() key} of the rating file when it was
+     * loaded, loading it if necessary.
+     *
+     * @return The file key, or {@code null} if the file system does not have them.
+     */
+    Object getLoadedFileKey() {
+        ensureRatingIndex();
+        return loadedFileKey;
+    }
+
+    private static void append(Long2ObjectMap<List<Rating>> index, Rating r) {
+        List<Rating> list = index.get(r.getUserId());
+        if (list == null) {
+            list = new ArrayList<Rating>();
+            index.put(r.getUserId(), list);
+        }
+        list.add(r);
+    }
+
+    /**
+     * Add a rating.  It is visible to all readers as soon as this method returns.
+     *
+     * @param r The rating.
+     */
+    public void addRating(Rating r) {
+        if (r.getPreference() == null) {
+            throw new IllegalArgumentException("cannot add a rating without a preference");
+        }
+        ensureRatingIndex();
+        lock.writeLock().lock();
+        try {
+            append(userRatings, r);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    @Override
+    public int getRatingCount(long user) {
+        ensureRatingIndex();
+        lock.readLock().lock();
+        try {
+            List<Rating> list = userRatings.get(user);
+            return list == null ? 0 : list.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public List<Rating> getRatingsForUser(long user, int from) {
+        ensureRatingIndex();
+        lock.readLock().lock();
+        try {
+            List<Rating> list = userRatings.get(user);
+            if (list == null || from >= list.size()) {
+                return Collections.emptyList();
+            }
+            return new ArrayList<Rating>(list.subList(from, list.size()));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    @Override
+    public UserHistory<Event> getEventsForUser(long user) {
+        return getEventsForUser(user, Event.class);
+    }
+
+    @Override
+    public <E extends Event> UserHistory<E> getEventsForUser(long user, Class<E> type) {
+        ensureRatingIndex();
+        List<E> events = new ArrayList<E>();
+        lock.readLock().lock();
+        try {
+            List<Rating> list = userRatings.get(user);
+            if (list == null) {
+                return null;
+            }
+            for (Rating r: list) {
+                if (type.isInstance(r)) {
+                    events.add(type.cast(r));
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return History.forUser(user, events);
+    }
+
+    @Override
+    public Cursor<UserHistory<Event>> streamEventsByUser() {
+        ensureRatingIndex();
+        List<UserHistory<Event>> histories = new ArrayList<UserHistory<Event>>();
+        lock.readLock().lock();
+        try {
+            for (Long2ObjectMap.Entry<List<Rating>> e: userRatings.long2ObjectEntrySet()) {
+                histories.add(History.<Event>forUser(e.getLongKey(), new ArrayList<Rating>(e.getValue())));
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return Cursors.wrap(histories);
+    }
+
+    /**
+     * Copy all current ratings into an event collection.
+     */
+    private EventCollectionDAO snapshot() {
+        ensureRatingIndex();
+        List<Rating> all = new ArrayList<Rating>();
+        lock.readLock().lock();
+        try {
+            for (List<Rating> list: userRatings.values()) {
+                all.addAll(list);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return new EventCollectionDAO(all);
+    }
+
+    @Override
+    public Cursor<Event> streamEvents() {
+        return snapshot().streamEvents();
+    }
+
+    @Override
+    public <E extends Event> Cursor<E> streamEvents(Class<E> type) {
+        return snapshot().streamEvents(type);
+    }
+
+    @Override
+    public <E extends Event> Cursor<E> streamEvents(Class<E> type, SortOrder order) {
+        return snapshot().streamEvents(type, order);
+    }
+}
@@ -0,0 +1,31 @@
+package org.grouplens.mooc.cbf.dao;
+
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.data.event.Rating;
+
+import java.util.List;
+
+/**
+ * User-event DAO whose ratings can grow while it is in use.  Ratings are only ever appended, so a
+ * component that has seen a user's first <var>n</var> ratings can catch up by fetching the ratings
+ * after them, instead of re-reading the user's whole history.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public interface LiveUserEventDAO extends UserEventDAO {
+    /**
+     * Get the number of ratings a user has.
+     * @param user The user ID.
+     * @return The number of ratings the user has made so far (0 for an unknown user).
+     */
+    int getRatingCount(long user);
+
+    /**
+     * Get a user's ratings from a position in their history onwards.  Positions count ratings in
+     * the order they were added, from 0.
+     * @param user The user ID.
+     * @param from The position of the first rating to return.
+     * @return The user's ratings from position {@code from} on, in the order they were added.
+     */
+    List<Rating> getRatingsForUser(long user, int from);
+}
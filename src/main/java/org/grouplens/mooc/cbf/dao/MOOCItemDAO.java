@@ -4,9 +4,7 @@ import it.unimi.dsi.fastutil.longs.Long2ObjectMap;
 import it.unimi.dsi.fastutil.longs.Long2ObjectOpenHashMap;
 import it.unimi.dsi.fastutil.longs.LongSet;
 import it.unimi.dsi.fastutil.longs.LongSets;
-import org.grouplens.lenskit.cursors.Cursor;
 import org.grouplens.lenskit.data.dao.DataAccessException;
-import org.grouplens.lenskit.util.DelimitedTextCursor;
 
 import javax.inject.Inject;
 import java.io.File;
@@ -36,19 +34,19 @@ public class MOOCItemDAO implements ItemTitleDAO {
 
     private Long2ObjectMap<String> loadTitleCache() {
         Long2ObjectMap<String> cache = new Long2ObjectOpenHashMap<String>();
-        Cursor<String[]> lines = null;
+        MappedCSVReader reader;
         try {
-            lines = new DelimitedTextCursor(titleFile, ",");
+            reader = new MappedCSVReader(titleFile, ',');
         } catch (FileNotFoundException e) {
             throw new DataAccessException("cannot open file", e);
         }
         try {
-            for (String[] line: lines) {
-                long mid = Long.parseLong(line[0]);
-                cache.put(mid, line[1]);
+            while (reader.nextLine()) {
+                long mid = reader.parseLong(0);
+                cache.put(mid, reader.getString(1));
             }
         } finally {
-            lines.close();
+            reader.close();
         }
         return cache;
     }
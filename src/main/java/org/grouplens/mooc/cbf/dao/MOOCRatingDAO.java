@@ -1,64 +1,282 @@
 package org.grouplens.mooc.cbf.dao;
 
+import it.unimi.dsi.fastutil.floats.FloatArrayList;
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import org.grouplens.lenskit.cursors.AbstractPollingCursor;
 import org.grouplens.lenskit.cursors.Cursor;
 import org.grouplens.lenskit.cursors.Cursors;
+import org.grouplens.lenskit.data.dao.DataAccessException;
 import org.grouplens.lenskit.data.dao.EventCollectionDAO;
 import org.grouplens.lenskit.data.dao.EventDAO;
-import org.grouplens.lenskit.data.dao.SimpleFileRatingDAO;
 import org.grouplens.lenskit.data.dao.SortOrder;
 import org.grouplens.lenskit.data.event.Event;
+import org.grouplens.lenskit.data.event.Rating;
+import org.grouplens.lenskit.data.event.Ratings;
+import org.grouplens.lenskit.data.history.History;
+import org.grouplens.lenskit.data.history.UserHistory;
+import org.grouplens.mooc.cbf.metrics.Histogram;
+import org.grouplens.mooc.cbf.metrics.Metrics;
 
 import javax.inject.Inject;
 import java.io.File;
+import java.io.FileNotFoundException;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.RandomAccess;
 
 /**
- * Customized rating DAO for MOOC ratings.  This just wraps some standard LensKit DAOs in an
- * easy-to-configure interface.
+ * Customized rating DAO for MOOC ratings.  The rating file ({@code user,item,rating}, optionally
+ * followed by a timestamp) is read into columns: the item IDs, rating values and timestamps are
+ * held in primitive arrays, sorted by user with an offset array, so a user's ratings are found with
+ * a binary search over the user IDs and occupy one contiguous range.  Rating events are only
+ * created when they are asked for.  It is its own {@linkplain PackedUserEventDAO user-event DAO};
+ * bind {@link org.grouplens.lenskit.data.dao.UserEventDAO} to it (which also binds
+ * {@link EventDAO}) to use the columns directly.
+ * <p>
+ * Rating values are stored as {@code float}s: a rating's value is {@code (float) v}, where
+ * <var>v</var> is the value in the file.  Ratings on the usual scales (such as half stars) are
+ * exact; others are rounded to about 7 significant digits.
+ * <p>
+ * A user's ratings are in file order.  {@link SortOrder#USER} streams sort them by timestamp
+ * within each user, as LensKit's DAOs do; this costs nothing if the file already has them in
+ * that order.
+ * <p>
+ * The time to load the file is recorded in the {@linkplain Metrics metric}
+ * {@code dao.ratings.load}.
  *
- * @see org.grouplens.lenskit.data.dao.EventCollectionDAO
- * @see org.grouplens.lenskit.data.dao.SimpleFileRatingDAO
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  */
-public class MOOCRatingDAO implements EventDAO {
-    private final SimpleFileRatingDAO csvDao;
-    private transient volatile EventCollectionDAO cache;
+public class MOOCRatingDAO implements EventDAO, PackedUserEventDAO {
+    private static final Histogram loadTimer = Metrics.timer("dao.ratings.load");
+
+    private final File ratingFile;
+    private transient volatile RatingColumns cache;
 
     @Inject
     public MOOCRatingDAO(@RatingFile File file) {
-        csvDao = new SimpleFileRatingDAO(file, ",");
+        ratingFile = file;
     }
 
     /**
      * Pre-fetch the ratings into memory if we haven't done so already.
      */
-    private void ensureRatingCache() {
-        if (cache == null) {
+    private RatingColumns ensureRatingCache() {
+        RatingColumns cols = cache;
+        if (cols == null) {
             synchronized (this) {
-                if (cache == null) {
-                    cache = new EventCollectionDAO(Cursors.makeList(csvDao.streamEvents()));
+                cols = cache;
+                if (cols == null) {
+                    long start = System.nanoTime();
+                    cols = loadRatings();
+                    cache = cols;
+                    loadTimer.recordSince(start);
+                }
+            }
+        }
+        return cols;
+    }
+
+    private RatingColumns loadRatings() {
+        LongArrayList userCol = new LongArrayList();
+        LongArrayList itemCol = new LongArrayList();
+        FloatArrayList valueCol = new FloatArrayList();
+        LongArrayList timeCol = null;
+        MappedCSVReader reader;
+        try {
+            reader = new MappedCSVReader(ratingFile, ',');
+        } catch (FileNotFoundException e) {
+            throw new DataAccessException("cannot open file", e);
+        }
+        try {
+            while (reader.nextLine()) {
+                userCol.add(reader.parseLong(0));
+                itemCol.add(reader.parseLong(1));
+                valueCol.add((float) reader.parseDouble(2));
+                if (reader.hasField(3)) {
+                    if (timeCol == null) {
+                        // earlier lines had no timestamp
+                        timeCol = new LongArrayList(userCol.size());
+                        timeCol.size(userCol.size() - 1);
+                        Arrays.fill(timeCol.elements(), 0, userCol.size() - 1, -1L);
+                    }
+                    timeCol.add(reader.parseLong(3));
+                } else if (timeCol != null) {
+                    timeCol.add(-1);
                 }
             }
+        } finally {
+            reader.close();
         }
+
+        // group the ratings by user, keeping each user's ratings in file order
+        int n = userCol.size();
+        long[] rawUsers = userCol.elements();
+        long[] users = Arrays.copyOf(rawUsers, n);
+        Arrays.sort(users);
+        int nusers = 0;
+        for (int i = 0; i < n; i++) {
+            if (nusers == 0 || users[nusers - 1] != users[i]) {
+                users[nusers++] = users[i];
+            }
+        }
+        users = Arrays.copyOf(users, nusers);
+        int[] userIdx = new int[n];
+        int[] offsets = new int[nusers + 1];
+        for (int i = 0; i < n; i++) {
+            userIdx[i] = Arrays.binarySearch(users, rawUsers[i]);
+            offsets[userIdx[i] + 1] += 1;
+        }
+        for (int u = 0; u < nusers; u++) {
+            offsets[u + 1] += offsets[u];
+        }
+        int[] next = Arrays.copyOf(offsets, nusers);
+        long[] items = new long[n];
+        float[] values = new float[n];
+        long[] timestamps = timeCol == null ? null : new long[n];
+        for (int i = 0; i < n; i++) {
+            int pos = next[userIdx[i]]++;
+            items[pos] = itemCol.getLong(i);
+            values[pos] = valueCol.getFloat(i);
+            if (timestamps != null) {
+                timestamps[pos] = timeCol.getLong(i);
+            }
+        }
+        return new RatingColumns(users, offsets, items, values, timestamps);
+    }
+
+    private static Rating makeRating(RatingColumns cols, long user, int pos) {
+        // ratings without a timestamp get -1, as with LensKit's file DAOs
+        long time = cols.timestamps == null ? -1 : cols.timestamps[pos];
+        return Ratings.make(user, cols.items[pos], cols.values[pos], time);
+    }
+
+    @Override
+    public RatingColumns getRatingColumns() {
+        return ensureRatingCache();
+    }
+
+    @Override
+    public UserHistory<Event> getEventsForUser(long user) {
+        return getEventsForUser(user, Event.class);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public <E extends Event> UserHistory<E> getEventsForUser(long user, Class<E> type) {
+        RatingColumns cols = ensureRatingCache();
+        int idx = Arrays.binarySearch(cols.users, user);
+        if (idx < 0) {
+            return null;
+        }
+        if (!type.isAssignableFrom(Rating.class)) {
+            return History.forUser(user, Collections.<E>emptyList());
+        }
+        // the ratings are of type E, since E is Rating or a supertype of it
+        List<E> ratings = (List<E>) new UserRatingList(cols, user, idx);
+        return History.forUser(user, ratings);
+    }
+
+    @Override
+    public Cursor<UserHistory<Event>> streamEventsByUser() {
+        final RatingColumns cols = ensureRatingCache();
+        return new AbstractPollingCursor<UserHistory<Event>>(cols.users.length) {
+            int next = 0;
+
+            @Override
+            protected UserHistory<Event> poll() {
+                if (next >= cols.users.length) {
+                    return null;
+                }
+                int idx = next++;
+                return History.<Event>forUser(cols.users[idx], new UserRatingList(cols, cols.users[idx], idx));
+            }
+        };
     }
 
     @Override
     public Cursor<Event> streamEvents() {
-        // delegate to the cached event collection DAO
-        ensureRatingCache();
-        return cache.streamEvents();
+        return streamEvents(Event.class);
     }
 
     @Override
     public <E extends Event> Cursor<E> streamEvents(Class<E> type) {
-        // delegate to the cached event collection DAO
-        ensureRatingCache();
-        return cache.streamEvents(type);
+        return streamEvents(type, SortOrder.ANY);
     }
 
     @Override
-    public <E extends Event> Cursor<E> streamEvents(Class<E> type, SortOrder order) {
-        // delegate to the cached event collection DAO
-        ensureRatingCache();
-        return cache.streamEvents(type, order);
+    public <E extends Event> Cursor<E> streamEvents(final Class<E> type, SortOrder order) {
+        final RatingColumns cols = ensureRatingCache();
+        if (!type.isAssignableFrom(Rating.class)) {
+            return Cursors.empty();
+        }
+        if (order != SortOrder.ANY && !(order == SortOrder.USER && isTimeOrdered(cols))) {
+            // other orders are rare; sort a copy of the events
+            return new EventCollectionDAO(Cursors.makeList(streamEvents(Rating.class)))
+                    .streamEvents(type, order);
+        }
+        return new AbstractPollingCursor<E>(cols.items.length) {
+            int user = 0;
+            int pos = 0;
+
+            @Override
+            protected E poll() {
+                if (pos >= cols.items.length) {
+                    return null;
+                }
+                while (cols.offsets[user + 1] <= pos) {
+                    user++;
+                }
+                return type.cast(makeRating(cols, cols.users[user], pos++));
+            }
+        };
+    }
+
+    /**
+     * Query whether each user's ratings are in timestamp order, as {@link SortOrder#USER} has them.
+     */
+    private static boolean isTimeOrdered(RatingColumns cols) {
+        if (cols.timestamps == null) {
+            return true;
+        }
+        for (int u = 0; u < cols.users.length; u++) {
+            for (int pos = cols.offsets[u] + 1; pos < cols.offsets[u + 1]; pos++) {
+                if (cols.timestamps[pos] < cols.timestamps[pos - 1]) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Read-only view of a user's ratings, creating rating events as they are accessed.
+     */
+    private static class UserRatingList extends AbstractList<Rating> implements RandomAccess {
+        private final RatingColumns cols;
+        private final long user;
+        private final int start;
+        private final int end;
+
+        UserRatingList(RatingColumns cols, long user, int idx) {
+            this.cols = cols;
+            this.user = user;
+            start = cols.offsets[idx];
+            end = cols.offsets[idx + 1];
+        }
+
+        @Override
+        public Rating get(int index) {
+            if (index < 0 || index >= end - start) {
+                throw new IndexOutOfBoundsException("index " + index);
+            }
+            return makeRating(cols, user, start + index);
+        }
+
+        @Override
+        public int size() {
+            return end - start;
+        }
     }
 }
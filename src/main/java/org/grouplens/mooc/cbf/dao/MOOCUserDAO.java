@@ -4,18 +4,23 @@ import it.unimi.dsi.fastutil.longs.LongSet;
 import it.unimi.dsi.fastutil.objects.Object2LongMap;
 import it.unimi.dsi.fastutil.objects.Object2LongOpenHashMap;
 import org.grouplens.lenskit.collections.LongUtils;
-import org.grouplens.lenskit.cursors.Cursor;
 import org.grouplens.lenskit.data.dao.DataAccessException;
-import org.grouplens.lenskit.util.DelimitedTextCursor;
+import org.grouplens.mooc.cbf.metrics.Histogram;
+import org.grouplens.mooc.cbf.metrics.Metrics;
 
 import javax.inject.Inject;
 import java.io.File;
 import java.io.FileNotFoundException;
 
 /**
+ * User DAO reading a CSV file of user IDs and names.  The time to load the file is recorded in the
+ * {@linkplain Metrics metric} {@code dao.users.load}.
+ *
  * @author <a href="http://www.grouplens.org">GroupLens Research</a>
  */
 public class MOOCUserDAO implements UserNameDAO {
+    private static final Histogram loadTimer = Metrics.timer("dao.users.load");
+
     private final File userFile;
     private transient volatile Object2LongMap<String> nameCache;
     private transient volatile LongSet userIds;
@@ -29,8 +34,10 @@ public class MOOCUserDAO implements UserNameDAO {
         if (nameCache == null) {
             synchronized (this) {
                 if (nameCache == null) {
+                    long start = System.nanoTime();
                     nameCache = loadNameCache();
                     userIds = LongUtils.packedSet(nameCache.values());
+                    loadTimer.recordSince(start);
                 }
             }
         }
@@ -40,19 +47,19 @@ public class MOOCUserDAO implements UserNameDAO {
         Object2LongMap<String> cache = new Object2LongOpenHashMap<String>();
         // make the cache return -1 for missing users
         cache.defaultReturnValue(-1);
-        Cursor<String[]> lines = null;
+        MappedCSVReader reader;
         try {
-            lines = new DelimitedTextCursor(userFile, ",");
+            reader = new MappedCSVReader(userFile, ',');
         } catch (FileNotFoundException e) {
             throw new DataAccessException("cannot open file", e);
         }
         try {
-            for (String[] line: lines) {
-                long uid = Long.parseLong(line[0]);
-                cache.put(line[1], uid);
+            while (reader.nextLine()) {
+                long uid = reader.parseLong(0);
+                cache.put(reader.getString(1), uid);
             }
         } finally {
-            lines.close();
+            reader.close();
         }
         return cache;
     }
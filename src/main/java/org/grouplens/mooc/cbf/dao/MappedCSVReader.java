@@ -0,0 +1,352 @@
+package org.grouplens.mooc.cbf.dao;
+
+import org.grouplens.lenskit.data.dao.DataAccessException;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+
+/**
+ * Reads delimited text files by memory-mapping them and parsing the bytes in place.  Unlike
+ * {@link org.grouplens.lenskit.util.DelimitedTextCursor}, it does not create a string per line or
+ * per field: numeric fields are parsed straight from the mapped bytes, and repeated strings can be
+ * {@linkplain #internField(int, TagDictionary) interned} by their bytes.  Files are mapped a window
+ * at a time, so they can be larger than 2 GB.
+ * <p>
+ * Usage follows a cursor: call {@link #nextLine()} until it returns {@code false}, reading the
+ * fields of each line in between.  Field <var>i</var> is the text between the <var>i</var>th
+ * delimiter and the next one (or the end of the line).  Lines may end with {@code \n} or
+ * {@code \r\n}; blank lines are skipped.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public final class MappedCSVReader implements Closeable {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final long DEFAULT_WINDOW_SIZE = 1L << 28;
+    // powers of ten that are exact doubles
+    private static final double[] POWERS_OF_TEN = new double[23];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final File file;
+    private final RandomAccessFile input;
+    private final FileChannel channel;
+    private final long size;
+    private final byte delimiter;
+    private final Charset charset;
+    private final long windowSize;
+
+    private MappedByteBuffer buffer;
+    private long bufferOffset;
+    private int next;
+    private int lineStart;
+    private int lineEnd;
+    private int lineNumber;
+    // the last field located, so reading fields left to right does not rescan the line
+    private int field;
+    private int fieldStart;
+    private int fieldEnd;
+
+    /**
+     * Open a file.  Text fields are decoded as UTF-8, the character set of the model file and of
+     * the {@linkplain RatingFileTailer rating tailer}.
+     *
+     * @param file      The file.
+     * @param delimiter The field delimiter (an ASCII character).
+     * @throws FileNotFoundException if the file cannot be opened.
+     */
+    public MappedCSVReader(File file, char delimiter) throws FileNotFoundException {
+        this(file, delimiter, UTF8);
+    }
+
+    /**
+     * Open a file.
+     *
+     * @param file      The file.
+     * @param delimiter The field delimiter (an ASCII character).
+     * @param charset   The character set of text fields.  It must be ASCII-compatible.
+     * @throws FileNotFoundException if the file cannot be opened.
+     */
+    public MappedCSVReader(File file, char delimiter, Charset charset) throws FileNotFoundException {
+        this(file, delimiter, charset, DEFAULT_WINDOW_SIZE);
+    }
+
+    /**
+     * Open a file, mapping it in windows of a given size.  No line may be longer than a window.
+     *
+     * @param file       The file.
+     * @param delimiter  The field delimiter (an ASCII character).
+     * @param charset    The character set of text fields.  It must be ASCII-compatible.
+     * @param windowSize The number of bytes to map at a time.
+     * @throws FileNotFoundException if the file cannot be opened.
+     */
+    MappedCSVReader(File file, char delimiter, Charset charset,
+                    long windowSize) throws FileNotFoundException {
+        if (delimiter > 127) {
+            throw new IllegalArgumentException("delimiter must be an ASCII character");
+        }
+        this.file = file;
+        this.delimiter = (byte) delimiter;
+        this.charset = charset;
+        this.windowSize = windowSize;
+        input = new RandomAccessFile(file, "r");
+        channel = input.getChannel();
+        try {
+            size = channel.size();
+        } catch (IOException e) {
+            close();
+            throw new DataAccessException("cannot read " + file, e);
+        }
+    }
+
+    /**
+     * Get the character set in which text fields are decoded.
+     *
+     * @return The character set.
+     */
+    public Charset getCharset() {
+        return charset;
+    }
+
+    /**
+     * Advance to the next non-blank line.
+     *
+     * @return {@code true} if there is another line, {@code false} at the end of the file.
+     */
+    public boolean nextLine() {
+        while (true) {
+            if (buffer == null || next >= buffer.limit()) {
+                long pos = buffer == null ? 0 : bufferOffset + next;
+                if (pos >= size) {
+                    return false;
+                }
+                map(pos);
+            }
+            int limit = buffer.limit();
+            int i = next;
+            while (i < limit && buffer.get(i) != '\n') {
+                i++;
+            }
+            if (i == limit && bufferOffset + limit < size) {
+                // the line runs past the window; remap starting at the line
+                if (next == 0) {
+                    throw new DataAccessException(file + ":" + (lineNumber + 1) + ": line too long");
+                }
+                map(bufferOffset + next);
+                continue;
+            }
+
+            lineStart = next;
+            lineEnd = i;
+            next = i + 1;
+            lineNumber += 1;
+            if (lineEnd > lineStart && buffer.get(lineEnd - 1) == '\r') {
+                lineEnd -= 1;
+            }
+            if (lineEnd > lineStart) {
+                field = 0;
+                fieldStart = lineStart;
+                fieldEnd = findDelimiter(lineStart);
+                return true;
+            }
+        }
+    }
+
+    private void map(long pos) {
+        try {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(windowSize, size - pos));
+        } catch (IOException e) {
+            throw new DataAccessException("cannot map " + file, e);
+        }
+        bufferOffset = pos;
+        next = 0;
+    }
+
+    private int findDelimiter(int from) {
+        int i = from;
+        while (i < lineEnd && buffer.get(i) != delimiter) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Query whether the current line has a field.
+     *
+     * @param idx The field index.
+     * @return {@code true} if the line has at least {@code idx + 1} fields.
+     */
+    public boolean hasField(int idx) {
+        if (idx < field) {
+            field = 0;
+            fieldStart = lineStart;
+            fieldEnd = findDelimiter(lineStart);
+        }
+        while (field < idx) {
+            if (fieldEnd >= lineEnd) {
+                return false;
+            }
+            field += 1;
+            fieldStart = fieldEnd + 1;
+            fieldEnd = findDelimiter(fieldStart);
+        }
+        return true;
+    }
+
+    /**
+     * Locate a field of the current line.
+     */
+    private void locate(int idx) {
+        if (!hasField(idx)) {
+            throw new DataAccessException(file + ":" + lineNumber + ": missing field " + idx);
+        }
+    }
+
+    /**
+     * Get the number of the current line (counting from 1, including blank lines).
+     *
+     * @return The line number.
+     */
+    public int getLineNumber() {
+        return lineNumber;
+    }
+
+    /**
+     * Parse a field of the current line as a {@code long}.
+     *
+     * @param idx The field index.
+     * @return The field's value.
+     * @throws DataAccessException if the field is missing or is not an integer.
+     */
+    public long parseLong(int idx) {
+        locate(idx);
+        int i = fieldStart;
+        boolean negative = false;
+        if (i < fieldEnd && buffer.get(i) == '-') {
+            negative = true;
+            i++;
+        }
+        if (i == fieldEnd) {
+            throw badNumber(idx, "an integer");
+        }
+        // accumulate negatively, as Long.parseLong does, so Long.MIN_VALUE can be read
+        long limit = negative ? Long.MIN_VALUE : -Long.MAX_VALUE;
+        long value = 0;
+        for (; i < fieldEnd; i++) {
+            int digit = buffer.get(i) - '0';
+            if (digit < 0 || digit > 9 || value < (limit + digit) / 10) {
+                throw badNumber(idx, "an integer");
+            }
+            value = value * 10 - digit;
+        }
+        return negative ? value : -value;
+    }
+
+    /**
+     * Parse a field of the current line as a {@code double}.  Plain decimals with up to 15
+     * significant digits are parsed from the bytes; anything else (such as exponents) goes through
+     * {@link Double#parseDouble(String)}.  Either way, the result is the same.
+     *
+     * @param idx The field index.
+     * @return The field's value.
+     * @throws DataAccessException if the field is missing or is not a number.
+     */
+    public double parseDouble(int idx) {
+        locate(idx);
+        int i = fieldStart;
+        boolean negative = false;
+        if (i < fieldEnd && buffer.get(i) == '-') {
+            negative = true;
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int scale = 0;
+        boolean point = false;
+        boolean sawDigit = false;
+        boolean simple = true;
+        for (; simple && i < fieldEnd; i++) {
+            byte b = buffer.get(i);
+            if (b >= '0' && b <= '9') {
+                sawDigit = true;
+                mantissa = mantissa * 10 + (b - '0');
+                if (mantissa > 0) {
+                    digits++;
+                }
+                if (point) {
+                    scale++;
+                }
+                // the mantissa and the power of ten must both be exact doubles
+                simple = digits <= 15 && scale < POWERS_OF_TEN.length;
+            } else if (b == '.' && !point) {
+                point = true;
+            } else {
+                simple = false;
+            }
+        }
+        if (simple && sawDigit) {
+            // one correctly-rounded division of exact values, as parseDouble would round
+            double value = mantissa / POWERS_OF_TEN[scale];
+            return negative ? -value : value;
+        }
+        try {
+            return Double.parseDouble(getString(idx));
+        } catch (NumberFormatException e) {
+            throw badNumber(idx, "a number");
+        }
+    }
+
+    private DataAccessException badNumber(int idx, String expected) {
+        return new DataAccessException(file + ":" + lineNumber + ": field " + idx
+                                       + " is not " + expected + ": " + getString(idx));
+    }
+
+    /**
+     * Decode a field of the current line as a string.
+     *
+     * @param idx The field index.
+     * @return The field's text.
+     */
+    public String getString(int idx) {
+        locate(idx);
+        byte[] bytes = new byte[fieldEnd - fieldStart];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(fieldStart + i);
+        }
+        return new String(bytes, charset);
+    }
+
+    /**
+     * Intern a field of the current line in a dictionary.  No string is created if the dictionary
+     * already has the field's text.
+     *
+     * @param idx  The field index.
+     * @param dict The dictionary.  It must use this reader's {@linkplain #getCharset() charset}.
+     * @return The field's ID in the dictionary.
+     */
+    public int internField(int idx, TagDictionary dict) {
+        locate(idx);
+        return dict.intern(buffer, fieldStart, fieldEnd);
+    }
+
+    /**
+     * Close the file.  Mapped windows are released when they are garbage-collected.
+     */
+    @Override
+    public void close() {
+        try {
+            input.close();
+        } catch (IOException e) {
+            throw new DataAccessException("error closing " + file, e);
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package org.grouplens.mooc.cbf.dao;
+
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+
+/**
+ * User-event DAO that stores ratings in arrays grouped by user, and gives direct access to them.
+ * Hot loops fetch the {@linkplain RatingColumns rating columns} once and read a user's ratings
+ * from them without creating rating events.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public interface PackedUserEventDAO extends UserEventDAO {
+    /**
+     * Get the rating columns, loading them if needed.
+     * @return The ratings, grouped by user.
+     */
+    RatingColumns getRatingColumns();
+}
@@ -0,0 +1,77 @@
+package org.grouplens.mooc.cbf.dao;
+
+import java.util.Arrays;
+
+/**
+ * Ratings stored in arrays grouped by user, as a {@link PackedUserEventDAO} holds them.  User
+ * <var>u</var>'s ratings occupy positions {@link #getRatingStart(int) getRatingStart(u)}
+ * (inclusive) through {@link #getRatingEnd(int) getRatingEnd(u)} (exclusive), in the order they
+ * were read.  The columns are immutable, so a caller can fetch them once and read any number of
+ * ratings from them.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public final class RatingColumns {
+    // distinct user IDs, ascending, and the start of each user's ratings
+    final long[] users;
+    final int[] offsets;
+    final long[] items;
+    final float[] values;
+    // null if the file has no timestamps
+    final long[] timestamps;
+
+    RatingColumns(long[] users, int[] offsets, long[] items, float[] values, long[] timestamps) {
+        this.users = users;
+        this.offsets = offsets;
+        this.items = items;
+        this.values = values;
+        this.timestamps = timestamps;
+    }
+
+    /**
+     * Get the index of a user.
+     * @param user The user ID.
+     * @return The user's index, or a negative value if the user has no ratings.
+     */
+    public int getUserIndex(long user) {
+        int idx = Arrays.binarySearch(users, user);
+        return idx >= 0 ? idx : -1;
+    }
+
+    /**
+     * Get the position of a user's first rating.
+     * @param idx The user index.
+     * @return The position of the user's first rating.
+     */
+    public int getRatingStart(int idx) {
+        return offsets[idx];
+    }
+
+    /**
+     * Get the end of a user's ratings.
+     * @param idx The user index.
+     * @return The position after the user's last rating.
+     */
+    public int getRatingEnd(int idx) {
+        return offsets[idx + 1];
+    }
+
+    /**
+     * Get the item of a rating.
+     * @param pos The rating position.
+     * @return The rated item's ID.
+     */
+    public long getRatingItem(int pos) {
+        return items[pos];
+    }
+
+    /**
+     * Get the value of a rating.  Values are stored as {@code float}s, so this is the value read
+     * from the file rounded to {@code float} precision.
+     * @param pos The rating position.
+     * @return The rating value.
+     */
+    public double getRatingValue(int pos) {
+        return values[pos];
+    }
+}
@@ -0,0 +1,211 @@
+package org.grouplens.mooc.cbf.dao;
+
+import org.grouplens.lenskit.data.dao.DataAccessException;
+import org.grouplens.lenskit.data.event.Rating;
+import org.grouplens.lenskit.data.event.Ratings;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Follows the rating file of a {@link LiveRatingDAO} as lines are appended to it, adding each new
+ * rating to the DAO.  It starts where the DAO stopped when it loaded the file, so no rating is
+ * added twice.  Lines have the format of the rating file ({@code user,item,rating}, optionally
+ * followed by a timestamp) and are read as UTF-8, like the other data files; a line is only read
+ * once its newline has been written, and malformed lines are logged and skipped.
+ * <p>
+ * The ratings already read are in the DAO, whose ratings can only grow, so a file that is
+ * truncated or replaced (found by its shrinking, or by its
+ * {@linkplain BasicFileAttributes#fileKey() file key} changing) cannot be followed: reading it
+ * again would add its ratings a second time.  The tailer stops instead, and every later poll
+ * throws a {@link DataAccessException}; reload the recommender from the new file.
+ * <p>
+ * Call {@link #poll()} to read whatever has been appended, or run the tailer in a thread of its
+ * own to poll at a fixed interval until the thread is interrupted.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class RatingFileTailer implements Runnable {
+    private static final Logger logger = LoggerFactory.getLogger(RatingFileTailer.class);
+    private static final Charset CHARSET = Charset.forName("UTF-8");
+
+    private final File file;
+    private final LiveRatingDAO dao;
+    private final long pollInterval;
+    // the offset of the next line to read, or -1 until the DAO has loaded the file
+    private long position = -1;
+    // the key of the file being followed
+    private Object fileKey;
+    // why the tailer has stopped, if it has
+    private String failure;
+
+    /**
+     * Create a tailer for a DAO's rating file.  The DAO loads the file, if it has not already, on
+     * the first poll.
+     *
+     * @param dao          The DAO whose rating file to follow.
+     * @param pollInterval The time between polls, in milliseconds, when running in a thread.
+     */
+    public RatingFileTailer(LiveRatingDAO dao, long pollInterval) {
+        if (pollInterval <= 0) {
+            throw new IllegalArgumentException("poll interval must be positive");
+        }
+        file = dao.getRatingFile();
+        this.dao = dao;
+        this.pollInterval = pollInterval;
+    }
+
+    /**
+     * Query whether the tailer has stopped because the file was truncated or replaced.
+     *
+     * @return {@code true} if the tailer has stopped.
+     */
+    public synchronized boolean isStopped() {
+        return failure != null;
+    }
+
+    /**
+     * Read the lines appended since the last poll.
+     *
+     * @return The number of ratings added.
+     * @throws DataAccessException if the file cannot be read, or has been truncated or replaced.
+     */
+    public synchronized int poll() {
+        if (failure != null) {
+            throw new DataAccessException(failure);
+        }
+        if (position < 0) {
+            position = dao.getLoadedLength();
+            fileKey = dao.getLoadedFileKey();
+        }
+        if (!file.exists()) {
+            return 0;
+        }
+        List<Rating> ratings = new ArrayList<Rating>();
+        try {
+            Object key = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+            try {
+                long length = input.length();
+                if (fileKey != null && key != null && !fileKey.equals(key)) {
+                    stop(file + " has been replaced");
+                } else if (length < position) {
+                    stop(file + " has shrunk from " + position + " to " + length + " bytes");
+                }
+                if (fileKey == null) {
+                    fileKey = key;
+                }
+                position = readLines(file, input, position, ratings);
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            throw new DataAccessException("error reading " + file, e);
+        }
+        for (Rating r: ratings) {
+            dao.addRating(r);
+        }
+        return ratings.size();
+    }
+
+    /**
+     * Read the complete lines of a rating file from a position on, parsing each into a rating.
+     * A last line without a newline is left unread.
+     *
+     * @param file     The file, for messages.
+     * @param input    The file, open for reading.
+     * @param position The offset of the first line to read.
+     * @param ratings  The list to add the ratings to.
+     * @return The offset after the last complete line.
+     * @throws IOException if the file cannot be read.
+     */
+    static long readLines(File file, RandomAccessFile input, long position,
+                          List<Rating> ratings) throws IOException {
+        byte[] buffer = new byte[8192];
+        input.seek(position);
+        int pending = 0;
+        int n;
+        while ((n = input.read(buffer, pending, buffer.length - pending)) > 0) {
+            int end = pending + n;
+            int lineStart = 0;
+            for (int i = 0; i < end; i++) {
+                if (buffer[i] == '\n') {
+                    String line = new String(buffer, lineStart, i - lineStart, CHARSET);
+                    Rating r = parseLine(file, line);
+                    if (r != null) {
+                        ratings.add(r);
+                    }
+                    lineStart = i + 1;
+                }
+            }
+            // keep the partial line for the next read, or the next poll
+            position += lineStart;
+            pending = end - lineStart;
+            System.arraycopy(buffer, lineStart, buffer, 0, pending);
+            if (pending == buffer.length) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+        }
+        return position;
+    }
+
+    private void stop(String reason) {
+        failure = reason + "; its ratings are already in the DAO, so it is no longer followed";
+        throw new DataAccessException(failure);
+    }
+
+    private static Rating parseLine(File file, String line) {
+        line = line.trim();
+        if (line.isEmpty()) {
+            return null;
+        }
+        String[] fields = line.split(",");
+        try {
+            if (fields.length == 3) {
+                return Ratings.make(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                                    Double.parseDouble(fields[2]));
+            } else if (fields.length == 4) {
+                return Ratings.make(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                                    Double.parseDouble(fields[2]), Long.parseLong(fields[3]));
+            }
+        } catch (NumberFormatException e) {
+            // fall through to skip the line
+        }
+        logger.warn("{}: skipping malformed rating line: {}", file, line);
+        return null;
+    }
+
+    /**
+     * Poll the file until the thread is interrupted, or the tailer stops.
+     */
+    @Override
+    public void run() {
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                int n = poll();
+                if (n > 0) {
+                    logger.debug("added {} ratings from {}", n, file);
+                }
+            } catch (DataAccessException e) {
+                logger.error("cannot read ratings from {}: {}", file, e.getMessage());
+                if (isStopped()) {
+                    return;
+                }
+            }
+            try {
+                Thread.sleep(pollInterval);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package org.grouplens.mooc.cbf.dao;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Dictionary assigning dense integer IDs (0, 1, ...) to tags, in the order they are first seen.
+ * Tags are looked up by their encoded bytes, so a tag that occurs many times in a file is decoded
+ * to a {@link String} only once.  Different byte sequences that decode to the same string (such as
+ * malformed input, which decodes to replacement characters) get the same ID.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public final class TagDictionary {
+    private final Charset charset;
+    // open-addressing table of entry + 1 (0 marks an empty slot); an entry is a distinct byte
+    // sequence, and there may be more entries than tags
+    private int[] table = new int[1024];
+    private int entryCount;
+    private int[] hashes = new int[256];
+    private int[] offsets = new int[256];
+    private int[] lengths = new int[256];
+    private int[] entryIds = new int[256];
+    private int size;
+    private String[] tags = new String[256];
+    private final Map<String,Integer> tagIds = new HashMap<String, Integer>();
+    private byte[] bytes = new byte[4096];
+    private int byteCount;
+
+    /**
+     * Create an empty dictionary.
+     *
+     * @param cs The character set in which tags are encoded.
+     */
+    public TagDictionary(Charset cs) {
+        charset = cs;
+    }
+
+    /**
+     * Get the ID of a tag, adding it to the dictionary if it is new.
+     *
+     * @param buf   A buffer holding the encoded tag.
+     * @param start The position of the tag's first byte.
+     * @param end   The position after the tag's last byte.
+     * @return The tag's ID.
+     */
+    public int intern(ByteBuffer buf, int start, int end) {
+        int len = end - start;
+        int hash = 0x811C9DC5;
+        for (int i = start; i < end; i++) {
+            hash = (hash ^ (buf.get(i) & 0xFF)) * 0x01000193;
+        }
+
+        int mask = table.length - 1;
+        int slot = hash & mask;
+        while (table[slot] != 0) {
+            int e = table[slot] - 1;
+            if (hashes[e] == hash && lengths[e] == len && equalBytes(e, buf, start)) {
+                return entryIds[e];
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        int e = add(hash, buf, start, len);
+        table[slot] = e + 1;
+        if (entryCount * 2 > table.length) {
+            rehash();
+        }
+        return entryIds[e];
+    }
+
+    private boolean equalBytes(int e, ByteBuffer buf, int start) {
+        int off = offsets[e];
+        for (int i = 0; i < lengths[e]; i++) {
+            if (bytes[off + i] != buf.get(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int add(int hash, ByteBuffer buf, int start, int len) {
+        int e = entryCount++;
+        if (e == hashes.length) {
+            int cap = hashes.length * 2;
+            hashes = Arrays.copyOf(hashes, cap);
+            offsets = Arrays.copyOf(offsets, cap);
+            lengths = Arrays.copyOf(lengths, cap);
+            entryIds = Arrays.copyOf(entryIds, cap);
+        }
+        if (byteCount + len > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, byteCount + len));
+        }
+        for (int i = 0; i < len; i++) {
+            bytes[byteCount + i] = buf.get(start + i);
+        }
+        hashes[e] = hash;
+        offsets[e] = byteCount;
+        lengths[e] = len;
+        String tag = new String(bytes, byteCount, len, charset);
+        byteCount += len;
+
+        Integer id = tagIds.get(tag);
+        if (id == null) {
+            id = size++;
+            if (id == tags.length) {
+                tags = Arrays.copyOf(tags, tags.length * 2);
+            }
+            tags[id] = tag;
+            tagIds.put(tag, id);
+        }
+        entryIds[e] = id;
+        return e;
+    }
+
+    private void rehash() {
+        int[] newTable = new int[table.length * 2];
+        int mask = newTable.length - 1;
+        for (int e = 0; e < entryCount; e++) {
+            int slot = hashes[e] & mask;
+            while (newTable[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            newTable[slot] = e + 1;
+        }
+        table = newTable;
+    }
+
+    /**
+     * Get the number of tags in the dictionary.
+     *
+     * @return The number of distinct tags.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Get a tag by ID.
+     *
+     * @param id The tag ID.
+     * @return The tag.
+     */
+    public String getTag(int id) {
+        if (id < 0 || id >= size) {
+            throw new IndexOutOfBoundsException("invalid tag ID " + id);
+        }
+        return tags[id];
+    }
+
+    /**
+     * Get all tags, in ID order.
+     *
+     * @return An array of the tags, indexed by ID.
+     */
+    public String[] toArray() {
+        return Arrays.copyOf(tags, size);
+    }
+}
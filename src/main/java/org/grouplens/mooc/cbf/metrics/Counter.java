@@ -0,0 +1,44 @@
+package org.grouplens.mooc.cbf.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A lock-free counter.
+ *
+ * @see Metrics#counter(String)
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class Counter implements CounterMBean {
+    private final AtomicLong count = new AtomicLong();
+
+    Counter() {
+    }
+
+    /**
+     * Add to the counter.
+     *
+     * @param n The amount to add.
+     */
+    public void add(long n) {
+        count.addAndGet(n);
+    }
+
+    /**
+     * Add 1 to the counter.
+     */
+    public void increment() {
+        count.incrementAndGet();
+    }
+
+    @Override
+    public long getCount() {
+        return count.get();
+    }
+
+    /**
+     * Set the counter to 0.
+     */
+    public void reset() {
+        count.set(0);
+    }
+}
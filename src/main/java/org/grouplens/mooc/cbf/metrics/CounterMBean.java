@@ -0,0 +1,14 @@
+package org.grouplens.mooc.cbf.metrics;
+
+/**
+ * JMX view of a {@link Counter}.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public interface CounterMBean {
+    /**
+     * Get the count.
+     * @return The counter's value.
+     */
+    long getCount();
+}
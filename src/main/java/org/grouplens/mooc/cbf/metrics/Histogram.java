@@ -0,0 +1,182 @@
+package org.grouplens.mooc.cbf.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non-negative values, such as latencies in nanoseconds or profile sizes, in the
+ * style of HdrHistogram.  Values below {@value #SUB_BUCKETS} are counted exactly; larger values
+ * fall into buckets that split each power of 2 into {@value #SUB_BUCKETS} equal parts, so any
+ * reported percentile is within about 1.6% of the true value, and the whole range of
+ * {@code long} values takes a fixed 3,712 buckets.
+ * <p>
+ * Recording is lock-free: it increments one bucket and adds to the sum with atomic operations,
+ * and only touches the maximum when a value exceeds it.  Reads see a snapshot that may be a few
+ * values behind concurrent recorders.
+ *
+ * @see Metrics#histogram(String, String)
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class Histogram implements HistogramMBean {
+    private static final int SUB_BITS = 6;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    private static final int BUCKET_COUNT = (63 - SUB_BITS + 1) * SUB_BUCKETS;
+
+    private final String unit;
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    Histogram(String unit) {
+        this.unit = unit;
+    }
+
+    /**
+     * Record a value.
+     *
+     * @param value The value; negative values are recorded as 0.
+     */
+    public void record(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        counts.incrementAndGet(bucket(value));
+        sum.addAndGet(value);
+        long m = max.get();
+        while (value > m && !max.compareAndSet(m, value)) {
+            m = max.get();
+        }
+    }
+
+    /**
+     * Record the time since a start time.
+     *
+     * @param startNanos The start time, from {@link System#nanoTime()}.
+     */
+    public void recordSince(long startNanos) {
+        record(System.nanoTime() - startNanos);
+    }
+
+    static int bucket(long value) {
+        if (value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exp = 63 - Long.numberOfLeadingZeros(value);
+        int shift = exp - SUB_BITS;
+        return (shift + 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * Get the largest value that falls into a bucket.
+     */
+    static long bucketMax(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long sub = bucket % SUB_BUCKETS + SUB_BUCKETS;
+        return ((sub + 1) << shift) - 1;
+    }
+
+    @Override
+    public String getUnit() {
+        return unit;
+    }
+
+    @Override
+    public long getCount() {
+        long n = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            n += counts.get(i);
+        }
+        return n;
+    }
+
+    @Override
+    public double getMean() {
+        long n = getCount();
+        return n == 0 ? 0 : (double) sum.get() / n;
+    }
+
+    @Override
+    public long getMax() {
+        return max.get();
+    }
+
+    /**
+     * Get a percentile of the recorded values.
+     *
+     * @param p The percentile, as a fraction (e.g. 0.99).
+     * @return The largest value in the bucket holding the percentile (capped at the maximum), or
+     *         0 if nothing has been recorded.
+     */
+    public long getPercentile(double p) {
+        long[] snapshot = new long[BUCKET_COUNT];
+        long n = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            snapshot[i] = counts.get(i);
+            n += snapshot[i];
+        }
+        if (n == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(p * n));
+        long seen = 0;
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += snapshot[i];
+            if (seen >= rank) {
+                return Math.min(bucketMax(i), getMax());
+            }
+        }
+        return getMax();
+    }
+
+    @Override
+    public long getP50() {
+        return getPercentile(0.5);
+    }
+
+    @Override
+    public long getP90() {
+        return getPercentile(0.9);
+    }
+
+    @Override
+    public long getP99() {
+        return getPercentile(0.99);
+    }
+
+    @Override
+    public long getP999() {
+        return getPercentile(0.999);
+    }
+
+    /**
+     * Clear the histogram.  Values recorded concurrently may be partly cleared.
+     */
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts.set(i, 0);
+        }
+        sum.set(0);
+        max.set(0);
+    }
+
+    /**
+     * Write the histogram's summary as a JSON object.
+     *
+     * @param json The buffer to append to.
+     */
+    void appendJSON(StringBuilder json) {
+        json.append("{\"unit\":");
+        Metrics.appendString(json, unit);
+        json.append(",\"count\":").append(getCount())
+            .append(",\"mean\":").append(getMean())
+            .append(",\"p50\":").append(getP50())
+            .append(",\"p90\":").append(getP90())
+            .append(",\"p99\":").append(getP99())
+            .append(",\"p999\":").append(getP999())
+            .append(",\"max\":").append(getMax())
+            .append('}');
+    }
+}
@@ -0,0 +1,56 @@
+package org.grouplens.mooc.cbf.metrics;
+
+/**
+ * JMX view of a {@link Histogram}.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public interface HistogramMBean {
+    /**
+     * Get the unit of the recorded values.
+     * @return The unit (such as {@code ns}).
+     */
+    String getUnit();
+
+    /**
+     * Get the number of values recorded.
+     * @return The value count.
+     */
+    long getCount();
+
+    /**
+     * Get the mean of the values recorded.
+     * @return The mean, or 0 if nothing has been recorded.
+     */
+    double getMean();
+
+    /**
+     * Get the median.
+     * @return The 50th percentile.
+     */
+    long getP50();
+
+    /**
+     * Get the 90th percentile.
+     * @return The 90th percentile.
+     */
+    long getP90();
+
+    /**
+     * Get the 99th percentile.
+     * @return The 99th percentile.
+     */
+    long getP99();
+
+    /**
+     * Get the 99.9th percentile.
+     * @return The 99.9th percentile.
+     */
+    long getP999();
+
+    /**
+     * Get the largest value recorded.
+     * @return The maximum.
+     */
+    long getMax();
+}
@@ -0,0 +1,203 @@
+package org.grouplens.mooc.cbf.metrics;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Process-wide registry of named {@linkplain Histogram histograms} and {@linkplain Counter
+ * counters}.  Components look their metrics up once, typically into static fields, and record to
+ * them on the hot path; recording never takes a lock.
+ * <p>
+ * The metrics can be read as a JSON {@linkplain #toJSON() snapshot}, or through JMX once
+ * {@link #registerMBeans()} has been called: the registry is then
+ * {@code org.grouplens.mooc.cbf:type=Metrics}, with the snapshot as an attribute, and each metric
+ * is {@code org.grouplens.mooc.cbf:type=Histogram,name=...} or
+ * {@code org.grouplens.mooc.cbf:type=Counter,name=...}.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public final class Metrics implements MetricsMBean {
+    private static final Logger logger = LoggerFactory.getLogger(Metrics.class);
+    private static final String DOMAIN = "org.grouplens.mooc.cbf";
+    private static final Metrics instance = new Metrics();
+
+    private final ConcurrentMap<String,Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+    private final ConcurrentMap<String,Counter> counters = new ConcurrentHashMap<String, Counter>();
+    private volatile MBeanServer mbeanServer;
+
+    private Metrics() {
+    }
+
+    /**
+     * Get a histogram, creating it if it does not exist.
+     *
+     * @param name The histogram's name.
+     * @param unit The unit of its values (such as {@code ns}).
+     * @return The histogram.
+     */
+    public static Histogram histogram(String name, String unit) {
+        Histogram h = instance.histograms.get(name);
+        if (h == null) {
+            Histogram created = new Histogram(unit);
+            h = instance.histograms.putIfAbsent(name, created);
+            if (h == null) {
+                h = created;
+                instance.register("Histogram", name, h);
+            }
+        }
+        return h;
+    }
+
+    /**
+     * Get a histogram of times in nanoseconds, creating it if it does not exist.
+     *
+     * @param name The histogram's name.
+     * @return The histogram.
+     */
+    public static Histogram timer(String name) {
+        return histogram(name, "ns");
+    }
+
+    /**
+     * Get a counter, creating it if it does not exist.
+     *
+     * @param name The counter's name.
+     * @return The counter.
+     */
+    public static Counter counter(String name) {
+        Counter c = instance.counters.get(name);
+        if (c == null) {
+            Counter created = new Counter();
+            c = instance.counters.putIfAbsent(name, created);
+            if (c == null) {
+                c = created;
+                instance.register("Counter", name, c);
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Get a snapshot of all metrics as JSON.  The snapshot is an object with a {@code counters}
+     * object mapping counter names to their counts, and a {@code histograms} object mapping
+     * histogram names to their unit, count, mean, percentiles and maximum.
+     *
+     * @return The JSON snapshot.
+     */
+    public static String toJSON() {
+        return instance.getSnapshot();
+    }
+
+    /**
+     * Register the registry and all its metrics, present and future, with the platform MBean
+     * server.  Registering more than once has no effect.
+     */
+    public static synchronized void registerMBeans() {
+        if (instance.mbeanServer != null) {
+            return;
+        }
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        instance.mbeanServer = server;
+        try {
+            server.registerMBean(instance, new ObjectName(DOMAIN + ":type=Metrics"));
+        } catch (JMException e) {
+            logger.warn("cannot register metrics MBean: {}", e.getMessage());
+        }
+        for (Map.Entry<String,Histogram> e: instance.histograms.entrySet()) {
+            instance.register("Histogram", e.getKey(), e.getValue());
+        }
+        for (Map.Entry<String,Counter> e: instance.counters.entrySet()) {
+            instance.register("Counter", e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * Clear all metrics.
+     */
+    public static void resetAll() {
+        instance.reset();
+    }
+
+    private void register(String type, String name, Object bean) {
+        MBeanServer server = mbeanServer;
+        if (server == null) {
+            return;
+        }
+        try {
+            ObjectName oname = new ObjectName(DOMAIN + ":type=" + type + ",name=" + ObjectName.quote(name));
+            server.registerMBean(bean, oname);
+        } catch (InstanceAlreadyExistsException e) {
+            // registered by registerMBeans() and by the metric's creation
+        } catch (JMException e) {
+            logger.warn("cannot register MBean for {}: {}", name, e.getMessage());
+        }
+    }
+
+    @Override
+    public String getSnapshot() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"counters\":{");
+        boolean first = true;
+        for (Map.Entry<String,Counter> e: sorted(counters).entrySet()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            appendString(json, e.getKey());
+            json.append(':').append(e.getValue().getCount());
+        }
+        json.append("},\"histograms\":{");
+        first = true;
+        for (Map.Entry<String,Histogram> e: sorted(histograms).entrySet()) {
+            if (!first) {
+                json.append(',');
+            }
+            first = false;
+            appendString(json, e.getKey());
+            json.append(':');
+            e.getValue().appendJSON(json);
+        }
+        json.append("}}");
+        return json.toString();
+    }
+
+    @Override
+    public void reset() {
+        for (Histogram h: histograms.values()) {
+            h.reset();
+        }
+        for (Counter c: counters.values()) {
+            c.reset();
+        }
+    }
+
+    private static <V> SortedMap<String,V> sorted(Map<String,V> map) {
+        return new TreeMap<String, V>(map);
+    }
+
+    static void appendString(StringBuilder json, String s) {
+        json.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        json.append('"');
+    }
+}
@@ -0,0 +1,19 @@
+package org.grouplens.mooc.cbf.metrics;
+
+/**
+ * JMX view of the {@linkplain Metrics metrics registry}.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public interface MetricsMBean {
+    /**
+     * Get a snapshot of all metrics.
+     * @return The snapshot, as JSON.
+     */
+    String getSnapshot();
+
+    /**
+     * Clear all metrics.
+     */
+    void reset();
+}
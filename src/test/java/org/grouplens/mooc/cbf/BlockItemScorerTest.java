@@ -0,0 +1,100 @@
+package org.grouplens.mooc.cbf;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.scored.ScoredId;
+import org.grouplens.mooc.cbf.dao.CSVItemTagDAO;
+import org.grouplens.mooc.cbf.dao.MOOCRatingDAO;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@link BlockItemScorer} against {@link MaxScoreItemRecommender} for the users in the
+ * bundled {@linkplain TestData test data}: exactly, items and scores, with double weights, and
+ * with scores equal to rounding error, rank by rank, with the lower precisions.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class BlockItemScorerTest {
+    private static final int[] COUNTS = {1, 10, 50};
+    private static final double EPSILON = 1.0e-9;
+    // enough users for many blocks
+    private static final int MAX_USERS = 1000;
+
+    private static CSVItemTagDAO idao;
+    private static UserEventDAO uedao;
+    private static LongList users;
+    private static TFIDFModel model;
+
+    @BeforeClass
+    public static void buildModel() throws IOException {
+        idao = TestData.itemTagDAO();
+        uedao = new MOOCRatingDAO(TestData.ratingFile());
+        long[] ids = TestData.userIds();
+        users = new LongArrayList(ids, 0, Math.min(ids.length, MAX_USERS));
+        model = new TFIDFModelBuilder(idao, 1, null, "double", 0, 0).get();
+    }
+
+    /**
+     * Compare the block scorer's lists with MaxScore's for all users.
+     *
+     * @param m     The model to score with.
+     * @param exact Whether the item lists must be identical; otherwise the scores at each rank
+     *              are compared.
+     */
+    private static void checkLists(TFIDFModel m, boolean exact) {
+        TFIDFItemScorer scorer = new TFIDFItemScorer(uedao, m, users.size(), 0, 0);
+        BlockItemScorer block = new BlockItemScorer(scorer, m, uedao);
+        MaxScoreItemRecommender maxScore =
+                new MaxScoreItemRecommender(uedao, idao, scorer, m, new TagItemIndexBuilder(m).get());
+        int nonEmpty = 0;
+        for (int n: COUNTS) {
+            List<List<ScoredId>> results = block.recommend(users, n);
+            assertEquals(users.size(), results.size());
+            for (int u = 0; u < users.size(); u++) {
+                long user = users.getLong(u);
+                List<ScoredId> expected = maxScore.recommend(user, n);
+                List<ScoredId> actual = results.get(u);
+                String label = m.getPrecision() + " top " + n + " for user " + user;
+                if (actual.isEmpty()) {
+                    // block scoring skips users with no profile; MaxScore scores them all 0
+                    assertEquals(label, 0, scorer.makeUserVector(user).norm(), 0);
+                    continue;
+                }
+                nonEmpty++;
+                assertEquals(label, expected.size(), actual.size());
+                for (int i = 0; i < expected.size(); i++) {
+                    if (exact) {
+                        assertEquals(label + " rank " + i, expected.get(i), actual.get(i));
+                    } else {
+                        assertEquals(label + " rank " + i, expected.get(i).getScore(),
+                                     actual.get(i).getScore(), EPSILON);
+                    }
+                }
+            }
+        }
+        assertTrue("no user has recommendations", nonEmpty > 0);
+    }
+
+    @Test
+    public void testDoubleIsExact() {
+        checkLists(model, true);
+    }
+
+    @Test
+    public void testFloat() {
+        checkLists(model.withPrecision(WeightPrecision.FLOAT), false);
+    }
+
+    @Test
+    public void testInt8() {
+        checkLists(model.withPrecision(WeightPrecision.INT8), false);
+    }
+}
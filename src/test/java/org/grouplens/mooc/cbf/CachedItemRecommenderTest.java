@@ -0,0 +1,300 @@
+package org.grouplens.mooc.cbf;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.grouplens.lenskit.ItemRecommender;
+import org.grouplens.lenskit.basic.AbstractItemRecommender;
+import org.grouplens.lenskit.basic.TopNItemRecommender;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.data.event.Ratings;
+import org.grouplens.lenskit.scored.ScoredId;
+import org.grouplens.lenskit.scored.ScoredIdListBuilder;
+import org.grouplens.lenskit.scored.ScoredIds;
+import org.grouplens.mooc.cbf.dao.CSVItemTagDAO;
+import org.grouplens.mooc.cbf.dao.LiveRatingDAO;
+import org.grouplens.mooc.cbf.dao.MOOCRatingDAO;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a {@link CachedItemRecommender} returns what the recommender it wraps does, computes
+ * each list once, and stops returning a list once it is out of date: after the model is swapped,
+ * the user's lists are invalidated, or, with a live DAO, the user rates an item.  Most tests wrap
+ * a recommender that counts its calls and returns a list naming the user, <var>N</var> and the
+ * recommender.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class CachedItemRecommenderTest {
+    private static final int STAMPEDE_THREADS = 8;
+
+    private static TFIDFModel model;
+    private static UserEventDAO dao;
+
+    @BeforeClass
+    public static void buildModel() throws IOException {
+        CSVItemTagDAO idao = TestData.itemTagDAO();
+        model = new TFIDFModelBuilder(idao, 1, null, "double", 0, 0).get();
+        dao = new MOOCRatingDAO(TestData.ratingFile());
+    }
+
+    @Test
+    public void testCachedListsMatchRecommender() throws IOException {
+        CSVItemTagDAO idao = TestData.itemTagDAO();
+        TFIDFItemScorer scorer = new TFIDFItemScorer(dao, model, 0, 0, 0);
+        ItemRecommender rec = new TopNItemRecommender(dao, idao, scorer);
+        long[] users = TestData.userIds();
+        // Guava splits the bound between segments, so leave room for every user's list
+        CachedItemRecommender cached = new CachedItemRecommender(rec, model, dao, 2 * users.length);
+        for (int round = 0; round < 2; round++) {
+            for (long user: users) {
+                assertEquals("user " + user, rec.recommend(user, 10), cached.recommend(user, 10));
+            }
+        }
+        assertEquals(users.length, cached.getStats().loadCount());
+        assertEquals(users.length, cached.getStats().hitCount());
+    }
+
+    @Test
+    public void testComputesEachListOnce() {
+        CountingRecommender rec = new CountingRecommender(0);
+        CachedItemRecommender cached = new CachedItemRecommender(rec, model, dao, 100);
+        List<ScoredId> first = cached.recommend(1, 5);
+        assertEquals(first, cached.recommend(1, 5));
+        assertEquals(1, rec.calls.get());
+        // a different user or N is a different list
+        cached.recommend(2, 5);
+        cached.recommend(1, 6);
+        assertEquals(3, rec.calls.get());
+        assertEquals(3, cached.size());
+    }
+
+    @Test
+    public void testKeysCompareSetsByValue() {
+        CountingRecommender rec = new CountingRecommender(0);
+        CachedItemRecommender cached = new CachedItemRecommender(rec, model, dao, 100);
+        cached.recommend(1, 5, set(10, 11), null);
+        cached.recommend(1, 5, set(10, 11), null);
+        assertEquals(1, rec.calls.get());
+        cached.recommend(1, 5, null, set(10, 11));
+        cached.recommend(1, 5, set(10), null);
+        cached.recommend(1, 5, set(10, 11), set(12));
+        assertEquals(4, rec.calls.get());
+    }
+
+    /**
+     * The cache keeps its own copies of the sets, so a caller reusing its sets does not change
+     * the keys of the lists already cached.
+     */
+    @Test
+    public void testKeysCopyCallersSets() {
+        CountingRecommender rec = new CountingRecommender(0);
+        CachedItemRecommender cached = new CachedItemRecommender(rec, model, dao, 100);
+        LongSet candidates = set(10, 11);
+        LongSet exclude = set(12);
+        cached.recommend(1, 5, candidates, exclude);
+        candidates.add(13);
+        exclude.clear();
+        cached.recommend(1, 5, candidates, exclude);
+        assertEquals(2, rec.calls.get());
+        // the first list is still found by its original sets
+        cached.recommend(1, 5, set(10, 11), set(12));
+        assertEquals(2, rec.calls.get());
+        assertTrue(rec.candidates.contains(13));
+    }
+
+    @Test
+    public void testConcurrentMissesComputeOnce() throws InterruptedException {
+        final CountingRecommender rec = new CountingRecommender(0);
+        rec.block();
+        final CachedItemRecommender cached = new CachedItemRecommender(rec, model, dao, 100);
+        final List<List<ScoredId>> results = new ArrayList<List<ScoredId>>();
+        Thread[] workers = new Thread[STAMPEDE_THREADS];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    List<ScoredId> list = cached.recommend(1, 5);
+                    synchronized (results) {
+                        results.add(list);
+                    }
+                }
+            }, "result-cache-stampede-" + i);
+            workers[i].start();
+        }
+        rec.started.await();
+        // give the other threads time to wait for the list being computed
+        Thread.sleep(100);
+        rec.release.countDown();
+        for (Thread worker: workers) {
+            worker.join();
+        }
+        assertEquals(1, rec.calls.get());
+        assertEquals(STAMPEDE_THREADS, results.size());
+        for (List<ScoredId> list: results) {
+            assertEquals(results.get(0), list);
+        }
+    }
+
+    @Test
+    public void testSwapDiscardsLists() {
+        CountingRecommender old = new CountingRecommender(0);
+        CachedItemRecommender cached = new CachedItemRecommender(old, model, dao, 100);
+        List<ScoredId> before = cached.recommend(1, 5);
+        CountingRecommender next = new CountingRecommender(1);
+        TFIDFModel pruned = model.pruned(5, 0);
+        cached.swap(next, pruned);
+        assertEquals(2, cached.getModelVersion());
+        assertTrue(cached.getModel() == pruned);
+        assertEquals(0, cached.size());
+        assertNotEquals(before, cached.recommend(1, 5));
+        assertEquals(1, next.calls.get());
+    }
+
+    /**
+     * A list still being computed with the old recommender during a swap goes to its request, but
+     * is not left in the cache.
+     */
+    @Test
+    public void testListComputedDuringSwapIsDropped() throws InterruptedException {
+        final CountingRecommender old = new CountingRecommender(0);
+        old.block();
+        final CachedItemRecommender cached = new CachedItemRecommender(old, model, dao, 100);
+        final List<List<ScoredId>> results = new ArrayList<List<ScoredId>>();
+        Thread request = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                List<ScoredId> list = cached.recommend(1, 5);
+                synchronized (results) {
+                    results.add(list);
+                }
+            }
+        }, "result-cache-swap");
+        request.start();
+        old.started.await();
+        CountingRecommender next = new CountingRecommender(1);
+        cached.swap(next, model);
+        old.release.countDown();
+        request.join();
+
+        assertEquals(old.list(1, 5), results.get(0));
+        assertEquals(0, cached.size());
+        assertEquals(next.list(1, 5), cached.recommend(1, 5));
+        assertEquals(1, next.calls.get());
+    }
+
+    @Test
+    public void testInvalidateUser() {
+        CountingRecommender rec = new CountingRecommender(0);
+        CachedItemRecommender cached = new CachedItemRecommender(rec, model, dao, 100);
+        cached.recommend(1, 5);
+        cached.recommend(1, 5, set(10), null);
+        cached.recommend(2, 5);
+        cached.invalidateUser(1);
+        assertEquals(1, cached.size());
+        cached.recommend(2, 5);
+        assertEquals(3, rec.calls.get());
+        cached.recommend(1, 5);
+        assertEquals(4, rec.calls.get());
+    }
+
+    @Test
+    public void testNewRatingMakesListStale() throws IOException {
+        File file = File.createTempFile("ratings", ".csv");
+        try {
+            PrintWriter out = new PrintWriter(file, "UTF-8");
+            try {
+                out.print("1,10,4.0\n2,10,3.0\n");
+            } finally {
+                out.close();
+            }
+            LiveRatingDAO live = new LiveRatingDAO(file);
+            CountingRecommender rec = new CountingRecommender(0);
+            CachedItemRecommender cached = new CachedItemRecommender(rec, model, live, 100);
+            cached.recommend(1, 5);
+            cached.recommend(2, 5);
+            cached.recommend(1, 5);
+            assertEquals(2, rec.calls.get());
+
+            live.addRating(Ratings.make(1, 11, 5.0));
+            cached.recommend(1, 5);
+            cached.recommend(2, 5);
+            assertEquals(3, rec.calls.get());
+            cached.recommend(1, 5);
+            assertEquals(3, rec.calls.get());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testFailurePropagates() {
+        CountingRecommender rec = new CountingRecommender(0);
+        rec.failure = new UnsupportedOperationException("no list");
+        new CachedItemRecommender(rec, model, dao, 100).recommend(1, 5);
+    }
+
+    private static LongSet set(long... items) {
+        return new LongOpenHashSet(items);
+    }
+
+    /**
+     * Recommender counting its calls, whose list for a request is one item identifying the user,
+     * <var>N</var> and the recommender.  It can be made to block until released.
+     */
+    private static class CountingRecommender extends AbstractItemRecommender {
+        final AtomicInteger calls = new AtomicInteger();
+        final int id;
+        volatile CountDownLatch started;
+        volatile CountDownLatch release;
+        volatile RuntimeException failure;
+        volatile LongSet candidates;
+
+        CountingRecommender(int id) {
+            this.id = id;
+        }
+
+        void block() {
+            started = new CountDownLatch(1);
+            release = new CountDownLatch(1);
+        }
+
+        List<ScoredId> list(long user, int n) {
+            ScoredIdListBuilder list = ScoredIds.newListBuilder(1);
+            list.add(user * 1000 + n, id);
+            return list.finish();
+        }
+
+        @Override
+        protected List<ScoredId> recommend(long user, int n, @Nullable LongSet candidates,
+                                           @Nullable LongSet exclude) {
+            calls.incrementAndGet();
+            this.candidates = candidates;
+            if (failure != null) {
+                throw failure;
+            }
+            if (started != null) {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return list(user, n);
+        }
+    }
+}
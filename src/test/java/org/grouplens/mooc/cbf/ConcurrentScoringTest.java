@@ -0,0 +1,127 @@
+package org.grouplens.mooc.cbf;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.mooc.cbf.dao.CSVItemTagDAO;
+import org.grouplens.mooc.cbf.dao.LiveRatingDAO;
+import org.grouplens.mooc.cbf.dao.MOOCRatingDAO;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Scores from many threads sharing one {@link TFIDFItemScorer}, and checks every score against
+ * the single-threaded score for the same user, so races in the profile cache or the per-thread
+ * scratch arrays show up as mismatches.  The profile cache is smaller than the number of users,
+ * so profiles are built and evicted while other threads read them.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class ConcurrentScoringTest {
+    private static final int ROUNDS = 3;
+    private static final double EPSILON = 1.0e-9;
+
+    private static long[] users;
+    private static LongList items;
+    private static TFIDFModel model;
+    private static List<SparseVector> expected;
+
+    @BeforeClass
+    public static void scoreSingleThreaded() throws IOException {
+        CSVItemTagDAO idao = TestData.itemTagDAO();
+        users = TestData.userIds();
+        items = new LongArrayList(idao.getItemIds());
+        model = new TFIDFModelBuilder(idao, 1, null, "double", 0, 0).get();
+        TFIDFItemScorer scorer = new TFIDFItemScorer(new MOOCRatingDAO(TestData.ratingFile()),
+                                                     model, 0, 0, 0);
+        expected = new ArrayList<SparseVector>(users.length);
+        for (long user: users) {
+            expected.add(scorer.score(user, items));
+        }
+    }
+
+    private static int threadCount() {
+        return Math.max(4, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Score every user {@link #ROUNDS} times, the threads taking (round, user) tasks from a shared
+     * counter.
+     */
+    private static void checkConcurrentScores(final TFIDFItemScorer scorer)
+            throws InterruptedException {
+        final int tasks = ROUNDS * users.length;
+        final AtomicInteger next = new AtomicInteger();
+        final AtomicInteger checked = new AtomicInteger();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] workers = new Thread[threadCount()];
+        for (int i = 0; i < workers.length; i++) {
+            workers[i] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        int task;
+                        while ((task = next.getAndIncrement()) < tasks && failure.get() == null) {
+                            int u = task % users.length;
+                            checkScores(users[u], expected.get(u), scorer.score(users[u], items));
+                            checked.incrementAndGet();
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }, "scorer-" + i);
+            workers[i].start();
+        }
+        start.countDown();
+        for (Thread worker: workers) {
+            worker.join();
+        }
+        if (failure.get() instanceof AssertionError) {
+            throw (AssertionError) failure.get();
+        } else if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        assertEquals(tasks, checked.get());
+    }
+
+    private static void checkScores(long user, SparseVector expected, SparseVector actual) {
+        assertEquals("items scored for user " + user, expected.keySet(), actual.keySet());
+        for (long item: expected.keySet()) {
+            assertEquals("score of item " + item + " for user " + user,
+                         expected.get(item), actual.get(item), EPSILON);
+        }
+    }
+
+    @Test
+    public void testPackedDAO() throws IOException, InterruptedException {
+        assertTrue("no users in data/users.csv", users.length > 1);
+        UserEventDAO dao = new MOOCRatingDAO(TestData.ratingFile());
+        checkConcurrentScores(new TFIDFItemScorer(dao, model, users.length / 2, 0, 0));
+    }
+
+    @Test
+    public void testLiveDAO() throws IOException, InterruptedException {
+        UserEventDAO dao = new LiveRatingDAO(TestData.ratingFile());
+        checkConcurrentScores(new TFIDFItemScorer(dao, model, users.length / 2, 0, 0));
+    }
+
+    @Test
+    public void testUncached() throws IOException, InterruptedException {
+        UserEventDAO dao = new MOOCRatingDAO(TestData.ratingFile());
+        checkConcurrentScores(new TFIDFItemScorer(dao, model, 0, 0, 0));
+    }
+}
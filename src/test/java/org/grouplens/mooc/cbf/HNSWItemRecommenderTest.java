@@ -0,0 +1,119 @@
+package org.grouplens.mooc.cbf;
+
+import org.grouplens.lenskit.ItemRecommender;
+import org.grouplens.lenskit.basic.TopNItemRecommender;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.scored.ScoredId;
+import org.grouplens.mooc.cbf.dao.CSVItemTagDAO;
+import org.grouplens.mooc.cbf.dao.MOOCRatingDAO;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the recall of the {@linkplain HNSWItemRecommender HNSW recommender} against exhaustive
+ * scoring with {@link TFIDFItemScorer}, and that HNSW graphs survive a round trip through a file.
+ * Recall@<var>K</var> counts a recommended item as a hit if it scores at least as well as the
+ * user's exact <var>K</var>th item, so ties at the cut-off do not count against the graph, and is
+ * averaged over the users with a non-empty exact list.  The latency of the search is measured by
+ * {@code HNSWBenchmark} in the benchmarks module.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class HNSWItemRecommenderTest {
+    private static final int K = 10;
+    private static final int EF_SEARCH = 50;
+    private static final double MIN_RECALL = 0.9;
+    private static final double EPSILON = 1.0e-9;
+
+    private static CSVItemTagDAO idao;
+    private static UserEventDAO uedao;
+    private static long[] users;
+    private static TFIDFModel model;
+    private static TFIDFItemScorer scorer;
+    private static HNSWIndex index;
+    private static List<List<ScoredId>> exactLists;
+
+    @BeforeClass
+    public static void buildRecommenders() throws IOException {
+        idao = TestData.itemTagDAO();
+        uedao = new MOOCRatingDAO(TestData.ratingFile());
+        users = TestData.userIds();
+        model = new TFIDFModelBuilder(idao, 1, null, "double", 0, 0).get();
+        scorer = new TFIDFItemScorer(uedao, model, users.length, 0, 0);
+        index = new HNSWIndexBuilder(model, 16, 100, null).get();
+
+        ItemRecommender exact = new TopNItemRecommender(uedao, idao, scorer);
+        exactLists = new ArrayList<List<ScoredId>>(users.length);
+        for (long user: users) {
+            exactLists.add(exact.recommend(user, K));
+        }
+    }
+
+    private static double recall(HNSWIndex graph, int ef) {
+        ItemRecommender hnsw = new HNSWItemRecommender(uedao, idao, scorer, model, graph, ef);
+        double recallSum = 0;
+        int recallCount = 0;
+        for (int u = 0; u < users.length; u++) {
+            List<ScoredId> expected = exactLists.get(u);
+            if (expected.isEmpty()) {
+                continue;
+            }
+            double cutoff = expected.get(expected.size() - 1).getScore() - EPSILON;
+            int hits = 0;
+            for (ScoredId id: hnsw.recommend(users[u], K)) {
+                if (id.getScore() >= cutoff) {
+                    hits++;
+                }
+            }
+            recallSum += (double) hits / expected.size();
+            recallCount++;
+        }
+        assertTrue("no user has recommendations", recallCount > 0);
+        return recallSum / recallCount;
+    }
+
+    @Test
+    public void testRecall() {
+        double recall = recall(index, EF_SEARCH);
+        assertTrue("recall@" + K + " with efSearch " + EF_SEARCH + " is only " + recall,
+                   recall >= MIN_RECALL);
+        // the graph is fixed, so a wider search only adds candidates
+        assertTrue(recall(index, 4 * EF_SEARCH) >= recall - EPSILON);
+    }
+
+    @Test
+    public void testScoresAreExact() {
+        ItemRecommender hnsw = new HNSWItemRecommender(uedao, idao, scorer, model, index, EF_SEARCH);
+        for (long user: users) {
+            for (ScoredId id: hnsw.recommend(user, K)) {
+                double expected = scorer.score(user, id.getId());
+                assertEquals("score of item " + id.getId() + " for user " + user,
+                             expected, id.getScore(), EPSILON);
+            }
+        }
+    }
+
+    @Test
+    public void testGraphFile() throws IOException {
+        File file = File.createTempFile("graph", ".hnsw");
+        try {
+            index.write(file);
+            HNSWIndex read = HNSWIndex.read(file);
+            assertTrue(read.matches(model));
+            assertEquals(index.getMaxConnections(), read.getMaxConnections());
+            assertEquals(recall(index, EF_SEARCH), recall(read, EF_SEARCH), 0);
+            assertTrue("graph matches a model with other weights",
+                       !read.matches(model.withPrecision(WeightPrecision.FLOAT)));
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,250 @@
+package org.grouplens.mooc.cbf;
+
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.grouplens.mooc.cbf.dao.CSVItemTagDAO;
+import org.grouplens.mooc.cbf.dao.ItemTagDAO;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that an {@link IncrementalTFIDFModel} updated with tag changes has the weights a full
+ * {@link TFIDFModelBuilder} rebuild of the changed data has: exactly with a tolerance of 0, and
+ * with every IDF within the tolerance otherwise.  The two number new tags differently, so the
+ * models are compared by tag name.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class IncrementalTFIDFModelTest {
+    private static final double EPSILON = 1.0e-12;
+
+    private MapItemTagDAO dao;
+    private long[] items;
+
+    @Before
+    public void copyData() {
+        CSVItemTagDAO csv = TestData.itemTagDAO();
+        dao = new MapItemTagDAO();
+        for (long item: csv.getItemIds()) {
+            dao.tags.put(item, new ArrayList<String>(csv.getItemTags(item)));
+        }
+        items = csv.getItemIds().toLongArray();
+        Arrays.sort(items);
+    }
+
+    private TFIDFModel rebuild() {
+        return new TFIDFModelBuilder(dao, 1, null, "double", 0, 0).get();
+    }
+
+    /**
+     * Apply a batch to both the incremental model and the DAO the rebuild reads.
+     */
+    private int apply(IncrementalTFIDFModel model, IncrementalTFIDFModel.Batch batch,
+                      long[] changedItems, String[] changedTags, boolean[] added) {
+        for (int i = 0; i < changedItems.length; i++) {
+            List<String> tags = dao.tags.get(changedItems[i]);
+            if (added[i]) {
+                if (tags == null) {
+                    tags = new ArrayList<String>();
+                    dao.tags.put(changedItems[i], tags);
+                }
+                tags.add(changedTags[i]);
+            } else if (tags != null) {
+                tags.remove(changedTags[i]);
+            }
+        }
+        return model.update(batch);
+    }
+
+    /**
+     * A random batch of changes: new tags on existing items, a new item, removals of existing
+     * tag applications, and the removal of every tag of one item.
+     */
+    private int applyRandomBatch(IncrementalTFIDFModel model, Random rng, long newItem) {
+        List<Long> changedItems = new ArrayList<Long>();
+        List<String> changedTags = new ArrayList<String>();
+        List<Boolean> added = new ArrayList<Boolean>();
+        IncrementalTFIDFModel.Batch batch = new IncrementalTFIDFModel.Batch();
+        for (int i = 0; i < 20; i++) {
+            long item = items[rng.nextInt(items.length)];
+            String tag = rng.nextBoolean() ? "new tag " + rng.nextInt(5) : randomTag(rng);
+            batch.add(item, tag);
+            changedItems.add(item);
+            changedTags.add(tag);
+            added.add(true);
+        }
+        for (int i = 0; i < 3; i++) {
+            String tag = randomTag(rng);
+            batch.add(newItem, tag);
+            changedItems.add(newItem);
+            changedTags.add(tag);
+            added.add(true);
+        }
+        for (int i = 0; i < 20; i++) {
+            long item = items[rng.nextInt(items.length)];
+            List<String> tags = dao.tags.get(item);
+            if (!tags.isEmpty()) {
+                String tag = tags.get(rng.nextInt(tags.size()));
+                batch.remove(item, tag);
+                changedItems.add(item);
+                changedTags.add(tag);
+                added.add(false);
+            }
+        }
+        long cleared = items[rng.nextInt(items.length)];
+        for (String tag: new ArrayList<String>(dao.tags.get(cleared))) {
+            batch.remove(cleared, tag);
+            changedItems.add(cleared);
+            changedTags.add(tag);
+            added.add(false);
+        }
+
+        long[] itemArray = new long[changedItems.size()];
+        boolean[] addedArray = new boolean[added.size()];
+        for (int i = 0; i < itemArray.length; i++) {
+            itemArray[i] = changedItems.get(i);
+            addedArray[i] = added.get(i);
+        }
+        return apply(model, batch, itemArray,
+                     changedTags.toArray(new String[changedTags.size()]), addedArray);
+    }
+
+    private String randomTag(Random rng) {
+        List<String> tags = dao.tags.get(items[rng.nextInt(items.length)]);
+        return tags.isEmpty() ? "empty" : tags.get(rng.nextInt(tags.size()));
+    }
+
+    /**
+     * Get each item's weights by tag name.
+     */
+    private static Map<Long,Map<String,Double>> weightsByName(TFIDFModel model) {
+        String[] names = new String[model.getTagCount()];
+        for (Map.Entry<String,Long> e: model.getTagIds().entrySet()) {
+            names[(int) (e.getValue() - 1)] = e.getKey();
+        }
+        Map<Long,Map<String,Double>> weights = new HashMap<Long,Map<String,Double>>();
+        for (int idx = 0; idx < model.getItemCount(); idx++) {
+            Map<String,Double> row = new HashMap<String,Double>();
+            for (int i = model.getRowStart(idx); i < model.getRowEnd(idx); i++) {
+                row.put(names[model.getTagIndex(i)], model.getWeight(idx, i));
+            }
+            weights.put(model.getItemId(idx), row);
+        }
+        return weights;
+    }
+
+    private static void assertSameWeights(TFIDFModel expected, TFIDFModel actual, double delta) {
+        Map<Long,Map<String,Double>> exp = weightsByName(expected);
+        Map<Long,Map<String,Double>> act = weightsByName(actual);
+        assertEquals("items", exp.keySet(), act.keySet());
+        for (Map.Entry<Long,Map<String,Double>> e: exp.entrySet()) {
+            Map<String,Double> row = act.get(e.getKey());
+            assertEquals("tags of item " + e.getKey(), e.getValue().keySet(), row.keySet());
+            for (Map.Entry<String,Double> w: e.getValue().entrySet()) {
+                assertEquals("weight of " + w.getKey() + " on item " + e.getKey(),
+                             w.getValue(), row.get(w.getKey()), delta);
+            }
+        }
+    }
+
+    @Test
+    public void testInitialModelMatchesBuilder() {
+        IncrementalTFIDFModel model = new IncrementalTFIDFModel(dao, 0);
+        assertSameWeights(rebuild(), model.getModel(), EPSILON);
+    }
+
+    @Test
+    public void testExactUpdatesMatchRebuild() {
+        IncrementalTFIDFModel model = new IncrementalTFIDFModel(dao, 0);
+        Random rng = new Random(1);
+        for (int round = 0; round < 5; round++) {
+            TFIDFModel before = model.getModel();
+            assertTrue(applyRandomBatch(model, rng, -1 - round) > 0);
+            assertEquals(0, model.getMaxDrift(), 0);
+            assertSameWeights(rebuild(), model.getModel(), EPSILON);
+            // snapshots do not change with later updates
+            assertTrue(before != model.getModel());
+        }
+    }
+
+    @Test
+    public void testRemovingEveryTagLeavesAnEmptyRow() {
+        IncrementalTFIDFModel model = new IncrementalTFIDFModel(dao, 0);
+        long item = items[0];
+        IncrementalTFIDFModel.Batch batch = new IncrementalTFIDFModel.Batch();
+        for (String tag: dao.tags.get(item)) {
+            batch.remove(item, tag);
+        }
+        dao.tags.get(item).clear();
+        model.update(batch);
+        TFIDFModel snapshot = model.getModel();
+        int idx = snapshot.getItemIndex(item);
+        assertTrue("item left the model", idx >= 0);
+        assertEquals(snapshot.getRowStart(idx), snapshot.getRowEnd(idx));
+        assertSameWeights(rebuild(), snapshot, EPSILON);
+    }
+
+    @Test
+    public void testDriftStaysWithinTolerance() {
+        double tolerance = 0.01;
+        IncrementalTFIDFModel model = new IncrementalTFIDFModel(dao, tolerance);
+        Random rng = new Random(2);
+        for (int round = 0; round < 5; round++) {
+            applyRandomBatch(model, rng, -1 - round);
+            assertTrue("IDF drift " + model.getMaxDrift(), model.getMaxDrift() <= tolerance);
+            // every vector is still normalized
+            TFIDFModel snapshot = model.getModel();
+            for (int idx = 0; idx < snapshot.getItemCount(); idx++) {
+                double ssq = 0;
+                for (int i = snapshot.getRowStart(idx); i < snapshot.getRowEnd(idx); i++) {
+                    ssq += snapshot.getWeight(idx, i) * snapshot.getWeight(idx, i);
+                }
+                if (ssq > 0) {
+                    assertEquals("norm of item " + snapshot.getItemId(idx), 1, ssq, 1.0e-9);
+                }
+            }
+        }
+        model.renormalize();
+        assertEquals(0, model.getMaxDrift(), 0);
+        assertSameWeights(rebuild(), model.getModel(), EPSILON);
+    }
+
+    /**
+     * Item-tag DAO over a map, so tests can change the tags.
+     */
+    private static class MapItemTagDAO implements ItemTagDAO {
+        final Map<Long,List<String>> tags = new HashMap<Long,List<String>>();
+
+        @Override
+        public List<String> getItemTags(long item) {
+            List<String> list = tags.get(item);
+            return list == null ? new ArrayList<String>() : list;
+        }
+
+        @Override
+        public Set<String> getTagVocabulary() {
+            Set<String> vocab = new HashSet<String>();
+            for (List<String> list: tags.values()) {
+                vocab.addAll(list);
+            }
+            return vocab;
+        }
+
+        @Override
+        public LongSet getItemIds() {
+            return new LongOpenHashSet(tags.keySet());
+        }
+    }
+}
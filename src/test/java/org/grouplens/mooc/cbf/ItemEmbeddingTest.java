@@ -0,0 +1,216 @@
+package org.grouplens.mooc.cbf;
+
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.data.event.Event;
+import org.grouplens.lenskit.data.history.UserHistory;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.lenskit.vectors.VectorEntry;
+import org.grouplens.mooc.cbf.dao.MOOCRatingDAO;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks {@linkplain ItemEmbedding item embeddings} and the {@link EmbeddingItemScorer} on the
+ * bundled {@linkplain TestData test data}: that items embed as unit vectors, the same whatever the
+ * number of threads; that an SVD with as many dimensions as items scores exactly; and that the
+ * top {@value #N} items for each user from a reduced embedding stay close to the exact ones, by
+ * their overlap and by their nDCG (taking the exact list as the ideal ranking, with the item at
+ * rank <var>r</var> having relevance <var>N</var> - <var>r</var>).  Items the user has rated are
+ * left out.  The time taken is measured by {@code EmbeddingBenchmark} in the benchmarks module.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class ItemEmbeddingTest {
+    private static final int N = 10;
+
+    private static TFIDFModel model;
+    private static UserEventDAO uedao;
+    private static TFIDFItemScorer scorer;
+    private static long[] users;
+    private static SparseVector[] profiles;
+    private static int[][] expected;
+
+    @BeforeClass
+    public static void rankExact() throws IOException {
+        model = new TFIDFModelBuilder(TestData.itemTagDAO(), 1, null, "double", 0, 0).get();
+        uedao = new MOOCRatingDAO(TestData.ratingFile());
+        scorer = new TFIDFItemScorer(uedao, model, 0, 0, 0);
+        users = TestData.userIds();
+        profiles = new SparseVector[users.length];
+        expected = new int[users.length][];
+        double[] scores = new double[model.getItemCount()];
+        double[] profile = new double[model.getTagCount()];
+        for (int u = 0; u < users.length; u++) {
+            profiles[u] = scorer.makeUserVector(users[u]);
+            for (VectorEntry e: profiles[u].fast()) {
+                profile[(int) e.getKey() - 1] = e.getValue();
+            }
+            for (int i = 0; i < scores.length; i++) {
+                scores[i] = model.dot(i, profile);
+            }
+            for (VectorEntry e: profiles[u].fast()) {
+                profile[(int) e.getKey() - 1] = 0;
+            }
+            expected[u] = topItems(users[u], scores);
+        }
+    }
+
+    @Test
+    public void testItemsAreUnitVectors() {
+        for (ProjectionMethod method: ProjectionMethod.values()) {
+            ItemEmbedding embedding = new ItemEmbeddingBuilder(model, 16, method.name(), 1).get();
+            assertEquals(model.getItemCount(), embedding.getItemCount());
+            assertEquals(4L * 16 * (model.getTagCount() + model.getItemCount()),
+                         embedding.getBytes());
+            for (int idx = 0; idx < model.getItemCount(); idx++) {
+                double ssq = 0;
+                for (int j = 0; j < 16; j++) {
+                    ssq += embedding.getCoordinate(idx, j) * embedding.getCoordinate(idx, j);
+                }
+                boolean empty = model.getRowStart(idx) == model.getRowEnd(idx);
+                assertEquals(method + " item " + idx, empty ? 0 : 1, ssq, 1.0e-5);
+            }
+        }
+    }
+
+    @Test
+    public void testSameWithEveryThreadCount() {
+        for (ProjectionMethod method: ProjectionMethod.values()) {
+            ItemEmbedding one = new ItemEmbeddingBuilder(model, 32, method.name(), 1).get();
+            ItemEmbedding three = new ItemEmbeddingBuilder(model, 32, method.name(), 3).get();
+            for (int idx = 0; idx < model.getItemCount(); idx++) {
+                for (int j = 0; j < 32; j++) {
+                    assertEquals(one.getCoordinate(idx, j), three.getCoordinate(idx, j), 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * With at least as many dimensions as items, the singular vectors span every item vector and
+     * every profile, so the embedding gives the exact cosines, up to {@code float} rounding.
+     */
+    @Test
+    public void testFullRankSVDIsExact() {
+        assertTrue(model.getItemCount() <= 128);
+        LongSet items = TestData.itemTagDAO().getItemIds();
+        ItemEmbedding embedding = new ItemEmbeddingBuilder(model, 128, "svd", 1).get();
+        EmbeddingItemScorer approx = new EmbeddingItemScorer(scorer, model, embedding);
+        for (int u = 0; u < users.length; u += 10) {
+            SparseVector exact = scorer.score(users[u], items);
+            SparseVector scores = approx.score(users[u], items);
+            assertEquals(exact.keySet(), scores.keySet());
+            for (VectorEntry e: exact.fast()) {
+                assertEquals("user " + users[u] + " item " + e.getKey(),
+                             e.getValue(), scores.get(e.getKey()), 1.0e-4);
+            }
+        }
+    }
+
+    /**
+     * Check the rankings from reduced embeddings.  The thresholds are a little under what the
+     * bundled data gives: at 64 dimensions, an overlap of 0.889 and an nDCG of 0.960 for the SVD,
+     * and 0.408 and 0.488 for a random projection.
+     */
+    @Test
+    public void testRankingQuality() {
+        double[] svd = quality(new ItemEmbeddingBuilder(model, 64, "svd", 1).get());
+        assertTrue("SVD overlap " + svd[0], svd[0] >= 0.87);
+        assertTrue("SVD nDCG " + svd[1], svd[1] >= 0.94);
+        double[] random = quality(new ItemEmbeddingBuilder(model, 64, "random", 1).get());
+        assertTrue("random overlap " + random[0], random[0] >= 0.38);
+        assertTrue("random nDCG " + random[1], random[1] >= 0.46);
+    }
+
+    @Test
+    public void testScorerRejectsOtherModel() {
+        ItemEmbedding embedding = new ItemEmbeddingBuilder(model, 16, "svd", 1).get();
+        TFIDFModel pruned = model.pruned(5, 0);
+        assertFalse(embedding.matches(pruned));
+        try {
+            new EmbeddingItemScorer(scorer, pruned, embedding);
+            fail("scorer accepted an embedding of another model");
+        } catch (IllegalArgumentException e) {
+            /* expected */
+        }
+    }
+
+    /**
+     * Compute the mean overlap and nDCG of the users' top items from an embedding.
+     */
+    private static double[] quality(ItemEmbedding embedding) {
+        double overlap = 0;
+        double ndcg = 0;
+        double[] scores = new double[model.getItemCount()];
+        float[] query = new float[embedding.getDimension()];
+        for (int u = 0; u < users.length; u++) {
+            embedding.project(profiles[u], query);
+            for (int i = 0; i < scores.length; i++) {
+                scores[i] = embedding.dot(i, query);
+            }
+            int[] exp = expected[u];
+            int[] actual = topItems(users[u], scores);
+            double ideal = 0;
+            for (int r = 0; r < exp.length; r++) {
+                ideal += (N - r) / log2(r + 2);
+            }
+            if (ideal == 0) {
+                // no items to recommend either way
+                overlap += 1;
+                ndcg += 1;
+                continue;
+            }
+            int common = 0;
+            double dcg = 0;
+            for (int r = 0; r < actual.length; r++) {
+                for (int e = 0; e < exp.length; e++) {
+                    if (exp[e] == actual[r]) {
+                        common++;
+                        dcg += (N - e) / log2(r + 2);
+                        break;
+                    }
+                }
+            }
+            overlap += (double) common / exp.length;
+            ndcg += dcg / ideal;
+        }
+        return new double[]{overlap / users.length, ndcg / users.length};
+    }
+
+    /**
+     * Get a user's top items by their scores, leaving out the items they have rated.
+     */
+    private static int[] topItems(long user, double[] scores) {
+        boolean[] rated = new boolean[scores.length];
+        UserHistory<Event> history = uedao.getEventsForUser(user);
+        if (history != null) {
+            for (long item: history.itemSet()) {
+                int idx = model.getItemIndex(item);
+                if (idx >= 0) {
+                    rated[idx] = true;
+                }
+            }
+        }
+        TopItemAccumulator top = new TopItemAccumulator(N);
+        for (int i = 0; i < scores.length; i++) {
+            if (!rated[i] && model.getRowStart(i) < model.getRowEnd(i)) {
+                top.put(i, scores[i]);
+            }
+        }
+        int[] items = new int[top.size()];
+        top.finish(items, new double[items.length]);
+        return items;
+    }
+
+    private static double log2(double x) {
+        return Math.log(x) / Math.log(2);
+    }
+}
@@ -0,0 +1,104 @@
+package org.grouplens.mooc.cbf;
+
+import org.grouplens.mooc.cbf.dao.CSVItemTagDAO;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the {@linkplain ItemSimilarityTableBuilder item similarity table} against the cosines of
+ * every pair of items in the bundled {@linkplain TestData test data}, built with one thread and
+ * with several, and that the table only matches the model it was built on.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class ItemSimilarityTableBuilderTest {
+    private static final int K = 10;
+    private static final double EPSILON = 1.0e-6;
+
+    private static TFIDFModel model;
+    private static TagItemIndex index;
+
+    @BeforeClass
+    public static void buildModel() {
+        CSVItemTagDAO idao = TestData.itemTagDAO();
+        model = new TFIDFModelBuilder(idao, 1, null, "double", 0, 0).get();
+        index = new TagItemIndexBuilder(model).get();
+    }
+
+    /**
+     * Compute the cosine of two items by walking both rows.
+     */
+    private static double cosine(int a, int b) {
+        double[] dense = new double[model.getTagCount()];
+        for (int i = model.getRowStart(a); i < model.getRowEnd(a); i++) {
+            dense[model.getTagIndex(i)] = model.getWeight(a, i);
+        }
+        return model.dot(b, dense);
+    }
+
+    private static void checkTable(ItemSimilarityTable table) {
+        int nitems = model.getItemCount();
+        assertEquals(nitems, table.getItemCount());
+        for (int q = 0; q < nitems; q++) {
+            // the exact neighbors: positive cosines, best first, ties by item index
+            double[] sims = new double[nitems];
+            int positive = 0;
+            for (int j = 0; j < nitems; j++) {
+                sims[j] = j == q ? 0 : cosine(q, j);
+                if (sims[j] > 0) {
+                    positive++;
+                }
+            }
+            int start = table.getNeighborStart(q);
+            int end = table.getNeighborEnd(q);
+            assertEquals("neighbors of item " + q, Math.min(K, positive), end - start);
+            for (int pos = start; pos < end; pos++) {
+                int item = table.getNeighborItem(pos);
+                assertTrue(item != q);
+                assertEquals("similarity of items " + q + " and " + item,
+                             sims[item], table.getSimilarity(pos), EPSILON);
+                if (pos > start) {
+                    assertTrue("neighbors of item " + q + " out of order",
+                               table.getSimilarity(pos - 1) >= table.getSimilarity(pos));
+                }
+            }
+            // nothing left out scores better than the last neighbor
+            if (end > start) {
+                double last = table.getSimilarity(end - 1);
+                int better = 0;
+                for (int j = 0; j < nitems; j++) {
+                    if (sims[j] > last + EPSILON) {
+                        better++;
+                    }
+                }
+                assertTrue("item " + q + " has better items than its neighbors", better < end - start);
+            }
+        }
+    }
+
+    @Test
+    public void testOneThread() {
+        ItemSimilarityTable table = new ItemSimilarityTableBuilder(model, index, K, 1).get();
+        checkTable(table);
+        assertTrue(table.matches(model));
+        assertTrue("table matches a model with other weights",
+                   !table.matches(model.withPrecision(WeightPrecision.FLOAT)));
+    }
+
+    @Test
+    public void testThreadsGiveTheSameTable() {
+        ItemSimilarityTable one = new ItemSimilarityTableBuilder(model, index, K, 1).get();
+        ItemSimilarityTable four = new ItemSimilarityTableBuilder(model, index, K, 4).get();
+        checkTable(four);
+        for (int q = 0; q <= model.getItemCount(); q++) {
+            assertEquals(one.getNeighborStart(q), four.getNeighborStart(q));
+        }
+        for (int pos = 0; pos < one.getNeighborEnd(model.getItemCount() - 1); pos++) {
+            assertEquals(one.getNeighborItem(pos), four.getNeighborItem(pos));
+            assertEquals(one.getSimilarity(pos), four.getSimilarity(pos), 0);
+        }
+    }
+}
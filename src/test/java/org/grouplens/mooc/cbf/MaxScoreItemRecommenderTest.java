@@ -0,0 +1,168 @@
+package org.grouplens.mooc.cbf;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import it.unimi.dsi.fastutil.longs.LongOpenHashSet;
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.grouplens.lenskit.ItemRecommender;
+import org.grouplens.lenskit.basic.TopNItemRecommender;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.scored.ScoredId;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.mooc.cbf.dao.CSVItemTagDAO;
+import org.grouplens.mooc.cbf.dao.MOOCRatingDAO;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link MaxScoreItemRecommender} recommends exactly what exhaustive scoring with
+ * {@link TFIDFItemScorer} does, with the same scores, for every user in the bundled
+ * {@linkplain TestData test data}.  The exhaustive ranking is taken over all items, with ties
+ * broken by item ID; {@link TopNItemRecommender} leaves the order of tied items (such as the many
+ * items scoring 0) unspecified.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class MaxScoreItemRecommenderTest {
+    private static final int[] COUNTS = {1, 10, 50};
+    private static final double EPSILON = 1.0e-9;
+    private static final Comparator<ScoredId> SCORE_THEN_ID = new Comparator<ScoredId>() {
+        @Override
+        public int compare(ScoredId a, ScoredId b) {
+            int cmp = Double.compare(b.getScore(), a.getScore());
+            return cmp != 0 ? cmp : Long.compare(a.getId(), b.getId());
+        }
+    };
+
+    private static long[] users;
+    private static long[] items;
+    private static TFIDFItemScorer scorer;
+    private static ItemRecommender exhaustive;
+    private static ItemRecommender maxScore;
+
+    @BeforeClass
+    public static void buildRecommenders() throws IOException {
+        CSVItemTagDAO idao = TestData.itemTagDAO();
+        users = TestData.userIds();
+        items = idao.getItemIds().toLongArray();
+        UserEventDAO uedao = new MOOCRatingDAO(TestData.ratingFile());
+
+        TFIDFModel model = new TFIDFModelBuilder(idao, 1, null, "double", 0, 0).get();
+        scorer = new TFIDFItemScorer(uedao, model, users.length, 0, 0);
+        exhaustive = new TopNItemRecommender(uedao, idao, scorer);
+        maxScore = new MaxScoreItemRecommender(uedao, idao, scorer, model,
+                                               new TagItemIndexBuilder(model).get());
+    }
+
+    private static LongList itemIds(List<ScoredId> recs) {
+        LongList ids = new LongArrayList(recs.size());
+        for (ScoredId id: recs) {
+            ids.add(id.getId());
+        }
+        return ids;
+    }
+
+    /**
+     * Rank the scored candidates that are not excluded, best first, ties by item ID.
+     */
+    private static LongList rank(long user, LongSet candidates, LongSet exclude) {
+        final SparseVector scores = scorer.score(user, candidates);
+        LongList ranked = new LongArrayList();
+        for (long item: scores.keySet().toLongArray()) {
+            if (!exclude.contains(item)) {
+                ranked.add(item);
+            }
+        }
+        Collections.sort(ranked, new Comparator<Long>() {
+            @Override
+            public int compare(Long a, Long b) {
+                int cmp = Double.compare(scores.get(b), scores.get(a));
+                return cmp != 0 ? cmp : Long.compare(a, b);
+            }
+        });
+        return ranked;
+    }
+
+    /**
+     * Check a recommendation list against the ranking, and its scores against the scorer's.
+     */
+    private static void checkRecommendations(String label, long user, LongList ranking, int n,
+                                             List<ScoredId> actual) {
+        LongList expected = ranking.subList(0, Math.min(n, ranking.size()));
+        assertEquals(label, expected, itemIds(actual));
+        SparseVector scores = scorer.score(user, itemIds(actual));
+        for (ScoredId id: actual) {
+            assertEquals(label + ": score of item " + id.getId(),
+                         scores.get(id.getId()), id.getScore(), EPSILON);
+        }
+    }
+
+    @Test
+    public void testMatchesExhaustiveScoring() {
+        assertTrue("no users in data/users.csv", users.length > 0);
+        for (long user: users) {
+            // rank every item, then break ties by item ID, as MaxScoreItemRecommender does
+            List<ScoredId> ranking = new ArrayList<ScoredId>(exhaustive.recommend(user, -1));
+            Collections.sort(ranking, SCORE_THEN_ID);
+            for (int n: COUNTS) {
+                List<ScoredId> actual = maxScore.recommend(user, n);
+                checkRecommendations("top " + n + " items for user " + user,
+                                     user, itemIds(ranking), n, actual);
+            }
+        }
+    }
+
+    /**
+     * Ask for all but one item, so the lists have to be filled out with items scoring 0 or less,
+     * which the posting lists do not reach, and the recommender falls back to scoring every item.
+     */
+    @Test
+    public void testFullScanFallback() {
+        LongSet all = new LongOpenHashSet(items);
+        LongSet none = new LongOpenHashSet();
+        int n = items.length - 1;
+        boolean fellBack = false;
+        for (long user: users) {
+            List<ScoredId> actual = maxScore.recommend(user, n, null, none);
+            checkRecommendations("top " + n + " items for user " + user,
+                                 user, rank(user, all, none), n, actual);
+            if (!actual.isEmpty() && actual.get(actual.size() - 1).getScore() <= 0) {
+                fellBack = true;
+            }
+        }
+        assertTrue("no list needed items scoring 0 or less", fellBack);
+    }
+
+    @Test
+    public void testCandidatesAndExclusions() {
+        Random rng = new Random(7);
+        for (long user: users) {
+            LongSet candidates = new LongOpenHashSet();
+            LongSet exclude = new LongOpenHashSet();
+            for (long item: items) {
+                if (rng.nextBoolean()) {
+                    candidates.add(item);
+                }
+                if (rng.nextInt(4) == 0) {
+                    exclude.add(item);
+                }
+            }
+            LongList ranking = rank(user, candidates, exclude);
+            for (int n: COUNTS) {
+                List<ScoredId> actual = maxScore.recommend(user, n, candidates, exclude);
+                checkRecommendations("top " + n + " candidates for user " + user,
+                                     user, ranking, n, actual);
+            }
+        }
+    }
+}
@@ -0,0 +1,150 @@
+package org.grouplens.mooc.cbf;
+
+import org.grouplens.lenskit.ItemScorer;
+import org.grouplens.lenskit.RecommenderBuildException;
+import org.grouplens.lenskit.core.LenskitConfiguration;
+import org.grouplens.lenskit.core.LenskitRecommender;
+import org.grouplens.lenskit.data.dao.ItemDAO;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.mooc.cbf.dao.CSVItemTagDAO;
+import org.grouplens.mooc.cbf.dao.MOOCRatingDAO;
+import org.grouplens.mooc.cbf.dao.RatingFile;
+import org.grouplens.mooc.cbf.dao.TagFile;
+import org.grouplens.mooc.cbf.dao.TitleFile;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the {@linkplain CBFMain.ModelRefresher model refresher} rebuilds the recommender
+ * from changed data, rather than loading the old model file, and swaps it into the result cache;
+ * and that it keeps the old recommender when nothing changed or the rebuild fails.  The
+ * recommender is set up much as {@link CBFMain} sets it up, over copies of the bundled data.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class ModelRefresherTest {
+    private final long user = TestData.userIds()[0];
+    private File dir;
+    private File tagFile;
+    private File titleFile;
+    private File modelFile;
+    private LenskitConfiguration config;
+    private CachedItemRecommender cached;
+    private long dataTime;
+    private CBFMain.ModelRefresher refresher;
+
+    @Before
+    public void buildRecommender() throws IOException, RecommenderBuildException {
+        dir = Files.createTempDirectory("refresher").toFile();
+        tagFile = new File(dir, "movie-tags.csv");
+        titleFile = new File(dir, "movie-titles.csv");
+        modelFile = new File(dir, "movie-tags.tfidf");
+        Files.copy(new File("data/movie-tags.csv").toPath(), tagFile.toPath());
+        Files.copy(new File("data/movie-titles.csv").toPath(), titleFile.toPath());
+
+        config = new LenskitConfiguration();
+        config.bind(UserEventDAO.class)
+              .to(MOOCRatingDAO.class);
+        config.set(RatingFile.class)
+              .to(TestData.ratingFile());
+        config.bind(ItemDAO.class)
+              .to(CSVItemTagDAO.class);
+        config.set(TagFile.class)
+              .to(tagFile);
+        config.set(TitleFile.class)
+              .to(titleFile);
+        config.bind(ItemScorer.class)
+              .to(TFIDFItemScorer.class);
+        config.set(ModelFile.class)
+              .to(modelFile);
+
+        LenskitRecommender rec = LenskitRecommender.build(config);
+        cached = new CachedItemRecommender(rec.getItemRecommender(), rec.get(TFIDFModel.class),
+                                           rec.get(UserEventDAO.class), 100);
+        dataTime = Math.max(tagFile.lastModified(), titleFile.lastModified());
+        refresher = new CBFMain.ModelRefresher(config, cached, modelFile,
+                                               new File[]{tagFile, titleFile}, dataTime);
+    }
+
+    @After
+    public void deleteFiles() {
+        for (File file: dir.listFiles()) {
+            file.delete();
+        }
+        dir.delete();
+    }
+
+    private void appendTag(long item, String tag) throws IOException {
+        FileOutputStream out = new FileOutputStream(tagFile, true);
+        try {
+            out.write(String.format("%d,%s\n", item, tag).getBytes(Charset.forName("UTF-8")));
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void testUnchangedDataKeepsRecommender() {
+        TFIDFModel model = cached.getModel();
+        cached.recommend(user, 5);
+        refresher.refresh();
+        assertEquals(1, cached.getModelVersion());
+        assertSame(model, cached.getModel());
+        assertEquals(1, cached.size());
+    }
+
+    @Test
+    public void testChangedDataSwapsInRebuiltModel() throws IOException {
+        TFIDFModel model = cached.getModel();
+        cached.recommend(user, 5);
+        long item = model.getItemId(0);
+        appendTag(item, "refresher tag");
+        // the model file is older than the changed data, so it must not be loaded again
+        modelFile.setLastModified(dataTime);
+        tagFile.setLastModified(dataTime + 5000);
+
+        refresher.refresh();
+        assertEquals(2, cached.getModelVersion());
+        TFIDFModel rebuilt = cached.getModel();
+        assertTrue(rebuilt.getTagIds().containsKey("refresher tag"));
+        assertEquals(model.getTagCount() + 1, rebuilt.getTagCount());
+        assertEquals(0, cached.size());
+        assertTrue(modelFile.exists());
+
+        // nothing changed since
+        refresher.refresh();
+        assertEquals(2, cached.getModelVersion());
+        assertSame(rebuilt, cached.getModel());
+    }
+
+    @Test
+    public void testFailedBuildKeepsRecommender() throws IOException {
+        TFIDFModel model = cached.getModel();
+        cached.recommend(user, 5);
+        assertTrue(tagFile.delete());
+        titleFile.setLastModified(dataTime + 5000);
+
+        refresher.refresh();
+        assertEquals(1, cached.getModelVersion());
+        assertSame(model, cached.getModel());
+        assertEquals(1, cached.size());
+
+        // the next change is built
+        Files.copy(new File("data/movie-tags.csv").toPath(), tagFile.toPath());
+        tagFile.setLastModified(dataTime + 10000);
+        refresher.refresh();
+        assertEquals(2, cached.getModelVersion());
+        assertEquals(model.getTagCount(), cached.getModel().getTagCount());
+    }
+}
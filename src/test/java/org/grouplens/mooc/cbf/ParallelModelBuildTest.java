@@ -0,0 +1,130 @@
+package org.grouplens.mooc.cbf;
+
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.grouplens.mooc.cbf.dao.CSVItemTagDAO;
+import org.grouplens.mooc.cbf.dao.ItemTagDAO;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a {@link TFIDFModelBuilder} builds exactly the same model, bit for bit, with one
+ * thread as with several, on the bundled {@linkplain TestData test data} and on a synthetic
+ * catalog of {@value #ITEMS} items.  The synthetic catalog is large enough that the parallel
+ * build splits it into several fork-join tasks.  Both the encoded tag path of
+ * {@link CSVItemTagDAO} and the string path of a plain {@link ItemTagDAO} are built.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class ParallelModelBuildTest {
+    private static final int ITEMS = 6000;
+    private static final int TAGS = 2000;
+    private static final int THREADS = 4;
+
+    private static File titleFile;
+    private static File tagFile;
+
+    @BeforeClass
+    public static void writeCatalog() throws IOException {
+        titleFile = File.createTempFile("titles", ".csv");
+        tagFile = File.createTempFile("tags", ".csv");
+        Random rng = new Random(42);
+        PrintWriter titles = new PrintWriter(titleFile, "UTF-8");
+        PrintWriter tags = new PrintWriter(tagFile, "UTF-8");
+        try {
+            for (int item = 1; item <= ITEMS; item++) {
+                titles.format("%d,Item %d\n", item, item);
+                int count = 1 + rng.nextInt(40);
+                for (int i = 0; i < count; i++) {
+                    // skewed towards the low tags, so some tags are common and repeated
+                    int tag = (int) (TAGS * Math.pow(rng.nextDouble(), 3));
+                    tags.format("%d,tag %d\n", item, tag);
+                }
+            }
+        } finally {
+            titles.close();
+            tags.close();
+        }
+    }
+
+    @AfterClass
+    public static void deleteCatalog() {
+        titleFile.delete();
+        tagFile.delete();
+    }
+
+    private static void assertSameModel(ItemTagDAO dao) {
+        TFIDFModel sequential = new TFIDFModelBuilder(dao, 1, null, "double", 0, 0).get();
+        TFIDFModel parallel = new TFIDFModelBuilder(dao, THREADS, null, "double", 0, 0).get();
+        assertEquals(sequential.getTagIds(), parallel.getTagIds());
+        int nitems = sequential.getItemCount();
+        assertEquals(nitems, parallel.getItemCount());
+        for (int idx = 0; idx <= nitems; idx++) {
+            if (idx < nitems) {
+                assertEquals(sequential.getItemId(idx), parallel.getItemId(idx));
+            }
+            assertEquals("offset " + idx, sequential.getRowStart(idx), parallel.getRowStart(idx));
+        }
+        for (int idx = 0; idx < nitems; idx++) {
+            for (int i = sequential.getRowStart(idx); i < sequential.getRowEnd(idx); i++) {
+                assertEquals(sequential.getTagIndex(i), parallel.getTagIndex(i));
+                assertEquals("weight " + i + " of item " + idx,
+                             Double.doubleToLongBits(sequential.getWeight(idx, i)),
+                             Double.doubleToLongBits(parallel.getWeight(idx, i)));
+            }
+        }
+    }
+
+    @Test
+    public void testBundledData() {
+        assertSameModel(TestData.itemTagDAO());
+    }
+
+    @Test
+    public void testSyntheticCatalog() {
+        // above the builder's minimum grain of 256 items, the build splits into THREADS * 4 tasks
+        assertTrue(ITEMS / (THREADS * 4) >= 256);
+        assertSameModel(new CSVItemTagDAO(titleFile, tagFile));
+    }
+
+    @Test
+    public void testSyntheticCatalogByName() {
+        assertSameModel(new StringTagDAO(new CSVItemTagDAO(titleFile, tagFile)));
+    }
+
+    /**
+     * Item-tag DAO that hides its delegate's tag IDs, so the builder looks tags up by name.
+     */
+    private static class StringTagDAO implements ItemTagDAO {
+        private final ItemTagDAO delegate;
+
+        StringTagDAO(ItemTagDAO dao) {
+            delegate = dao;
+        }
+
+        @Override
+        public List<String> getItemTags(long item) {
+            return delegate.getItemTags(item);
+        }
+
+        @Override
+        public Set<String> getTagVocabulary() {
+            return delegate.getTagVocabulary();
+        }
+
+        @Override
+        public LongSet getItemIds() {
+            return delegate.getItemIds();
+        }
+    }
+}
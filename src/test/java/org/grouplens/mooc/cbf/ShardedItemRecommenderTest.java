@@ -0,0 +1,105 @@
+package org.grouplens.mooc.cbf;
+
+import org.grouplens.lenskit.ItemRecommender;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.scored.ScoredId;
+import org.grouplens.mooc.cbf.dao.CSVItemTagDAO;
+import org.grouplens.mooc.cbf.dao.MOOCRatingDAO;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that {@linkplain ShardedItemRecommender scatter-gather scoring} recommends exactly what
+ * {@link MaxScoreItemRecommender} does over the unsharded model, with the same scores, for a range
+ * of shard counts: from {@linkplain LocalModelShard shards in this process}, and from
+ * {@linkplain ShardServer shard servers} reached over loopback TCP.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class ShardedItemRecommenderTest {
+    private static final int[] SHARD_COUNTS = {1, 2, 5};
+    private static final int COUNT = 10;
+    private static final int MAX_USERS = 500;
+
+    private static CSVItemTagDAO idao;
+    private static UserEventDAO uedao;
+    private static long[] users;
+    private static TFIDFModel model;
+    private static TFIDFItemScorer scorer;
+    private static List<List<ScoredId>> expected;
+
+    @BeforeClass
+    public static void recommendUnsharded() throws IOException {
+        idao = TestData.itemTagDAO();
+        uedao = new MOOCRatingDAO(TestData.ratingFile());
+        long[] ids = TestData.userIds();
+        users = new long[Math.min(ids.length, MAX_USERS)];
+        System.arraycopy(ids, 0, users, 0, users.length);
+        model = new TFIDFModelBuilder(idao, 1, null, "double", 0, 0).get();
+        scorer = new TFIDFItemScorer(uedao, model, users.length, 0, 0);
+        ItemRecommender maxScore = new MaxScoreItemRecommender(uedao, idao, scorer, model,
+                                                               new TagItemIndexBuilder(model).get());
+        expected = new ArrayList<List<ScoredId>>(users.length);
+        for (long user: users) {
+            expected.add(maxScore.recommend(user, COUNT));
+        }
+    }
+
+    private static void checkRecommendations(String label, ShardedItemRecommender rec) {
+        for (int u = 0; u < users.length; u++) {
+            assertEquals(label + ": top " + COUNT + " for user " + users[u],
+                         expected.get(u), rec.recommend(users[u], COUNT));
+        }
+    }
+
+    @Test
+    public void testLocalShards() throws IOException {
+        for (int count: SHARD_COUNTS) {
+            List<ModelShard> shards = new ArrayList<ModelShard>(count);
+            for (TFIDFModel part: TFIDFModelBuilder.shard(model, count)) {
+                shards.add(new LocalModelShard(part));
+            }
+            ShardedItemRecommender rec = new ShardedItemRecommender(uedao, idao, scorer, shards);
+            try {
+                checkRecommendations(count + " local shards", rec);
+            } finally {
+                rec.close();
+            }
+        }
+    }
+
+    @Test
+    public void testRemoteShards() throws IOException {
+        InetAddress loopback = InetAddress.getLoopbackAddress();
+        for (int count: SHARD_COUNTS) {
+            List<ShardServer> servers = new ArrayList<ShardServer>(count);
+            List<ModelShard> shards = new ArrayList<ModelShard>(count);
+            ShardedItemRecommender rec = null;
+            try {
+                for (TFIDFModel part: TFIDFModelBuilder.shard(model, count)) {
+                    ShardServer server = ShardServer.start(new LocalModelShard(part), loopback, 0);
+                    servers.add(server);
+                    shards.add(new RemoteModelShard(new InetSocketAddress(loopback,
+                                                                          server.getPort())));
+                }
+                rec = new ShardedItemRecommender(uedao, idao, scorer, shards);
+                checkRecommendations(count + " TCP shards", rec);
+            } finally {
+                if (rec != null) {
+                    rec.close();
+                }
+                for (ShardServer server: servers) {
+                    server.close();
+                }
+            }
+        }
+    }
+}
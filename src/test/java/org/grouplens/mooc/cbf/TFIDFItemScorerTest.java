@@ -0,0 +1,99 @@
+package org.grouplens.mooc.cbf;
+
+import it.unimi.dsi.fastutil.longs.LongArrayList;
+import it.unimi.dsi.fastutil.longs.LongList;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.mooc.cbf.dao.CSVItemTagDAO;
+import org.grouplens.mooc.cbf.dao.LiveRatingDAO;
+import org.grouplens.mooc.cbf.dao.MOOCRatingDAO;
+import org.grouplens.mooc.cbf.dao.RatingFileTailer;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that cached user profiles over a {@link LiveRatingDAO} catch up with the ratings a
+ * {@link RatingFileTailer} adds, scoring as a scorer without a cache does over the whole file.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class TFIDFItemScorerTest {
+    private static final double EPSILON = 1.0e-9;
+    private static final long NEW_USER = 1000000;
+
+    private File file;
+    private long[] users;
+    private long[] items;
+    private TFIDFModel model;
+
+    @Before
+    public void writeRatings() throws IOException {
+        CSVItemTagDAO idao = TestData.itemTagDAO();
+        users = Arrays.copyOf(TestData.userIds(), 5);
+        items = idao.getItemIds().toLongArray();
+        Arrays.sort(items);
+        model = new TFIDFModelBuilder(idao, 1, null, "double", 0, 0).get();
+        file = File.createTempFile("ratings", ".csv");
+        TestData.writeRatings(file, users, items);
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    private void checkScores(TFIDFItemScorer cached, long user) {
+        TFIDFItemScorer uncached = new TFIDFItemScorer(new MOOCRatingDAO(file), model, 0, 0, 0);
+        LongList all = new LongArrayList(items);
+        SparseVector expected = uncached.score(user, all);
+        SparseVector actual = cached.score(user, all);
+        assertEquals("items scored for user " + user, expected.keySet(), actual.keySet());
+        for (long item: expected.keySet()) {
+            assertEquals("score of item " + item + " for user " + user,
+                         expected.get(item), actual.get(item), EPSILON);
+        }
+    }
+
+    @Test
+    public void testCachedProfilesCatchUp() throws IOException {
+        LiveRatingDAO dao = new LiveRatingDAO(file);
+        TFIDFItemScorer scorer = new TFIDFItemScorer(dao, model, 100, 0, 0);
+        RatingFileTailer tailer = new RatingFileTailer(dao, 1000);
+        for (long user: users) {
+            checkScores(scorer, user);
+        }
+        checkScores(scorer, NEW_USER);
+
+        Random rng = new Random(3);
+        for (int round = 0; round < 3; round++) {
+            FileWriter out = new FileWriter(file, true);
+            try {
+                for (long user: users) {
+                    out.write(String.format("%d,%d,%.1f\n", user, items[rng.nextInt(items.length)],
+                                            0.5 * (1 + rng.nextInt(10))));
+                }
+                out.write(String.format("%d,%d,%.1f\n", NEW_USER, items[rng.nextInt(items.length)],
+                                        0.5 * (1 + rng.nextInt(10))));
+            } finally {
+                out.close();
+            }
+            assertEquals(users.length + 1, tailer.poll());
+            for (long user: users) {
+                checkScores(scorer, user);
+            }
+            checkScores(scorer, NEW_USER);
+        }
+        // the profiles were updated in the cache, not rebuilt
+        assertTrue(scorer.getProfileCacheStats().hitCount() > 0);
+        assertEquals(users.length + 1, scorer.getProfileCacheStats().missCount());
+    }
+}
@@ -0,0 +1,171 @@
+package org.grouplens.mooc.cbf;
+
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks reading and writing {@linkplain TFIDFModelFile model files}: that a model reads back
+ * with its fingerprint, which is taken from the file rather than computed from the mapped
+ * vectors, and that a damaged file fails to open with an {@link IOException}, so the
+ * {@link TFIDFModelBuilder} rebuilds the model instead.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class TFIDFModelFileTest {
+    private static TFIDFModel model;
+    private File file;
+
+    @BeforeClass
+    public static void buildModel() {
+        model = new TFIDFModelBuilder(TestData.itemTagDAO(), 1, null, "double", 0, 0).get();
+    }
+
+    @After
+    public void deleteFile() {
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    private File write(TFIDFModel m) throws IOException {
+        file = File.createTempFile("model", ".tfidf");
+        TFIDFModelFile.write(m, file);
+        return file;
+    }
+
+    /**
+     * Overwrite bytes of the model file.
+     */
+    private void patch(long pos, ByteBuffer bytes) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            bytes.flip();
+            raf.getChannel().write(bytes, pos);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static ByteBuffer buffer(int size) {
+        return ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        for (WeightPrecision p: WeightPrecision.values()) {
+            TFIDFModel m = model.pruned(20, 0).withPrecision(p);
+            TFIDFModel opened = TFIDFModelFile.open(write(m));
+            assertEquals(m.getItemCount(), opened.getItemCount());
+            assertEquals(m.getEntryCount(), opened.getEntryCount());
+            assertEquals(m.getTagIds(), opened.getTagIds());
+            assertEquals(p, opened.getPrecision());
+            assertEquals(20, opened.getItemTagLimit());
+            assertEquals(m.getFingerprint(), opened.getFingerprint());
+            for (int idx = 0; idx < m.getItemCount(); idx++) {
+                assertEquals(m.getItemId(idx), opened.getItemId(idx));
+                for (int i = m.getRowStart(idx); i < m.getRowEnd(idx); i++) {
+                    assertEquals(m.getTagIndex(i), opened.getTagIndex(i));
+                    assertEquals(m.getWeight(idx, i), opened.getWeight(idx, i), 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * The fingerprint comes from the header: a different one there is returned as is, even though
+     * the vectors are unchanged.
+     */
+    @Test
+    public void testFingerprintIsReadFromFile() throws IOException {
+        write(model);
+        patch(40, buffer(8).putLong(12345));
+        assertEquals(12345, TFIDFModelFile.open(file).getFingerprint());
+    }
+
+    /**
+     * Check that the file fails to open.
+     */
+    private void assertDamaged(String expected) {
+        try {
+            TFIDFModelFile.open(file);
+            fail("opened a damaged model file");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains(expected));
+        }
+    }
+
+    /**
+     * Get the position of the tag dictionary, which ends the file.
+     */
+    private long tagDictionaryStart() {
+        long bytes = 0;
+        for (String tag: model.getTagIds().keySet()) {
+            bytes += 4 + tag.getBytes(Charset.forName("UTF-8")).length;
+        }
+        return file.length() - bytes;
+    }
+
+    @Test
+    public void testNegativeItemCount() throws IOException {
+        write(model);
+        patch(8, buffer(4).putInt(-1));
+        assertDamaged("invalid counts");
+    }
+
+    @Test
+    public void testNegativeEntryCount() throws IOException {
+        write(model);
+        patch(16, buffer(4).putInt(-5));
+        assertDamaged("invalid counts");
+    }
+
+    @Test
+    public void testOffsetsDisagreeWithEntryCount() throws IOException {
+        write(model);
+        patch(16, buffer(4).putInt(model.getEntryCount() - 1));
+        assertDamaged("row offsets");
+    }
+
+    @Test
+    public void testTooManyTags() throws IOException {
+        write(model);
+        patch(12, buffer(4).putInt(model.getTagCount() + 1));
+        assertDamaged("tag dictionary truncated");
+    }
+
+    @Test
+    public void testNegativeTagLength() throws IOException {
+        write(model);
+        patch(tagDictionaryStart(), buffer(4).putInt(-1));
+        assertDamaged("invalid length");
+    }
+
+    @Test
+    public void testTagLengthPastEnd() throws IOException {
+        write(model);
+        patch(tagDictionaryStart(), buffer(4).putInt(Integer.MAX_VALUE));
+        assertDamaged("invalid length");
+    }
+
+    @Test
+    public void testBuilderRebuildsDamagedFile() throws IOException {
+        write(model);
+        patch(8, buffer(4).putInt(-1));
+        TFIDFModel rebuilt = new TFIDFModelBuilder(TestData.itemTagDAO(), 1, file, "double", 0, 0).get();
+        assertEquals(model.getFingerprint(), rebuilt.getFingerprint());
+        // the damaged file was replaced
+        assertEquals(model.getFingerprint(), TFIDFModelFile.open(file).getFingerprint());
+    }
+}
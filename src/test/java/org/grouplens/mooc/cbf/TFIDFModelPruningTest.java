@@ -0,0 +1,260 @@
+package org.grouplens.mooc.cbf;
+
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.data.event.Event;
+import org.grouplens.lenskit.data.history.UserHistory;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.lenskit.vectors.VectorEntry;
+import org.grouplens.mooc.cbf.dao.CSVItemTagDAO;
+import org.grouplens.mooc.cbf.dao.MOOCRatingDAO;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks {@linkplain TFIDFModel#pruned(int, double) pruned item vectors} and
+ * {@linkplain ProfileTagLimit capped user profiles} on the bundled {@linkplain TestData test
+ * data}: that each keeps the right tags, and that the top {@value #N} items for each user stay
+ * close to those of the full model, by their overlap and by their nDCG (taking the full model's
+ * list as the ideal ranking, with the item at rank <var>r</var> having relevance <var>N</var> -
+ * <var>r</var>).  Items the user has rated are left out.  The time saved is measured by
+ * {@code PruningBenchmark} in the benchmarks module.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class TFIDFModelPruningTest {
+    private static final int N = 10;
+    private static final double EPSILON = 1.0e-9;
+
+    private static TFIDFModel base;
+    private static UserEventDAO uedao;
+    private static long[] users;
+    private static int[][] expected;
+
+    @BeforeClass
+    public static void rankUnpruned() throws IOException {
+        CSVItemTagDAO idao = TestData.itemTagDAO();
+        base = new TFIDFModelBuilder(idao, 1, null, "double", 0, 0).get();
+        uedao = new MOOCRatingDAO(TestData.ratingFile());
+        users = TestData.userIds();
+        TFIDFItemScorer scorer = new TFIDFItemScorer(uedao, base, 0, 0, 0);
+        expected = new int[users.length][];
+        for (int u = 0; u < users.length; u++) {
+            expected[u] = topItems(base, scorer, users[u]);
+        }
+    }
+
+    /**
+     * Get a user's top items, leaving out the items they have rated.
+     */
+    private static int[] topItems(TFIDFModel model, TFIDFItemScorer scorer, long user) {
+        SparseVector vector = scorer.makeUserVector(user);
+        if (vector.norm() == 0) {
+            return new int[0];
+        }
+        double[] profile = new double[model.getTagCount()];
+        for (VectorEntry e: vector.fast()) {
+            profile[(int) e.getKey() - 1] = e.getValue();
+        }
+        boolean[] rated = new boolean[model.getItemCount()];
+        UserHistory<Event> history = uedao.getEventsForUser(user);
+        if (history != null) {
+            LongSet items = history.itemSet();
+            for (long item: items) {
+                int idx = model.getItemIndex(item);
+                if (idx >= 0) {
+                    rated[idx] = true;
+                }
+            }
+        }
+        TopItemAccumulator top = new TopItemAccumulator(N);
+        for (int idx = 0; idx < model.getItemCount(); idx++) {
+            if (!rated[idx] && model.getRowStart(idx) < model.getRowEnd(idx)) {
+                top.put(idx, model.dot(idx, profile));
+            }
+        }
+        int[] items = new int[top.size()];
+        top.finish(items, new double[items.length]);
+        return items;
+    }
+
+    /**
+     * Check that every item keeps the right tags, scaled to unit length.
+     */
+    private static void checkRows(TFIDFModel pruned, int limit, double minWeight) {
+        for (int idx = 0; idx < base.getItemCount(); idx++) {
+            int start = base.getRowStart(idx);
+            int end = base.getRowEnd(idx);
+            // the entries the pruned row should keep, largest first, ties by position
+            Integer[] order = new Integer[end - start];
+            for (int i = start; i < end; i++) {
+                order[i - start] = i;
+            }
+            final int item = idx;
+            Arrays.sort(order, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    int cmp = Double.compare(base.getWeight(item, b), base.getWeight(item, a));
+                    return cmp != 0 ? cmp : Integer.compare(a, b);
+                }
+            });
+            int kept = 0;
+            while (kept < order.length && (limit == 0 || kept < limit)
+                   && base.getWeight(idx, order[kept]) >= minWeight) {
+                kept++;
+            }
+            if (kept == 0 && order.length > 0) {
+                kept = 1;
+            }
+            int[] keptTags = new int[kept];
+            double norm = 0;
+            for (int k = 0; k < kept; k++) {
+                keptTags[k] = base.getTagIndex(order[k]);
+                norm += base.getWeight(idx, order[k]) * base.getWeight(idx, order[k]);
+            }
+            Arrays.sort(keptTags);
+            norm = Math.sqrt(norm);
+
+            int pstart = pruned.getRowStart(idx);
+            assertEquals("tags of item " + idx, kept, pruned.getRowEnd(idx) - pstart);
+            double ssq = 0;
+            for (int k = 0; k < kept; k++) {
+                int tag = pruned.getTagIndex(pstart + k);
+                assertEquals("tag " + k + " of item " + idx, keptTags[k], tag);
+                double w = pruned.getWeight(idx, pstart + k);
+                ssq += w * w;
+                for (int i = start; i < end; i++) {
+                    if (base.getTagIndex(i) == tag && norm > 0) {
+                        assertEquals(base.getWeight(idx, i) / norm, w, EPSILON);
+                    }
+                }
+            }
+            if (norm > 0) {
+                assertEquals("norm of item " + idx, 1, ssq, EPSILON);
+            }
+        }
+    }
+
+    /**
+     * Compute the mean overlap and nDCG of the users' top items from a pruned model and scorer.
+     */
+    private static double[] quality(TFIDFModel model, TFIDFItemScorer scorer) {
+        double overlap = 0;
+        double ndcg = 0;
+        for (int u = 0; u < users.length; u++) {
+            int[] exp = expected[u];
+            int[] actual = topItems(model, scorer, users[u]);
+            double ideal = 0;
+            for (int r = 0; r < exp.length; r++) {
+                ideal += (N - r) / log2(r + 2);
+            }
+            if (ideal == 0) {
+                // no items to recommend either way
+                overlap += 1;
+                ndcg += 1;
+                continue;
+            }
+            int common = 0;
+            double dcg = 0;
+            for (int r = 0; r < actual.length; r++) {
+                for (int e = 0; e < exp.length; e++) {
+                    if (exp[e] == actual[r]) {
+                        common++;
+                        dcg += (N - e) / log2(r + 2);
+                        break;
+                    }
+                }
+            }
+            overlap += (double) common / exp.length;
+            ndcg += dcg / ideal;
+        }
+        return new double[]{overlap / users.length, ndcg / users.length};
+    }
+
+    private static double log2(double x) {
+        return Math.log(x) / Math.log(2);
+    }
+
+    @Test
+    public void testNoPruning() {
+        assertSame(base, base.pruned(0, 0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeLimit() {
+        base.pruned(-1, 0);
+    }
+
+    @Test
+    public void testTagLimit() {
+        for (int limit: new int[]{50, 20, 5, 1}) {
+            TFIDFModel pruned = base.pruned(limit, 0);
+            assertEquals(limit, pruned.getItemTagLimit());
+            checkRows(pruned, limit, 0);
+        }
+    }
+
+    @Test
+    public void testMinWeight() {
+        for (double minWeight: new double[]{0.05, 0.1, 0.5}) {
+            TFIDFModel pruned = base.pruned(0, minWeight);
+            assertEquals(minWeight, pruned.getMinItemWeight(), 0);
+            checkRows(pruned, 0, minWeight);
+        }
+        checkRows(base.pruned(10, 0.05), 10, 0.05);
+    }
+
+    @Test
+    public void testProfileTagLimit() {
+        int limit = 20;
+        TFIDFItemScorer full = new TFIDFItemScorer(uedao, base, 0, 0, 0);
+        TFIDFItemScorer capped = new TFIDFItemScorer(uedao, base, 0, 0, limit);
+        for (long user: users) {
+            SparseVector all = full.makeUserVector(user);
+            SparseVector kept = capped.makeUserVector(user);
+            assertEquals(Math.min(limit, all.size()), kept.size());
+            // the kept tags are the largest in magnitude, with their values unchanged
+            double smallest = Double.POSITIVE_INFINITY;
+            for (VectorEntry e: kept.fast()) {
+                assertEquals(all.get(e.getKey()), e.getValue(), 0);
+                smallest = Math.min(smallest, Math.abs(e.getValue()));
+            }
+            for (VectorEntry e: all.fast()) {
+                if (!kept.containsKey(e.getKey())) {
+                    assertTrue(Math.abs(e.getValue()) <= smallest);
+                }
+            }
+        }
+    }
+
+    /**
+     * Check the rankings from pruned items.  The thresholds are a little under what the bundled
+     * data gives (an overlap of 0.957 and an nDCG of 0.990).
+     */
+    @Test
+    public void testItemPruningQuality() {
+        TFIDFModel pruned = base.pruned(20, 0);
+        double[] q = quality(pruned, new TFIDFItemScorer(uedao, pruned, 0, 0, 0));
+        assertTrue("overlap " + q[0], q[0] >= 0.95);
+        assertTrue("nDCG " + q[1], q[1] >= 0.98);
+    }
+
+    /**
+     * Check the rankings from capped profiles.  The thresholds are a little under what the bundled
+     * data gives (an overlap of 0.881 and an nDCG of 0.953).
+     */
+    @Test
+    public void testProfilePruningQuality() {
+        double[] q = quality(base, new TFIDFItemScorer(uedao, base, 0, 0, 50));
+        assertTrue("overlap " + q[0], q[0] >= 0.85);
+        assertTrue("nDCG " + q[1], q[1] >= 0.93);
+    }
+}
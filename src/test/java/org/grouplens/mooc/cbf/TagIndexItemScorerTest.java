@@ -0,0 +1,110 @@
+package org.grouplens.mooc.cbf;
+
+import it.unimi.dsi.fastutil.longs.LongSet;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.lenskit.vectors.VectorEntry;
+import org.grouplens.mooc.cbf.dao.CSVItemTagDAO;
+import org.grouplens.mooc.cbf.dao.MOOCRatingDAO;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that {@link TagIndexItemScorer} gives the items it scores exactly the scores
+ * {@link TFIDFItemScorer} does, at every weight precision, and that tag indexes survive being
+ * written to and opened from a file.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class TagIndexItemScorerTest {
+    private static CSVItemTagDAO idao;
+    private static UserEventDAO uedao;
+    private static long[] users;
+
+    @BeforeClass
+    public static void loadData() throws IOException {
+        idao = TestData.itemTagDAO();
+        uedao = new MOOCRatingDAO(TestData.ratingFile());
+        users = TestData.userIds();
+    }
+
+    private static TFIDFModel buildModel(String precision) {
+        return new TFIDFModelBuilder(idao, 1, null, precision, 0, 0).get();
+    }
+
+    private static void checkScores(String precision) {
+        TFIDFModel model = buildModel(precision);
+        TFIDFItemScorer scorer = new TFIDFItemScorer(uedao, model, 0, 0, 0);
+        TagIndexItemScorer indexScorer =
+                new TagIndexItemScorer(scorer, model, new TagItemIndexBuilder(model).get());
+        LongSet items = idao.getItemIds();
+        for (long user: users) {
+            SparseVector expected = scorer.score(user, items);
+            SparseVector actual = indexScorer.score(user, items);
+            for (VectorEntry e: actual.fast()) {
+                assertTrue("unexpected score for item " + e.getKey(),
+                           expected.containsKey(e.getKey()));
+                assertEquals(precision + " score of item " + e.getKey() + " for user " + user,
+                             expected.get(e.getKey()), e.getValue(), 0);
+            }
+            // only items sharing no tag with the profile, which score 0, are left out
+            for (VectorEntry e: expected.fast()) {
+                if (e.getValue() != 0) {
+                    assertTrue(precision + " item " + e.getKey() + " not scored for user " + user,
+                               actual.containsKey(e.getKey()));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testDoubleScores() {
+        checkScores("double");
+    }
+
+    @Test
+    public void testFloatScores() {
+        checkScores("float");
+    }
+
+    @Test
+    public void testInt8Scores() {
+        checkScores("int8");
+    }
+
+    @Test
+    public void testIndexFile() throws IOException {
+        TFIDFModel model = buildModel("double");
+        File modelFile = File.createTempFile("model", ".tfidf");
+        File indexFile = TagItemIndexBuilder.indexFile(modelFile);
+        try {
+            TagItemIndex built = new TagItemIndexBuilder(model, modelFile).get();
+            assertTrue("index file not written", indexFile.isFile());
+            TagItemIndex opened = new TagItemIndexBuilder(model, modelFile).get();
+            assertTrue(opened.matches(model));
+            assertEquals(built.getTagCount(), opened.getTagCount());
+            assertEquals(built.getPostingCount(), opened.getPostingCount());
+            for (int t = 0; t < built.getTagCount(); t++) {
+                assertEquals(built.getPostingStart(t), opened.getPostingStart(t));
+                assertEquals(built.getPostingEnd(t), opened.getPostingEnd(t));
+                assertEquals(built.getMaxWeight(t), opened.getMaxWeight(t), 0);
+            }
+            for (int p = 0; p < built.getPostingCount(); p++) {
+                assertEquals(built.getItemIndex(p), opened.getItemIndex(p));
+                assertEquals(built.getEntry(p), opened.getEntry(p));
+            }
+            assertFalse("index matches a model with other weights",
+                        opened.matches(model.withPrecision(WeightPrecision.INT8)));
+        } finally {
+            indexFile.delete();
+            modelFile.delete();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package org.grouplens.mooc.cbf;
+
+import org.grouplens.mooc.cbf.dao.CSVItemTagDAO;
+import org.grouplens.mooc.cbf.dao.MOOCUserDAO;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The bundled data the tests run on.  The ratings come from {@code data/ratings.csv} if it is
+ * there; otherwise every user in {@code data/users.csv} is given a fixed, pseudo-random set of
+ * ratings over the bundled items, in a temporary file deleted when the JVM exits.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+final class TestData {
+    private static File ratingFile;
+
+    private TestData() {}
+
+    /**
+     * Get a DAO over the bundled titles and tags.
+     *
+     * @return The item-tag DAO.
+     */
+    static CSVItemTagDAO itemTagDAO() {
+        return new CSVItemTagDAO(new File("data/movie-titles.csv"), new File("data/movie-tags.csv"));
+    }
+
+    /**
+     * Get the bundled users.
+     *
+     * @return The user IDs, in ascending order.
+     */
+    static long[] userIds() {
+        long[] users = new MOOCUserDAO(new File("data/users.csv")).getUserIds().toLongArray();
+        Arrays.sort(users);
+        return users;
+    }
+
+    /**
+     * Get the rating file.
+     *
+     * @return {@code data/ratings.csv}, or a file of generated ratings if it does not exist.
+     * @throws IOException if the ratings cannot be written.
+     */
+    static synchronized File ratingFile() throws IOException {
+        if (ratingFile == null) {
+            File file = new File("data/ratings.csv");
+            if (!file.isFile()) {
+                file = File.createTempFile("ratings", ".csv");
+                file.deleteOnExit();
+                writeRatings(file, userIds(), itemTagDAO().getItemIds().toLongArray());
+            }
+            ratingFile = file;
+        }
+        return ratingFile;
+    }
+
+    /**
+     * Give each user 1 to 30 distinct items, rated from 0.5 to 5 stars.
+     */
+    static void writeRatings(File file, long[] users, long[] items) throws IOException {
+        Random rng = new Random(42);
+        PrintWriter out = new PrintWriter(file, "UTF-8");
+        try {
+            for (long user: users) {
+                long[] shuffled = items.clone();
+                int count = Math.min(1 + rng.nextInt(30), shuffled.length);
+                for (int i = 0; i < count; i++) {
+                    int j = i + rng.nextInt(shuffled.length - i);
+                    long item = shuffled[j];
+                    shuffled[j] = shuffled[i];
+                    shuffled[i] = item;
+                    out.format("%d,%d,%.1f\n", user, item, 0.5 * (1 + rng.nextInt(10)));
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package org.grouplens.mooc.cbf;
+
+import org.grouplens.lenskit.vectors.SparseVector;
+import org.grouplens.mooc.cbf.dao.CSVItemTagDAO;
+import org.grouplens.mooc.cbf.dao.MOOCRatingDAO;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the lower {@linkplain WeightPrecision weight precisions} of the TF-IDF model against
+ * {@code double} weights on the bundled {@linkplain TestData test data}: the memory the weights
+ * take, the error of each weight and of each user's cosines, and how much of each user's top
+ * {@value #N} survives.  The lower precisions are also scored from memory-mapped
+ * {@linkplain TFIDFModelFile model files}, which must agree exactly with the models in memory.
+ * The time to score at each precision is measured by {@code PrecisionBenchmark} in the benchmarks
+ * module.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class WeightPrecisionTest {
+    private static final int N = 10;
+    private static final double FLOAT_ERROR = 1.0e-6;
+    private static final double MIN_FLOAT_OVERLAP = 0.999;
+    private static final double MIN_INT8_OVERLAP = 0.98;
+
+    private static TFIDFModel base;
+    private static TFIDFItemScorer profiles;
+    private static long[] users;
+
+    @BeforeClass
+    public static void buildModel() throws IOException {
+        CSVItemTagDAO idao = TestData.itemTagDAO();
+        base = new TFIDFModelBuilder(idao, 1, null, "double", 0, 0).get();
+        profiles = new TFIDFItemScorer(new MOOCRatingDAO(TestData.ratingFile()), base, 0, 0, 0);
+        users = TestData.userIds();
+    }
+
+    private static TFIDFModel mapped(TFIDFModel model) throws IOException {
+        File file = File.createTempFile("model-" + model.getPrecision().name().toLowerCase(),
+                                        ".tfidf");
+        try {
+            TFIDFModelFile.write(model, file);
+            return TFIDFModelFile.open(file);
+        } finally {
+            // the mapping outlives the file's name
+            file.delete();
+        }
+    }
+
+    /**
+     * Get the largest absolute weight of each item, in double precision.
+     */
+    private static double[] rowMaxima() {
+        double[] max = new double[base.getItemCount()];
+        for (int idx = 0; idx < max.length; idx++) {
+            for (int i = base.getRowStart(idx); i < base.getRowEnd(idx); i++) {
+                max[idx] = Math.max(max[idx], Math.abs(base.getWeight(idx, i)));
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Check every weight, then every user's cosines and top items.
+     *
+     * @param model      The model at a lower precision.
+     * @param absError   Each item's largest allowed weight error, or {@code null} to use
+     *                   {@code relError}.
+     * @param relError   The largest allowed weight error, relative to the weight.
+     * @param minOverlap The smallest allowed mean overlap of the top {@value #N} lists.
+     */
+    private static void checkModel(TFIDFModel model, double[] absError, double relError,
+                                   double minOverlap) throws IOException {
+        int nitems = base.getItemCount();
+        for (int idx = 0; idx < nitems; idx++) {
+            for (int i = base.getRowStart(idx); i < base.getRowEnd(idx); i++) {
+                double w = base.getWeight(idx, i);
+                double bound = absError == null ? relError * Math.abs(w) : absError[idx];
+                assertEquals(model.getPrecision() + " weight " + i, w, model.getWeight(idx, i),
+                             bound + 1.0e-12);
+            }
+        }
+
+        TFIDFModel mapped = mapped(model);
+        double[] expected = new double[nitems];
+        double[] actual = new double[nitems];
+        long overlap = 0;
+        int ranked = 0;
+        for (long user: users) {
+            SparseVector vector = profiles.makeUserVector(user);
+            double norm = vector.norm();
+            if (norm == 0) {
+                continue;
+            }
+            double[] profile = new double[base.getTagCount()];
+            for (int t = 0; t < profile.length; t++) {
+                profile[t] = vector.get(t + 1, 0);
+            }
+            for (int idx = 0; idx < nitems; idx++) {
+                expected[idx] = base.dot(idx, profile) / norm;
+                actual[idx] = model.dot(idx, profile) / norm;
+                assertEquals("mapped " + model.getPrecision() + " score", actual[idx],
+                             mapped.dot(idx, profile) / norm, 0);
+                // the cosine moves by at most the weight errors times the profile's values
+                double bound = 0;
+                for (int i = base.getRowStart(idx); i < base.getRowEnd(idx); i++) {
+                    double w = base.getWeight(idx, i);
+                    double error = absError == null ? relError * Math.abs(w) : absError[idx];
+                    bound += Math.abs(profile[base.getTagIndex(i)]) * error;
+                }
+                assertEquals(model.getPrecision() + " cosine of item " + idx + " for user " + user,
+                             expected[idx], actual[idx], bound / norm + 1.0e-12);
+            }
+            overlap += overlap(topItems(expected), topItems(actual));
+            ranked++;
+        }
+        assertTrue("no user has a profile", ranked > 0);
+        double meanOverlap = (double) overlap / ((long) ranked * N);
+        assertTrue(model.getPrecision() + " top " + N + " overlap is only " + meanOverlap,
+                   meanOverlap >= minOverlap);
+    }
+
+    private static int[] topItems(double[] scores) {
+        TopItemAccumulator top = new TopItemAccumulator(N);
+        for (int i = 0; i < scores.length; i++) {
+            top.put(i, scores[i]);
+        }
+        int[] items = new int[top.size()];
+        top.finish(items, new double[items.length]);
+        return items;
+    }
+
+    private static int overlap(int[] expected, int[] actual) {
+        int count = 0;
+        for (int e: expected) {
+            for (int a: actual) {
+                if (a == e) {
+                    count++;
+                    break;
+                }
+            }
+        }
+        return count;
+    }
+
+    @Test
+    public void testWeightBytes() {
+        long entries = base.getEntryCount();
+        assertEquals(8 * entries, base.getWeightBytes());
+        assertEquals(4 * entries, base.withPrecision(WeightPrecision.FLOAT).getWeightBytes());
+        assertEquals(entries + 4L * base.getItemCount(),
+                     base.withPrecision(WeightPrecision.INT8).getWeightBytes());
+    }
+
+    @Test
+    public void testFloat() throws IOException {
+        checkModel(base.withPrecision(WeightPrecision.FLOAT), null, FLOAT_ERROR,
+                   MIN_FLOAT_OVERLAP);
+    }
+
+    @Test
+    public void testInt8() throws IOException {
+        // weights are rounded to 127ths of the item's largest weight
+        double[] error = rowMaxima();
+        for (int idx = 0; idx < error.length; idx++) {
+            error[idx] = error[idx] / 254 * (1 + 1.0e-6);
+        }
+        checkModel(base.withPrecision(WeightPrecision.INT8), error, 0, MIN_INT8_OVERLAP);
+    }
+}
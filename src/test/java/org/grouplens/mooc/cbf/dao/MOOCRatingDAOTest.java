@@ -0,0 +1,252 @@
+package org.grouplens.mooc.cbf.dao;
+
+import org.grouplens.lenskit.cursors.Cursor;
+import org.grouplens.lenskit.cursors.Cursors;
+import org.grouplens.lenskit.data.dao.EventCollectionDAO;
+import org.grouplens.lenskit.data.dao.PrefetchingUserEventDAO;
+import org.grouplens.lenskit.data.dao.SortOrder;
+import org.grouplens.lenskit.data.dao.UserEventDAO;
+import org.grouplens.lenskit.data.event.Event;
+import org.grouplens.lenskit.data.event.Rating;
+import org.grouplens.lenskit.data.event.Ratings;
+import org.grouplens.lenskit.data.history.UserHistory;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a {@link MOOCRatingDAO} gives the same events, user histories and event streams, in
+ * each {@link SortOrder}, as an {@link EventCollectionDAO} over the same ratings, and that it
+ * rounds rating values to {@code float}s.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class MOOCRatingDAOTest {
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = File.createTempFile("ratings", ".csv");
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    /**
+     * Write a rating file: users rate in no particular order, values are not all on a half-star
+     * scale, and only some lines have timestamps.
+     */
+    private void writeRandomRatings(int count, boolean timestamps) throws IOException {
+        Random rng = new Random(42);
+        PrintWriter out = new PrintWriter(file, "UTF-8");
+        try {
+            for (int i = 0; i < count; i++) {
+                long user = 1 + rng.nextInt(50);
+                long item = 100 + rng.nextInt(200);
+                String value = rng.nextBoolean()
+                        ? String.format(Locale.ROOT, "%.1f", 0.5 * (1 + rng.nextInt(10)))
+                        : String.format(Locale.ROOT, "%.3f", 1 + 4 * rng.nextDouble());
+                out.print(user + "," + item + "," + value);
+                if (timestamps && rng.nextInt(4) > 0) {
+                    // plenty of ties, to check the sort orders' tie-breaking
+                    out.print("," + (1000000 + rng.nextInt(count / 4)));
+                }
+                out.print(i % 10 == 0 ? "\r\n" : "\n");
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    /**
+     * Read the rating file the slow way, with values rounded to {@code float}.
+     */
+    private List<Rating> readRatings() throws IOException {
+        List<Rating> ratings = new ArrayList<Rating>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(file),
+                                                                     "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                String[] fields = line.split(",");
+                long time = fields.length > 3 ? Long.parseLong(fields[3]) : -1;
+                ratings.add(Ratings.make(Long.parseLong(fields[0]), Long.parseLong(fields[1]),
+                                         (float) Double.parseDouble(fields[2]), time));
+            }
+        } finally {
+            in.close();
+        }
+        return ratings;
+    }
+
+    private static String describe(Event e) {
+        Rating r = (Rating) e;
+        return r.getUserId() + "," + r.getItemId() + "," + r.getPreference().getValue()
+               + "," + r.getTimestamp();
+    }
+
+    private static List<String> describe(List<? extends Event> events) {
+        List<String> result = new ArrayList<String>(events.size());
+        for (Event e: events) {
+            result.add(describe(e));
+        }
+        return result;
+    }
+
+    private static List<String> sorted(List<String> strings) {
+        List<String> copy = new ArrayList<String>(strings);
+        Collections.sort(copy);
+        return copy;
+    }
+
+    private static void assertOrdered(SortOrder order, List<? extends Event> events) {
+        Comparator<Event> cmp = order.getEventComparator();
+        if (cmp == null) {
+            // any order will do
+            return;
+        }
+        for (int i = 1; i < events.size(); i++) {
+            assertTrue(order + " at " + i, cmp.compare(events.get(i - 1), events.get(i)) <= 0);
+        }
+    }
+
+    private void checkAgainstCollection() throws IOException {
+        List<Rating> ratings = readRatings();
+        EventCollectionDAO expected = new EventCollectionDAO(ratings);
+        UserEventDAO expectedUsers = new PrefetchingUserEventDAO(expected);
+        MOOCRatingDAO dao = new MOOCRatingDAO(file);
+
+        for (SortOrder order: SortOrder.values()) {
+            List<Rating> exp = Cursors.makeList(expected.streamEvents(Rating.class, order));
+            List<Rating> act = Cursors.makeList(dao.streamEvents(Rating.class, order));
+            assertOrdered(order, act);
+            if (order == SortOrder.USER) {
+                // both sort by user and timestamp, keeping ties in file order
+                assertEquals(describe(exp), describe(act));
+            } else {
+                // ties may come out in another order
+                assertEquals(order.toString(), sorted(describe(exp)), sorted(describe(act)));
+            }
+        }
+        assertEquals(sorted(describe(ratings)),
+                     sorted(describe(Cursors.makeList(dao.streamEvents()))));
+        assertEquals(0, Cursors.makeList(dao.streamEvents(UnknownEvent.class)).size());
+
+        // user histories, looked up and streamed
+        Cursor<UserHistory<Event>> expCursor = expectedUsers.streamEventsByUser();
+        List<UserHistory<Event>> expHistories = Cursors.makeList(expCursor);
+        List<UserHistory<Event>> actHistories = Cursors.makeList(dao.streamEventsByUser());
+        assertEquals(expHistories.size(), actHistories.size());
+        Collections.sort(expHistories, new Comparator<UserHistory<Event>>() {
+            @Override
+            public int compare(UserHistory<Event> a, UserHistory<Event> b) {
+                return Long.compare(a.getUserId(), b.getUserId());
+            }
+        });
+        for (int u = 0; u < expHistories.size(); u++) {
+            UserHistory<Event> exp = expHistories.get(u);
+            long user = exp.getUserId();
+            assertEquals(user, actHistories.get(u).getUserId());
+            assertEquals("user " + user, describe(exp), describe(actHistories.get(u)));
+            assertEquals("user " + user, describe(exp), describe(dao.getEventsForUser(user)));
+            assertEquals(describe(exp), describe(dao.getEventsForUser(user, Rating.class)));
+            assertEquals(0, dao.getEventsForUser(user, UnknownEvent.class).size());
+        }
+        assertNull(dao.getEventsForUser(-1));
+        assertNull(expectedUsers.getEventsForUser(-1));
+    }
+
+    @Test
+    public void testRatingsWithTimestamps() throws IOException {
+        writeRandomRatings(5000, true);
+        checkAgainstCollection();
+    }
+
+    @Test
+    public void testRatingsWithoutTimestamps() throws IOException {
+        writeRandomRatings(2000, false);
+        checkAgainstCollection();
+    }
+
+    @Test
+    public void testColumns() throws IOException {
+        writeRandomRatings(1000, true);
+        List<Rating> ratings = readRatings();
+        RatingColumns cols = new MOOCRatingDAO(file).getRatingColumns();
+        int n = 0;
+        for (long user = 0; user <= 51; user++) {
+            int idx = cols.getUserIndex(user);
+            List<Rating> expected = new ArrayList<Rating>();
+            for (Rating r: ratings) {
+                if (r.getUserId() == user) {
+                    expected.add(r);
+                }
+            }
+            if (expected.isEmpty()) {
+                assertTrue(idx < 0);
+                continue;
+            }
+            assertEquals(expected.size(), cols.getRatingEnd(idx) - cols.getRatingStart(idx));
+            for (int i = 0; i < expected.size(); i++) {
+                int pos = cols.getRatingStart(idx) + i;
+                assertEquals(expected.get(i).getItemId(), cols.getRatingItem(pos));
+                assertEquals(expected.get(i).getPreference().getValue(),
+                             cols.getRatingValue(pos), 0);
+            }
+            n += expected.size();
+        }
+        assertEquals(ratings.size(), n);
+    }
+
+    @Test
+    public void testValuesAreFloats() throws IOException {
+        PrintWriter out = new PrintWriter(file, "UTF-8");
+        try {
+            out.print("1,10,3.5\n1,11,3.7\n1,12,4.123456789\n1,13,0.1\n");
+        } finally {
+            out.close();
+        }
+        double[] written = {3.5, 3.7, 4.123456789, 0.1};
+        MOOCRatingDAO dao = new MOOCRatingDAO(file);
+        List<Event> events = dao.getEventsForUser(1);
+        RatingColumns cols = dao.getRatingColumns();
+        assertEquals(written.length, events.size());
+        for (int i = 0; i < written.length; i++) {
+            double value = ((Rating) events.get(i)).getPreference().getValue();
+            assertEquals((float) written[i], value, 0);
+            assertEquals(value, cols.getRatingValue(i), 0);
+            assertEquals(written[i], value, 1.0e-6);
+        }
+        // half stars are exact; other values are not
+        assertEquals(3.5, cols.getRatingValue(0), 0);
+        assertNotEquals(3.7, cols.getRatingValue(1), 0);
+    }
+
+    /**
+     * An event type the DAO never holds.
+     */
+    private static interface UnknownEvent extends Event {}
+}
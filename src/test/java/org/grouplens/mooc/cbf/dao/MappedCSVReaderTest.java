@@ -0,0 +1,308 @@
+package org.grouplens.mooc.cbf.dao;
+
+import org.grouplens.lenskit.data.dao.DataAccessException;
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a {@link MappedCSVReader} splits lines and fields as {@link String#split} would,
+ * across window boundaries and line-ending styles, and that it parses numbers as
+ * {@link Long#parseLong(String)} and {@link Double#parseDouble(String)} do.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class MappedCSVReaderTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private File file;
+    private MappedCSVReader reader;
+
+    @After
+    public void cleanUp() {
+        if (reader != null) {
+            reader.close();
+        }
+        if (file != null) {
+            file.delete();
+        }
+    }
+
+    /**
+     * Open a reader over some text.
+     */
+    private MappedCSVReader open(String text, long windowSize) throws IOException {
+        file = File.createTempFile("mapped", ".csv");
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(text.getBytes(UTF8));
+        } finally {
+            out.close();
+        }
+        reader = new MappedCSVReader(file, ',', UTF8, windowSize);
+        return reader;
+    }
+
+    private MappedCSVReader open(String text) throws IOException {
+        return open(text, 1L << 20);
+    }
+
+    /**
+     * Read every field of every line.
+     */
+    private static List<List<String>> readAll(MappedCSVReader reader) {
+        List<List<String>> lines = new ArrayList<List<String>>();
+        while (reader.nextLine()) {
+            List<String> fields = new ArrayList<String>();
+            for (int i = 0; reader.hasField(i); i++) {
+                fields.add(reader.getString(i));
+            }
+            lines.add(fields);
+        }
+        return lines;
+    }
+
+    private static List<List<String>> split(String... lines) {
+        List<List<String>> result = new ArrayList<List<String>>();
+        for (String line: lines) {
+            List<String> fields = new ArrayList<String>();
+            for (String field: line.split(",", -1)) {
+                fields.add(field);
+            }
+            result.add(fields);
+        }
+        return result;
+    }
+
+    @Test
+    public void testLines() throws IOException {
+        assertEquals(split("1,foo,2.5", "3,bar,4"), readAll(open("1,foo,2.5\n3,bar,4\n")));
+    }
+
+    @Test
+    public void testFinalLineWithoutNewline() throws IOException {
+        MappedCSVReader r = open("1,foo\n2,bar");
+        assertEquals(split("1,foo", "2,bar"), readAll(r));
+        assertFalse(r.nextLine());
+    }
+
+    @Test
+    public void testCRLF() throws IOException {
+        MappedCSVReader r = open("1,foo\r\n\r\n2,bar\r\n3,baz");
+        assertTrue(r.nextLine());
+        assertEquals("foo", r.getString(1));
+        assertTrue(r.nextLine());
+        assertEquals(3, r.getLineNumber());
+        assertEquals(2, r.parseLong(0));
+        assertEquals("bar", r.getString(1));
+        assertTrue(r.nextLine());
+        assertEquals("baz", r.getString(1));
+        assertFalse(r.nextLine());
+    }
+
+    @Test
+    public void testBlankLines() throws IOException {
+        MappedCSVReader r = open("\n\n1,foo\n\n");
+        assertTrue(r.nextLine());
+        assertEquals(3, r.getLineNumber());
+        assertEquals("foo", r.getString(1));
+        assertFalse(r.nextLine());
+    }
+
+    @Test
+    public void testEmptyFields() throws IOException {
+        MappedCSVReader r = open(",a,,b,\n");
+        assertTrue(r.nextLine());
+        assertEquals("", r.getString(0));
+        assertEquals("a", r.getString(1));
+        assertEquals("", r.getString(2));
+        assertEquals("b", r.getString(3));
+        assertEquals("", r.getString(4));
+        assertFalse(r.hasField(5));
+        try {
+            r.parseLong(2);
+            fail("parsed an empty field as an integer");
+        } catch (DataAccessException e) {
+            /* expected */
+        }
+        try {
+            r.parseDouble(4);
+            fail("parsed an empty field as a number");
+        } catch (DataAccessException e) {
+            /* expected */
+        }
+    }
+
+    @Test
+    public void testMissingField() throws IOException {
+        MappedCSVReader r = open("1,2\n");
+        assertTrue(r.nextLine());
+        try {
+            r.getString(2);
+            fail("read a missing field");
+        } catch (DataAccessException e) {
+            assertTrue(e.getMessage().contains("missing field 2"));
+        }
+    }
+
+    @Test
+    public void testFieldsOutOfOrder() throws IOException {
+        MappedCSVReader r = open("a,b,c\n");
+        assertTrue(r.nextLine());
+        assertEquals("c", r.getString(2));
+        assertEquals("a", r.getString(0));
+        assertEquals("b", r.getString(1));
+    }
+
+    /**
+     * Every window size from one byte more than the longest line up splits the file somewhere
+     * else, including inside fields, between {@code \r} and {@code \n}, and just after a newline.
+     */
+    @Test
+    public void testWindowBoundaries() throws IOException {
+        String[] lines = {"1,first,2.5", "22,second,-3", "333,,0.125", "4,fourth line,1e3"};
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < lines.length; i++) {
+            text.append(lines[i]).append(i % 2 == 0 ? "\n" : "\r\n");
+        }
+        text.append("\n5,last");
+        List<List<String>> expected = split(lines);
+        expected.addAll(split("5,last"));
+        for (int window = 20; window <= text.length() + 1; window++) {
+            MappedCSVReader r = open(text.toString(), window);
+            assertEquals("window of " + window, expected, readAll(r));
+            r.close();
+            reader = null;
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testNumbersAcrossWindows() throws IOException {
+        StringBuilder text = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            text.append(i).append(',').append(-i * 1000003L).append(',').append(i / 7.0).append('\n');
+        }
+        MappedCSVReader r = open(text.toString(), 64);
+        int n = 0;
+        while (r.nextLine()) {
+            assertEquals(n, r.parseLong(0));
+            assertEquals(-n * 1000003L, r.parseLong(1));
+            assertEquals(n / 7.0, r.parseDouble(2), 0);
+            n++;
+        }
+        assertEquals(1000, n);
+    }
+
+    @Test
+    public void testLineLongerThanWindow() throws IOException {
+        MappedCSVReader r = open("1,a\n2,a much longer line\n", 8);
+        assertTrue(r.nextLine());
+        try {
+            r.nextLine();
+            fail("read a line longer than the window");
+        } catch (DataAccessException e) {
+            assertTrue(e.getMessage().contains(":2: line too long"));
+        }
+    }
+
+    @Test
+    public void testLongs() throws IOException {
+        long[] values = {0, 1, -1, 42, -987654321, Long.MAX_VALUE, Long.MIN_VALUE};
+        StringBuilder text = new StringBuilder();
+        for (long v: values) {
+            text.append(v).append('\n');
+        }
+        MappedCSVReader r = open(text.toString());
+        for (long v: values) {
+            assertTrue(r.nextLine());
+            assertEquals(v, r.parseLong(0));
+        }
+        assertFalse(r.nextLine());
+    }
+
+    @Test
+    public void testBadLongs() throws IOException {
+        String[] bad = {"9223372036854775808", "-9223372036854775809", "99999999999999999999",
+                        "-", "1.5", "12a", "+-1"};
+        StringBuilder text = new StringBuilder();
+        for (String s: bad) {
+            text.append(s).append('\n');
+        }
+        MappedCSVReader r = open(text.toString());
+        for (String s: bad) {
+            assertTrue(r.nextLine());
+            try {
+                r.parseLong(0);
+                fail("parsed " + s + " as a long");
+            } catch (DataAccessException e) {
+                assertTrue(e.getMessage().contains("is not an integer: " + s));
+            }
+        }
+    }
+
+    @Test
+    public void testDoubles() throws IOException {
+        String[] values = {"0", "-0", "0.5", "-0.5", "3", "-12.25", ".75", "5.", "1e3", "-2.5E-4",
+                           "6.02214076e23", "0.1", "0.30000000000000004", "123456789012345678",
+                           "1234567.89012345678", "0.000000000000000000000001", "Infinity",
+                           "-1.7976931348623157E308", "4.9E-324"};
+        StringBuilder text = new StringBuilder();
+        for (String s: values) {
+            text.append(s).append('\n');
+        }
+        MappedCSVReader r = open(text.toString());
+        for (String s: values) {
+            assertTrue(r.nextLine());
+            assertEquals(s, Double.doubleToLongBits(Double.parseDouble(s)),
+                         Double.doubleToLongBits(r.parseDouble(0)));
+        }
+        assertFalse(r.nextLine());
+    }
+
+    @Test
+    public void testBadDoubles() throws IOException {
+        String[] bad = {"-", ".", "1.2.3", "1e", "abc"};
+        StringBuilder text = new StringBuilder();
+        for (String s: bad) {
+            text.append(s).append('\n');
+        }
+        MappedCSVReader r = open(text.toString());
+        for (String s: bad) {
+            assertTrue(r.nextLine());
+            try {
+                r.parseDouble(0);
+                fail("parsed " + s + " as a number");
+            } catch (DataAccessException e) {
+                assertTrue(e.getMessage().contains("is not a number: " + s));
+            }
+        }
+    }
+
+    @Test
+    public void testInternField() throws IOException {
+        MappedCSVReader r = open("1,comedy\n2,drama\n3,comedy\n4,dráma\n", 16);
+        TagDictionary dict = new TagDictionary(UTF8);
+        List<Integer> ids = new ArrayList<Integer>();
+        while (r.nextLine()) {
+            ids.add(r.internField(1, dict));
+        }
+        assertEquals(4, ids.size());
+        assertEquals(ids.get(0), ids.get(2));
+        assertEquals(3, dict.size());
+        assertEquals("comedy", dict.getTag(ids.get(0)));
+        assertEquals("drama", dict.getTag(ids.get(1)));
+        assertEquals("dráma", dict.getTag(ids.get(3)));
+    }
+}
@@ -0,0 +1,181 @@
+package org.grouplens.mooc.cbf.dao;
+
+import org.grouplens.lenskit.data.dao.DataAccessException;
+import org.grouplens.lenskit.data.event.Rating;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that a {@link RatingFileTailer} adds each appended rating to its {@link LiveRatingDAO}
+ * exactly once: none of the ratings the DAO loaded, appended lines once they are complete, and
+ * nothing after the file is truncated or replaced.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class RatingFileTailerTest {
+    private File file;
+
+    @Before
+    public void createFile() throws IOException {
+        file = File.createTempFile("ratings", ".csv");
+        append("1,10,4.0\n1,11,3.5\n2,10,2.0\n");
+    }
+
+    @After
+    public void deleteFile() {
+        file.delete();
+    }
+
+    private void append(String text) throws IOException {
+        FileOutputStream out = new FileOutputStream(file, true);
+        try {
+            out.write(text.getBytes(Charset.forName("UTF-8")));
+        } finally {
+            out.close();
+        }
+    }
+
+    @Test
+    public void testLoadedRatingsAreNotAddedAgain() {
+        LiveRatingDAO dao = new LiveRatingDAO(file);
+        assertEquals(2, dao.getRatingCount(1));
+        RatingFileTailer tailer = new RatingFileTailer(dao, 1000);
+        assertEquals(0, tailer.poll());
+        assertEquals(2, dao.getRatingCount(1));
+        assertEquals(1, dao.getRatingCount(2));
+    }
+
+    @Test
+    public void testTailerLoadsTheDAO() throws IOException {
+        LiveRatingDAO dao = new LiveRatingDAO(file);
+        RatingFileTailer tailer = new RatingFileTailer(dao, 1000);
+        append("3,12,5.0\n");
+        // the DAO has not loaded the file yet, so it loads the new line itself
+        assertEquals(0, tailer.poll());
+        assertEquals(1, dao.getRatingCount(3));
+        assertEquals(2, dao.getRatingCount(1));
+    }
+
+    @Test
+    public void testAppends() throws IOException {
+        LiveRatingDAO dao = new LiveRatingDAO(file);
+        RatingFileTailer tailer = new RatingFileTailer(dao, 1000);
+        assertEquals(0, tailer.poll());
+
+        append("1,12,1.5\n3,10,5.0,1234\n");
+        assertEquals(2, tailer.poll());
+        assertEquals(0, tailer.poll());
+        List<Rating> ratings = dao.getRatingsForUser(1, 2);
+        assertEquals(1, ratings.size());
+        assertEquals(12, ratings.get(0).getItemId());
+        assertEquals(1.5, ratings.get(0).getPreference().getValue(), 0);
+        Rating r = dao.getRatingsForUser(3, 0).get(0);
+        assertEquals(1234, r.getTimestamp());
+
+        // blank and malformed lines are skipped
+        append("\nnot a rating\n1,13,2.5\n");
+        assertEquals(1, tailer.poll());
+        assertEquals(4, dao.getRatingCount(1));
+    }
+
+    @Test
+    public void testPartialLastLine() throws IOException {
+        append("1,12,2");
+        LiveRatingDAO dao = new LiveRatingDAO(file);
+        assertEquals("unterminated line was loaded", 2, dao.getRatingCount(1));
+        RatingFileTailer tailer = new RatingFileTailer(dao, 1000);
+        assertEquals(0, tailer.poll());
+
+        append(".5\n2,11,");
+        assertEquals(1, tailer.poll());
+        assertEquals(3, dao.getRatingCount(1));
+        assertEquals(2.5, dao.getRatingsForUser(1, 2).get(0).getPreference().getValue(), 0);
+        assertEquals(1, dao.getRatingCount(2));
+
+        append("4.5\n");
+        assertEquals(1, tailer.poll());
+        assertEquals(4.5, dao.getRatingsForUser(2, 1).get(0).getPreference().getValue(), 0);
+    }
+
+    @Test
+    public void testStopsOnTruncation() throws IOException {
+        LiveRatingDAO dao = new LiveRatingDAO(file);
+        RatingFileTailer tailer = new RatingFileTailer(dao, 1000);
+        tailer.poll();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(4);
+        } finally {
+            raf.close();
+        }
+        checkStopped(tailer);
+        assertEquals(2, dao.getRatingCount(1));
+    }
+
+    @Test
+    public void testStopsOnReplacement() throws IOException {
+        LiveRatingDAO dao = new LiveRatingDAO(file);
+        assertEquals(1, dao.getRatingCount(2));
+        RatingFileTailer tailer = new RatingFileTailer(dao, 1000);
+        File replacement = File.createTempFile("ratings", ".csv", file.getParentFile());
+        FileOutputStream out = new FileOutputStream(replacement);
+        try {
+            out.write("1,10,4.0\n1,11,3.5\n2,10,2.0\n2,11,1.0\n".getBytes(Charset.forName("UTF-8")));
+        } finally {
+            out.close();
+        }
+        assertTrue(replacement.renameTo(file));
+        // the DAO loaded the first file, so even the tailer's first poll sees the replacement
+        checkStopped(tailer);
+        assertEquals(1, dao.getRatingCount(2));
+    }
+
+    @Test
+    public void testThreadEndsOnTruncation() throws IOException, InterruptedException {
+        LiveRatingDAO dao = new LiveRatingDAO(file);
+        RatingFileTailer tailer = new RatingFileTailer(dao, 10);
+        Thread thread = new Thread(tailer, "rating-tailer");
+        thread.setDaemon(true);
+        thread.start();
+        append("3,12,5.0\n");
+        for (int i = 0; i < 500 && dao.getRatingCount(3) == 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, dao.getRatingCount(3));
+
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(4);
+        } finally {
+            raf.close();
+        }
+        thread.join(5000);
+        assertFalse("tailer thread still running", thread.isAlive());
+        assertTrue(tailer.isStopped());
+        assertEquals(2, dao.getRatingCount(1));
+    }
+
+    private static void checkStopped(RatingFileTailer tailer) {
+        for (int i = 0; i < 2; i++) {
+            try {
+                tailer.poll();
+                fail("tailer followed a changed file");
+            } catch (DataAccessException e) {
+                assertTrue(tailer.isStopped());
+            }
+        }
+    }
+}
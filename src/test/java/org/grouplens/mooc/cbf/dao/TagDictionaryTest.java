@@ -0,0 +1,110 @@
+package org.grouplens.mooc.cbf.dao;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+
+/**
+ * Checks that a {@link TagDictionary} gives equal tags the same ID, wherever their bytes are, and
+ * distinct tags dense IDs in the order they are first seen.
+ *
+ * @author <a href="http://www.grouplens.org">GroupLens Research</a>
+ */
+public class TagDictionaryTest {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Intern a tag from the middle of a buffer, with other bytes around it.
+     */
+    private static int intern(TagDictionary dict, String prefix, String tag) {
+        byte[] bytes = (prefix + tag + ",rest").getBytes(UTF8);
+        int start = prefix.getBytes(UTF8).length;
+        return dict.intern(ByteBuffer.wrap(bytes), start, start + tag.getBytes(UTF8).length);
+    }
+
+    @Test
+    public void testEmpty() {
+        TagDictionary dict = new TagDictionary(UTF8);
+        assertEquals(0, dict.size());
+        assertEquals(0, dict.toArray().length);
+    }
+
+    @Test
+    public void testSameBytesSameId() {
+        TagDictionary dict = new TagDictionary(UTF8);
+        int comedy = intern(dict, "", "comedy");
+        int drama = intern(dict, "12,", "drama");
+        assertEquals(0, comedy);
+        assertEquals(1, drama);
+        assertEquals(comedy, intern(dict, "345,", "comedy"));
+        assertEquals(drama, intern(dict, "", "drama"));
+        assertEquals(comedy, intern(dict, "x", "comedy"));
+        assertEquals(2, dict.size());
+        assertEquals("comedy", dict.getTag(comedy));
+        assertEquals("drama", dict.getTag(drama));
+    }
+
+    @Test
+    public void testSimilarTags() {
+        TagDictionary dict = new TagDictionary(UTF8);
+        String[] tags = {"a", "ab", "ba", "", "A", "café", "cafe", "a b"};
+        for (int i = 0; i < tags.length; i++) {
+            assertEquals(tags[i], i, intern(dict, "", tags[i]));
+        }
+        for (int i = 0; i < tags.length; i++) {
+            assertEquals(tags[i], i, intern(dict, "1,", tags[i]));
+        }
+        assertArrayEquals(tags, dict.toArray());
+    }
+
+    @Test
+    public void testManyTags() {
+        TagDictionary dict = new TagDictionary(UTF8);
+        int n = 5000;
+        for (int i = 0; i < n; i++) {
+            assertEquals(i, intern(dict, "", "tag " + i));
+        }
+        assertEquals(n, dict.size());
+        for (int i = n - 1; i >= 0; i--) {
+            assertEquals(i, intern(dict, ",", "tag " + i));
+            assertEquals("tag " + i, dict.getTag(i));
+        }
+        assertEquals(n, dict.size());
+    }
+
+    @Test
+    public void testMalformedBytesShareTag() {
+        TagDictionary dict = new TagDictionary(UTF8);
+        // two different invalid bytes both decode to U+FFFD
+        byte[] first = {'x', (byte) 0xFF};
+        byte[] second = {'x', (byte) 0xFE};
+        int a = dict.intern(ByteBuffer.wrap(first), 0, 2);
+        int b = dict.intern(ByteBuffer.wrap(second), 0, 2);
+        assertEquals(a, b);
+        assertEquals(1, dict.size());
+        assertEquals("x�", dict.getTag(a));
+        assertNotEquals(a, intern(dict, "", "x"));
+    }
+
+    @Test(expected = IndexOutOfBoundsException.class)
+    public void testBadId() {
+        TagDictionary dict = new TagDictionary(UTF8);
+        intern(dict, "", "comedy");
+        dict.getTag(1);
+    }
+
+    @Test
+    public void testToArrayIsACopy() {
+        TagDictionary dict = new TagDictionary(UTF8);
+        intern(dict, "", "comedy");
+        String[] tags = dict.toArray();
+        tags[0] = "drama";
+        assertEquals(Arrays.asList("comedy"), Arrays.asList(dict.toArray()));
+    }
+}